@@ -24,6 +24,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.cassandra.config.ColumnDefinition;
@@ -38,10 +39,14 @@ import org.apache.cassandra.db.filter.ColumnSlice;
 import org.apache.cassandra.db.filter.ExtendedFilter;
 import org.apache.cassandra.db.index.sasi.conf.ColumnIndex;
 import org.apache.cassandra.db.index.sasi.disk.PerSSTableIndexWriter;
+import org.apache.cassandra.db.index.sasi.disk.Token;
 import org.apache.cassandra.db.index.sasi.exceptions.TimeQuotaExceededException;
 import org.apache.cassandra.db.index.sasi.memory.IndexMemtable;
 import org.apache.cassandra.db.index.sasi.metrics.IndexMetrics;
+import org.apache.cassandra.db.index.sasi.plan.CursorCache;
+import org.apache.cassandra.db.index.sasi.plan.Expression;
 import org.apache.cassandra.db.index.sasi.plan.QueryPlan;
+import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.dht.Murmur3Partitioner;
 import org.apache.cassandra.exceptions.ConfigurationException;
@@ -78,6 +83,9 @@ public class SSTableAttachedSecondaryIndex extends PerRowSecondaryIndex implemen
     private final ConcurrentMap<ByteBuffer, ColumnIndex> indexedColumns;
     private final AtomicReference<IndexMemtable> globalMemtable = new AtomicReference<>(new IndexMemtable(this));
 
+    // incremented once the write is indexed by the memtable, so the parked cursors could tell if they've missed any writes
+    private final AtomicLong memtableWrites = new AtomicLong(0);
+
     private AbstractType<?> keyValidator;
     private boolean isInitialized;
 
@@ -93,7 +101,7 @@ public class SSTableAttachedSecondaryIndex extends PerRowSecondaryIndex implemen
 
         isInitialized = true;
 
-        metrics = new IndexMetrics(baseCfs);
+        metrics = new IndexMetrics(this);
 
         // init() is called by SIM only on the instance that it will keep around, but will call addColumnDef on any instance
         // that it happens to create (and subsequently/immediately throw away)
@@ -188,6 +196,8 @@ public class SSTableAttachedSecondaryIndex extends PerRowSecondaryIndex implemen
 
     private void updateView(Collection<SSTableReader> toRemove, Collection<SSTableReader> toAdd, Collection<ColumnDefinition> columns)
     {
+        CursorCache.instance.invalidate(this);
+
         for (ColumnDefinition column : columns)
         {
             ColumnIndex columnIndex = indexedColumns.get(column.name);
@@ -227,6 +237,11 @@ public class SSTableAttachedSecondaryIndex extends PerRowSecondaryIndex implemen
         return globalMemtable.get().estimateSize();
     }
 
+    public long getOffHeapSize()
+    {
+        return globalMemtable.get().offHeapSize();
+    }
+
     public void reload()
     {
         invalidateMemtable();
@@ -238,7 +253,25 @@ public class SSTableAttachedSecondaryIndex extends PerRowSecondaryIndex implemen
         if (cf == null || cf.isMarkedForDelete())
             return;
 
-        globalMemtable.get().index(key, cf.iterator());
+        IndexMemtable memtable = acquireMemtable();
+
+        try
+        {
+            memtable.index(key, cf.iterator());
+        }
+        finally
+        {
+            memtable.release();
+            memtableWrites.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The number of writes indexed by the memtable so far.
+     */
+    public long getMemtableWrites()
+    {
+        return memtableWrites.get();
     }
 
     /**
@@ -309,6 +342,8 @@ public class SSTableAttachedSecondaryIndex extends PerRowSecondaryIndex implemen
         ColumnIndex index = indexedColumns.remove(columnName);
         if (index != null)
             index.dropData(FBUtilities.timestampMicros());
+
+        CursorCache.instance.invalidate(this);
     }
 
     public void invalidate()
@@ -323,11 +358,14 @@ public class SSTableAttachedSecondaryIndex extends PerRowSecondaryIndex implemen
 
         for (ColumnIndex index : indexedColumns.values())
             index.dropData(truncateUntil);
+
+        CursorCache.instance.invalidate(this);
     }
 
     private void invalidateMemtable()
     {
-        globalMemtable.getAndSet(new IndexMemtable(this));
+        globalMemtable.getAndSet(new IndexMemtable(this)).discard();
+        CursorCache.instance.invalidate(this);
     }
 
     public void truncateBlocking(long truncatedAt)
@@ -359,6 +397,39 @@ public class SSTableAttachedSecondaryIndex extends PerRowSecondaryIndex implemen
         return globalMemtable.get();
     }
 
+    public RangeIterator<Long, Token> searchMemtable(Expression expression)
+    {
+        IndexMemtable memtable = acquireMemtable();
+
+        try
+        {
+            return memtable.search(expression);
+        }
+        finally
+        {
+            memtable.release();
+        }
+    }
+
+    /**
+     * @return The current memtable, referenced so it's not discarded until released. Memtable which was discarded
+     *         concurrently has already been replaced by the new one, so it's retried with the new one.
+     */
+    private IndexMemtable acquireMemtable()
+    {
+        while (true)
+        {
+            IndexMemtable memtable = globalMemtable.get();
+            if (memtable.reference())
+                return memtable;
+        }
+    }
+
+    public IndexMetrics getMetrics()
+    {
+        return metrics;
+    }
+
     protected PerSSTableIndexWriter newWriter(Descriptor descriptor, Map<ByteBuffer, ColumnIndex> indexes, Source source)
     {
         return new PerSSTableIndexWriter(keyValidator, descriptor, source, indexes);
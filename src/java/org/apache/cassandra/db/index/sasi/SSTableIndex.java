@@ -30,6 +30,8 @@ import org.apache.cassandra.db.index.sasi.disk.OnDiskIndex;
 import org.apache.cassandra.db.index.sasi.plan.Expression;
 import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
 import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.db.marshal.DecimalType;
+import org.apache.cassandra.db.marshal.IntegerType;
 import org.apache.cassandra.io.FSReadError;
 import org.apache.cassandra.io.sstable.SSTableReader;
 import org.apache.cassandra.io.util.FileUtils;
@@ -42,6 +44,7 @@ public class SSTableIndex
     private final ColumnIndex columnIndex;
     private final SSTableReader sstable;
     private final OnDiskIndex index;
+    private final Function<Long, DecoratedKey> keyFetcher;
     private final AtomicInteger references = new AtomicInteger(1);
     private final AtomicBoolean obsolete = new AtomicBoolean(false);
 
@@ -60,7 +63,8 @@ public class SSTableIndex
                 sstable.getFilename(),
                 columnIndex.getIndexName());
 
-        this.index = new OnDiskIndex(indexFile, validator, new DecoratedKeyFetcher(sstable));
+        this.keyFetcher = new DecoratedKeyFetcher(sstable);
+        this.index = new OnDiskIndex(indexFile, validator, keyFetcher);
     }
 
     public ByteBuffer minTerm()
@@ -88,6 +92,49 @@ public class SSTableIndex
         return index.search(expression);
     }
 
+    /**
+     * Check the bloom filter of the terms to find out if index could have any rows for the point lookup,
+     * which allows to skip the index without searching it. Literal EQ matches prefixes/suffixes of the terms
+     * and some of the types (decimal, varint) allow multiple serialized forms of the same value, so only
+     * exact matches of the other types are checked.
+     *
+     * @param expression The expression to check.
+     *
+     * @return false if index definitely doesn't have any rows matching the expression, true otherwise.
+     */
+    public boolean mayMatch(Expression expression)
+    {
+        if (expression.getOp() != Expression.Op.EQ || columnIndex.isLiteral())
+            return true;
+
+        AbstractType<?> validator = columnIndex.getValidator();
+        if (validator instanceof DecimalType || validator instanceof IntegerType)
+            return true;
+
+        // index could be released concurrently, in which case it's going to be skipped by search anyway
+        if (!reference())
+            return true;
+
+        try
+        {
+            return index.mayContainTerm(expression.lower.value);
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    public long estimateTokenCount(Expression expression)
+    {
+        return index.estimateTokenCount(expression);
+    }
+
+    public Function<Long, DecoratedKey> getKeyFetcher()
+    {
+        return keyFetcher;
+    }
+
     public SSTableReader getSSTable()
     {
         return sstable;
@@ -115,6 +162,7 @@ public class SSTableIndex
         int n = references.decrementAndGet();
         if (n == 0)
         {
+            SearchResultCache.instance.invalidate(this);
             FileUtils.closeQuietly(index);
             sstable.releaseReference();
             if (obsolete.get() || sstable.isMarkedCompacted())
@@ -125,6 +173,7 @@ public class SSTableIndex
     public void markObsolete()
     {
         obsolete.getAndSet(true);
+        SearchResultCache.instance.invalidate(this);
         release();
     }
 
@@ -0,0 +1,412 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.cassandra.cache.RefCountedMemory;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.index.sasi.disk.PackedPostings;
+import org.apache.cassandra.db.index.sasi.disk.Token;
+import org.apache.cassandra.db.index.sasi.metrics.IndexMetrics;
+import org.apache.cassandra.db.index.sasi.plan.Expression;
+import org.apache.cassandra.db.index.sasi.utils.BlockRangeIterator;
+import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
+import org.apache.cassandra.io.util.FileUtils;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.LongSet;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.MapMaker;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+/**
+ * Caches results of the per-SSTable index searches, which is safe because index files are immutable,
+ * so repeated queries don't have to go through the term blocks and token trees again.
+ *
+ * Only results of up to {@link #MAX_TOKENS} tokens are cached, tokens and their key offsets are kept off-heap,
+ * entries are weighted by size and invalidated once SSTable index is released.
+ */
+public class SearchResultCache
+{
+    private static final long CAPACITY = Long.getLong("cassandra.sasi.result_cache_size_in_mb", 32) * 1024 * 1024;
+    private static final int MAX_TOKENS = Integer.getInteger("cassandra.sasi.result_cache_max_tokens", 4096);
+
+    // rough on-heap overhead of the key and entry
+    private static final int ENTRY_OVERHEAD = 128;
+
+    public static final SearchResultCache instance = new SearchResultCache(CAPACITY);
+
+    private final Cache<Key, Entry> cache;
+
+    // cached keys of each index, so they could be dropped without going through the whole cache,
+    // weak keys of the map are compared by identity the same way cache keys compare indexes
+    private final ConcurrentMap<SSTableIndex, Set<Key>> keysByIndex = new MapMaker().weakKeys().makeMap();
+
+    @VisibleForTesting
+    SearchResultCache(long capacity)
+    {
+        cache = capacity <= 0 ? null : CacheBuilder.newBuilder()
+                                                   .maximumWeight(capacity)
+                                                   .weigher(new Weigher<Key, Entry>()
+                                                   {
+                                                       @Override
+                                                       public int weigh(Key key, Entry entry)
+                                                       {
+                                                           return ENTRY_OVERHEAD + (int) entry.size();
+                                                       }
+                                                   })
+                                                   .removalListener(new RemovalListener<Key, Entry>()
+                                                   {
+                                                       @Override
+                                                       public void onRemoval(RemovalNotification<Key, Entry> notification)
+                                                       {
+                                                           notification.getValue().release();
+
+                                                           // replaced key is still in the cache, so it has to stay tracked
+                                                           if (notification.getCause() != RemovalCause.REPLACED)
+                                                               untrack(notification.getKey());
+                                                       }
+                                                   })
+                                                   .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                                                   .build();
+    }
+
+    /**
+     * Search given SSTable index, expected to be referenced by the caller for the lifetime of the returned iterator.
+     */
+    public RangeIterator<Long, Token> search(SSTableIndex index, Expression expression, IndexMetrics metrics)
+    {
+        if (cache == null)
+            return index.search(expression);
+
+        Key key = new Key(index, expression);
+
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && entry.reference())
+        {
+            if (metrics != null)
+                metrics.markCacheHit();
+
+            return entry.iterator(index.getKeyFetcher());
+        }
+
+        if (metrics != null)
+            metrics.markCacheMiss();
+
+        RangeIterator<Long, Token> result = index.search(expression);
+        if (result == null)
+        {
+            put(key, Entry.EMPTY);
+            return null;
+        }
+
+        if (result.getCount() > MAX_TOKENS)
+            return result;
+
+        try
+        {
+            entry = Entry.build(result);
+        }
+        finally
+        {
+            FileUtils.closeQuietly(result);
+        }
+
+        if (entry == Entry.EMPTY)
+        {
+            put(key, entry);
+            return null;
+        }
+
+        // reference on behalf of the returned iterator before the entry is visible to eviction
+        entry.reference();
+        put(key, entry);
+
+        return entry.iterator(index.getKeyFetcher());
+    }
+
+    /**
+     * Drop all of the results of the given index, called when it's no longer in use.
+     */
+    public void invalidate(SSTableIndex index)
+    {
+        if (cache == null)
+            return;
+
+        Set<Key> keys = keysByIndex.remove(index);
+        if (keys == null)
+            return;
+
+        cache.invalidateAll(keys);
+    }
+
+    private void put(Key key, Entry entry)
+    {
+        Set<Key> keys = keysByIndex.get(key.index);
+        if (keys == null)
+        {
+            Set<Key> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+            keys = keysByIndex.putIfAbsent(key.index, newKeys);
+            if (keys == null)
+                keys = newKeys;
+        }
+
+        keys.add(key);
+        cache.put(key, entry);
+    }
+
+    private void untrack(Key key)
+    {
+        Set<Key> keys = keysByIndex.get(key.index);
+        if (keys != null)
+            keys.remove(key);
+    }
+
+    private static class Key
+    {
+        // indexes are compared by identity, so re-opened index of the same file can't see stale entries
+        private final SSTableIndex index;
+
+        private final Expression.Op op;
+        private final Expression.Bound lower, upper;
+        private final List<ByteBuffer> exclusions;
+
+        public Key(SSTableIndex index, Expression expression)
+        {
+            this.index = index;
+            this.op = expression.getOp();
+            this.lower = expression.lower;
+            this.upper = expression.upper;
+            this.exclusions = new ArrayList<>(expression.exclusions);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return new HashCodeBuilder().append(System.identityHashCode(index))
+                                        .append(op)
+                                        .append(lower).append(upper)
+                                        .append(exclusions).build();
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key))
+                return false;
+
+            Key o = (Key) other;
+            return index == o.index
+                    && op == o.op
+                    && Objects.equals(lower, o.lower)
+                    && Objects.equals(upper, o.upper)
+                    && exclusions.equals(o.exclusions);
+        }
+    }
+
+    /**
+     * Off-heap layout is [tokens (count)][key starts (count + 1)][key offsets], all longs.
+     */
+    private static class Entry
+    {
+        private static final Entry EMPTY = new Entry(null, 0, 0);
+
+        private final RefCountedMemory memory;
+        private final int count;
+        private final int offsetCount;
+
+        private Entry(RefCountedMemory memory, int count, int offsetCount)
+        {
+            this.memory = memory;
+            this.count = count;
+            this.offsetCount = offsetCount;
+        }
+
+        public static Entry build(RangeIterator<Long, Token> result)
+        {
+            LongArrayList tokens = new LongArrayList();
+            LongArrayList keyStarts = new LongArrayList();
+            LongArrayList offsets = new LongArrayList();
+
+            LongSet tokenOffsets = new LongOpenHashSet();
+            while (result.hasNext())
+            {
+                Token token = result.next();
+
+                tokenOffsets.clear();
+                token.collectOffsets(tokenOffsets);
+
+                tokens.add(token.get());
+                keyStarts.add(offsets.size());
+
+                long[] sorted = tokenOffsets.toArray();
+                Arrays.sort(sorted);
+                offsets.add(sorted, 0, sorted.length);
+            }
+
+            if (tokens.isEmpty())
+                return EMPTY;
+
+            keyStarts.add(offsets.size());
+
+            int count = tokens.size();
+            RefCountedMemory memory = new RefCountedMemory(((long) count * 2 + 1 + offsets.size()) * 8);
+
+            long position = 0;
+            for (int i = 0; i < count; i++, position += 8)
+                memory.setLong(position, tokens.get(i));
+
+            for (int i = 0; i <= count; i++, position += 8)
+                memory.setLong(position, keyStarts.get(i));
+
+            for (int i = 0; i < offsets.size(); i++, position += 8)
+                memory.setLong(position, offsets.get(i));
+
+            return new Entry(memory, count, offsets.size());
+        }
+
+        public long size()
+        {
+            return memory == null ? 0 : memory.size();
+        }
+
+        public boolean reference()
+        {
+            return memory == null || memory.reference();
+        }
+
+        public void release()
+        {
+            if (memory != null)
+                memory.unreference();
+        }
+
+        public RangeIterator<Long, Token> iterator(Function<Long, DecoratedKey> keyFetcher)
+        {
+            return memory == null ? null : new CachedTokensIterator(this, keyFetcher);
+        }
+
+        private long token(int index)
+        {
+            return memory.getLong((long) index * 8);
+        }
+
+        private int keyStart(int index)
+        {
+            return (int) memory.getLong(((long) count + index) * 8);
+        }
+
+        private long offset(int index)
+        {
+            return memory.getLong(((long) count * 2 + 1 + index) * 8);
+        }
+    }
+
+    private static class CachedTokensIterator extends BlockRangeIterator<Token>
+    {
+        private final Entry entry;
+        private final Function<Long, DecoratedKey> keyFetcher;
+
+        private int position;
+        private boolean isClosed;
+
+        public CachedTokensIterator(Entry entry, Function<Long, DecoratedKey> keyFetcher)
+        {
+            super(entry.token(0), entry.token(entry.count - 1), entry.count);
+
+            this.entry = entry;
+            this.keyFetcher = keyFetcher;
+        }
+
+        @Override
+        protected Token computeNext()
+        {
+            if (isClosed || position >= entry.count)
+                return endOfData();
+
+            int from = entry.keyStart(position), to = entry.keyStart(position + 1);
+
+            long[] offsets = new long[to - from];
+            for (int i = 0; i < offsets.length; i++)
+                offsets[i] = entry.offset(from + i);
+
+            return new PackedPostings.PackedToken(entry.token(position++), keyFetcher, offsets, 0, offsets.length);
+        }
+
+        @Override
+        protected void performSkipTo(Long nextToken)
+        {
+            if (isClosed)
+                return;
+
+            long target = nextToken;
+
+            int low = position, high = entry.count - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                if (entry.token(mid) < target)
+                    low = mid + 1;
+                else
+                    high = mid - 1;
+            }
+
+            position = low;
+        }
+
+        @Override
+        protected int readTokens(long[] buffer, int offset)
+        {
+            if (isClosed)
+                return 0;
+
+            int count = Math.min(entry.count - position, buffer.length - offset);
+            for (int i = 0; i < count; i++)
+                buffer[offset + i] = entry.token(position + i);
+
+            return count;
+        }
+
+        @Override
+        public void close()
+        {
+            if (isClosed)
+                return;
+
+            isClosed = true;
+            entry.release();
+        }
+    }
+}
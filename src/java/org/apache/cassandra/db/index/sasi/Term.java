@@ -28,15 +28,27 @@ public class Term
     protected final MappedBuffer content;
     protected final TermSize termSize;
 
+    // term restored from the front coded entry, which is [shared prefix length (short)][suffix length (short)][suffix],
+    // null if the term is written in full
+    protected final ByteBuffer decodedTerm;
 
     public Term(MappedBuffer content, TermSize size)
+    {
+        this(content, size, null);
+    }
+
+    public Term(MappedBuffer content, TermSize size, ByteBuffer decodedTerm)
     {
         this.content = content;
         this.termSize = size;
+        this.decodedTerm = decodedTerm;
     }
 
     public ByteBuffer getTerm()
     {
+        if (decodedTerm != null)
+            return decodedTerm.duplicate();
+
         long offset = termSize.isConstant() ? content.position() : content.position() + 2;
         int  length = termSize.isConstant() ? termSize.size : content.getShort(content.position());
 
@@ -46,6 +58,9 @@ public class Term
     public long getDataOffset()
     {
         long position = content.position();
+        if (decodedTerm != null)
+            return position + 4 + content.getShort(position + 2);
+
         return position + (termSize.isConstant() ? termSize.size : 2 + content.getShort(position));
     }
 
@@ -56,6 +71,15 @@ public class Term
 
     public int compareTo(AbstractType<?> comparator, ByteBuffer query, boolean checkFully)
     {
+        if (decodedTerm != null)
+        {
+            ByteBuffer term = decodedTerm.duplicate();
+            if (!checkFully)
+                term.limit(term.position() + Math.min(term.remaining(), query.remaining()));
+
+            return comparator.compare(term, query);
+        }
+
         long position = content.position();
         int padding = termSize.isConstant() ? 0 : 2;
         int len = termSize.isConstant() ? termSize.size : content.getShort(position);
@@ -17,20 +17,23 @@
  */
 package org.apache.cassandra.db.index.sasi;
 
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.cassandra.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.index.sasi.disk.Token;
+import org.apache.cassandra.db.index.sasi.exceptions.TimeQuotaExceededException;
+import org.apache.cassandra.db.index.sasi.metrics.IndexMetrics;
 import org.apache.cassandra.db.index.sasi.plan.Expression;
+import org.apache.cassandra.db.index.sasi.utils.BlockRangeIterator;
+import org.apache.cassandra.db.index.sasi.utils.BlockReadable;
 import org.apache.cassandra.db.index.sasi.utils.RangeUnionIterator;
 import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
 import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.utils.FBUtilities;
 
-import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.slf4j.Logger;
@@ -40,29 +43,29 @@ public class TermIterator extends RangeIterator<Long, Token>
 {
     private static final Logger logger = LoggerFactory.getLogger(TermIterator.class);
 
-    private static final ThreadLocal<ExecutorService> SEARCH_EXECUTOR = new ThreadLocal<ExecutorService>()
+    /**
+     * Node-wide pool which searches SSTable indexes, shared by all of the queries so the number
+     * of search threads doesn't depend on the number of request threads, it's queue depth
+     * and active tasks are exposed via JMX (internal.SASI-Search). Once the queue is full,
+     * indexes are searched by the query thread itself instead of waiting for the pool.
+     */
+    private static final ThreadPoolExecutor SEARCH_EXECUTOR;
+
+    static
     {
-        public ExecutorService initialValue()
+        int threads = Integer.getInteger("cassandra.sasi.search_threads", FBUtilities.getAvailableProcessors());
+        int queueSize = Integer.getInteger("cassandra.sasi.search_queue_size", threads * 16);
+
+        SEARCH_EXECUTOR = threads <= 1 ? null : new JMXEnabledThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                                               new LinkedBlockingQueue<Runnable>(queueSize),
+                                                                               new NamedThreadFactory("SASI-Search"),
+                                                                               "internal");
+        if (SEARCH_EXECUTOR != null)
         {
-            final String currentThread = Thread.currentThread().getName();
-            final int concurrencyFactor = DatabaseDescriptor.searchConcurrencyFactor();
-
-            logger.info("Search Concurrency Factor is set to {} for {}", concurrencyFactor, currentThread);
-
-            return (concurrencyFactor <= 1)
-                    ? MoreExecutors.sameThreadExecutor()
-                    : Executors.newFixedThreadPool(concurrencyFactor, new ThreadFactory()
-            {
-                public final AtomicInteger count = new AtomicInteger();
-
-                @Override
-                public Thread newThread(Runnable task)
-                {
-                    return new Thread(task, currentThread + "-SEARCH-" + count.incrementAndGet()) {{ setDaemon(true); }};
-                }
-            });
+            SEARCH_EXECUTOR.allowCoreThreadTimeOut(true);
+            SEARCH_EXECUTOR.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
         }
-    };
+    }
 
     private final Expression expression;
 
@@ -82,84 +85,69 @@ public class TermIterator extends RangeIterator<Long, Token>
 
     public static TermIterator build(final Expression e,
                                      RangeIterator<Long, Token> memtableIterator,
-                                     Set<SSTableIndex> perSSTableIndexes)
+                                     Set<SSTableIndex> perSSTableIndexes,
+                                     IndexMetrics metrics)
     {
-        final List<RangeIterator<Long, Token>> tokens = new CopyOnWriteArrayList<>();
-        final AtomicLong tokenCount = new AtomicLong(0);
+        final List<RangeIterator<Long, Token>> tokens = new ArrayList<>();
 
         if (memtableIterator != null)
-        {
             tokens.add(memtableIterator);
-            tokenCount.addAndGet(memtableIterator.getCount());
-        }
 
-        final Set<SSTableIndex> referencedIndexes = new CopyOnWriteArraySet<>();
+        Queue<SSTableIndex> indexes = new ConcurrentLinkedQueue<>();
+        Search search = null;
 
         try
         {
-            final CountDownLatch latch = new CountDownLatch(perSSTableIndexes.size());
-            final ExecutorService searchExecutor = SEARCH_EXECUTOR.get();
-
-            for (final SSTableIndex index : perSSTableIndexes)
+            for (SSTableIndex index : perSSTableIndexes)
             {
-                if (!index.reference())
-                {
-                    latch.countDown();
-                    continue;
-                }
+                if (index.reference())
+                    indexes.add(index);
+            }
 
-                // add to referenced right after the reference was acquired,
-                // that helps to release index if something goes bad inside of the search
-                referencedIndexes.add(index);
+            search = new Search(e, metrics, indexes);
 
-                searchExecutor.submit(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        try
-                        {
-                            e.checkpoint();
-
-                            RangeIterator<Long, Token> keyIterator = index.search(e);
-                            if (keyIterator == null)
-                            {
-                                releaseIndex(referencedIndexes, index);
-                                return;
-                            }
-
-                            tokens.add(keyIterator);
-                            tokenCount.getAndAdd(keyIterator.getCount());
-                        }
-                        catch (Throwable e)
-                        {
-                            releaseIndex(referencedIndexes, index);
-
-                            if (logger.isDebugEnabled())
-                                logger.debug(String.format("Failed search an index %s, skipping.", index.getPath()), e);
-                        }
-                        finally
-                        {
-                            latch.countDown();
-                        }
-                    }
-                });
+            // maximum number of the pool threads single query is allowed to occupy
+            int fanOut = Math.min(DatabaseDescriptor.searchConcurrencyFactor(), indexes.size());
+
+            if (SEARCH_EXECUTOR == null || fanOut <= 1)
+            {
+                search.run();
             }
+            else
+            {
+                for (int i = 0; i < fanOut; i++)
+                    SEARCH_EXECUTOR.execute(search);
 
-            Uninterruptibles.awaitUninterruptibly(latch);
+                if (!search.await(e.remainingQuota()))
+                    throw new TimeQuotaExceededException();
+            }
 
             // checkpoint right away after all indexes complete search because we might have crossed the quota
             e.checkpoint();
 
+            tokens.addAll(search.results);
+
             RangeIterator<Long, Token> ranges = RangeUnionIterator.build(tokens);
-            return ranges == null ? null : new TermIterator(e, ranges, referencedIndexes);
+            if (ranges == null)
+                return null;
+
+            return ranges instanceof BlockReadable
+                    ? new BlockTermIterator(e, ranges, search.referenced)
+                    : new TermIterator(e, ranges, search.referenced);
         }
         catch (Throwable ex)
         {
             // if execution quota was exceeded while opening indexes or something else happened
             // local (yet to be tracked) indexes should be released first before re-throwing exception
-            for (SSTableIndex index : referencedIndexes)
-                releaseQuietly(index);
+            if (search != null)
+            {
+                search.cancel();
+            }
+            else
+            {
+                for (SSTableIndex index : indexes)
+                    releaseQuietly(index);
+            }
 
             throw ex;
         }
@@ -201,10 +189,35 @@ public class TermIterator extends RangeIterator<Long, Token>
         referencedIndexes.clear();
     }
 
-    private static void releaseIndex(Set<SSTableIndex> indexes, SSTableIndex index)
+    /**
+     * Term iterator over the union of the {@link BlockReadable} ranges, which could be read in bulk as well.
+     */
+    private static class BlockTermIterator extends TermIterator implements BlockReadable
     {
-        indexes.remove(index);
-        releaseQuietly(index);
+        private final Expression expression;
+        private final BlockReadable union;
+
+        private BlockTermIterator(Expression e, RangeIterator<Long, Token> union, Set<SSTableIndex> referencedIndexes)
+        {
+            super(e, union, referencedIndexes);
+
+            this.expression = e;
+            this.union = (BlockReadable) union;
+        }
+
+        @Override
+        public int peekTokens(long[] buffer, int offset)
+        {
+            try
+            {
+                int computed = BlockRangeIterator.peekComputed(this, buffer, offset);
+                return computed < 0 ? 0 : computed + union.peekTokens(buffer, offset + computed);
+            }
+            finally
+            {
+                expression.checkpoint();
+            }
+        }
     }
 
     private static void releaseQuietly(SSTableIndex index)
@@ -218,4 +231,116 @@ public class TermIterator extends RangeIterator<Long, Token>
             logger.error(String.format("Failed to release index %s", index.getPath()), e);
         }
     }
+
+    /**
+     * Searches SSTable indexes taken one by one from the shared queue, could be run by multiple
+     * threads at the same time. Each of the indexes is owned either by the queue, by the thread
+     * which is searching it, or by the results once search is complete, so when the query is cancelled
+     * every index is released exactly once, even if some of the searches are still in flight.
+     */
+    private static class Search implements Runnable
+    {
+        private final Expression expression;
+        private final IndexMetrics metrics;
+
+        private final Queue<SSTableIndex> pending;
+        private final CountDownLatch latch;
+
+        // guarded by this
+        private final List<RangeIterator<Long, Token>> results = new ArrayList<>();
+        private final Set<SSTableIndex> referenced = new CopyOnWriteArraySet<>();
+        private boolean isCancelled;
+
+        public Search(Expression expression, IndexMetrics metrics, Queue<SSTableIndex> indexes)
+        {
+            this.expression = expression;
+            this.metrics = metrics;
+            this.pending = indexes;
+            this.latch = new CountDownLatch(indexes.size());
+        }
+
+        @Override
+        public void run()
+        {
+            SSTableIndex index;
+            while ((index = next()) != null)
+            {
+                try
+                {
+                    search(index);
+                }
+                finally
+                {
+                    latch.countDown();
+                }
+            }
+        }
+
+        private synchronized SSTableIndex next()
+        {
+            return isCancelled ? null : pending.poll();
+        }
+
+        private void search(SSTableIndex index)
+        {
+            RangeIterator<Long, Token> keyIterator = null;
+
+            try
+            {
+                expression.checkpoint();
+                keyIterator = SearchResultCache.instance.search(index, expression, metrics);
+            }
+            catch (Throwable e)
+            {
+                if (logger.isDebugEnabled())
+                    logger.debug(String.format("Failed search an index %s, skipping.", index.getPath()), e);
+            }
+
+            synchronized (this)
+            {
+                if (keyIterator != null && !isCancelled)
+                {
+                    results.add(keyIterator);
+                    referenced.add(index);
+                    return;
+                }
+            }
+
+            FileUtils.closeQuietly(keyIterator);
+            releaseQuietly(index);
+        }
+
+        public boolean await(long timeoutNanos)
+        {
+            return Uninterruptibles.awaitUninterruptibly(latch, timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public void cancel()
+        {
+            List<RangeIterator<Long, Token>> completed;
+            List<SSTableIndex> indexes = new ArrayList<>();
+
+            synchronized (this)
+            {
+                isCancelled = true;
+
+                completed = new ArrayList<>(results);
+                results.clear();
+
+                indexes.addAll(referenced);
+                referenced.clear();
+
+                // searches which haven't started yet are not going to be run
+                SSTableIndex index;
+                while ((index = pending.poll()) != null)
+                    indexes.add(index);
+            }
+
+            for (RangeIterator<Long, Token> result : completed)
+                FileUtils.closeQuietly(result);
+
+            for (SSTableIndex index : indexes)
+                releaseQuietly(index);
+        }
+    }
 }
@@ -52,7 +52,7 @@ public class ColumnIndex
 
     public void validate() throws ConfigurationException
     {
-        mode.validate(column.getIndexOptions());
+        mode.validate(column.getIndexOptions(), column.getValidator());
     }
 
     /**
@@ -28,8 +28,13 @@ import org.apache.cassandra.db.index.sasi.analyzer.NoOpAnalyzer;
 import org.apache.cassandra.db.index.sasi.analyzer.NonTokenizingAnalyzer;
 import org.apache.cassandra.db.index.sasi.analyzer.StandardAnalyzer;
 import org.apache.cassandra.db.index.sasi.disk.OnDiskIndexBuilder.Mode;
+import org.apache.cassandra.db.index.sasi.disk.OnDiskIndexBuilder.PostingsCodec;
+import org.apache.cassandra.db.index.sasi.disk.OnDiskIndexBuilder.TermSize;
+import org.apache.cassandra.db.index.sasi.memory.MemIndex.Allocation;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.db.marshal.AsciiType;
+import org.apache.cassandra.db.marshal.DecimalType;
+import org.apache.cassandra.db.marshal.IntegerType;
 import org.apache.cassandra.db.marshal.UTF8Type;
 import org.apache.cassandra.exceptions.ConfigurationException;
 
@@ -40,7 +45,7 @@ public class IndexMode
 {
     private static final Logger logger = LoggerFactory.getLogger(IndexMode.class);
 
-    public static final IndexMode NOT_INDEXED = new IndexMode(Mode.ORIGINAL, true, false, NonTokenizingAnalyzer.class, 0);
+    public static final IndexMode NOT_INDEXED = new IndexMode(Mode.ORIGINAL, true, false, NonTokenizingAnalyzer.class, 0, PostingsCodec.TOKEN_TREE, Allocation.HEAP);
 
     private static final Set<AbstractType<?>> TOKENIZABLE_TYPES = new HashSet<AbstractType<?>>()
     {{
@@ -53,24 +58,69 @@ public class IndexMode
     private static final String INDEX_ANALYZER_CLASS_OPTION = "analyzer_class";
     private static final String INDEX_IS_LITERAL_OPTION = "is_literal";
     private static final String INDEX_MAX_FLUSH_MEMORY_OPTION = "max_compaction_flush_memory_in_mb";
+    private static final String INDEX_POSTINGS_CODEC_OPTION = "postings_codec";
+    private static final String INDEX_MEMTABLE_ALLOCATION_OPTION = "memtable_allocation";
     private static final double INDEX_MAX_FLUSH_DEFAULT_MULTIPLIER = 0.15;
 
     public final Mode mode;
     public final boolean isAnalyzed, isLiteral;
     public final Class analyzerClass;
     public final long maxCompactionFlushMemoryInMb;
+    public final PostingsCodec postingsCodec;
+    public final Allocation memtableAllocation;
 
-    private IndexMode(Mode mode, boolean isLiteral, boolean isAnalyzed, Class analyzerClass, long maxFlushMemMb)
+    private IndexMode(Mode mode, boolean isLiteral, boolean isAnalyzed, Class analyzerClass, long maxFlushMemMb,
+                      PostingsCodec postingsCodec, Allocation memtableAllocation)
     {
         this.mode = mode;
         this.isLiteral = isLiteral;
         this.isAnalyzed = isAnalyzed;
         this.analyzerClass = analyzerClass;
         this.maxCompactionFlushMemoryInMb = maxFlushMemMb;
+        this.postingsCodec = postingsCodec;
+        this.memtableAllocation = memtableAllocation;
     }
 
-    public void validate(Map<String, String> indexOptions) throws ConfigurationException
+    public void validate(Map<String, String> indexOptions, AbstractType<?> validator) throws ConfigurationException
     {
+        if (indexOptions.containsKey(INDEX_MODE_OPTION))
+        {
+            Mode mode;
+
+            try
+            {
+                mode = Mode.mode(indexOptions.get(INDEX_MODE_OPTION));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ConfigurationException(String.format("Invalid mode option specified [%s]",
+                        indexOptions.get(INDEX_MODE_OPTION)));
+            }
+
+            // RANGE mode is only meant for numeric and time types, which have fixed term size
+            TermSize termSize = TermSize.sizeOf(validator);
+            if (mode == Mode.RANGE && termSize != TermSize.INT && termSize != TermSize.LONG)
+                throw new ConfigurationException(String.format("%s mode is only supported for int, bigint, float, double and timestamp columns, got %s",
+                        mode, validator.asCQL3Type()));
+
+            // HASH mode only answers exact matches of the serialized terms, literal columns are matched by prefix/suffix
+            // (or analyzed into tokens) and decimal/varint values could have multiple serialized forms
+            if (mode == Mode.HASH)
+            {
+                if (isLiteral(indexOptions, validator) || indexOptions.containsKey(INDEX_ANALYZER_CLASS_OPTION) || Boolean.valueOf(indexOptions.get(INDEX_ANALYZED_OPTION)))
+                    throw new ConfigurationException(String.format("%s mode is only supported for non-literal columns which are not analyzed, use '%s': 'false' for text columns",
+                            mode, INDEX_IS_LITERAL_OPTION));
+
+                if (validator instanceof DecimalType || validator instanceof IntegerType)
+                    throw new ConfigurationException(String.format("%s mode is not supported for %s columns", mode, validator.asCQL3Type()));
+            }
+
+            // grams are split by characters and only answer substring queries, which are literal EQ
+            if (mode == Mode.NGRAM && !(isLiteral(indexOptions, validator) && TOKENIZABLE_TYPES.contains(validator)))
+                throw new ConfigurationException(String.format("%s mode is only supported for literal text and ascii columns, got %s",
+                        mode, validator.asCQL3Type()));
+        }
+
         // validate that a valid analyzer class was provided if specified
         if (indexOptions.containsKey(INDEX_ANALYZER_CLASS_OPTION))
         {
@@ -84,6 +134,40 @@ public class IndexMode
                         indexOptions.get(INDEX_ANALYZER_CLASS_OPTION)));
             }
         }
+
+        if (indexOptions.containsKey(INDEX_POSTINGS_CODEC_OPTION))
+        {
+            try
+            {
+                PostingsCodec.codec(indexOptions.get(INDEX_POSTINGS_CODEC_OPTION));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ConfigurationException(String.format("Invalid postings codec option specified [%s]",
+                        indexOptions.get(INDEX_POSTINGS_CODEC_OPTION)));
+            }
+        }
+
+        if (indexOptions.containsKey(INDEX_MEMTABLE_ALLOCATION_OPTION))
+        {
+            try
+            {
+                Allocation.allocation(indexOptions.get(INDEX_MEMTABLE_ALLOCATION_OPTION));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ConfigurationException(String.format("Invalid memtable allocation option specified [%s]",
+                        indexOptions.get(INDEX_MEMTABLE_ALLOCATION_OPTION)));
+            }
+        }
+    }
+
+    private static boolean isLiteral(Map<String, String> indexOptions, AbstractType<?> validator)
+    {
+        String literalOption = indexOptions.get(INDEX_IS_LITERAL_OPTION);
+        return literalOption == null
+                ? (validator instanceof UTF8Type || validator instanceof AsciiType)
+                : Boolean.valueOf(literalOption);
     }
 
     public AbstractAnalyzer getAnalyzer(AbstractType<?> validator)
@@ -159,6 +243,14 @@ public class IndexMode
                 ? (long) ((DatabaseDescriptor.getTotalMemtableSpaceInMB() * 1048576L) * INDEX_MAX_FLUSH_DEFAULT_MULTIPLIER)
                 : Long.parseLong(indexOptions.get(INDEX_MAX_FLUSH_MEMORY_OPTION));
 
-        return new IndexMode(mode, isLiteral, isAnalyzed, analyzerClass, maxMemMb);
+        PostingsCodec postingsCodec = indexOptions.get(INDEX_POSTINGS_CODEC_OPTION) == null
+                                        ? PostingsCodec.TOKEN_TREE
+                                        : PostingsCodec.codec(indexOptions.get(INDEX_POSTINGS_CODEC_OPTION));
+
+        Allocation memtableAllocation = indexOptions.get(INDEX_MEMTABLE_ALLOCATION_OPTION) == null
+                                        ? Allocation.HEAP
+                                        : Allocation.allocation(indexOptions.get(INDEX_MEMTABLE_ALLOCATION_OPTION));
+
+        return new IndexMode(mode, isLiteral, isAnalyzed, analyzerClass, maxMemMb, postingsCodec, memtableAllocation);
     }
 }
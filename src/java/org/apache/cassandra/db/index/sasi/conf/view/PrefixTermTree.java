@@ -60,7 +60,7 @@ public class PrefixTermTree extends RangeTermTree
     @Override
     public Set<SSTableIndex> search(Expression e)
     {
-        Map<ByteBuffer, Set<SSTableIndex>> indexes = (e == null || e.lower == null || mode == OnDiskIndexBuilder.Mode.SUFFIX)
+        Map<ByteBuffer, Set<SSTableIndex>> indexes = (e == null || e.lower == null || mode == OnDiskIndexBuilder.Mode.SUFFIX || mode == OnDiskIndexBuilder.Mode.NGRAM)
                                                         ? trie : trie.prefixMap(e.lower.value);
 
         Set<SSTableIndex> view = new HashSet<>(indexes.size());
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+
+import org.apache.cassandra.db.index.sasi.utils.MappedBuffer;
+import org.apache.cassandra.utils.Pair;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+
+/**
+ * Posting list of a dense term, e.g. of a boolean or status column, stored as a bitmap over the positions
+ * (ordinals) of its tokens in the token dictionary of the index. The dictionary is {@link PackedPostings} of all
+ * of the tokens in the index, so tokens and key offsets are stored once no matter how many dense terms point
+ * to them, and union of the dense terms is a plain bitwise OR instead of merging their iterators.
+ *
+ * Layout: [token count (int)][first word (int)][word count (int)][words (long)*]
+ * only words between the first and the last set bit are stored.
+ */
+public class BitmapPostings
+{
+    /**
+     * Marker written instead of the sparse token count into the data term pointer,
+     * it's followed by the offset to the bitmap (the same as the token tree offset).
+     */
+    public static final byte TERM_MARKER = -2;
+
+    /**
+     * Term is dense if it has at least 1 / DENSITY of all of the tokens in the index,
+     * such bitmap takes at most DENSITY / 8 bytes per token.
+     */
+    public static final int DENSITY = 64;
+
+    /**
+     * Token dictionary is only worth it if dense terms cover at least that many tokens.
+     */
+    public static final int MIN_DICTIONARY_SIZE = 4096;
+
+    private static final int HEADER_BYTES = 12; // token count (4) + first word (4) + word count (4)
+
+    private final MappedBuffer buffer;
+    private final long start;
+
+    private final int tokenCount, firstWord, wordCount;
+
+    public BitmapPostings(MappedBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.start = buffer.position();
+
+        tokenCount = buffer.getInt(start);
+        firstWord = buffer.getInt(start + 4);
+        wordCount = buffer.getInt(start + 8);
+    }
+
+    public long getCount()
+    {
+        return tokenCount;
+    }
+
+    public BitSet getOrdinals()
+    {
+        long[] words = new long[firstWord + wordCount];
+        for (int i = 0; i < wordCount; i++)
+            words[firstWord + i] = buffer.getLong(start + HEADER_BYTES + i * 8);
+
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * @param termTokenCounts The number of tokens in each of the terms of the index.
+     *
+     * @return true if there are enough dense terms for the token dictionary to pay off.
+     */
+    public static boolean needsDictionary(LongArrayList termTokenCounts)
+    {
+        long totalTokens = 0, denseTokens = 0;
+        for (LongCursor count : termTokenCounts)
+            totalTokens += count.value;
+
+        // total is the upper bound of the dictionary size, so terms dense relative to it are dense in the dictionary as well
+        for (LongCursor count : termTokenCounts)
+        {
+            if (count.value * DENSITY >= totalTokens)
+                denseTokens += count.value;
+        }
+
+        // most of the tokens have to be in the dense terms, otherwise dictionary is just a copy of the postings
+        return denseTokens >= MIN_DICTIONARY_SIZE && denseTokens * 2 >= totalTokens;
+    }
+
+    public static boolean isDense(long tokenCount, long[] dictionary)
+    {
+        return dictionary != null && tokenCount * DENSITY >= dictionary.length;
+    }
+
+    public static int serializedSize(TokenTreeBuilder tokens, long[] dictionary)
+    {
+        int firstWord = -1, lastWord = -1;
+        for (Iterator<Pair<Long, LongSet>> i = tokens.iterator(); i.hasNext();)
+        {
+            lastWord = ordinal(i.next().left, dictionary) / Long.SIZE;
+            if (firstWord < 0)
+                firstWord = lastWord;
+        }
+
+        return HEADER_BYTES + (lastWord - firstWord + 1) * 8;
+    }
+
+    public static void write(TokenTreeBuilder tokens, long[] dictionary, DataOutput out) throws IOException
+    {
+        int count = 0;
+
+        // tokens are sorted, so are their ordinals, bitmap could only be sized once all of them are known
+        int[] ordinals = new int[(int) tokens.getTokenCount()];
+        for (Iterator<Pair<Long, LongSet>> i = tokens.iterator(); i.hasNext();)
+            ordinals[count++] = ordinal(i.next().left, dictionary);
+
+        int firstWord = ordinals[0] / Long.SIZE;
+        int lastWord = ordinals[count - 1] / Long.SIZE;
+
+        long[] words = new long[lastWord - firstWord + 1];
+        for (int ordinal : ordinals)
+            words[ordinal / Long.SIZE - firstWord] |= 1L << (ordinal % Long.SIZE);
+
+        out.writeInt(count);
+        out.writeInt(firstWord);
+        out.writeInt(words.length);
+
+        for (long word : words)
+            out.writeLong(word);
+    }
+
+    private static int ordinal(long token, long[] dictionary)
+    {
+        int ordinal = Arrays.binarySearch(dictionary, token);
+        assert ordinal >= 0 : String.format("token %d is not in the dictionary", token);
+
+        return ordinal;
+    }
+}
@@ -24,16 +24,42 @@ public class Descriptor
 {
     public static final String VERSION_AA = "aa";
     public static final String VERSION_AB = "ab";
-    public static final String CURRENT_VERSION = VERSION_AB;
+    public static final String VERSION_AC = "ac";
+    public static final String VERSION_AD = "ad";
+    public static final String VERSION_AE = "ae";
+    public static final String VERSION_AF = "af";
+    public static final String VERSION_AG = "ag";
+    public static final String CURRENT_VERSION = VERSION_AG;
     public static final Descriptor CURRENT = new Descriptor(CURRENT_VERSION);
 
     public static class Version
     {
         public final String version;
 
+        // ac: data terms can point to packed postings instead of the token tree
+        public final boolean hasPackedPostings;
+
+        // ad: header has offset of the token dictionary, dense terms can point to bitmaps over it
+        public final boolean hasBitmapPostings;
+
+        // ae: bloom filter of the terms is written after the levels metadata
+        public final boolean hasTermBloomFilter;
+
+        // af: pointer levels of the byte ordered terms are replaced by the term FST written after the bloom filter
+        public final boolean hasTermFST;
+
+        // ag: variable size terms of the data blocks are front coded
+        public final boolean hasFrontCoding;
+
         public Version(String version)
         {
             this.version = version;
+
+            hasPackedPostings = version.compareTo(VERSION_AC) >= 0;
+            hasBitmapPostings = version.compareTo(VERSION_AD) >= 0;
+            hasTermBloomFilter = version.compareTo(VERSION_AE) >= 0;
+            hasTermFST = version.compareTo(VERSION_AF) >= 0;
+            hasFrontCoding = version.compareTo(VERSION_AG) >= 0;
         }
 
         public String toString()
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.cassandra.utils.Pair;
+
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.LongSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Token tree builder which keeps its tokens in the sorted map of the offset sets,
+ * leaves of the tree are the views of that map.
+ */
+public class DynamicTokenTreeBuilder extends MutableTokenTreeBuilder
+{
+    private final SortedMap<Long, LongSet> tokens = new TreeMap<>();
+
+    public DynamicTokenTreeBuilder()
+    {}
+
+    public DynamicTokenTreeBuilder(SortedMap<Long, LongSet> data)
+    {
+        add(data);
+    }
+
+    @Override
+    public void add(Long token, long keyPosition)
+    {
+        LongSet found = tokens.get(token);
+        if (found == null)
+            tokens.put(token, (found = new LongOpenHashSet(2)));
+
+        found.add(keyPosition);
+    }
+
+    @Override
+    public void add(TokenTreeBuilder other)
+    {
+        add(other.getTokens());
+    }
+
+    @Override
+    public void add(SortedMap<Long, LongSet> data)
+    {
+        for (Map.Entry<Long, LongSet> newEntry : data.entrySet())
+        {
+            LongSet found = tokens.get(newEntry.getKey());
+            if (found == null)
+                tokens.put(newEntry.getKey(), (found = new LongOpenHashSet(4)));
+
+            for (LongCursor offset : newEntry.getValue())
+                found.add(offset.value);
+        }
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return tokens.isEmpty();
+    }
+
+    @Override
+    public long getTokenCount()
+    {
+        return tokens.size();
+    }
+
+    @Override
+    public SortedMap<Long, LongSet> getTokens()
+    {
+        return tokens;
+    }
+
+    @Override
+    public Iterator<Pair<Long, LongSet>> iterator()
+    {
+        final Iterator<Map.Entry<Long, LongSet>> entries = tokens.entrySet().iterator();
+        return new AbstractIterator<Pair<Long, LongSet>>()
+        {
+            @Override
+            protected Pair<Long, LongSet> computeNext()
+            {
+                if (!entries.hasNext())
+                    return endOfData();
+
+                Map.Entry<Long, LongSet> entry = entries.next();
+                return Pair.create(entry.getKey(), entry.getValue());
+            }
+        };
+    }
+
+    @Override
+    protected void constructTree()
+    {
+        tokenCount = tokens.size();
+        treeMinToken = tokens.firstKey();
+        treeMaxToken = tokens.lastKey();
+
+        List<Leaf> leaves = new ArrayList<>();
+
+        // special case the tree that only has a single block in it (so we don't create a useless root)
+        if (tokenCount <= TOKENS_PER_BLOCK)
+        {
+            leaves.add(new InMemoryLeaf(tokens));
+        }
+        else
+        {
+            // all of the tokens but the last one are split into the full leaves, the last token gets a leaf of its own
+            int i = 0;
+            Long firstToken = null;
+            for (Long token : tokens.keySet())
+            {
+                if (i == tokenCount - 1)
+                {
+                    leaves.add(new InMemoryLeaf(tokens.subMap(firstToken, token)));
+                    leaves.add(new InMemoryLeaf(tokens.tailMap(token)));
+                    break;
+                }
+
+                if (i++ % TOKENS_PER_BLOCK == 0)
+                {
+                    if (firstToken != null)
+                        leaves.add(new InMemoryLeaf(tokens.subMap(firstToken, token)));
+
+                    firstToken = token;
+                }
+            }
+        }
+
+        load(leaves);
+    }
+
+    private class InMemoryLeaf extends Leaf
+    {
+        private final SortedMap<Long, LongSet> tokens;
+
+        InMemoryLeaf(SortedMap<Long, LongSet> data)
+        {
+            super(data.firstKey(), data.lastKey());
+            tokens = data;
+        }
+
+        public int tokenCount()
+        {
+            return tokens.size();
+        }
+
+        protected void serializeData(ByteBuffer buf)
+        {
+            for (Map.Entry<Long, LongSet> entry : tokens.entrySet())
+                createEntry(entry.getKey(), entry.getValue()).serialize(buf);
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.apache.cassandra.db.index.sasi.disk;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.apache.cassandra.db.index.sasi.Term;
 import org.apache.cassandra.db.index.sasi.utils.MappedBuffer;
@@ -37,6 +38,11 @@ public abstract class OnDiskBlock<T extends Term>
     protected final boolean hasCombinedIndex;
     protected final TokenTree combinedIndex;
 
+    // front coded term decoded last and its index, blocks are cursors created per lookup and never shared
+    // between threads, so terms read in order are decoded incrementally from the previous one
+    private byte[] decoded = new byte[0];
+    private int decodedLength = 0, decodedIndex = -1;
+
     public OnDiskBlock(Descriptor descriptor, MappedBuffer block, BlockType blockType)
     {
         blockIndex = block;
@@ -61,6 +67,9 @@ public abstract class OnDiskBlock<T extends Term>
 
     public SearchResult<T> search(AbstractType<?> comparator, ByteBuffer query)
     {
+        if (isFrontCoded())
+            return searchFrontCoded(comparator, query);
+
         int cmp = -1, start = 0, end = termCount() - 1, middle = 0;
 
         T element = null;
@@ -81,7 +90,50 @@ public abstract class OnDiskBlock<T extends Term>
         return new SearchResult<>(element, cmp, middle);
     }
 
+    /**
+     * Binary search over the restart terms of the front coded block, which are written in full,
+     * then linear decode of the terms following the last restart term which is not greater than the query.
+     */
+    private SearchResult<T> searchFrontCoded(AbstractType<?> comparator, ByteBuffer query)
+    {
+        int start = 0, end = (termCount() - 1) / OnDiskIndexBuilder.RESTART_INTERVAL, restart = 0;
+        while (start <= end)
+        {
+            int middle = start + ((end - start) >> 1);
+            long position = getTermPosition(middle * OnDiskIndexBuilder.RESTART_INTERVAL);
+
+            int cmp = blockIndex.comparePageTo(position + 4, blockIndex.getShort(position + 2), comparator, query);
+            if (cmp == 0)
+                return new SearchResult<>(getTerm(middle * OnDiskIndexBuilder.RESTART_INTERVAL), cmp, middle * OnDiskIndexBuilder.RESTART_INTERVAL);
+            else if (cmp < 0)
+                start = (restart = middle) + 1;
+            else
+                end = middle - 1;
+        }
+
+        int index = restart * OnDiskIndexBuilder.RESTART_INTERVAL;
+        int last = Math.min(termCount(), index + OnDiskIndexBuilder.RESTART_INTERVAL) - 1;
+
+        for (;; index++)
+        {
+            decodeTo(index);
+
+            int cmp = comparator.compare(ByteBuffer.wrap(decoded, 0, decodedLength), query);
+            if (cmp >= 0 || index == last)
+                return new SearchResult<>(cast(getEntry(index), ByteBuffer.wrap(Arrays.copyOf(decoded, decodedLength))), cmp, index);
+        }
+    }
+
     protected T getTerm(int index)
+    {
+        if (!isFrontCoded())
+            return cast(getEntry(index));
+
+        decodeTo(index);
+        return cast(getEntry(index), ByteBuffer.wrap(Arrays.copyOf(decoded, decodedLength)));
+    }
+
+    private MappedBuffer getEntry(int index)
     {
         MappedBuffer dup = blockIndex.duplicate();
         long startsAt = getTermPosition(index);
@@ -90,7 +142,38 @@ public abstract class OnDiskBlock<T extends Term>
         else
             dup.position(startsAt).limit(getTermPosition(index + 1));
 
-        return cast(dup);
+        return dup;
+    }
+
+    /**
+     * Decodes the front coded term with the given index, terms are decoded incrementally from the last decoded one
+     * when moving forward within the same restart interval, otherwise starting from the closest restart term.
+     */
+    private void decodeTo(int index)
+    {
+        int restart = index - index % OnDiskIndexBuilder.RESTART_INTERVAL;
+
+        for (int i = (decodedIndex >= restart && decodedIndex <= index) ? decodedIndex + 1 : restart; i <= index; i++)
+            decode(getTermPosition(i));
+
+        decodedIndex = index;
+    }
+
+    /**
+     * Replaces the suffix of the last decoded term with the suffix of the given entry,
+     * shared prefix of the previous term is already in place.
+     *
+     * @param position The position of the front coded entry.
+     */
+    private void decode(long position)
+    {
+        int shared = blockIndex.getShort(position), suffix = blockIndex.getShort(position + 2);
+
+        if (decoded.length < shared + suffix)
+            decoded = Arrays.copyOf(decoded, Math.max(shared + suffix, decoded.length * 2));
+
+        blockIndex.getPageRegion(position + 4, suffix).get(decoded, shared, suffix);
+        decodedLength = shared + suffix;
     }
 
     protected long getTermPosition(int idx)
@@ -105,6 +188,20 @@ public abstract class OnDiskBlock<T extends Term>
 
     protected abstract T cast(MappedBuffer data);
 
+    /**
+     * @param data The front coded entry of the term.
+     * @param decodedTerm The term restored from the entry.
+     */
+    protected abstract T cast(MappedBuffer data, ByteBuffer decodedTerm);
+
+    /**
+     * @return true if terms of the block are front coded, see {@link OnDiskIndexBuilder#RESTART_INTERVAL}.
+     */
+    protected boolean isFrontCoded()
+    {
+        return false;
+    }
+
     static long getTermPosition(MappedBuffer data, int idx, int indexSize)
     {
         idx <<= 1;
@@ -25,16 +25,25 @@ import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.index.sasi.Term;
 import org.apache.cassandra.db.index.sasi.plan.Expression;
 import org.apache.cassandra.db.index.sasi.plan.Expression.Op;
+import org.apache.cassandra.db.index.sasi.sa.NGramSA;
 import org.apache.cassandra.db.index.sasi.utils.MappedBuffer;
+import org.apache.cassandra.db.index.sasi.utils.RangeDifferenceIterator;
+import org.apache.cassandra.db.index.sasi.utils.RangeIntersectionIterator;
 import org.apache.cassandra.db.index.sasi.utils.RangeUnionIterator;
 import org.apache.cassandra.db.index.sasi.utils.AbstractIterator;
 import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
 import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.db.marshal.AsciiType;
+import org.apache.cassandra.db.marshal.UTF8Type;
 import org.apache.cassandra.io.FSReadError;
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.FBUtilities;
 
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.LongSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
@@ -45,6 +54,11 @@ import static org.apache.cassandra.db.index.sasi.disk.OnDiskBlock.SearchResult;
 
 public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
 {
+    /**
+     * Maximum number of data blocks to read term statistics from during token count estimation.
+     */
+    private static final int ESTIMATE_SAMPLE_BLOCKS = 8;
+
     public enum IteratorOrder
     {
         DESC(1), ASC(-1);
@@ -113,6 +127,19 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
 
     protected final ByteBuffer minTerm, maxTerm, minKey, maxKey;
 
+    // all of the tokens of the index, dense terms have bitmaps of the ordinals in it, null if there are no such terms
+    protected final PackedPostings tokenDictionary;
+
+    // bloom filter of all of the terms of the index, null if index was written by the version which doesn't have it
+    // or if its terms are never pruned by the bloom filter (e.g. literal terms)
+    protected final TermBloomFilter termBloomFilter;
+
+    // hash table of the terms of HASH mode index, null for the rest of the modes
+    protected final TermHashTable termHashTable;
+
+    // replaces pointer levels of the byte ordered terms, null if index has pointer levels
+    protected final TermFST termFST;
+
     public OnDiskIndex(File index, AbstractType<?> cmp, Function<Long, DecoratedKey> keyReader)
     {
         keyFetcher = keyReader;
@@ -137,9 +164,46 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
 
             mode = OnDiskIndexBuilder.Mode.mode(backingFile.readUTF());
 
+            long dictionaryOffset = descriptor.version.hasBitmapPostings ? backingFile.readLong() : -1;
+
             indexSize = backingFile.length();
             indexFile = new MappedBuffer(backingFile);
 
+            tokenDictionary = dictionaryOffset < 0 ? null : new PackedPostings(indexFile.duplicate().position(dictionaryOffset));
+
+            // positions of the hash table, bloom filter and term FST precede the position of the levels at the very end of the file
+            long trailerPosition = indexSize - 8;
+
+            long fstPosition = -1;
+            if (descriptor.version.hasTermFST)
+            {
+                trailerPosition -= 8;
+                fstPosition = indexFile.getLong(trailerPosition);
+            }
+
+            termFST = fstPosition < 0 ? null : new TermFST(indexFile.duplicate().position(fstPosition));
+
+            if (descriptor.version.hasTermBloomFilter)
+            {
+                trailerPosition -= 8;
+                long bloomFilterPosition = indexFile.getLong(trailerPosition);
+                termBloomFilter = bloomFilterPosition == 0 ? null : new TermBloomFilter(indexFile.duplicate().position(bloomFilterPosition));
+            }
+            else
+            {
+                termBloomFilter = null;
+            }
+
+            if (mode == OnDiskIndexBuilder.Mode.HASH)
+            {
+                trailerPosition -= 8;
+                termHashTable = new TermHashTable(indexFile.duplicate().position(indexFile.getLong(trailerPosition)));
+            }
+            else
+            {
+                termHashTable = null;
+            }
+
             // start of the levels
             indexFile.position(indexFile.getLong(indexSize - 8));
 
@@ -185,6 +249,19 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
         return maxKey;
     }
 
+    /**
+     * Check if index could have the given term, answers precisely only if it doesn't have it.
+     *
+     * @param term The term to check.
+     *
+     * @return false if index definitely doesn't have the term, true otherwise
+     * or if index doesn't have a bloom filter of the terms.
+     */
+    public boolean mayContainTerm(ByteBuffer term)
+    {
+        return termBloomFilter == null || termBloomFilter.mayContain(term);
+    }
+
     public DataTerm min()
     {
         return dataLevel.getBlock(0).getTerm(0);
@@ -205,6 +282,16 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
      */
     public RangeIterator<Long, Token> search(Expression exp)
     {
+        if (isHashLookup(exp))
+        {
+            DataTerm term = getTerm(exp.lower.value);
+            return term == null ? null : term.getTokens();
+        }
+
+        Set<ByteBuffer> grams = getGrams(exp);
+        if (!grams.isEmpty())
+            return searchGrams(exp, grams);
+
         // convert single NOT_EQ to range with exclusion
         final Expression expression = (exp.getOp() != Op.NOT_EQ)
                                         ? exp
@@ -231,6 +318,12 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
         if (exclusions.size() == 0)
             return searchRange(expression);
 
+        // sparse indexes read the whole range in full blocks (combined indexes and super blocks),
+        // so instead of splitting the range around every exclusion, which reads partial blocks term by term
+        // on both sides of each excluded term, postings of the excluded terms are subtracted from the whole range.
+        if (mode.isSparse())
+            return searchDifference(expression, exclusions);
+
         List<Expression> ranges = new ArrayList<>(exclusions.size());
 
         // calculate range splits based on the sorted exclusions
@@ -258,6 +351,200 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
         return builder.build();
     }
 
+    private RangeIterator<Long, Token> searchDifference(Expression expression, List<ByteBuffer> exclusions)
+    {
+        RangeIterator<Long, Token> range = searchRange(expression);
+        if (range == null)
+            return null;
+
+        RangeUnionIterator.Builder<Long, Token> excluded = RangeUnionIterator.builder();
+        for (ByteBuffer exclusion : exclusions)
+        {
+            Expression.Bound term = new Expression.Bound(exclusion, true);
+            excluded.add(searchRange(new Expression(expression).setOp(Op.EQ).setLower(term).setUpper(term)));
+        }
+
+        RangeIterator<Long, Token> exclude = excluded.build();
+        if (exclude == null)
+            return range;
+
+        return new RangeDifferenceIterator<Long, Token>(range, exclude)
+        {
+            // every row with one of the excluded terms goes through here, so the sets are reused between the tokens
+            private final LongSet offsets = new LongOpenHashSet(), excludedOffsets = new LongOpenHashSet();
+
+            @Override
+            protected boolean excludes(Token candidate, Token excluded)
+            {
+                // both tokens come from the same index file so their key offsets are comparable,
+                // keys of the colliding token are only dropped if all of them have one of the excluded terms.
+                offsets.clear();
+                excludedOffsets.clear();
+
+                candidate.collectOffsets(offsets);
+                excluded.collectOffsets(excludedOffsets);
+
+                for (LongCursor offset : offsets)
+                {
+                    if (!excludedOffsets.contains(offset.value))
+                        return false;
+                }
+
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Estimate number of tokens the given expression is going to produce without iterating any of
+     * the token trees, only term/block headers are read. Expressions which span only a couple of
+     * data blocks are estimated precisely, wider ranges are extrapolated from a sample of the blocks.
+     *
+     * @param exp The expression to estimate.
+     *
+     * @return The estimated number of tokens matching the given expression.
+     */
+    public long estimateTokenCount(Expression exp)
+    {
+        if (isHashLookup(exp))
+        {
+            DataTerm term = getTerm(exp.lower.value);
+            return term == null ? 0 : term.getTokenCount();
+        }
+
+        Set<ByteBuffer> grams = getGrams(exp);
+        if (!grams.isEmpty())
+        {
+            // intersection of the grams can't have more tokens than the rarest of them
+            long tokenCount = Long.MAX_VALUE;
+            for (ByteBuffer gram : grams)
+                tokenCount = Math.min(tokenCount, estimateRangeTokenCount(gramExpression(exp, gram)));
+
+            return tokenCount;
+        }
+
+        return estimateRangeTokenCount(exp);
+    }
+
+    private long estimateRangeTokenCount(Expression exp)
+    {
+        int lowerBlock = exp.lower == null ? 0 : getDataBlock(exp.lower.value);
+        int upperBlock = exp.upper == null ? dataLevel.blockCount - 1 : getDataBlock(exp.upper.value);
+
+        // literal EQ matches all of the terms starting with the query, FST knows how many blocks they span
+        // without reading any of them, so wide prefixes are sampled instead of iterated term by term.
+        if (termFST != null && exp.isLiteral && exp.getOp() == Op.EQ)
+        {
+            int[] prefixBlocks = termFST.prefixRange(exp.lower.value);
+            lowerBlock = prefixBlocks[0];
+            upperBlock = Math.min(prefixBlocks[1], dataLevel.blockCount - 1);
+        }
+
+        if (upperBlock - lowerBlock < ESTIMATE_SAMPLE_BLOCKS)
+        {
+            long tokenCount = 0;
+
+            Iterator<DataTerm> terms = new TermIterator(lowerBlock, exp, IteratorOrder.DESC);
+            while (terms.hasNext())
+                tokenCount += terms.next().getTokenCount();
+
+            return tokenCount;
+        }
+
+        return estimateTokenCount(lowerBlock, upperBlock);
+    }
+
+    private long estimateTokenCount(int lowerBlock, int upperBlock)
+    {
+        int totalBlocks = upperBlock - lowerBlock + 1;
+        int samples = Math.min(totalBlocks, ESTIMATE_SAMPLE_BLOCKS);
+
+        long sampledTokens = 0;
+        for (int i = 0; i < samples; i++)
+            sampledTokens += dataLevel.getBlock(lowerBlock + (int) ((long) i * totalBlocks / samples)).getTokenCount();
+
+        return sampledTokens * totalBlocks / samples;
+    }
+
+    /**
+     * @return The grams of the EQ (substring) query to the NGRAM index, empty if query is shorter than a gram,
+     * in which case it's a prefix of the grams, or index is not in NGRAM mode.
+     */
+    private Set<ByteBuffer> getGrams(Expression exp)
+    {
+        if (mode != OnDiskIndexBuilder.Mode.NGRAM || exp.getOp() != Op.EQ || !(comparator instanceof UTF8Type || comparator instanceof AsciiType))
+            return Collections.emptySet();
+
+        return NGramSA.grams(comparator, exp.lower.value, OnDiskIndexBuilder.NGRAM_SIZE, false);
+    }
+
+    /**
+     * Intersect postings of all of the grams of the query, which gives the candidates
+     * which have all of the grams but not necessarily in the same order, so they have to be
+     * verified against the query, which is done for all of the rows by Expression.contains(...) anyway.
+     */
+    private RangeIterator<Long, Token> searchGrams(Expression exp, Set<ByteBuffer> grams)
+    {
+        List<RangeIterator<Long, Token>> ranges = new ArrayList<>(grams.size());
+        for (ByteBuffer gram : grams)
+        {
+            RangeIterator<Long, Token> range = searchRange(gramExpression(exp, gram));
+
+            // one of the grams is missing so no terms could have the query as a substring
+            if (range == null)
+            {
+                for (RangeIterator<Long, Token> r : ranges)
+                    FileUtils.closeQuietly(r);
+
+                return null;
+            }
+
+            ranges.add(range);
+        }
+
+        return RangeIntersectionIterator.<Long, Token>builder().add(ranges).build();
+    }
+
+    private static Expression gramExpression(Expression exp, ByteBuffer gram)
+    {
+        Expression.Bound bound = new Expression.Bound(gram, true);
+        return new Expression(exp).setOp(Op.EQ).setLower(bound).setUpper(bound);
+    }
+
+    @VisibleForTesting
+    protected boolean isHashLookup(Expression exp)
+    {
+        return termHashTable != null && exp.getOp() == Op.EQ && exp.exclusions.isEmpty();
+    }
+
+    /**
+     * Find the term which is exactly the same as the given one using the hash table of the index.
+     *
+     * @param query The term to look up.
+     *
+     * @return The data term or null if index doesn't have it.
+     */
+    @VisibleForTesting
+    protected DataTerm getTerm(ByteBuffer query)
+    {
+        long hash = TermBloomFilter.hash(query);
+        for (int probe = 0; probe < termHashTable.slotCount(); probe++)
+        {
+            long slot = termHashTable.getSlot(hash, probe);
+            if (slot == TermHashTable.EMPTY)
+                return null;
+
+            if (!TermHashTable.matches(slot, hash))
+                continue;
+
+            DataTerm term = dataLevel.getBlock(TermHashTable.blockIndex(slot)).getTerm(TermHashTable.termIndex(slot));
+            if (term.compareTo(comparator, query) == 0)
+                return term;
+        }
+
+        return null;
+    }
+
     private RangeIterator<Long, Token> searchRange(Expression range)
     {
         Expression.Bound lower = range.lower;
@@ -269,7 +556,7 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
                 // optimization so we don't have to fetch upperBlock when query has lower == upper
                 : (lower != null && comparator.compare(lower.value, upper.value) == 0) ? lowerBlock : getDataBlock(upper.value);
 
-        return (mode != OnDiskIndexBuilder.Mode.SPARSE || lowerBlock == upperBlock || upperBlock - lowerBlock <= 1)
+        return (!mode.isSparse() || lowerBlock == upperBlock || upperBlock - lowerBlock <= 1)
                 ? searchPoint(lowerBlock, range)
                 : searchRange(lowerBlock, lower, upperBlock, upper);
     }
@@ -317,6 +604,12 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
             }
         }
 
+        if (mode == OnDiskIndexBuilder.Mode.RANGE)
+        {
+            addFullBlocks(builder, firstFullBlockIdx, lastFullBlockIdx);
+            return builder.build();
+        }
+
         int totalSuperBlocks = (lastFullBlockIdx - firstFullBlockIdx) / OnDiskIndexBuilder.SUPER_BLOCK_SIZE;
 
         // if there are no super-blocks, we can simply read all of the block iterators in sequence
@@ -353,16 +646,55 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
         return builder.build();
     }
 
+    /**
+     * Covers given range of data blocks (inclusive) with the biggest super blocks of the RANGE levels,
+     * e.g. with fanout of 4 blocks (1, 17) are read as 1, 2, 3, super block (4 - 7) of the first level,
+     * super block (8 - 15) of the second level, 16, 17, which means at most 2 * (fanout - 1) iterators per level.
+     */
+    private void addFullBlocks(RangeUnionIterator.Builder<Long, Token> builder, int firstBlockIdx, int lastBlockIdx)
+    {
+        int blockIdx = firstBlockIdx;
+        while (blockIdx <= lastBlockIdx)
+        {
+            int level = -1;
+            long span = 1;
+
+            while (level + 1 < dataLevel.superLevelCount())
+            {
+                long superBlockSpan = span * OnDiskIndexBuilder.RANGE_FANOUT;
+
+                // last super block of the level covers the remaining blocks, even if there are less of them than the span
+                long lastCoveredBlock = Math.min(blockIdx + superBlockSpan, dataLevel.blockCount) - 1;
+                if (blockIdx % superBlockSpan != 0 || lastCoveredBlock > lastBlockIdx
+                        || blockIdx / superBlockSpan >= dataLevel.superBlockCnt[level + 1])
+                    break;
+
+                span = superBlockSpan;
+                level++;
+            }
+
+            builder.add(level < 0 ? getBlockIterator(blockIdx) : dataLevel.getSuperBlock(level, (int) (blockIdx / span)).iterator());
+            blockIdx += span;
+        }
+    }
+
     private RangeIterator<Long, Token> searchPoint(int lowerBlock, Expression expression)
     {
         Iterator<DataTerm> terms = new TermIterator(lowerBlock, expression, IteratorOrder.DESC);
         RangeUnionIterator.Builder<Long, Token> builder = RangeUnionIterator.builder();
 
+        // bitmaps of the dense terms are merged right away instead of going through the union
+        BitSet ordinals = null;
+
         while (terms.hasNext())
         {
             try
             {
-                builder.add(terms.next().getTokens());
+                DataTerm term = terms.next();
+                if (term.isBitmap())
+                    ordinals = term.addOrdinals(ordinals);
+                else
+                    builder.add(term.getTokens());
             }
             finally
             {
@@ -370,6 +702,9 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
             }
         }
 
+        if (ordinals != null)
+            builder.add(tokenDictionary.iterator(ordinals, keyFetcher));
+
         return builder.build();
     }
 
@@ -400,11 +735,17 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
                 throw new IllegalArgumentException("Unknown order: " + order);
         }
 
-        return new TermIterator(levels.length == 0 ? 0 : getBlockIdx(findPointer(query), query), e, order);
+        return new TermIterator(getDataBlock(query), e, order);
     }
 
-    private int getDataBlock(ByteBuffer query)
+    @VisibleForTesting
+    protected int getDataBlock(ByteBuffer query)
     {
+        // FST has last terms of all of the data blocks but the last one, so the first term which is not less
+        // than the query is the last term of the block query belongs to, or query is past all of them.
+        if (termFST != null)
+            return termFST.ceiling(query);
+
         return levels.length == 0 ? 0 : getBlockIdx(findPointer(query), query);
     }
 
@@ -470,15 +811,32 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
 
     protected class DataLevel extends Level<DataBlock>
     {
-        protected final int superBlockCnt;
-        protected final long superBlocksOffset;
+        // number of super blocks and offset of their positions for every level of super blocks,
+        // only RANGE mode has more than a single level
+        protected final int[] superBlockCnt;
+        protected final long[] superBlocksOffset;
 
         public DataLevel(long offset, int count)
         {
             super(offset, count);
             long baseOffset = blockOffsets + blockCount * 8;
-            superBlockCnt = indexFile.getInt(baseOffset);
-            superBlocksOffset = baseOffset + 4;
+
+            int superLevels = 1;
+            if (mode == OnDiskIndexBuilder.Mode.RANGE)
+            {
+                superLevels = indexFile.getInt(baseOffset);
+                baseOffset += 4;
+            }
+
+            superBlockCnt = new int[superLevels];
+            superBlocksOffset = new long[superLevels];
+
+            for (int i = 0; i < superLevels; i++)
+            {
+                superBlockCnt[i] = indexFile.getInt(baseOffset);
+                superBlocksOffset[i] = baseOffset + 4;
+                baseOffset = superBlocksOffset[i] + superBlockCnt[i] * 8;
+            }
         }
 
         @Override
@@ -487,10 +845,20 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
             return new DataBlock(block);
         }
 
+        public int superLevelCount()
+        {
+            return superBlockCnt.length;
+        }
+
         public OnDiskSuperBlock getSuperBlock(int idx)
         {
-            assert idx < superBlockCnt : String.format("requested index %d is greater than super block count %d", idx, superBlockCnt);
-            long blockOffset = indexFile.getLong(superBlocksOffset + idx * 8);
+            return getSuperBlock(0, idx);
+        }
+
+        public OnDiskSuperBlock getSuperBlock(int level, int idx)
+        {
+            assert idx < superBlockCnt[level] : String.format("requested index %d is greater than super block count %d", idx, superBlockCnt[level]);
+            long blockOffset = indexFile.getLong(superBlocksOffset[level] + idx * 8);
             return new OnDiskSuperBlock(indexFile.duplicate().position(blockOffset));
         }
     }
@@ -544,19 +912,36 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
         @Override
         protected DataTerm cast(MappedBuffer data)
         {
-            return new DataTerm(data, termSize, getBlockIndex());
+            return new DataTerm(data, termSize, getBlockIndex(), null);
+        }
+
+        @Override
+        protected DataTerm cast(MappedBuffer data, ByteBuffer decodedTerm)
+        {
+            return new DataTerm(data, termSize, getBlockIndex(), decodedTerm);
+        }
+
+        @Override
+        protected boolean isFrontCoded()
+        {
+            return descriptor.version.hasFrontCoding && !termSize.isConstant();
         }
 
         public RangeIterator<Long, Token> getRange(int start, int end)
         {
             RangeUnionIterator.Builder<Long, Token> builder = RangeUnionIterator.builder();
             NavigableMap<Long, Token> sparse = new TreeMap<>();
+            BitSet ordinals = null;
 
             for (int i = start; i < end; i++)
             {
                 DataTerm term = getTerm(i);
 
-                if (term.isSparse())
+                if (term.isBitmap())
+                {
+                    ordinals = term.addOrdinals(ordinals);
+                }
+                else if (term.isSparse())
                 {
                     NavigableMap<Long, Token> tokens = term.getSparseTokens();
                     for (Map.Entry<Long, Token> t : tokens.entrySet())
@@ -574,6 +959,9 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
                 }
             }
 
+            if (ordinals != null)
+                builder.add(tokenDictionary.iterator(ordinals, keyFetcher));
+
             PrefetchedTokensIterator prefetched = sparse.isEmpty() ? null : new PrefetchedTokensIterator(sparse);
 
             if (builder.rangeCount() == 0)
@@ -582,6 +970,18 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
             builder.add(prefetched);
             return builder.build();
         }
+
+        public long getTokenCount()
+        {
+            if (hasCombinedIndex)
+                return getBlockIndex().getCount();
+
+            long tokenCount = 0;
+            for (int i = 0; i < termCount(); i++)
+                tokenCount += getTerm(i).getTokenCount();
+
+            return tokenCount;
+        }
     }
 
     protected class PointerBlock extends OnDiskBlock<PointerTerm>
@@ -596,27 +996,80 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
         {
             return new PointerTerm(data, termSize);
         }
+
+        @Override
+        protected PointerTerm cast(MappedBuffer data, ByteBuffer decodedTerm)
+        {
+            return new PointerTerm(data, termSize, decodedTerm);
+        }
     }
 
     public class DataTerm extends Term implements Comparable<DataTerm>
     {
         private final TokenTree perBlockIndex;
 
-        protected DataTerm(MappedBuffer content, OnDiskIndexBuilder.TermSize size, TokenTree perBlockIndex)
+        protected DataTerm(MappedBuffer content, OnDiskIndexBuilder.TermSize size, TokenTree perBlockIndex, ByteBuffer decodedTerm)
         {
-            super(content, size);
+            super(content, size, decodedTerm);
             this.perBlockIndex = perBlockIndex;
         }
 
         public RangeIterator<Long, Token> getTokens()
         {
-            final long blockEnd = FBUtilities.align(content.position(), OnDiskIndexBuilder.BLOCK_SIZE);
-
             if (isSparse())
                 return new PrefetchedTokensIterator(getSparseTokens());
 
-            long offset = blockEnd + 4 + content.getInt(getDataOffset() + 1);
-            return new TokenTree(descriptor, indexFile.duplicate().position(offset)).iterator(keyFetcher);
+            if (isBitmap())
+                return tokenDictionary.iterator(getBitmapPostings().getOrdinals(), keyFetcher);
+
+            return isPacked() ? getPackedPostings().iterator(keyFetcher) : getTokenTree().iterator(keyFetcher);
+        }
+
+        public long getTokenCount()
+        {
+            if (isSparse())
+                return content.get(getDataOffset());
+
+            if (isBitmap())
+                return getBitmapPostings().getCount();
+
+            return isPacked() ? getPackedPostings().getCount() : getTokenTree().getCount();
+        }
+
+        /**
+         * Merges tokens of the dense term into the given bitmap of dictionary ordinals.
+         *
+         * @return The given bitmap or a new one if it was null.
+         */
+        public BitSet addOrdinals(BitSet ordinals)
+        {
+            BitSet termOrdinals = getBitmapPostings().getOrdinals();
+            if (ordinals == null)
+                return termOrdinals;
+
+            ordinals.or(termOrdinals);
+            return ordinals;
+        }
+
+        private TokenTree getTokenTree()
+        {
+            return new TokenTree(descriptor, indexFile.duplicate().position(getPostingsOffset()));
+        }
+
+        private PackedPostings getPackedPostings()
+        {
+            return new PackedPostings(indexFile.duplicate().position(getPostingsOffset()));
+        }
+
+        private BitmapPostings getBitmapPostings()
+        {
+            return new BitmapPostings(indexFile.duplicate().position(getPostingsOffset()));
+        }
+
+        private long getPostingsOffset()
+        {
+            final long blockEnd = FBUtilities.align(content.position(), OnDiskIndexBuilder.BLOCK_SIZE);
+            return blockEnd + 4 + content.getInt(getDataOffset() + 1);
         }
 
         public boolean isSparse()
@@ -624,6 +1077,16 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
             return content.get(getDataOffset()) > 0;
         }
 
+        public boolean isPacked()
+        {
+            return content.get(getDataOffset()) == PackedPostings.TERM_MARKER;
+        }
+
+        public boolean isBitmap()
+        {
+            return content.get(getDataOffset()) == BitmapPostings.TERM_MARKER;
+        }
+
         public NavigableMap<Long, Token> getSparseTokens()
         {
             long ptrOffset = getDataOffset();
@@ -655,7 +1118,12 @@ public class OnDiskIndex implements Iterable<OnDiskIndex.DataTerm>, Closeable
     {
         public PointerTerm(MappedBuffer content, OnDiskIndexBuilder.TermSize size)
         {
-            super(content, size);
+            this(content, size, null);
+        }
+
+        public PointerTerm(MappedBuffer content, OnDiskIndexBuilder.TermSize size, ByteBuffer decodedTerm)
+        {
+            super(content, size, decodedTerm);
         }
 
         public int getBlock()
@@ -25,9 +25,11 @@ import java.util.*;
 
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.index.sasi.sa.IntegralSA;
+import org.apache.cassandra.db.index.sasi.sa.NGramSA;
 import org.apache.cassandra.db.index.sasi.sa.SA;
 import org.apache.cassandra.db.index.sasi.sa.TermIterator;
 import org.apache.cassandra.db.index.sasi.sa.SuffixSA;
+import org.apache.cassandra.db.index.sasi.utils.CombinedRunIterator;
 import org.apache.cassandra.db.marshal.*;
 import org.apache.cassandra.io.FSWriteError;
 import org.apache.cassandra.io.util.FileUtils;
@@ -51,12 +53,31 @@ public class OnDiskIndexBuilder
 
     public enum Mode
     {
-        SUFFIX, ORIGINAL, SPARSE;
+        SUFFIX, ORIGINAL, SPARSE, RANGE, HASH, NGRAM;
 
         public static Mode mode(String mode)
         {
             return Mode.valueOf(mode.toUpperCase());
         }
+
+        /**
+         * @return true if terms with only a few tokens are inlined into the data blocks
+         *         and their tokens are read from the combined per-block index.
+         */
+        public boolean isSparse()
+        {
+            return this == SPARSE || this == RANGE;
+        }
+    }
+
+    public enum PostingsCodec
+    {
+        TOKEN_TREE, PACKED;
+
+        public static PostingsCodec codec(String codec)
+        {
+            return PostingsCodec.valueOf(codec.toUpperCase());
+        }
     }
 
     public enum TermSize
@@ -116,6 +137,17 @@ public class OnDiskIndexBuilder
     public static final int MAX_TERM_SIZE = 1024;
     public static final int SUPER_BLOCK_SIZE = 64;
 
+    // RANGE mode builds levels of super blocks, each super block merges RANGE_FANOUT blocks of the level below,
+    // so any range of data blocks is covered by at most 2 * (RANGE_FANOUT - 1) token trees per level.
+    public static final int RANGE_FANOUT = 16;
+    public static final int MAX_RANGE_LEVELS = 4;
+
+    // number of characters in the grams of NGRAM mode
+    public static final int NGRAM_SIZE = 3;
+
+    // front coded data blocks write every RESTART_INTERVAL-th term in full, so search could binary search them
+    public static final int RESTART_INTERVAL = 16;
+
     private final List<MutableLevel<InMemoryPointerTerm>> levels = new ArrayList<>();
     private MutableLevel<InMemoryDataTerm> dataLevel;
 
@@ -123,19 +155,33 @@ public class OnDiskIndexBuilder
 
     private final AbstractType<?> keyComparator, termComparator;
 
-    private final Map<ByteBuffer, TokenTreeBuilder> terms;
+    private final Map<ByteBuffer, MutableTokenTreeBuilder> terms;
     private final Mode mode;
+    private final PostingsCodec postingsCodec;
+    private final boolean isLiteral;
 
     private ByteBuffer minKey, maxKey;
     private long estimatedBytes;
 
     public OnDiskIndexBuilder(AbstractType<?> keyComparator, AbstractType<?> comparator, Mode mode)
+    {
+        this(keyComparator, comparator, mode, PostingsCodec.TOKEN_TREE);
+    }
+
+    public OnDiskIndexBuilder(AbstractType<?> keyComparator, AbstractType<?> comparator, Mode mode, PostingsCodec postingsCodec)
+    {
+        this(keyComparator, comparator, mode, postingsCodec, comparator instanceof UTF8Type || comparator instanceof AsciiType);
+    }
+
+    public OnDiskIndexBuilder(AbstractType<?> keyComparator, AbstractType<?> comparator, Mode mode, PostingsCodec postingsCodec, boolean isLiteral)
     {
         this.keyComparator = keyComparator;
         this.termComparator = comparator;
         this.terms = new HashMap<>();
         this.termSize = TermSize.sizeOf(comparator);
         this.mode = mode;
+        this.postingsCodec = postingsCodec;
+        this.isLiteral = isLiteral;
     }
 
     public OnDiskIndexBuilder add(ByteBuffer term, DecoratedKey key, long keyPosition)
@@ -146,14 +192,15 @@ public class OnDiskIndexBuilder
             return this;
         }
 
-        TokenTreeBuilder tokens = terms.get(term);
+        MutableTokenTreeBuilder tokens = terms.get(term);
         if (tokens == null)
         {
-            terms.put(term, (tokens = new TokenTreeBuilder()));
+            terms.put(term, (tokens = new PrimitiveTokenTreeBuilder()));
 
             // on-heap size estimates from jol
-            // 64 bytes for TTB + 48 bytes for TreeMap in TTB + size bytes for the term (map key)
-            estimatedBytes += 64 + 48 + term.remaining();
+            // 80 bytes for PrimitiveTokenTreeBuilder + 64 bytes for its initial token and offset arrays (2 longs each)
+            // + size bytes for the term (map key)
+            estimatedBytes += 80 + 64 + term.remaining();
         }
 
         tokens.add((Long) key.getToken().token, keyPosition);
@@ -162,10 +209,8 @@ public class OnDiskIndexBuilder
         minKey = (minKey == null || keyComparator.compare(minKey, key.key) > 0) ? key.key : minKey;
         maxKey = (maxKey == null || keyComparator.compare(maxKey, key.key) < 0) ? key.key : maxKey;
 
-        // 60 ((boolean(1)*4) + (long(8)*4) + 24) bytes for the LongOpenHashSet created when the keyPosition was added
-        // + 40 bytes for the TreeMap.Entry + 8 bytes for the token (key).
-        // in the case of hash collision for the token we may overestimate but this is extremely rare
-        estimatedBytes += 60 + 40 + 8;
+        // 16 bytes for the token and the offset in the arrays of the builder + 8 bytes for the growth slack of the arrays
+        estimatedBytes += 16 + 8;
 
         return this;
     }
@@ -175,12 +220,19 @@ public class OnDiskIndexBuilder
         return estimatedBytes;
     }
 
-    private void addTerm(InMemoryDataTerm term, SequentialWriter out) throws IOException
+    private void addTerm(InMemoryDataTerm term, SequentialWriter out, List<ByteBuffer> pointerTerms) throws IOException
     {
         InMemoryPointerTerm ptr = dataLevel.add(term);
         if (ptr == null)
             return;
 
+        // last terms of the data blocks go into the term FST instead of pointer levels
+        if (pointerTerms != null)
+        {
+            pointerTerms.add(ptr.term);
+            return;
+        }
+
         int levelIdx = 0;
         for (;;)
         {
@@ -195,9 +247,20 @@ public class OnDiskIndexBuilder
         return terms.isEmpty();
     }
 
-    public void finish(Pair<ByteBuffer, ByteBuffer> range, File file, TermIterator terms)
+    /**
+     * Builds the index out of the spilled runs of the terms, token dictionary (if index needs one)
+     * is collected from the runs before they are merged.
+     *
+     * @param range The min and max key covered by the runs.
+     * @param file The file to write index contents to.
+     * @param terms The merged runs of the terms.
+     *
+     * @throws FSWriteError on I/O error.
+     */
+    public void finish(Pair<ByteBuffer, ByteBuffer> range, File file, CombinedRunIterator terms) throws FSWriteError
     {
-        finish(Descriptor.CURRENT, range, file, terms);
+        Descriptor descriptor = Descriptor.CURRENT;
+        finish(descriptor, range, file, terms, descriptor.version.hasBitmapPostings ? terms.buildTokenDictionary() : null);
     }
 
     /**
@@ -221,18 +284,64 @@ public class OnDiskIndexBuilder
         if (terms.isEmpty())
             return false;
 
-        // split terms into suffixes only if it's text, otherwise (even if SUFFIX is set) use terms in original form
-        SA sa = ((termComparator instanceof UTF8Type || termComparator instanceof AsciiType) && mode == Mode.SUFFIX)
-                    ? new SuffixSA(termComparator, mode) : new IntegralSA(termComparator, mode);
+        TermIterator sortedTerms = sortedTerms();
+        TokenTreeBuilder dictionary = descriptor.version.hasBitmapPostings ? buildTokenDictionary() : null;
+
+        finish(descriptor, Pair.create(minKey, maxKey), file, sortedTerms, dictionary);
+        return true;
+    }
 
-        for (Map.Entry<ByteBuffer, TokenTreeBuilder> term : terms.entrySet())
+    /**
+     * Writes sorted terms of the builder to the run file instead of building the index out of them,
+     * runs are merged into the final index in one pass with {@link org.apache.cassandra.db.index.sasi.utils.CombinedRunIterator}.
+     *
+     * @param file The file to write run to.
+     *
+     * @return The run written, or null if builder was empty.
+     *
+     * @throws FSWriteError on I/O error.
+     */
+    public TermRun spill(File file) throws FSWriteError
+    {
+        return terms.isEmpty() ? null : TermRun.write(file, Pair.create(minKey, maxKey), sortedTerms());
+    }
+
+    private TermIterator sortedTerms()
+    {
+        // split terms into suffixes or grams only if it's text, otherwise (even if SUFFIX/NGRAM is set) use terms in original form
+        boolean isText = termComparator instanceof UTF8Type || termComparator instanceof AsciiType;
+
+        SA sa = (isText && mode == Mode.SUFFIX)
+                    ? new SuffixSA(termComparator, mode)
+                    : (isText && mode == Mode.NGRAM) ? new NGramSA(termComparator, mode) : new IntegralSA(termComparator, mode);
+
+        for (Map.Entry<ByteBuffer, MutableTokenTreeBuilder> term : terms.entrySet())
             sa.add(term.getKey(), term.getValue());
 
-        finish(descriptor, Pair.create(minKey, maxKey), file, sa.finish());
-        return true;
+        return sa.finish();
+    }
+
+    /**
+     * @return All of the tokens of the index if there are enough dense terms to store them as bitmaps, null otherwise.
+     */
+    private TokenTreeBuilder buildTokenDictionary()
+    {
+        LongArrayList tokenCounts = new LongArrayList(terms.size());
+        for (TokenTreeBuilder tokens : terms.values())
+            tokenCounts.add(tokens.getTokenCount());
+
+        if (!BitmapPostings.needsDictionary(tokenCounts))
+            return null;
+
+        MutableTokenTreeBuilder dictionary = new PrimitiveTokenTreeBuilder();
+        for (TokenTreeBuilder tokens : terms.values())
+            dictionary.add(tokens);
+
+        return dictionary;
     }
 
-    protected void finish(Descriptor descriptor, Pair<ByteBuffer, ByteBuffer> range, File file, TermIterator terms)
+    protected void finish(Descriptor descriptor, Pair<ByteBuffer, ByteBuffer> range, File file, TermIterator terms,
+                          TokenTreeBuilder dictionary)
     {
         SequentialWriter out = null;
 
@@ -254,14 +363,60 @@ public class OnDiskIndexBuilder
 
             out.writeUTF(mode.toString());
 
+            // token dictionary goes right after the header
+            if (descriptor.version.hasBitmapPostings)
+                out.writeLong(dictionary == null ? -1 : BLOCK_SIZE);
+
             out.skipBytes((int) (BLOCK_SIZE - out.getFilePointer()));
 
-            dataLevel = mode == Mode.SPARSE ? new DataBuilderLevel(out, new MutableDataBlock(mode))
-                                            : new MutableLevel<>(out, new MutableDataBlock(mode));
+            long[] dictionaryTokens = null;
+            if (dictionary != null)
+            {
+                PackedPostings.write(dictionary, out);
+                alignToBlock(out);
+
+                dictionaryTokens = new long[(int) dictionary.getTokenCount()];
+
+                int ordinal = 0;
+                for (Iterator<Pair<Long, LongSet>> tokens = dictionary.iterator(); tokens.hasNext();)
+                    dictionaryTokens[ordinal++] = tokens.next().left;
+            }
+
+            // older versions can't read packed postings, so their terms always point to token trees
+            PostingsCodec codec = descriptor.version.hasPackedPostings ? postingsCodec : PostingsCodec.TOKEN_TREE;
+
+            // fixed size terms don't have any length to save
+            boolean frontCoded = descriptor.version.hasFrontCoding && !termSize.isConstant();
+
+            switch (mode)
+            {
+                case SPARSE:
+                    dataLevel = new DataBuilderLevel(out, new MutableDataBlock(mode, codec, dictionaryTokens, frontCoded), SUPER_BLOCK_SIZE, 1);
+                    break;
+
+                case RANGE:
+                    dataLevel = new DataBuilderLevel(out, new MutableDataBlock(mode, codec, dictionaryTokens, frontCoded), RANGE_FANOUT, MAX_RANGE_LEVELS);
+                    break;
+
+                default:
+                    dataLevel = new MutableLevel<>(out, new MutableDataBlock(mode, codec, dictionaryTokens, frontCoded));
+            }
+            // hashes of the terms are collected so the bloom filter and hash table can be sized once the number of terms is known
+            boolean hasTermBloomFilter = descriptor.version.hasTermBloomFilter && isBloomFilterPrunable();
+            LongArrayList termHashes = hasTermBloomFilter || mode == Mode.HASH ? new LongArrayList() : null;
+            LongArrayList termLocations = mode == Mode.HASH ? new LongArrayList() : null;
+            List<ByteBuffer> pointerTerms = descriptor.version.hasTermFST && TermFST.isSupported(termComparator) ? new ArrayList<ByteBuffer>() : null;
+
             while (terms.hasNext())
             {
                 Pair<ByteBuffer, TokenTreeBuilder> term = terms.next();
-                addTerm(new InMemoryDataTerm(term.left, term.right), out);
+                addTerm(new InMemoryDataTerm(term.left, term.right), out, pointerTerms);
+
+                if (termHashes != null)
+                    termHashes.add(TermBloomFilter.hash(term.left));
+
+                if (termLocations != null)
+                    termLocations.add(dataLevel.lastTermLocation());
             }
 
             dataLevel.finalFlush();
@@ -277,6 +432,37 @@ public class OnDiskIndexBuilder
 
             dataLevel.flushMetadata();
 
+            long hashTablePosition = -1;
+            if (termLocations != null)
+            {
+                hashTablePosition = out.getFilePointer();
+                TermHashTable.write(termHashes, termLocations, out);
+            }
+
+            // index header is at the start of the file, so zero position means there is no bloom filter
+            long bloomFilterPosition = 0;
+            if (hasTermBloomFilter)
+            {
+                bloomFilterPosition = out.getFilePointer();
+                TermBloomFilter.write(termHashes, out);
+            }
+
+            long fstPosition = -1;
+            if (pointerTerms != null)
+            {
+                fstPosition = out.getFilePointer();
+                TermFST.write(pointerTerms, out);
+            }
+
+            if (termLocations != null)
+                out.writeLong(hashTablePosition);
+
+            if (descriptor.version.hasTermBloomFilter)
+                out.writeLong(bloomFilterPosition);
+
+            if (descriptor.version.hasTermFST)
+                out.writeLong(fstPosition);
+
             out.writeLong(levelIndexPosition);
         }
         catch (IOException e)
@@ -289,6 +475,16 @@ public class OnDiskIndexBuilder
         }
     }
 
+    /**
+     * @return true if EQ searches are going to consult the term bloom filter
+     *         (see {@link org.apache.cassandra.db.index.sasi.SSTableIndex#mayMatch}), which is only done for
+     *         non-literal terms, excluding the types with multiple encodings of the same value.
+     */
+    private boolean isBloomFilterPrunable()
+    {
+        return !isLiteral && mode != Mode.NGRAM && !(termComparator instanceof DecimalType || termComparator instanceof IntegerType);
+    }
+
     private MutableLevel<InMemoryPointerTerm> getIndexLevel(int idx, SequentialWriter out)
     {
         if (levels.size() == 0)
@@ -403,6 +599,14 @@ public class OnDiskIndexBuilder
             return toPromote;
         }
 
+        /**
+         * @return The location of the last added term, block it's going to be flushed as and its index in the block.
+         */
+        public long lastTermLocation()
+        {
+            return TermHashTable.location(blockOffsets.size(), inProcessBlock.offsets.size() - 1);
+        }
+
         public void flush() throws IOException
         {
             blockOffsets.add(out.getFilePointer());
@@ -427,19 +631,23 @@ public class OnDiskIndexBuilder
         }
     }
 
-    /** builds standard data blocks and super blocks, as well */
+    /**
+     * Builds standard data blocks and super blocks, as well. SPARSE mode has a single level of super blocks,
+     * RANGE mode starts the next level as soon as the current one completes its first super block,
+     * so there is one level more than needed to cover the whole index with a few super blocks (up to maxLevels).
+     */
     private class DataBuilderLevel extends MutableLevel<InMemoryDataTerm>
     {
-        private final LongArrayList superBlockOffsets = new LongArrayList();
-
-        /** count of regular data blocks written since current super block was init'd */
-        private int dataBlocksCnt;
-        private TokenTreeBuilder superBlockTree;
+        private final int fanout, maxLevels;
+        private final List<SuperBlockLevel> superBlockLevels = new ArrayList<>();
 
-        public DataBuilderLevel(SequentialWriter out, MutableBlock<InMemoryDataTerm> block)
+        public DataBuilderLevel(SequentialWriter out, MutableBlock<InMemoryDataTerm> block, int fanout, int maxLevels)
         {
             super(out, block);
-            superBlockTree = new TokenTreeBuilder();
+            this.fanout = fanout;
+            this.maxLevels = maxLevels;
+
+            superBlockLevels.add(new SuperBlockLevel());
         }
 
         public InMemoryPointerTerm add(InMemoryDataTerm term) throws IOException
@@ -447,39 +655,70 @@ public class OnDiskIndexBuilder
             InMemoryPointerTerm ptr = super.add(term);
             if (ptr != null)
             {
-                dataBlocksCnt++;
-                flushSuperBlock(false);
+                superBlockLevels.get(0).childCount++;
+                flushSuperBlock(0, false);
             }
-            superBlockTree.add(term.keys.getTokens());
+            superBlockLevels.get(0).tokens.add(term.keys);
             return ptr;
         }
 
-        public void flushSuperBlock(boolean force) throws IOException
+        private void flushSuperBlock(int levelIdx, boolean force) throws IOException
         {
-            if (dataBlocksCnt == SUPER_BLOCK_SIZE || (force && !superBlockTree.getTokens().isEmpty()))
+            SuperBlockLevel level = superBlockLevels.get(levelIdx);
+            if (level.childCount != fanout && !(force && !level.tokens.isEmpty()))
+                return;
+
+            if (!force && levelIdx == superBlockLevels.size() - 1 && superBlockLevels.size() < maxLevels)
+                superBlockLevels.add(new SuperBlockLevel());
+
+            level.offsets.add(out.getFilePointer());
+            level.tokens.finish().write(out);
+            alignToBlock(out);
+
+            if (levelIdx < superBlockLevels.size() - 1)
             {
-                superBlockOffsets.add(out.getFilePointer());
-                superBlockTree.finish().write(out);
-                alignToBlock(out);
+                SuperBlockLevel upper = superBlockLevels.get(levelIdx + 1);
+                upper.tokens.add(level.tokens);
+                upper.childCount++;
 
-                dataBlocksCnt = 0;
-                superBlockTree = new TokenTreeBuilder();
+                // forced flush goes through all of the levels bottom-up anyway
+                if (!force)
+                    flushSuperBlock(levelIdx + 1, false);
             }
+
+            level.childCount = 0;
+            level.tokens = new PrimitiveTokenTreeBuilder();
         }
 
         public void finalFlush() throws IOException
         {
             super.flush();
-            flushSuperBlock(true);
+
+            for (int i = 0; i < superBlockLevels.size(); i++)
+                flushSuperBlock(i, true);
         }
 
         public void flushMetadata() throws IOException
         {
             super.flushMetadata();
-            flushMetadata(superBlockOffsets);
+
+            if (mode == Mode.RANGE)
+                out.writeInt(superBlockLevels.size());
+
+            for (SuperBlockLevel level : superBlockLevels)
+                flushMetadata(level.offsets);
         }
     }
 
+    private static class SuperBlockLevel
+    {
+        private final LongArrayList offsets = new LongArrayList();
+
+        /** count of the blocks of the level below written since current super block was init'd */
+        private int childCount;
+        private MutableTokenTreeBuilder tokens = new PrimitiveTokenTreeBuilder();
+    }
+
     private static class MutableBlock<T extends InMemoryTerm>
     {
         protected final ByteBufferDataOutput buffer;
@@ -535,17 +774,29 @@ public class OnDiskIndexBuilder
     private static class MutableDataBlock extends MutableBlock<InMemoryDataTerm>
     {
         private final Mode mode;
+        private final PostingsCodec codec;
+
+        // sorted tokens of the dictionary, null if index doesn't have one
+        private final long[] dictionary;
 
         private int offset = 0;
         private int sparseValueTerms = 0;
 
         private final List<TokenTreeBuilder> containers = new ArrayList<>();
-        private TokenTreeBuilder combinedIndex;
+        private MutableTokenTreeBuilder combinedIndex;
 
-        public MutableDataBlock(Mode mode)
+        // terms are written as [shared prefix length (short)][suffix length (short)][suffix],
+        // with the prefix shared with the previous term of the block, or nothing for every RESTART_INTERVAL-th term
+        private final boolean frontCoded;
+        private ByteBuffer previousTerm;
+
+        public MutableDataBlock(Mode mode, PostingsCodec codec, long[] dictionary, boolean frontCoded)
         {
             this.mode = mode;
-            this.combinedIndex = new TokenTreeBuilder();
+            this.codec = codec;
+            this.dictionary = dictionary;
+            this.frontCoded = frontCoded;
+            this.combinedIndex = new PrimitiveTokenTreeBuilder();
         }
 
         @Override
@@ -553,27 +804,42 @@ public class OnDiskIndexBuilder
         {
             TokenTreeBuilder keys = term.keys;
 
-            if (mode == Mode.SPARSE && keys.getTokenCount() <= 5)
+            if (mode.isSparse() && keys.getTokenCount() <= 5)
             {
                 writeTerm(term, keys);
                 sparseValueTerms++;
             }
             else
             {
-                writeTerm(term, offset);
+                writeTerm(term, offset, marker(keys));
+
+                switch (marker(keys))
+                {
+                    case BitmapPostings.TERM_MARKER:
+                        offset += BitmapPostings.serializedSize(keys, dictionary);
+                        break;
+
+                    case PackedPostings.TERM_MARKER:
+                        offset += PackedPostings.serializedSize(keys);
+                        break;
+
+                    default:
+                        // terms come unfinished, so the tree is only built for the ones written as token trees
+                        offset += keys.finish().serializedSize();
+                }
 
-                offset += keys.serializedSize();
                 containers.add(keys);
             }
 
-            if (mode == Mode.SPARSE)
-                combinedIndex.add(keys.getTokens());
+            if (mode.isSparse())
+                combinedIndex.add(keys);
         }
 
         @Override
         protected int sizeAfter(InMemoryDataTerm element)
         {
-            return super.sizeAfter(element) + ptrLength(element);
+            int size = super.sizeAfter(element) + ptrLength(element);
+            return frontCoded ? size + 2 - sharedPrefix(element.term, offsets.size()) : size;
         }
 
         @Override
@@ -581,15 +847,32 @@ public class OnDiskIndexBuilder
         {
             super.flushAndClear(out);
 
-            out.writeInt((sparseValueTerms == 0) ? -1 : offset);
+            // RANGE mode always has combined index, so full blocks could be read with a single iterator
+            boolean hasCombinedIndex = sparseValueTerms > 0 || mode == Mode.RANGE;
+
+            out.writeInt(hasCombinedIndex ? offset : -1);
 
             if (containers.size() > 0)
             {
                 for (TokenTreeBuilder tokens : containers)
-                    tokens.write(out);
+                {
+                    switch (marker(tokens))
+                    {
+                        case BitmapPostings.TERM_MARKER:
+                            BitmapPostings.write(tokens, dictionary, out);
+                            break;
+
+                        case PackedPostings.TERM_MARKER:
+                            PackedPostings.write(tokens, out);
+                            break;
+
+                        default:
+                            tokens.write(out);
+                    }
+                }
             }
 
-            if (sparseValueTerms > 0)
+            if (hasCombinedIndex)
             {
                 combinedIndex.finish().write(out);
             }
@@ -597,7 +880,8 @@ public class OnDiskIndexBuilder
             alignToBlock(out);
 
             containers.clear();
-            combinedIndex = new TokenTreeBuilder();
+            combinedIndex = new PrimitiveTokenTreeBuilder();
+            previousTerm = null;
 
             offset = 0;
             sparseValueTerms = 0;
@@ -612,7 +896,7 @@ public class OnDiskIndexBuilder
 
         private void writeTerm(InMemoryTerm term, TokenTreeBuilder keys) throws IOException
         {
-            term.serialize(buffer);
+            serialize(term);
             buffer.writeByte((byte) keys.getTokenCount());
 
             Iterator<Pair<Long, LongSet>> tokens = keys.iterator();
@@ -620,11 +904,56 @@ public class OnDiskIndexBuilder
                 buffer.writeLong(tokens.next().left);
         }
 
-        private void writeTerm(InMemoryTerm term, int offset) throws IOException
+        private void writeTerm(InMemoryTerm term, int offset, byte marker) throws IOException
         {
-            term.serialize(buffer);
-            buffer.writeByte(0x0);
+            serialize(term);
+            buffer.writeByte(marker);
             buffer.writeInt(offset);
         }
+
+        private void serialize(InMemoryTerm term) throws IOException
+        {
+            if (!frontCoded)
+            {
+                term.serialize(buffer);
+                return;
+            }
+
+            // offset of the term is already added, so it's the last one
+            int shared = sharedPrefix(term.term, offsets.size() - 1);
+
+            ByteBuffer suffix = term.term.duplicate();
+            suffix.position(suffix.position() + shared);
+
+            buffer.writeShort(shared);
+            buffer.writeShort(suffix.remaining());
+            ByteBufferUtil.write(suffix, buffer);
+
+            previousTerm = term.term;
+        }
+
+        private int sharedPrefix(ByteBuffer term, int index)
+        {
+            if (previousTerm == null || index % RESTART_INTERVAL == 0)
+                return 0;
+
+            int length = Math.min(previousTerm.remaining(), term.remaining()), shared = 0;
+            while (shared < length && previousTerm.get(previousTerm.position() + shared) == term.get(term.position() + shared))
+                shared++;
+
+            return shared;
+        }
+
+        /**
+         * @return Type of the postings the term points to: bitmap for dense terms if there is a dictionary,
+         *         otherwise whatever the codec is.
+         */
+        private byte marker(TokenTreeBuilder keys)
+        {
+            if (BitmapPostings.isDense(keys.getTokenCount(), dictionary))
+                return BitmapPostings.TERM_MARKER;
+
+            return codec == PostingsCodec.PACKED ? PackedPostings.TERM_MARKER : 0x0;
+        }
     }
 }
@@ -0,0 +1,811 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.index.sasi.utils.AbstractIterator;
+import org.apache.cassandra.db.index.sasi.utils.BlockRangeIterator;
+import org.apache.cassandra.db.index.sasi.utils.CombinedValue;
+import org.apache.cassandra.db.index.sasi.utils.MappedBuffer;
+import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
+import org.apache.cassandra.utils.Pair;
+
+import com.carrotsearch.hppc.LongSet;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+
+/**
+ * Compact alternative to the {@link TokenTree} for the posting list of a single term.
+ *
+ * Tokens are split into blocks of {@link #BLOCK_TOKENS}, every block stores its tokens as deltas
+ * from the previous token, number of keys per token and key offsets relative to the smallest offset
+ * in the block, each of the sequences is bit-packed with the minimal width required by the block.
+ * Skip table in front of the blocks has the first token of every block, so skipTo only has to
+ * decode a block which could actually contain the requested token.
+ * The same format is used for the token dictionary of the index, see {@link BitmapPostings}.
+ *
+ * Layout:
+ *   [token count (int)][block count (int)][min token (long)][max token (long)]
+ *   [skip table: block count * (first token (long), block offset (int))]
+ *   [blocks: token bits (byte), count bits (byte), offset bits (byte), min offset (long), packed words (long)*]
+ */
+public class PackedPostings
+{
+    /**
+     * Marker written instead of the sparse token count into the data term pointer,
+     * it's followed by the offset to the packed postings (the same as the token tree offset).
+     */
+    public static final byte TERM_MARKER = -1;
+
+    public static final int BLOCK_TOKENS = 128;
+
+    private static final int HEADER_BYTES = 24; // token count (4) + block count (4) + min/max token (16)
+    private static final int SKIP_ENTRY_BYTES = 12; // first token (8) + block offset (4)
+    private static final int BLOCK_HEADER_BYTES = 11; // 3 bit widths (3) + min offset (8)
+
+    private final MappedBuffer buffer;
+    private final long skipTableStart;
+
+    private final int tokenCount, blockCount;
+    private final long minToken, maxToken;
+
+    public PackedPostings(MappedBuffer buffer)
+    {
+        this.buffer = buffer;
+
+        long start = buffer.position();
+
+        tokenCount = buffer.getInt(start);
+        blockCount = buffer.getInt(start + 4);
+        minToken = buffer.getLong(start + 8);
+        maxToken = buffer.getLong(start + 16);
+
+        skipTableStart = start + HEADER_BYTES;
+    }
+
+    public long getCount()
+    {
+        return tokenCount;
+    }
+
+    public RangeIterator<Long, Token> iterator(Function<Long, DecoratedKey> keyFetcher)
+    {
+        return new PostingsIterator(keyFetcher);
+    }
+
+    /**
+     * @param ordinals The positions of the tokens to iterate, e.g. from {@link BitmapPostings}.
+     *
+     * @return Iterator of the selected tokens only.
+     */
+    public RangeIterator<Long, Token> iterator(BitSet ordinals, Function<Long, DecoratedKey> keyFetcher)
+    {
+        return new OrdinalsIterator(ordinals, keyFetcher);
+    }
+
+    private long firstToken(int block)
+    {
+        return buffer.getLong(skipTableStart + block * SKIP_ENTRY_BYTES);
+    }
+
+    private long tokenAt(int ordinal)
+    {
+        return decodeBlock(ordinal / BLOCK_TOKENS).tokens[ordinal % BLOCK_TOKENS];
+    }
+
+    private long blockPosition(int block)
+    {
+        return (skipTableStart - HEADER_BYTES) + buffer.getInt(skipTableStart + block * SKIP_ENTRY_BYTES + 8);
+    }
+
+    /**
+     * @return index of the last block which starts at or before the target, or from - 1 if there is none.
+     */
+    private int searchBlock(long target, int from)
+    {
+        int low = from, high = blockCount - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            if (firstToken(mid) <= target)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+
+        return high;
+    }
+
+    private Block decodeBlock(int block)
+    {
+        int size = Math.min(BLOCK_TOKENS, tokenCount - block * BLOCK_TOKENS);
+
+        long blockStart = blockPosition(block);
+
+        int tokenBits = buffer.get(blockStart);
+        int countBits = buffer.get(blockStart + 1);
+        int offsetBits = buffer.get(blockStart + 2);
+        long minOffset = buffer.getLong(blockStart + 3);
+
+        BitReader reader = new BitReader(buffer, blockStart + BLOCK_HEADER_BYTES);
+
+        long[] tokens = new long[size];
+        tokens[0] = firstToken(block);
+        for (int i = 1; i < size; i++)
+            tokens[i] = tokens[i - 1] + reader.read(tokenBits);
+
+        int[] keyStarts = new int[size + 1];
+        for (int i = 0; i < size; i++)
+            keyStarts[i + 1] = keyStarts[i] + (int) reader.read(countBits) + 1;
+
+        long[] offsets = new long[keyStarts[size]];
+        for (int i = 0; i < offsets.length; i++)
+            offsets[i] = minOffset + reader.read(offsetBits);
+
+        return new Block(tokens, keyStarts, offsets, size);
+    }
+
+    public static int serializedSize(TokenTreeBuilder tokens)
+    {
+        int size = HEADER_BYTES;
+
+        Iterator<Block> blocks = new BlockIterator(tokens.iterator());
+        while (blocks.hasNext())
+            size += SKIP_ENTRY_BYTES + blocks.next().serializedSize();
+
+        return size;
+    }
+
+    public static void write(TokenTreeBuilder tokens, DataOutput out) throws IOException
+    {
+        int tokenCount = (int) tokens.getTokenCount();
+        int blockCount = (tokenCount + BLOCK_TOKENS - 1) / BLOCK_TOKENS;
+
+        // skip table and max token go in front of the blocks, so they are collected by the first pass over the tokens
+        long[] firstTokens = new long[blockCount];
+        int[] blockOffsets = new int[blockCount];
+        long maxToken = 0;
+
+        int blockOffset = HEADER_BYTES + blockCount * SKIP_ENTRY_BYTES;
+
+        Iterator<Block> blocks = new BlockIterator(tokens.iterator());
+        for (int i = 0; blocks.hasNext(); i++)
+        {
+            Block block = blocks.next();
+
+            firstTokens[i] = block.tokens[0];
+            blockOffsets[i] = blockOffset;
+            maxToken = block.tokens[block.size - 1];
+
+            blockOffset += block.serializedSize();
+        }
+
+        out.writeInt(tokenCount);
+        out.writeInt(blockCount);
+        out.writeLong(firstTokens[0]);
+        out.writeLong(maxToken);
+
+        for (int i = 0; i < blockCount; i++)
+        {
+            out.writeLong(firstTokens[i]);
+            out.writeInt(blockOffsets[i]);
+        }
+
+        blocks = new BlockIterator(tokens.iterator());
+        while (blocks.hasNext())
+            blocks.next().write(out);
+    }
+
+    /**
+     * Tokens of a single block materialized into primitive arrays,
+     * used both for writing and (decoded) for reading.
+     */
+    private static class Block
+    {
+        private final long[] tokens;
+        private final int[] keyStarts; // offsets[keyStarts[i]..keyStarts[i + 1]) belong to tokens[i]
+        private final long[] offsets;
+        private final int size;
+
+        private Block(long[] tokens, int[] keyStarts, long[] offsets, int size)
+        {
+            this.tokens = tokens;
+            this.keyStarts = keyStarts;
+            this.offsets = offsets;
+            this.size = size;
+        }
+
+        private long minOffset()
+        {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < keyStarts[size]; i++)
+                min = Math.min(min, offsets[i]);
+
+            return min;
+        }
+
+        private int tokenBits()
+        {
+            long deltas = 0;
+            for (int i = 1; i < size; i++)
+                deltas |= tokens[i] - tokens[i - 1];
+
+            return bits(deltas);
+        }
+
+        private int countBits()
+        {
+            long counts = 0;
+            for (int i = 0; i < size; i++)
+                counts |= keyStarts[i + 1] - keyStarts[i] - 1;
+
+            return bits(counts);
+        }
+
+        private int offsetBits(long minOffset)
+        {
+            long relative = 0;
+            for (int i = 0; i < keyStarts[size]; i++)
+                relative |= offsets[i] - minOffset;
+
+            return bits(relative);
+        }
+
+        public int serializedSize()
+        {
+            long totalBits = (long) (size - 1) * tokenBits()
+                           + (long) size * countBits()
+                           + (long) keyStarts[size] * offsetBits(minOffset());
+
+            return BLOCK_HEADER_BYTES + (int) ((totalBits + 63) / 64) * 8;
+        }
+
+        public void write(DataOutput out) throws IOException
+        {
+            long minOffset = minOffset();
+            int tokenBits = tokenBits(), countBits = countBits(), offsetBits = offsetBits(minOffset);
+
+            out.writeByte(tokenBits);
+            out.writeByte(countBits);
+            out.writeByte(offsetBits);
+            out.writeLong(minOffset);
+
+            BitWriter writer = new BitWriter(out);
+
+            // first token of the block is already stored in the skip table
+            for (int i = 1; i < size; i++)
+                writer.write(tokens[i] - tokens[i - 1], tokenBits);
+
+            for (int i = 0; i < size; i++)
+                writer.write(keyStarts[i + 1] - keyStarts[i] - 1, countBits);
+
+            for (int i = 0; i < keyStarts[size]; i++)
+                writer.write(offsets[i] - minOffset, offsetBits);
+
+            writer.flush();
+        }
+
+        private static int bits(long values)
+        {
+            // deltas are treated as unsigned so the full token range fits in 64 bits
+            return Long.SIZE - Long.numberOfLeadingZeros(values);
+        }
+    }
+
+    private static class BlockIterator extends AbstractIterator<Block>
+    {
+        private final Iterator<Pair<Long, LongSet>> tokens;
+
+        public BlockIterator(Iterator<Pair<Long, LongSet>> tokens)
+        {
+            this.tokens = tokens;
+        }
+
+        @Override
+        protected Block computeNext()
+        {
+            if (!tokens.hasNext())
+                return endOfData();
+
+            long[] blockTokens = new long[BLOCK_TOKENS];
+            int[] keyStarts = new int[BLOCK_TOKENS + 1];
+            long[] offsets = new long[BLOCK_TOKENS];
+
+            int size = 0;
+            while (size < BLOCK_TOKENS && tokens.hasNext())
+            {
+                Pair<Long, LongSet> token = tokens.next();
+
+                long[] keys = token.right.toArray();
+                Arrays.sort(keys);
+
+                int start = keyStarts[size];
+                if (start + keys.length > offsets.length)
+                    offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, start + keys.length));
+
+                System.arraycopy(keys, 0, offsets, start, keys.length);
+
+                blockTokens[size] = token.left;
+                keyStarts[++size] = start + keys.length;
+            }
+
+            return new Block(blockTokens, keyStarts, offsets, size);
+        }
+    }
+
+    private class PostingsIterator extends BlockRangeIterator<Token>
+    {
+        private final Function<Long, DecoratedKey> keyFetcher;
+
+        private Block current;
+        private int nextBlock, position;
+
+        public PostingsIterator(Function<Long, DecoratedKey> keyFetcher)
+        {
+            super(minToken, maxToken, tokenCount);
+            this.keyFetcher = keyFetcher;
+        }
+
+        @Override
+        protected Token computeNext()
+        {
+            while (current == null || position >= current.size)
+            {
+                if (nextBlock >= blockCount)
+                    return endOfData();
+
+                decode(nextBlock++);
+            }
+
+            int idx = position++;
+            return new PackedToken(current.tokens[idx], keyFetcher, current.offsets, current.keyStarts[idx], current.keyStarts[idx + 1]);
+        }
+
+        @Override
+        protected void performSkipTo(Long nextToken)
+        {
+            long target = nextToken;
+
+            if (current == null || current.tokens[current.size - 1] < target)
+            {
+                // last block which starts at or before the target, never going backwards
+                int block = searchBlock(target, Math.max(0, nextBlock - 1));
+                if (block >= nextBlock)
+                {
+                    decode(block);
+                    nextBlock = block + 1;
+                }
+                else
+                {
+                    // target falls between the current and the next block,
+                    // so the first token of the next block is the answer.
+                    position = current == null ? 0 : current.size;
+                    return;
+                }
+            }
+
+            position = searchToken(target);
+        }
+
+        @Override
+        protected int readTokens(long[] buffer, int offset)
+        {
+            while (current == null || position >= current.size)
+            {
+                if (nextBlock >= blockCount)
+                    return 0;
+
+                decode(nextBlock++);
+            }
+
+            int count = Math.min(current.size - position, buffer.length - offset);
+            System.arraycopy(current.tokens, position, buffer, offset, count);
+
+            return count;
+        }
+
+        private int searchToken(long target)
+        {
+            int low = position, high = current.size - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                if (current.tokens[mid] < target)
+                    low = mid + 1;
+                else
+                    high = mid - 1;
+            }
+
+            return low;
+        }
+
+        private void decode(int block)
+        {
+            current = decodeBlock(block);
+            position = 0;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            // nothing to do here, buffer is managed by the index
+        }
+    }
+
+    /**
+     * Iterates tokens at the given positions, only blocks containing at least one of them are decoded.
+     */
+    private class OrdinalsIterator extends BlockRangeIterator<Token>
+    {
+        private final BitSet ordinals;
+        private final Function<Long, DecoratedKey> keyFetcher;
+
+        private Block current;
+        private int currentBlock = -1;
+
+        // the next ordinal to consider
+        private int position;
+
+        public OrdinalsIterator(BitSet ordinals, Function<Long, DecoratedKey> keyFetcher)
+        {
+            // empty selection has no bounds, such iterator is skipped by the range builders
+            super(ordinals.isEmpty() ? null : tokenAt(ordinals.nextSetBit(0)),
+                  ordinals.isEmpty() ? null : tokenAt(ordinals.length() - 1),
+                  ordinals.cardinality());
+
+            this.ordinals = ordinals;
+            this.keyFetcher = keyFetcher;
+        }
+
+        @Override
+        protected Token computeNext()
+        {
+            int ordinal = ordinals.nextSetBit(position);
+            if (ordinal < 0 || ordinal >= tokenCount)
+                return endOfData();
+
+            Block block = block(ordinal / BLOCK_TOKENS);
+            position = ordinal + 1;
+
+            int idx = ordinal % BLOCK_TOKENS;
+            return new PackedToken(block.tokens[idx], keyFetcher, block.offsets, block.keyStarts[idx], block.keyStarts[idx + 1]);
+        }
+
+        @Override
+        protected void performSkipTo(Long nextToken)
+        {
+            long target = nextToken;
+
+            int block = searchBlock(target, position / BLOCK_TOKENS);
+            if (block < position / BLOCK_TOKENS)
+                return;
+
+            Block tokens = block(block);
+
+            int low = 0, high = tokens.size - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                if (tokens.tokens[mid] < target)
+                    low = mid + 1;
+                else
+                    high = mid - 1;
+            }
+
+            position = Math.max(position, block * BLOCK_TOKENS + low);
+        }
+
+        @Override
+        protected int readTokens(long[] buffer, int offset)
+        {
+            int ordinal = ordinals.nextSetBit(position);
+            if (ordinal < 0 || ordinal >= tokenCount)
+                return 0;
+
+            int blockIdx = ordinal / BLOCK_TOKENS, blockEnd = Math.min((blockIdx + 1) * BLOCK_TOKENS, tokenCount);
+            Block block = block(blockIdx);
+
+            int count = 0;
+            while (ordinal >= 0 && ordinal < blockEnd && offset + count < buffer.length)
+            {
+                buffer[offset + count++] = block.tokens[ordinal % BLOCK_TOKENS];
+                ordinal = ordinals.nextSetBit(ordinal + 1);
+            }
+
+            return count;
+        }
+
+        private Block block(int block)
+        {
+            if (block != currentBlock)
+            {
+                current = decodeBlock(block);
+                currentBlock = block;
+            }
+
+            return current;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            // nothing to do here, buffer is managed by the index
+        }
+    }
+
+    public static class PackedToken extends Token
+    {
+        private final Function<Long, DecoratedKey> keyFetcher;
+
+        // offsets are shared with the rest of the decoded block
+        private final long[] offsets;
+        private final int from, to;
+
+        private List<PackedToken> merged;
+        private List<Token> mergedOnDisk;
+        private Set<DecoratedKey> loadedKeys;
+
+        public PackedToken(long token, Function<Long, DecoratedKey> keyFetcher, long[] offsets, int from, int to)
+        {
+            super(token);
+
+            this.keyFetcher = keyFetcher;
+            this.offsets = offsets;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void merge(CombinedValue<Long> other)
+        {
+            if (!(other instanceof Token))
+                return;
+
+            Token o = (Token) other;
+            if (token != o.token)
+                throw new IllegalArgumentException(String.format("%s != %s", token, o.token));
+
+            if (o instanceof PackedToken)
+            {
+                PackedToken packed = (PackedToken) o;
+
+                add(packed);
+                if (packed.merged != null)
+                {
+                    for (PackedToken t : packed.merged)
+                        add(t);
+                }
+
+                if (packed.mergedOnDisk != null)
+                {
+                    for (Token t : packed.mergedOnDisk)
+                        addOnDisk(t);
+                }
+
+                if (packed.loadedKeys != null)
+                    addKeys(packed.loadedKeys.iterator());
+            }
+            else if (o instanceof TokenTree.OnDiskToken)
+            {
+                // token tree entries know their key offsets as well, so there is no need to read keys eagerly
+                addOnDisk(o);
+            }
+            else
+            {
+                addKeys(o.iterator());
+            }
+        }
+
+        private void addOnDisk(Token other)
+        {
+            if (mergedOnDisk == null)
+                mergedOnDisk = new ArrayList<>(1);
+
+            mergedOnDisk.add(other);
+        }
+
+        private void add(PackedToken other)
+        {
+            if (isSameLocation(other))
+                return;
+
+            if (merged == null)
+                merged = new ArrayList<>(1);
+
+            for (PackedToken t : merged)
+            {
+                if (t.isSameLocation(other))
+                    return;
+            }
+
+            merged.add(other);
+        }
+
+        private boolean isSameLocation(PackedToken other)
+        {
+            if (keyFetcher != other.keyFetcher || to - from != other.to - other.from)
+                return false;
+
+            for (int i = 0; i < to - from; i++)
+            {
+                if (offsets[from + i] != other.offsets[other.from + i])
+                    return false;
+            }
+
+            return true;
+        }
+
+        private void addKeys(Iterator<DecoratedKey> keys)
+        {
+            if (loadedKeys == null)
+                loadedKeys = new TreeSet<>(DecoratedKey.comparator);
+
+            Iterators.addAll(loadedKeys, keys);
+        }
+
+        @Override
+        public Iterator<DecoratedKey> iterator()
+        {
+            if (merged == null && mergedOnDisk == null && loadedKeys == null)
+                return new KeyIterator();
+
+            Set<DecoratedKey> keys = new TreeSet<>(DecoratedKey.comparator);
+
+            Iterators.addAll(keys, new KeyIterator());
+
+            if (merged != null)
+            {
+                for (PackedToken t : merged)
+                    Iterators.addAll(keys, t.new KeyIterator());
+            }
+
+            if (mergedOnDisk != null)
+            {
+                for (Token t : mergedOnDisk)
+                    Iterators.addAll(keys, t.iterator());
+            }
+
+            if (loadedKeys != null)
+                keys.addAll(loadedKeys);
+
+            return keys.iterator();
+        }
+
+        @Override
+        public void collectOffsets(LongSet offsets)
+        {
+            for (int i = from; i < to; i++)
+                offsets.add(this.offsets[i]);
+
+            if (merged != null)
+            {
+                for (PackedToken t : merged)
+                    t.collectOffsets(offsets);
+            }
+
+            if (mergedOnDisk != null)
+            {
+                for (Token t : mergedOnDisk)
+                    t.collectOffsets(offsets);
+            }
+        }
+
+        private class KeyIterator extends AbstractIterator<DecoratedKey>
+        {
+            private int index = from;
+
+            @Override
+            protected DecoratedKey computeNext()
+            {
+                return index < to ? keyFetcher.apply(offsets[index++]) : endOfData();
+            }
+        }
+    }
+
+    private static class BitWriter
+    {
+        private final DataOutput out;
+
+        private long word;
+        private int bitPos;
+
+        public BitWriter(DataOutput out)
+        {
+            this.out = out;
+        }
+
+        public void write(long value, int bits) throws IOException
+        {
+            if (bits == 0)
+                return;
+
+            word |= value << bitPos;
+
+            int available = Long.SIZE - bitPos;
+            if (bits < available)
+            {
+                bitPos += bits;
+                return;
+            }
+
+            out.writeLong(word);
+
+            bitPos = bits - available;
+            word = bitPos == 0 ? 0 : value >>> available;
+        }
+
+        public void flush() throws IOException
+        {
+            if (bitPos > 0)
+                out.writeLong(word);
+
+            word = 0;
+            bitPos = 0;
+        }
+    }
+
+    private static class BitReader
+    {
+        private final MappedBuffer buffer;
+
+        private long position, word;
+        private int bitPos = Long.SIZE;
+
+        public BitReader(MappedBuffer buffer, long position)
+        {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        public long read(int bits)
+        {
+            if (bits == 0)
+                return 0;
+
+            if (bitPos == Long.SIZE)
+                nextWord();
+
+            int available = Long.SIZE - bitPos;
+            long value = word >>> bitPos;
+
+            if (bits <= available)
+            {
+                bitPos += bits;
+            }
+            else
+            {
+                nextWord();
+                value |= word << available;
+                bitPos = bits - available;
+            }
+
+            return bits == Long.SIZE ? value : value & ((1L << bits) - 1);
+        }
+
+        private void nextWord()
+        {
+            word = buffer.getLong(position);
+            position += 8;
+            bitPos = 0;
+        }
+    }
+}
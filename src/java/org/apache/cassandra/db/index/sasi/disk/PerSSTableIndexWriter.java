@@ -19,10 +19,7 @@ package org.apache.cassandra.db.index.sasi.disk;
 
 import java.io.File;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.*;
 
 import org.apache.cassandra.concurrent.JMXEnabledThreadPoolExecutor;
@@ -32,7 +29,8 @@ import org.apache.cassandra.db.Column;
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.index.sasi.analyzer.AbstractAnalyzer;
 import org.apache.cassandra.db.index.sasi.conf.ColumnIndex;
-import org.apache.cassandra.db.index.sasi.utils.CombinedTermIterator;
+import org.apache.cassandra.db.index.sasi.conf.IndexMode;
+import org.apache.cassandra.db.index.sasi.utils.CombinedRunIterator;
 import org.apache.cassandra.db.index.sasi.utils.TypeUtil;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.io.sstable.Descriptor;
@@ -166,9 +164,11 @@ public class PerSSTableIndexWriter implements SSTableWriterListener
         private final AbstractAnalyzer analyzer;
         private final long maxMemorySize;
 
+        // sorted runs of the terms spilled to disk when memory limit was reached,
+        // they are merged into the final index in one pass when writer is complete
         @VisibleForTesting
-        protected final Set<Future<OnDiskIndex>> segments;
-        private int segmentNumber = 0;
+        protected final Set<Future<TermRun>> runs;
+        private int runNumber = 0;
 
         private OnDiskIndexBuilder currentBuilder;
 
@@ -177,7 +177,7 @@ public class PerSSTableIndexWriter implements SSTableWriterListener
             this.columnIndex = columnIndex;
             this.outputFile = descriptor.filenameFor(columnIndex.getComponent());
             this.analyzer = columnIndex.getAnalyzer();
-            this.segments = new HashSet<>();
+            this.runs = new HashSet<>();
             this.maxMemorySize = maxMemorySize(columnIndex);
             this.currentBuilder = newIndexBuilder();
         }
@@ -227,33 +227,31 @@ public class PerSSTableIndexWriter implements SSTableWriterListener
             if (!isAdded || currentBuilder.estimatedMemoryUse() < maxMemorySize)
                 return; // non of the generated tokens were added to the index or memory size wasn't reached
 
-            segments.add(getExecutor().submit(scheduleSegmentFlush(false)));
+            runs.add(getExecutor().submit(scheduleRunFlush()));
         }
 
         @VisibleForTesting
-        protected Callable<OnDiskIndex> scheduleSegmentFlush(final boolean isFinal)
+        protected Callable<TermRun> scheduleRunFlush()
         {
             final OnDiskIndexBuilder builder = currentBuilder;
             currentBuilder = newIndexBuilder();
 
-            final String segmentFile = filename(isFinal);
+            final String runFile = filename(false);
 
-            return new Callable<OnDiskIndex>()
+            return new Callable<TermRun>()
             {
                 @Override
-                public OnDiskIndex call()
+                public TermRun call()
                 {
                     long start = System.nanoTime();
 
                     try
                     {
-                        File index = new File(segmentFile);
-                        return builder.finish(index) ? new OnDiskIndex(index, columnIndex.getValidator(), null) : null;
+                        return builder.spill(new File(runFile));
                     }
                     finally
                     {
-                        if (!isFinal)
-                            logger.info("Flushed index segment {}, took {} ms.", segmentFile, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        logger.info("Flushed index run {}, took {} ms.", runFile, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
                     }
                 }
             };
@@ -270,42 +268,44 @@ public class PerSSTableIndexWriter implements SSTableWriterListener
                 {
                     long start = System.nanoTime();
 
-                    OnDiskIndex[] parts = new OnDiskIndex[segments.size() + 1];
+                    List<TermRun> parts = new ArrayList<>(runs.size() + 1);
+                    CombinedRunIterator terms = null;
 
                     try
                     {
-                        // no parts present, build entire index from memory
-                        if (segments.isEmpty())
+                        // no runs present, build entire index from memory
+                        if (runs.isEmpty())
                         {
-                            scheduleSegmentFlush(true).call();
+                            currentBuilder.finish(new File(outputFile));
                             return;
                         }
 
-                        // parts are present but there is something still in memory, let's flush that inline
+                        // runs are present but there is something still in memory, let's flush that inline
                         if (!currentBuilder.isEmpty())
-                        {
-                            OnDiskIndex last = scheduleSegmentFlush(false).call();
-                            segments.add(Futures.immediateFuture(last));
-                        }
+                            runs.add(Futures.immediateFuture(scheduleRunFlush().call()));
 
-                        int index = 0;
                         ByteBuffer combinedMin = null, combinedMax = null;
 
-                        for (Future<OnDiskIndex> f : segments)
+                        for (Future<TermRun> f : runs)
                         {
-                            OnDiskIndex part = Futures.getUnchecked(f);
+                            TermRun part = Futures.getUnchecked(f);
                             if (part == null)
                                 continue;
 
-                            parts[index++] = part;
+                            parts.add(part);
                             combinedMin = (combinedMin == null || keyValidator.compare(combinedMin, part.minKey()) > 0) ? part.minKey() : combinedMin;
                             combinedMax = (combinedMax == null || keyValidator.compare(combinedMax, part.maxKey()) < 0) ? part.maxKey() : combinedMax;
                         }
 
+                        if (parts.isEmpty())
+                            return;
+
+                        terms = new CombinedRunIterator(columnIndex.getValidator(), parts);
+
                         OnDiskIndexBuilder builder = newIndexBuilder();
                         builder.finish(Pair.create(combinedMin, combinedMax),
                                        new File(outputFile),
-                                       new CombinedTermIterator(parts));
+                                       terms);
                     }
                     catch (Exception e)
                     {
@@ -316,14 +316,9 @@ public class PerSSTableIndexWriter implements SSTableWriterListener
                     {
                         logger.info("Index flush to {} took {} ms.", outputFile, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
 
-                        for (OnDiskIndex part : parts)
-                        {
-                            if (part == null)
-                                continue;
-
-                            FileUtils.closeQuietly(part);
-                            FileUtils.delete(part.getIndexPath());
-                        }
+                        FileUtils.closeQuietly(terms);
+                        for (TermRun part : parts)
+                            FileUtils.delete(part.getPath());
 
                         latch.countDown();
                     }
@@ -338,12 +333,13 @@ public class PerSSTableIndexWriter implements SSTableWriterListener
 
         private OnDiskIndexBuilder newIndexBuilder()
         {
-            return new OnDiskIndexBuilder(keyValidator, columnIndex.getValidator(), columnIndex.getMode().mode);
+            IndexMode indexMode = columnIndex.getMode();
+            return new OnDiskIndexBuilder(keyValidator, columnIndex.getValidator(), indexMode.mode, indexMode.postingsCodec, indexMode.isLiteral);
         }
 
         public String filename(boolean isFinal)
         {
-            return outputFile + (isFinal ? "" : "_" + segmentNumber++);
+            return outputFile + (isFinal ? "" : "_" + runNumber++);
         }
     }
 
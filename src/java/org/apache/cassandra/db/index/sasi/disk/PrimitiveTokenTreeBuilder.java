@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.util.*;
+
+import org.apache.cassandra.utils.Pair;
+
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.LongSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Token tree builder which appends (token, offset) pairs to the primitive arrays instead of the map of sets,
+ * pairs are sorted and de-duplicated only when tokens are requested (usually once, when builder is finished),
+ * and the leaves of the tree are streamed directly from the sorted arrays.
+ *
+ * Each pair takes 16 bytes (plus the growth slack of the arrays), compared to ~170 bytes
+ * of the boxed token, map entry and offset set of {@link DynamicTokenTreeBuilder}.
+ */
+public class PrimitiveTokenTreeBuilder extends MutableTokenTreeBuilder
+{
+    private static final int INITIAL_CAPACITY = 2;
+
+    private long[] tokens = new long[INITIAL_CAPACITY];
+    private long[] offsets = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    private boolean isSorted = true;
+    private int distinctTokens = 0;
+
+    @Override
+    public void add(Long token, long keyPosition)
+    {
+        add(token.longValue(), keyPosition);
+    }
+
+    public void add(long token, long keyPosition)
+    {
+        if (size == tokens.length)
+        {
+            int capacity = size + (size >> 1) + 1;
+            tokens = Arrays.copyOf(tokens, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+        }
+
+        // keys are added in token order when sstable is written, so pairs usually don't need to be sorted at all
+        if (isSorted && size > 0 && compare(tokens[size - 1], offsets[size - 1], token, keyPosition) >= 0)
+            isSorted = false;
+
+        if (isSorted && (size == 0 || tokens[size - 1] != token))
+            distinctTokens++;
+
+        tokens[size] = token;
+        offsets[size] = keyPosition;
+        size++;
+    }
+
+    @Override
+    public void add(TokenTreeBuilder other)
+    {
+        if (!(other instanceof PrimitiveTokenTreeBuilder))
+        {
+            Iterator<Pair<Long, LongSet>> tokens = other.iterator();
+            while (tokens.hasNext())
+            {
+                Pair<Long, LongSet> token = tokens.next();
+                for (LongCursor offset : token.right)
+                    add(token.left.longValue(), offset.value);
+            }
+
+            return;
+        }
+
+        PrimitiveTokenTreeBuilder o = (PrimitiveTokenTreeBuilder) other;
+        for (int i = 0; i < o.size; i++)
+            add(o.tokens[i], o.offsets[i]);
+    }
+
+    @Override
+    public void add(SortedMap<Long, LongSet> data)
+    {
+        for (Map.Entry<Long, LongSet> entry : data.entrySet())
+        {
+            for (LongCursor offset : entry.getValue())
+                add(entry.getKey().longValue(), offset.value);
+        }
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    @Override
+    public long getTokenCount()
+    {
+        sort();
+        return distinctTokens;
+    }
+
+    /**
+     * @return Tokens of the builder loaded into the map, every call creates new map,
+     * so it's only meant for the small builders or the ones which are about to be written.
+     */
+    @Override
+    public SortedMap<Long, LongSet> getTokens()
+    {
+        SortedMap<Long, LongSet> result = new TreeMap<>();
+        for (Iterator<Pair<Long, LongSet>> i = iterator(); i.hasNext();)
+        {
+            Pair<Long, LongSet> token = i.next();
+            result.put(token.left, token.right);
+        }
+
+        return result;
+    }
+
+    @Override
+    public Iterator<Pair<Long, LongSet>> iterator()
+    {
+        sort();
+        return new PairIterator();
+    }
+
+    /**
+     * Only the bounds of the leaves are taken from the sorted arrays, offsets are grouped
+     * into the sets when leaves are written.
+     */
+    @Override
+    protected void constructTree()
+    {
+        sort();
+
+        StreamedLoader loader = new StreamedLoader();
+        for (int i = 0; i < size; i++)
+        {
+            if (i == 0 || tokens[i - 1] != tokens[i])
+                loader.add(tokens[i]);
+        }
+
+        loader.load();
+    }
+
+    /**
+     * Sort the pairs by token and offset and remove the duplicates, if they are not sorted yet.
+     */
+    private void sort()
+    {
+        if (isSorted)
+            return;
+
+        quickSort(0, size - 1);
+
+        int unique = 0;
+        distinctTokens = 0;
+        for (int i = 0; i < size; i++)
+        {
+            if (unique > 0 && tokens[unique - 1] == tokens[i] && offsets[unique - 1] == offsets[i])
+                continue;
+
+            if (unique == 0 || tokens[unique - 1] != tokens[i])
+                distinctTokens++;
+
+            tokens[unique] = tokens[i];
+            offsets[unique] = offsets[i];
+            unique++;
+        }
+
+        size = unique;
+        isSorted = true;
+    }
+
+    /**
+     * Three-way quick sort of the pairs, tokens with many offsets make a lot of equal elements,
+     * which are all excluded from the further partitioning at once.
+     */
+    private void quickSort(int from, int to)
+    {
+        while (to - from > 16)
+        {
+            int middle = (from + to) >>> 1;
+
+            // median of three as a pivot
+            if (compare(middle, from) < 0)
+                swap(middle, from);
+            if (compare(to, from) < 0)
+                swap(to, from);
+            if (compare(to, middle) < 0)
+                swap(to, middle);
+
+            long pivotToken = tokens[middle], pivotOffset = offsets[middle];
+
+            int lt = from, gt = to, i = from;
+            while (i <= gt)
+            {
+                int cmp = compare(tokens[i], offsets[i], pivotToken, pivotOffset);
+                if (cmp < 0)
+                    swap(lt++, i++);
+                else if (cmp > 0)
+                    swap(i, gt--);
+                else
+                    i++;
+            }
+
+            // recurse into the smaller part to bound the depth of the stack
+            if (lt - from < to - gt)
+            {
+                quickSort(from, lt - 1);
+                from = gt + 1;
+            }
+            else
+            {
+                quickSort(gt + 1, to);
+                to = lt - 1;
+            }
+        }
+
+        // insertion sort for the small ranges
+        for (int i = from + 1; i <= to; i++)
+        {
+            for (int j = i; j > from && compare(j, j - 1) < 0; j--)
+                swap(j, j - 1);
+        }
+    }
+
+    private int compare(int a, int b)
+    {
+        return compare(tokens[a], offsets[a], tokens[b], offsets[b]);
+    }
+
+    private static int compare(long tokenA, long offsetA, long tokenB, long offsetB)
+    {
+        int cmp = Long.compare(tokenA, tokenB);
+        return cmp != 0 ? cmp : Long.compare(offsetA, offsetB);
+    }
+
+    private void swap(int a, int b)
+    {
+        long token = tokens[a], offset = offsets[a];
+
+        tokens[a] = tokens[b];
+        offsets[a] = offsets[b];
+
+        tokens[b] = token;
+        offsets[b] = offset;
+    }
+
+    /**
+     * Groups sorted pairs into the distinct tokens with their offsets.
+     */
+    private class PairIterator extends AbstractIterator<Pair<Long, LongSet>>
+    {
+        private int position = 0;
+
+        @Override
+        protected Pair<Long, LongSet> computeNext()
+        {
+            if (position >= size)
+                return endOfData();
+
+            long token = tokens[position];
+
+            LongSet tokenOffsets = new LongOpenHashSet(2);
+            while (position < size && tokens[position] == token)
+                tokenOffsets.add(offsets[position++]);
+
+            return Pair.create(token, tokenOffsets);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.util.*;
+
+import org.apache.cassandra.utils.Pair;
+
+import com.carrotsearch.hppc.LongSet;
+
+/**
+ * Token tree builder which only keeps the structure of the tree in memory (a few tokens per leaf)
+ * and writes the leaves straight from the source, so it could be used to merge huge trees.
+ * Source is read once to build the structure of the tree and once again to write its leaves.
+ */
+public class StaticTokenTreeBuilder extends TokenTreeBuilder
+{
+    private final Iterable<Pair<Long, LongSet>> source;
+    private SortedMap<Long, LongSet> tokens;
+
+    /**
+     * @param source The sorted, distinct tokens with their offsets, could be iterated more than once.
+     */
+    public StaticTokenTreeBuilder(Iterable<Pair<Long, LongSet>> source)
+    {
+        this.source = source;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return !source.iterator().hasNext();
+    }
+
+    @Override
+    public long getTokenCount()
+    {
+        if (root == null)
+        {
+            long count = 0;
+            for (Iterator<Pair<Long, LongSet>> i = source.iterator(); i.hasNext(); i.next())
+                count++;
+
+            return count;
+        }
+
+        return tokenCount;
+    }
+
+    /**
+     * @return All of the tokens of the source loaded at once, map is built on the first call and reused.
+     */
+    @Override
+    public SortedMap<Long, LongSet> getTokens()
+    {
+        if (tokens == null)
+        {
+            tokens = new TreeMap<>();
+            for (Pair<Long, LongSet> token : source)
+                tokens.put(token.left, token.right);
+        }
+
+        return tokens;
+    }
+
+    @Override
+    public Iterator<Pair<Long, LongSet>> iterator()
+    {
+        return source.iterator();
+    }
+
+    @Override
+    protected void constructTree()
+    {
+        StreamedLoader loader = new StreamedLoader();
+        for (Pair<Long, LongSet> token : source)
+            loader.add(token.left);
+
+        loader.load();
+    }
+}
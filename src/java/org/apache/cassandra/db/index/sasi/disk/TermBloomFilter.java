@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.cassandra.db.index.sasi.utils.MappedBuffer;
+import org.apache.cassandra.utils.MurmurHash;
+
+import com.carrotsearch.hppc.LongArrayList;
+
+/**
+ * Bloom filter over all of the terms of the index, stored after the levels metadata and read directly from
+ * the mapped index file. Allows to skip indexes which definitely don't have the term of the point lookup,
+ * without traversing the pointer levels and searching the data block.
+ *
+ * Layout: [hash count (int)][word count (int)][words (long)*]
+ * bit positions are derived from the single 64-bit hash of the term by double hashing.
+ */
+public class TermBloomFilter
+{
+    /**
+     * 10 bits per term with 7 hash functions give ~0.8% false positive rate.
+     */
+    public static final int BITS_PER_TERM = 10;
+    public static final int HASH_COUNT = 7;
+
+    private static final int HEADER_BYTES = 8; // hash count (4) + word count (4)
+
+    private final MappedBuffer buffer;
+    private final long start;
+
+    private final int hashCount;
+    private final long bitCount;
+
+    public TermBloomFilter(MappedBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.start = buffer.position() + HEADER_BYTES;
+
+        hashCount = buffer.getInt(buffer.position());
+        bitCount = (long) buffer.getInt(buffer.position() + 4) * Long.SIZE;
+    }
+
+    public boolean mayContain(ByteBuffer term)
+    {
+        long hash = hash(term);
+        for (int i = 0; i < hashCount; i++)
+        {
+            long bit = position(hash, i, bitCount);
+            if ((buffer.getLong(start + (bit / Long.SIZE) * 8) & (1L << (bit % Long.SIZE))) == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    public static long hash(ByteBuffer term)
+    {
+        return MurmurHash.hash2_64(term, term.position(), term.remaining(), 0);
+    }
+
+    public static void write(LongArrayList hashes, DataOutput out) throws IOException
+    {
+        int wordCount = (int) Math.max(1, ((long) hashes.size() * BITS_PER_TERM + Long.SIZE - 1) / Long.SIZE);
+        long bitCount = (long) wordCount * Long.SIZE;
+
+        long[] words = new long[wordCount];
+        for (int i = 0; i < hashes.size(); i++)
+        {
+            long hash = hashes.get(i);
+            for (int j = 0; j < HASH_COUNT; j++)
+            {
+                long bit = position(hash, j, bitCount);
+                words[(int) (bit / Long.SIZE)] |= 1L << (bit % Long.SIZE);
+            }
+        }
+
+        out.writeInt(HASH_COUNT);
+        out.writeInt(wordCount);
+
+        for (long word : words)
+            out.writeLong(word);
+    }
+
+    private static long position(long hash, int i, long bitCount)
+    {
+        // low and high halves of the hash as two independent hash functions
+        long combined = (int) hash + (long) i * (int) (hash >>> 32);
+        return (combined & Long.MAX_VALUE) % bitCount;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.cassandra.db.index.sasi.utils.MappedBuffer;
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.db.marshal.AsciiType;
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.db.marshal.UTF8Type;
+
+/**
+ * Minimal acyclic finite state transducer of the sorted, byte ordered terms, which replaces pointer levels of
+ * the {@link OnDiskIndex} with the last terms of the data blocks. Common prefixes and suffixes of the terms are
+ * shared, so the whole dictionary is read into memory, and it maps the term to its ordinal (which is the number
+ * of the data block it ends): each arc outputs the number of the terms which are less than any term reachable
+ * through it, so the sum of the outputs on the path is the number of the terms less than the query.
+ *
+ * Layout: [length (int)][root address (int)][term count (int)][nodes]
+ * each node is [term count of the sub-tree (vint)][arc count (vint)][arcs],
+ * each arc is [label (byte)][output (vint)][address delta of the target node (vint)], outputs of the node
+ * which ends a term start at 1, so there is no separate final flag,
+ * nodes are written children first, so deltas to the targets are always positive.
+ */
+public class TermFST
+{
+    private static final int HEADER_BYTES = 12; // length (4) + root (4) + term count (4)
+
+    private final byte[] nodes;
+    private final int root, termCount;
+
+    public TermFST(MappedBuffer buffer)
+    {
+        long position = buffer.position();
+
+        int length = buffer.getInt(position);
+        root = buffer.getInt(position + 4);
+        termCount = buffer.getInt(position + 8);
+
+        nodes = new byte[length];
+        for (int i = 0; i < length; i++)
+            nodes[i] = buffer.get(position + HEADER_BYTES + i);
+    }
+
+    /**
+     * @return true if terms of the given type are sorted by their bytes, so they can be put into the transducer.
+     */
+    public static boolean isSupported(AbstractType<?> comparator)
+    {
+        return comparator instanceof UTF8Type || comparator instanceof AsciiType || comparator instanceof BytesType;
+    }
+
+    public int termCount()
+    {
+        return termCount;
+    }
+
+    /**
+     * @param query The term to look up.
+     *
+     * @return The number of the terms less than the query, which is also the ordinal of the first term
+     * greater than or equal to the query, or term count if there is no such term.
+     */
+    public int ceiling(ByteBuffer query)
+    {
+        return walk(query)[0];
+    }
+
+    /**
+     * @param prefix The prefix of the terms.
+     *
+     * @return The ordinals of the first term which starts with or is greater than the prefix,
+     * and of the first term which is greater than all of the terms starting with the prefix.
+     */
+    public int[] prefixRange(ByteBuffer prefix)
+    {
+        return walk(prefix);
+    }
+
+    private int[] walk(ByteBuffer query)
+    {
+        int rank = 0, node = root;
+        for (int i = query.position(); i < query.limit(); i++)
+        {
+            int label = query.get(i) & 0xFF;
+
+            Node current = new Node(node);
+            if (!current.seek(label))
+            {
+                // all of the terms under the rest of the arcs are greater than the query
+                rank += current.arcOutput;
+                return new int[] { rank, rank };
+            }
+
+            rank += current.arcOutput;
+            node = current.arcTarget;
+        }
+
+        return new int[] { rank, rank + new Node(node).count };
+    }
+
+    private class Node
+    {
+        private final int address, count, arcCount;
+        private int position;
+
+        private int arcOutput, arcTarget;
+
+        public Node(int address)
+        {
+            this.address = address;
+
+            position = address;
+            count = readVInt();
+            arcCount = readVInt();
+        }
+
+        /**
+         * Moves to the arc with the given label, if there is no such arc arc output is set to the number of the terms
+         * less than any term following the label.
+         *
+         * @return true if node has arc with the given label, false otherwise.
+         */
+        public boolean seek(int label)
+        {
+            for (int i = 0; i < arcCount; i++)
+            {
+                int arcLabel = nodes[position++] & 0xFF;
+                arcOutput = readVInt();
+                arcTarget = address - readVInt();
+
+                if (arcLabel == label)
+                    return true;
+
+                if (arcLabel > label)
+                    return false;
+            }
+
+            arcOutput = count;
+            return false;
+        }
+
+        private int readVInt()
+        {
+            int value = 0;
+            for (int shift = 0; ; shift += 7)
+            {
+                byte b = nodes[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    return value;
+            }
+        }
+    }
+
+    /**
+     * Build minimal transducer of the given terms (incrementally, registering equivalent sub-trees once)
+     * and write it to the given output.
+     *
+     * @param terms The distinct terms, in the byte order.
+     * @param out The output to write to.
+     */
+    public static void write(List<ByteBuffer> terms, DataOutput out) throws IOException
+    {
+        Map<MutableNode, MutableNode> registry = new HashMap<>();
+        List<MutableNode> path = new ArrayList<>();
+        path.add(new MutableNode());
+
+        ByteBuffer previous = null;
+        for (ByteBuffer term : terms)
+        {
+            int common = previous == null ? 0 : commonPrefix(previous, term);
+            assert previous == null || compare(previous, term) < 0 : "terms have to be sorted and distinct";
+
+            // nodes of the previous term after the common prefix are not going to change anymore
+            register(path, common, registry);
+
+            for (int i = common; i < term.remaining(); i++)
+            {
+                MutableNode child = new MutableNode();
+                path.get(i).addArc(term.get(term.position() + i), child);
+                path.add(child);
+            }
+
+            path.get(term.remaining()).isFinal = true;
+            previous = term;
+        }
+
+        register(path, 0, registry);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Map<MutableNode, Integer> addresses = new IdentityHashMap<>();
+        int root = path.get(0).write(bytes, addresses);
+
+        out.writeInt(bytes.size());
+        out.writeInt(root);
+        out.writeInt(terms.size());
+        out.write(bytes.toByteArray());
+    }
+
+    private static void register(List<MutableNode> path, int depth, Map<MutableNode, MutableNode> registry)
+    {
+        for (int i = path.size() - 1; i > depth; i--)
+        {
+            MutableNode node = path.remove(i);
+            MutableNode registered = registry.get(node);
+            if (registered == null)
+                registry.put((registered = node), node);
+
+            path.get(i - 1).replaceLastTarget(registered);
+        }
+    }
+
+    private static int commonPrefix(ByteBuffer a, ByteBuffer b)
+    {
+        int length = Math.min(a.remaining(), b.remaining()), i = 0;
+        while (i < length && a.get(a.position() + i) == b.get(b.position() + i))
+            i++;
+
+        return i;
+    }
+
+    private static int compare(ByteBuffer a, ByteBuffer b)
+    {
+        int common = commonPrefix(a, b);
+        if (common == a.remaining() || common == b.remaining())
+            return a.remaining() - b.remaining();
+
+        return (a.get(a.position() + common) & 0xFF) - (b.get(b.position() + common) & 0xFF);
+    }
+
+    private static class MutableNode
+    {
+        private boolean isFinal;
+        private final List<Byte> labels = new ArrayList<>();
+        private final List<MutableNode> targets = new ArrayList<>();
+
+        private int count = -1;
+
+        public void addArc(byte label, MutableNode target)
+        {
+            labels.add(label);
+            targets.add(target);
+        }
+
+        public void replaceLastTarget(MutableNode target)
+        {
+            targets.set(targets.size() - 1, target);
+        }
+
+        public int count()
+        {
+            if (count < 0)
+            {
+                count = isFinal ? 1 : 0;
+                for (MutableNode target : targets)
+                    count += target.count();
+            }
+
+            return count;
+        }
+
+        /**
+         * Writes the sub-tree of the node, skipping the nodes which have been already written.
+         *
+         * @return The address of the node.
+         */
+        public int write(ByteArrayOutputStream out, Map<MutableNode, Integer> addresses)
+        {
+            Integer address = addresses.get(this);
+            if (address != null)
+                return address;
+
+            int[] targetAddresses = new int[targets.size()];
+            for (int i = 0; i < targets.size(); i++)
+                targetAddresses[i] = targets.get(i).write(out, addresses);
+
+            address = out.size();
+
+            writeVInt(out, count());
+            writeVInt(out, targets.size());
+
+            int output = isFinal ? 1 : 0;
+            for (int i = 0; i < targets.size(); i++)
+            {
+                out.write(labels.get(i));
+                writeVInt(out, output);
+                writeVInt(out, address - targetAddresses[i]);
+
+                output += targets.get(i).count();
+            }
+
+            addresses.put(this, address);
+            return address;
+        }
+
+        private static void writeVInt(ByteArrayOutputStream out, int value)
+        {
+            while ((value & ~0x7F) != 0)
+            {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            out.write(value);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof MutableNode))
+                return false;
+
+            MutableNode other = (MutableNode) o;
+            if (isFinal != other.isFinal || !labels.equals(other.labels) || targets.size() != other.targets.size())
+                return false;
+
+            // targets are already registered, so equivalent targets are the same instances
+            for (int i = 0; i < targets.size(); i++)
+            {
+                if (targets.get(i) != other.targets.get(i))
+                    return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = isFinal ? 1 : 0;
+            for (int i = 0; i < targets.size(); i++)
+                hash = 31 * (31 * hash + labels.get(i)) + System.identityHashCode(targets.get(i));
+
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.cassandra.db.index.sasi.utils.MappedBuffer;
+
+import com.carrotsearch.hppc.LongArrayList;
+
+/**
+ * Open-addressing (linear probing) hash table of the terms of {@link OnDiskIndexBuilder.Mode#HASH} index,
+ * which maps term hash to the location of the term in the data level, so point lookup is a single probe
+ * and a single term comparison instead of the pointer levels walk and data block binary search.
+ *
+ * Layout: [slot count (int), power of 2][slots (long)*]
+ * each slot is [fingerprint (16 bits)][term index in block (16 bits)][block index + 1 (32 bits)], 0 if empty,
+ * fingerprint is the top bits of the term hash, so most of the collisions are skipped without reading the term.
+ */
+public class TermHashTable
+{
+    public static final long EMPTY = 0;
+
+    private static final int HEADER_BYTES = 4; // slot count (4)
+
+    private final MappedBuffer buffer;
+    private final long start;
+    private final int slotCount;
+
+    public TermHashTable(MappedBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.start = buffer.position() + HEADER_BYTES;
+        this.slotCount = buffer.getInt(buffer.position());
+    }
+
+    public int slotCount()
+    {
+        return slotCount;
+    }
+
+    /**
+     * @param hash The hash of the term, see {@link TermBloomFilter#hash(java.nio.ByteBuffer)}.
+     * @param probe The number of the probe, starting from 0.
+     *
+     * @return The slot to check for the given probe of the term.
+     */
+    public long getSlot(long hash, int probe)
+    {
+        return buffer.getLong(start + (((int) hash + probe) & (slotCount - 1)) * 8L);
+    }
+
+    public static boolean matches(long slot, long hash)
+    {
+        return ((slot >>> 48) & 0xFFFF) == fingerprint(hash);
+    }
+
+    public static int blockIndex(long slot)
+    {
+        return (int) (slot & 0xFFFFFFFFL) - 1;
+    }
+
+    public static int termIndex(long slot)
+    {
+        return (int) ((slot >>> 32) & 0xFFFF);
+    }
+
+    public static long location(int blockIndex, int termIndex)
+    {
+        return ((long) termIndex << 32) | (blockIndex + 1);
+    }
+
+    /**
+     * Write the table with load factor of at most 0.5.
+     *
+     * @param hashes The hashes of the terms.
+     * @param locations The locations of the terms, in the same order as hashes, see {@link #location(int, int)}.
+     * @param out The output to write to.
+     */
+    public static void write(LongArrayList hashes, LongArrayList locations, DataOutput out) throws IOException
+    {
+        assert hashes.size() == locations.size();
+
+        int slotCount = Integer.highestOneBit(Math.max(1, hashes.size() * 2 - 1)) << 1;
+        long[] slots = new long[slotCount];
+
+        for (int i = 0; i < hashes.size(); i++)
+        {
+            long hash = hashes.get(i);
+
+            int slot = (int) hash & (slotCount - 1);
+            while (slots[slot] != EMPTY)
+                slot = (slot + 1) & (slotCount - 1);
+
+            slots[slot] = (fingerprint(hash) << 48) | locations.get(i);
+        }
+
+        out.writeInt(slotCount);
+        for (long slot : slots)
+            out.writeLong(slot);
+    }
+
+    private static long fingerprint(long hash)
+    {
+        return (hash >>> 48) & 0xFFFF;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import org.apache.cassandra.db.index.sasi.sa.TermIterator;
+import org.apache.cassandra.io.FSReadError;
+import org.apache.cassandra.io.FSWriteError;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.io.util.RandomAccessReader;
+import org.apache.cassandra.io.util.SequentialWriter;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.Pair;
+
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.LongSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Sorted run of the index terms (or their suffixes/grams, depending on the mode) with their tokens, spilled to disk
+ * when index builder runs out of memory. Unlike the index segment, run has no blocks, levels or token trees,
+ * it is written once and read back sequentially by the single merge pass which builds the final index.
+ *
+ * Run is a sequence of the [term (short length)][number of tokens (int)] records, each one followed by its tokens
+ * as [token (long)][number of offsets (int)][offsets (long)...], both terms and tokens are in sorted order.
+ */
+public class TermRun
+{
+    private final File file;
+    private final ByteBuffer minTerm, maxTerm;
+    private final ByteBuffer minKey, maxKey;
+
+    private TermRun(File file, ByteBuffer minTerm, ByteBuffer maxTerm, ByteBuffer minKey, ByteBuffer maxKey)
+    {
+        this.file = file;
+        this.minTerm = minTerm;
+        this.maxTerm = maxTerm;
+        this.minKey = minKey;
+        this.maxKey = maxKey;
+    }
+
+    /**
+     * Writes the sorted terms to the run file.
+     *
+     * @param file The file to write run to.
+     * @param keyRange The min and max key covered by the terms.
+     * @param terms The sorted terms with their tokens.
+     *
+     * @return The run written.
+     *
+     * @throws FSWriteError on I/O error.
+     */
+    public static TermRun write(File file, Pair<ByteBuffer, ByteBuffer> keyRange, TermIterator terms) throws FSWriteError
+    {
+        SequentialWriter out = null;
+
+        try
+        {
+            out = new SequentialWriter(file, OnDiskIndexBuilder.BLOCK_SIZE, false);
+
+            while (terms.hasNext())
+            {
+                Pair<ByteBuffer, TokenTreeBuilder> term = terms.next();
+
+                // run only needs the sorted tokens, so the structure of the tree is never built
+                TokenTreeBuilder tokens = term.right;
+
+                ByteBufferUtil.writeWithShortLength(term.left, out);
+                out.writeInt((int) tokens.getTokenCount());
+
+                Iterator<Pair<Long, LongSet>> iterator = tokens.iterator();
+                while (iterator.hasNext())
+                {
+                    Pair<Long, LongSet> token = iterator.next();
+
+                    out.writeLong(token.left);
+                    out.writeInt(token.right.size());
+
+                    for (LongCursor offset : token.right)
+                        out.writeLong(offset.value);
+                }
+            }
+
+            return new TermRun(file, terms.minTerm(), terms.maxTerm(), keyRange.left, keyRange.right);
+        }
+        catch (IOException e)
+        {
+            throw new FSWriteError(e, file);
+        }
+        finally
+        {
+            FileUtils.closeQuietly(out);
+        }
+    }
+
+    public Reader open()
+    {
+        return new Reader();
+    }
+
+    public ByteBuffer minTerm()
+    {
+        return minTerm;
+    }
+
+    public ByteBuffer maxTerm()
+    {
+        return maxTerm;
+    }
+
+    public ByteBuffer minKey()
+    {
+        return minKey;
+    }
+
+    public ByteBuffer maxKey()
+    {
+        return maxKey;
+    }
+
+    public String getPath()
+    {
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Sequential reader of the run, positioned at its current term.
+     */
+    public class Reader implements Closeable
+    {
+        private final RandomAccessReader in;
+
+        private ByteBuffer term;
+        private Tokens tokens;
+
+        private Reader()
+        {
+            in = RandomAccessReader.open(file);
+        }
+
+        /**
+         * Moves reader to the next term of the run, tokens of the previous term are still readable.
+         *
+         * @return true if there was next term, false if the end of the run was reached.
+         */
+        public boolean advance() throws FSReadError
+        {
+            try
+            {
+                in.seek(tokens == null ? 0 : tokens.end());
+                if (in.isEOF())
+                    return false;
+
+                term = ByteBufferUtil.readWithShortLength(in);
+                tokens = new Tokens(in.readInt(), in.getFilePointer());
+                return true;
+            }
+            catch (IOException e)
+            {
+                throw new FSReadError(e, file);
+            }
+        }
+
+        public ByteBuffer term()
+        {
+            return term;
+        }
+
+        public long tokenCount()
+        {
+            return tokens.count;
+        }
+
+        /**
+         * @return The tokens of the current term, which could be iterated multiple times
+         *         (even after reader has moved to the next terms), each iteration re-reads them from the run.
+         */
+        public Iterable<Pair<Long, LongSet>> tokens()
+        {
+            return tokens;
+        }
+
+        @Override
+        public void close()
+        {
+            FileUtils.closeQuietly(in);
+        }
+
+        private class Tokens implements Iterable<Pair<Long, LongSet>>
+        {
+            private final int count;
+            private final long start;
+
+            // position right after the last token, known once tokens have been read through at least once
+            private long end = -1;
+
+            private Tokens(int count, long start)
+            {
+                this.count = count;
+                this.start = start;
+            }
+
+            /**
+             * Iterators share the reader of the run with each other and with the reader itself,
+             * so each one keeps its own position and seeks to it before every read.
+             */
+            @Override
+            public Iterator<Pair<Long, LongSet>> iterator()
+            {
+                return new AbstractIterator<Pair<Long, LongSet>>()
+                {
+                    private long position = start;
+                    private int read = 0;
+
+                    @Override
+                    protected Pair<Long, LongSet> computeNext()
+                    {
+                        if (read == count)
+                        {
+                            end = position;
+                            return endOfData();
+                        }
+
+                        try
+                        {
+                            in.seek(position);
+
+                            long token = in.readLong();
+                            int offsetCount = in.readInt();
+
+                            LongSet offsets = new LongOpenHashSet(offsetCount);
+                            for (int i = 0; i < offsetCount; i++)
+                                offsets.add(in.readLong());
+
+                            position = in.getFilePointer();
+                            read++;
+                            return Pair.create(token, offsets);
+                        }
+                        catch (IOException e)
+                        {
+                            throw new FSReadError(e, file);
+                        }
+                    }
+                };
+            }
+
+            private long end() throws IOException
+            {
+                if (end >= 0)
+                    return end;
+
+                // tokens were never read, so they have to be skipped over
+                in.seek(start);
+                for (int i = 0; i < count; i++)
+                {
+                    in.readLong();
+                    in.skipBytes(in.readInt() * 8);
+                }
+
+                return (end = in.getFilePointer());
+            }
+        }
+    }
+}
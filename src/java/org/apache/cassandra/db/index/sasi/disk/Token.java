@@ -17,6 +17,7 @@
  */
 package org.apache.cassandra.db.index.sasi.disk;
 
+import com.carrotsearch.hppc.LongSet;
 import com.google.common.primitives.Longs;
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.index.sasi.utils.CombinedValue;
@@ -25,6 +26,10 @@ public abstract class Token implements CombinedValue<Long>, Iterable<DecoratedKe
 {
     protected final long token;
 
+    // boxed token value is requested multiple times per iteration step
+    // (ranges, intersections etc.) so it's allocated only once, on first request.
+    private Long boxedToken;
+
     public Token(long token)
     {
         this.token = token;
@@ -33,9 +38,20 @@ public abstract class Token implements CombinedValue<Long>, Iterable<DecoratedKe
     @Override
     public Long get()
     {
-        return token;
+        if (boxedToken == null)
+            boxedToken = token;
+
+        return boxedToken;
     }
 
+    /**
+     * Add positions of all of the keys of this token to the given set,
+     * only tokens read from the on-disk indexes know their key positions.
+     *
+     * @param offsets The set to add offsets to.
+     */
+    public abstract void collectOffsets(LongSet offsets);
+
     @Override
     public int compareTo(CombinedValue<Long> o)
     {
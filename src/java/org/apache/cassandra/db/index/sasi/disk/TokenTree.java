@@ -22,11 +22,16 @@ import java.util.*;
 
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.index.sasi.utils.AbstractIterator;
+import org.apache.cassandra.db.index.sasi.utils.BlockRangeIterator;
 import org.apache.cassandra.db.index.sasi.utils.CombinedValue;
 import org.apache.cassandra.db.index.sasi.utils.MappedBuffer;
 import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
 import org.apache.cassandra.utils.MergeIterator;
 
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.LongSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.collect.Iterators;
@@ -94,7 +99,7 @@ public class TokenTree
         file.position(leafStart + TokenTreeBuilder.BLOCK_HEADER_BYTES);
 
         OnDiskToken token = OnDiskToken.getTokenAt(file, tokenIndex, leafSize, keyFetcher);
-        return token.get().equals(searchToken) ? token : null;
+        return token.token == searchToken ? token : null;
     }
 
     private boolean validateMagic()
@@ -104,6 +109,11 @@ public class TokenTree
             case Descriptor.VERSION_AA:
                 return true;
             case Descriptor.VERSION_AB:
+            case Descriptor.VERSION_AC:
+            case Descriptor.VERSION_AD:
+            case Descriptor.VERSION_AE:
+            case Descriptor.VERSION_AF:
+            case Descriptor.VERSION_AG:
                 return TokenTreeBuilder.AB_MAGIC == file.getShort();
             default:
                 return false;
@@ -112,10 +122,19 @@ public class TokenTree
 
     // finds leaf that *could* contain token
     private void seekToLeaf(long token, MappedBuffer file)
+    {
+        seekToLeaf(token, file, startPos, false, 0, null);
+    }
+
+    /**
+     * Finds leaf that *could* contain token starting from the given block (root or interior) of the tree,
+     * which has to cover the token. If path is given every interior block visited on the way to the leaf
+     * is recorded together with the (exclusive) upper bound of the token range it covers.
+     */
+    private void seekToLeaf(long token, MappedBuffer file, long blockStart, boolean isBounded, long upperBound, SeekPath path)
     {
         // this loop always seeks forward except for the first iteration
         // where it may seek back to the root
-        long blockStart = startPos;
         while (true)
         {
             file.position(blockStart);
@@ -129,55 +148,54 @@ public class TokenTree
                 break;
             }
 
+            if (path != null)
+                path.push(blockStart, isBounded, upperBound);
+
             short tokenCount = file.getShort();
 
             long minToken = file.getLong();
             long maxToken = file.getLong();
 
             long seekBase = blockStart + TokenTreeBuilder.BLOCK_HEADER_BYTES;
+
+            int offsetIndex;
             if (minToken > token)
-            {
-                // seek to beginning of child offsets to locate first child
-                file.position(seekBase + tokenCount * LONG_BYTES);
-                blockStart = (startPos + (int) file.getLong());
-            }
+                offsetIndex = 0; // first child
             else if (maxToken < token)
-            {
-                // seek to end of child offsets to locate last child
-                file.position(seekBase + (2 * tokenCount) * LONG_BYTES);
-                blockStart = (startPos + (int) file.getLong());
-            }
+                offsetIndex = tokenCount; // last child
             else
-            {
-                // skip to end of block header/start of interior block tokens
-                file.position(seekBase);
-
-                short offsetIndex = searchBlock(token, tokenCount, file);
+                offsetIndex = searchBlock(token, tokenCount, seekBase, file);
 
-                // file pointer is now at beginning of offsets
-                if (offsetIndex == tokenCount)
-                    file.position(file.position() + (offsetIndex * LONG_BYTES));
-                else
-                    file.position(file.position() + ((tokenCount - offsetIndex - 1) + offsetIndex) * LONG_BYTES);
-
-                blockStart = (startPos + (int) file.getLong());
+            // child covers everything up to the token at the same index (exclusive),
+            // the last child inherits upper bound of the current block
+            if (offsetIndex < tokenCount)
+            {
+                isBounded = true;
+                upperBound = file.getLong(seekBase + offsetIndex * LONG_BYTES);
             }
+
+            // child offsets are located right after interior block tokens
+            blockStart = (startPos + (int) file.getLong(seekBase + (tokenCount + offsetIndex) * LONG_BYTES));
         }
     }
 
-    private short searchBlock(long searchToken, short tokenCount, MappedBuffer file)
+    // binary search for the number of block tokens which are less than or equal to search token,
+    // which is exactly the index of the child which could contain it.
+    private int searchBlock(long searchToken, short tokenCount, long blockTokensStart, MappedBuffer file)
     {
-        short offsetIndex = 0;
-        for (int i = 0; i < tokenCount; i++)
+        int start = 0, end = tokenCount;
+
+        while (start < end)
         {
-            long readToken = file.getLong();
-            if (searchToken < readToken)
-                break;
+            int middle = (start + end) >>> 1;
 
-            offsetIndex++;
+            if (file.getLong(blockTokensStart + middle * LONG_BYTES) <= searchToken)
+                start = middle + 1;
+            else
+                end = middle;
         }
 
-        return offsetIndex;
+        return start;
     }
 
     private short searchLeaf(long searchToken, short tokenCount)
@@ -207,7 +225,7 @@ public class TokenTree
         return (short) middle;
     }
 
-    public class TokenTreeIterator extends RangeIterator<Long, Token>
+    public class TokenTreeIterator extends BlockRangeIterator<Token>
     {
         private final Function<Long, DecoratedKey> keyFetcher;
         private final MappedBuffer file;
@@ -222,6 +240,10 @@ public class TokenTree
         protected boolean firstIteration = true;
         private boolean lastLeaf;
 
+        // interior blocks leading to the current leaf, allows forward skips
+        // to start from the lowest block covering the token instead of the root
+        private final SeekPath path = new SeekPath();
+
         TokenTreeIterator(MappedBuffer file, Function<Long, DecoratedKey> keyFetcher)
         {
             super(treeMinToken, treeMaxToken, tokenCount);
@@ -263,12 +285,44 @@ public class TokenTree
             }
             else // next is in a leaf block that needs to be found
             {
-                seekToLeaf(nextToken, file);
+                if (path.unwind(nextToken))
+                {
+                    long blockStart = path.blockStart();
+                    boolean isBounded = path.isBounded();
+                    long upperBound = path.upperBound();
+
+                    // lowest block which covers the token is going to be re-recorded by the seek
+                    path.pop();
+                    seekToLeaf(nextToken, file, blockStart, isBounded, upperBound, path);
+                }
+                else
+                {
+                    seekToLeaf(nextToken, file, startPos, false, 0, path);
+                }
+
                 setupBlock();
                 findNearest(nextToken);
             }
         }
 
+        @Override
+        protected int readTokens(long[] buffer, int offset)
+        {
+            maybeFirstIteration();
+
+            if (currentTokenIndex >= leafSize && !lastLeaf)
+            {
+                seekToNextLeaf();
+                setupBlock();
+            }
+
+            int count = Math.min(leafSize - currentTokenIndex, buffer.length - offset);
+            for (int i = 0; i < count; i++)
+                buffer[offset + i] = file.getLong(getTokenPosition(currentTokenIndex + i));
+
+            return Math.max(count, 0);
+        }
+
         private void setupBlock()
         {
             currentLeafStart = file.position();
@@ -296,15 +350,36 @@ public class TokenTree
                 searchLeaf(next);
         }
 
+        // galloping search for the first token in the rest of the leaf which is greater than or equal to next:
+        // probe the tokens 1, 2, 4... positions ahead of the current one and then binary search the last gap,
+        // which makes cost of the skip proportional to log of the distance instead of the size of the leaf.
         private void searchLeaf(long next)
         {
-            for (int i = currentTokenIndex; i < leafSize; i++)
+            int start = currentTokenIndex, end = leafSize;
+
+            for (int step = 1; start < end; step <<= 1)
             {
-                if (compareTokenAt(currentTokenIndex, next) >= 0)
+                int probe = Math.min(start + step - 1, end - 1);
+                if (compareTokenAt(probe, next) >= 0)
+                {
+                    end = probe;
                     break;
+                }
 
-                currentTokenIndex++;
+                start = probe + 1;
             }
+
+            while (start < end)
+            {
+                int middle = (start + end) >>> 1;
+
+                if (compareTokenAt(middle, next) < 0)
+                    start = middle + 1;
+                else
+                    end = middle;
+            }
+
+            currentTokenIndex = start;
         }
 
         private int compareTokenAt(int idx, long toToken)
@@ -342,21 +417,83 @@ public class TokenTree
             if (!firstIteration)
                 return;
 
-            seekToLeaf(treeMinToken, file);
+            seekToLeaf(treeMinToken, file, startPos, false, 0, path);
             setupBlock();
             firstIteration = false;
         }
     }
 
+    private static class SeekPath
+    {
+        // depth of the tree is bound by 2^64 tokens and fanout of the interior blocks
+        private static final int MAX_DEPTH = 16;
+
+        private final long[] blocks = new long[MAX_DEPTH];
+        private final long[] upperBounds = new long[MAX_DEPTH];
+        private final boolean[] bounded = new boolean[MAX_DEPTH];
+
+        private int depth = 0;
+
+        public void push(long blockStart, boolean isBounded, long upperBound)
+        {
+            assert depth < MAX_DEPTH;
+
+            blocks[depth] = blockStart;
+            bounded[depth] = isBounded;
+            upperBounds[depth] = upperBound;
+            depth++;
+        }
+
+        /**
+         * Drops all of the blocks which don't cover given token from the top of the path,
+         * since iteration only moves forward all of the remaining blocks do cover it.
+         *
+         * @param token The token to look for.
+         *
+         * @return true if there is a block remaining in the path, false otherwise.
+         */
+        public boolean unwind(long token)
+        {
+            while (depth > 0 && bounded[depth - 1] && token >= upperBounds[depth - 1])
+                depth--;
+
+            return depth > 0;
+        }
+
+        public long blockStart()
+        {
+            return blocks[depth - 1];
+        }
+
+        public boolean isBounded()
+        {
+            return bounded[depth - 1];
+        }
+
+        public long upperBound()
+        {
+            return upperBounds[depth - 1];
+        }
+
+        public void pop()
+        {
+            depth--;
+        }
+    }
+
     public static class OnDiskToken extends Token
     {
-        private final Set<TokenInfo> info = new HashSet<>(2);
-        private final Set<DecoratedKey> loadedKeys = new TreeSet<>(DecoratedKey.comparator);
+        // most of the tokens are never merged with anything so the first (and usually only)
+        // location of the token is kept inline, everything else is allocated only on merge.
+        private final TokenInfo info;
+        private List<TokenInfo> mergedInfo;
+        private List<Token> mergedPacked;
+        private Set<DecoratedKey> loadedKeys;
 
         public OnDiskToken(MappedBuffer buffer, long position, short leafSize, Function<Long, DecoratedKey> keyFetcher)
         {
             super(buffer.getLong(position + (2 * SHORT_BYTES)));
-            info.add(new TokenInfo(buffer, position, leafSize, keyFetcher));
+            info = new TokenInfo(buffer, position, leafSize, keyFetcher);
         }
 
         @Override
@@ -371,23 +508,87 @@ public class TokenTree
 
             if (o instanceof OnDiskToken)
             {
-                info.addAll(((OnDiskToken) other).info);
+                OnDiskToken onDisk = (OnDiskToken) o;
+
+                addInfo(onDisk.info);
+                if (onDisk.mergedInfo != null)
+                {
+                    for (TokenInfo i : onDisk.mergedInfo)
+                        addInfo(i);
+                }
+
+                if (onDisk.mergedPacked != null)
+                {
+                    for (Token t : onDisk.mergedPacked)
+                        addPacked(t);
+                }
+
+                if (onDisk.loadedKeys != null)
+                    addKeys(onDisk.loadedKeys.iterator());
+            }
+            else if (o instanceof PackedPostings.PackedToken)
+            {
+                // packed tokens know their key offsets as well, so there is no need to read keys eagerly
+                addPacked(o);
             }
             else
             {
-                Iterators.addAll(loadedKeys, o.iterator());
+                addKeys(o.iterator());
             }
         }
 
+        private void addPacked(Token other)
+        {
+            if (mergedPacked == null)
+                mergedPacked = new ArrayList<>(1);
+
+            mergedPacked.add(other);
+        }
+
+        private void addInfo(TokenInfo other)
+        {
+            if (info.equals(other))
+                return;
+
+            if (mergedInfo == null)
+                mergedInfo = new ArrayList<>(1);
+            else if (mergedInfo.contains(other))
+                return;
+
+            mergedInfo.add(other);
+        }
+
+        private void addKeys(Iterator<DecoratedKey> keys)
+        {
+            if (loadedKeys == null)
+                loadedKeys = new TreeSet<>(DecoratedKey.comparator);
+
+            Iterators.addAll(loadedKeys, keys);
+        }
+
         @Override
         public Iterator<DecoratedKey> iterator()
         {
-            List<Iterator<DecoratedKey>> keys = new ArrayList<>(info.size());
+            if (mergedInfo == null && mergedPacked == null && loadedKeys == null)
+                return info.iterator();
 
-            for (TokenInfo i : info)
-                keys.add(i.iterator());
+            List<Iterator<DecoratedKey>> keys = new ArrayList<>(2 + (mergedInfo == null ? 0 : mergedInfo.size()));
 
-            if (!loadedKeys.isEmpty())
+            keys.add(info.iterator());
+
+            if (mergedInfo != null)
+            {
+                for (TokenInfo i : mergedInfo)
+                    keys.add(i.iterator());
+            }
+
+            if (mergedPacked != null)
+            {
+                for (Token t : mergedPacked)
+                    keys.add(t.iterator());
+            }
+
+            if (loadedKeys != null)
                 keys.add(loadedKeys.iterator());
 
             return MergeIterator.get(keys, DecoratedKey.comparator, new MergeIterator.Reducer<DecoratedKey, DecoratedKey>()
@@ -416,14 +617,38 @@ public class TokenTree
 
         public Set<Long> getOffsets()
         {
-            Set<Long> offsets = new HashSet<>();
-            for (TokenInfo i : info)
+            LongSet offsets = new LongOpenHashSet(4);
+            collectOffsets(offsets);
+
+            Set<Long> result = new HashSet<>(offsets.size());
+            for (LongCursor offset : offsets)
+                result.add(offset.value);
+
+            return result;
+        }
+
+        /**
+         * Add offsets of all of the on-disk locations of this token to the given set,
+         * doesn't involve any boxing or key reads.
+         *
+         * @param offsets The set to add offsets to.
+         */
+        @Override
+        public void collectOffsets(LongSet offsets)
+        {
+            info.collectOffsets(offsets);
+
+            if (mergedInfo != null)
             {
-                for (long offset : i.fetchOffsets())
-                    offsets.add(offset);
+                for (TokenInfo i : mergedInfo)
+                    i.collectOffsets(offsets);
             }
 
-            return offsets;
+            if (mergedPacked != null)
+            {
+                for (Token t : mergedPacked)
+                    t.collectOffsets(offsets);
+            }
         }
 
         public static OnDiskToken getTokenAt(MappedBuffer buffer, int idx, short leafSize, Function<Long, DecoratedKey> keyFetcher)
@@ -459,6 +684,12 @@ public class TokenTree
             return new KeyIterator(keyFetcher, fetchOffsets());
         }
 
+        public void collectOffsets(LongSet offsets)
+        {
+            for (long offset : fetchOffsets())
+                offsets.add(offset);
+        }
+
         @Override
         public int hashCode()
         {
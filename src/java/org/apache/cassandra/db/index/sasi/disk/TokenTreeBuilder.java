@@ -29,10 +29,14 @@ import org.apache.cassandra.utils.Pair;
 import com.carrotsearch.hppc.LongArrayList;
 import com.carrotsearch.hppc.LongSet;
 import com.carrotsearch.hppc.cursors.LongCursor;
-import com.carrotsearch.hppc.LongOpenHashSet;
 import com.google.common.collect.AbstractIterator;
 
-public class TokenTreeBuilder
+/**
+ * Shared structure and serialization of the token tree, subclasses decide how tokens are collected
+ * and how the leaves of the tree are built out of them, see {@link MutableTokenTreeBuilder} for the ones
+ * tokens could be added to.
+ */
+public abstract class TokenTreeBuilder
 {
     // note: ordinal positions are used here, do not change order
     enum EntryType
@@ -68,61 +72,38 @@ public class TokenTreeBuilder
     public static final byte ENTRY_TYPE_MASK = 0x03;
     public static final short AB_MAGIC = 0x5A51;
 
-    private final SortedMap<Long, LongSet> tokens = new TreeMap<>();
-    private int numBlocks;
+    protected int numBlocks;
+    protected Node root;
+    protected InteriorNode rightmostParent;
+    protected Leaf leftmostLeaf;
+    protected Leaf rightmostLeaf;
+    protected long tokenCount = 0;
+    protected long treeMinToken;
+    protected long treeMaxToken;
 
-    private Node root;
-    private InteriorNode rightmostParent;
-    private Leaf leftmostLeaf;
-    private Leaf rightmostLeaf;
-    private long tokenCount = 0;
-    private long treeMinToken;
-    private long treeMaxToken;
+    // tokens of the streamed leaves, read from the builder while the leaves are written
+    private Iterator<Pair<Long, LongSet>> streamedTokens;
 
-    public TokenTreeBuilder()
-    {}
+    public abstract boolean isEmpty();
+    public abstract long getTokenCount();
+    public abstract SortedMap<Long, LongSet> getTokens();
 
-    public TokenTreeBuilder(SortedMap<Long, LongSet> data)
-    {
-        add(data);
-    }
+    /**
+     * @return The sorted, distinct tokens of the builder, available before builder is finished.
+     */
+    public abstract Iterator<Pair<Long, LongSet>> iterator();
 
-    public void add(Long token, long keyPosition)
-    {
-        LongSet found = tokens.get(token);
-        if (found == null)
-            tokens.put(token, (found = new LongOpenHashSet(2)));
-
-        found.add(keyPosition);
-    }
-
-    public void add(SortedMap<Long, LongSet> data)
-    {
-        for (Map.Entry<Long, LongSet> newEntry : data.entrySet())
-        {
-            LongSet found = tokens.get(newEntry.getKey());
-            if (found == null)
-                tokens.put(newEntry.getKey(), (found = new LongOpenHashSet(4)));
-
-            for (LongCursor offset : newEntry.getValue())
-                found.add(offset.value);
-        }
-    }
+    /**
+     * Builds the leaves of the tree and the interior nodes on top of them.
+     */
+    protected abstract void constructTree();
 
     public TokenTreeBuilder finish()
     {
-        maybeBulkLoad();
-        return this;
-    }
-
-    public SortedMap<Long, LongSet> getTokens()
-    {
-        return tokens;
-    }
+        if (root == null)
+            constructTree();
 
-    public long getTokenCount()
-    {
-        return tokenCount;
+        return this;
     }
 
     public int serializedSize()
@@ -139,6 +120,9 @@ public class TokenTreeBuilder
         Iterator<Node> levelIterator = root.levelIterator();
         long childBlockIndex = 1;
 
+        // leaves are the last level of the tree, so streamed ones are written in order of the tokens
+        streamedTokens = null;
+
         while (levelIterator != null)
         {
 
@@ -160,17 +144,6 @@ public class TokenTreeBuilder
         }
     }
 
-    public Iterator<Pair<Long, LongSet>> iterator()
-    {
-        return new TokenIterator(leftmostLeaf.levelIterator());
-    }
-
-    private void maybeBulkLoad()
-    {
-        if (root == null)
-            bulkLoad();
-    }
-
     private void flushBuffer(ByteBuffer buffer, DataOutput o, boolean align) throws IOException
     {
         // seek to end of last block before flushing
@@ -189,68 +162,96 @@ public class TokenTreeBuilder
             buffer.position((int) FBUtilities.align(curPos, blockSize));
     }
 
-    private void bulkLoad()
+    protected void load(List<Leaf> leaves)
     {
-        tokenCount = tokens.size();
-        treeMinToken = tokens.firstKey();
-        treeMaxToken = tokens.lastKey();
         numBlocks = 1;
 
-        // special case the tree that only has a single block in it (so we don't create a useless root)
-        if (tokenCount <= TOKENS_PER_BLOCK)
+        if (leaves.size() == 1)
         {
-            leftmostLeaf = new Leaf(tokens);
+            leftmostLeaf = leaves.get(0);
             rightmostLeaf = leftmostLeaf;
             root = leftmostLeaf;
+            return;
         }
-        else
+
+        root = new InteriorNode();
+        rightmostParent = (InteriorNode) root;
+
+        Leaf lastLeaf = null;
+        for (Leaf leaf : leaves)
         {
-            root = new InteriorNode();
-            rightmostParent = (InteriorNode) root;
+            if (lastLeaf == null)
+                leftmostLeaf = leaf;
+            else
+                lastLeaf.next = leaf;
+
+            rightmostParent.add(leaf);
+            lastLeaf = leaf;
+            rightmostLeaf = leaf;
+            numBlocks++;
+        }
+    }
+
+    /**
+     * Collects only the bounds of the leaves out of the sorted, distinct tokens of the builder,
+     * tokens themselves are read again from {@link #iterator()} when leaves are written.
+     */
+    protected class StreamedLoader
+    {
+        private final List<Leaf> leaves = new ArrayList<>();
+
+        private long leafMinToken, leafMaxToken, lastToken;
+        private int leafSize;
 
-            int i = 0;
-            Leaf lastLeaf = null;
-            Long firstToken = tokens.firstKey();
-            Long finalToken = tokens.lastKey();
-            Long lastToken;
-            for (Long token : tokens.keySet())
+        public StreamedLoader()
+        {
+            tokenCount = 0;
+        }
+
+        public void add(long token)
+        {
+            // previous token is not the last one, so it goes to the full leaves
+            if (tokenCount++ > 0)
             {
-                if (i == 0 || (i % TOKENS_PER_BLOCK != 0 && i != (tokenCount - 1)))
+                if (leafSize == TOKENS_PER_BLOCK)
                 {
-                    i++;
-                    continue;
+                    leaves.add(new StreamedLeaf(leafMinToken, leafMaxToken, leafSize));
+                    leafSize = 0;
                 }
 
-                lastToken = token;
-                Leaf leaf = (i != (tokenCount - 1) || token.equals(finalToken)) ?
-                        new Leaf(tokens.subMap(firstToken, lastToken)) : new Leaf(tokens.tailMap(firstToken));
+                if (leafSize++ == 0)
+                    leafMinToken = lastToken;
 
-                if (i == TOKENS_PER_BLOCK)
-                    leftmostLeaf = leaf;
-                else
-                    lastLeaf.next = leaf;
+                leafMaxToken = lastToken;
+            }
+            else
+            {
+                treeMinToken = token;
+            }
 
-                rightmostParent.add(leaf);
-                lastLeaf = leaf;
-                rightmostLeaf = leaf;
-                firstToken = lastToken;
-                i++;
-                numBlocks++;
+            lastToken = token;
+        }
 
-                if (token.equals(finalToken))
-                {
-                    Leaf finalLeaf = new Leaf(tokens.tailMap(token));
-                    lastLeaf.next = finalLeaf;
-                    rightmostParent.add(finalLeaf);
-                    rightmostLeaf = finalLeaf;
-                    numBlocks++;
-                }
+        public void load()
+        {
+            treeMaxToken = lastToken;
+
+            if (tokenCount <= TOKENS_PER_BLOCK)
+            {
+                leaves.clear();
+                leaves.add(new StreamedLeaf(treeMinToken, treeMaxToken, (int) tokenCount));
+            }
+            else
+            {
+                leaves.add(new StreamedLeaf(leafMinToken, leafMaxToken, leafSize));
+                leaves.add(new StreamedLeaf(lastToken, lastToken, 1));
             }
 
+            TokenTreeBuilder.this.load(leaves);
         }
     }
 
-    private abstract class Node
+    protected abstract class Node
     {
         protected InteriorNode parent;
         protected Node next;
@@ -338,6 +339,11 @@ public class TokenTreeBuilder
                 switch (Descriptor.CURRENT_VERSION)
                 {
                     case Descriptor.VERSION_AB:
+                    case Descriptor.VERSION_AC:
+                    case Descriptor.VERSION_AD:
+                    case Descriptor.VERSION_AE:
+                    case Descriptor.VERSION_AF:
+                    case Descriptor.VERSION_AG:
                         buf.putShort(AB_MAGIC);
                         break;
                     default:
@@ -371,16 +377,14 @@ public class TokenTreeBuilder
 
     }
 
-    private class Leaf extends Node
+    protected abstract class Leaf extends Node
     {
-        private final SortedMap<Long, LongSet> tokens;
         private LongArrayList overflowCollisions;
 
-        Leaf(SortedMap<Long, LongSet> data)
+        Leaf(long minToken, long maxToken)
         {
-            nodeMinToken = data.firstKey();
-            nodeMaxToken = data.lastKey();
-            tokens = data;
+            nodeMinToken = minToken;
+            nodeMaxToken = maxToken;
         }
 
         public Long largestToken()
@@ -400,26 +404,12 @@ public class TokenTreeBuilder
             return 0;
         }
 
-        public int tokenCount()
-        {
-            return tokens.size();
-        }
-
         public Long smallestToken()
         {
             return nodeMinToken;
         }
 
-        public Iterator<Map.Entry<Long, LongSet>> tokenIterator()
-        {
-            return tokens.entrySet().iterator();
-        }
-
-        private void serializeData(ByteBuffer buf)
-        {
-            for (Map.Entry<Long, LongSet> entry : tokens.entrySet())
-                createEntry(entry.getKey(), entry.getValue()).serialize(buf);
-        }
+        protected abstract void serializeData(ByteBuffer buf);
 
         private void serializeOverflowCollisions(ByteBuffer buf)
         {
@@ -429,7 +419,7 @@ public class TokenTreeBuilder
         }
 
 
-        private LeafEntry createEntry(final long tok, final LongSet offsets)
+        protected LeafEntry createEntry(final long tok, final LongSet offsets)
         {
             int offsetCount = offsets.size();
             switch (offsetCount)
@@ -471,7 +461,7 @@ public class TokenTreeBuilder
             return entry;
         }
 
-        private abstract class LeafEntry
+        protected abstract class LeafEntry
         {
             protected final long token;
 
@@ -618,7 +608,38 @@ public class TokenTreeBuilder
 
     }
 
-    private class InteriorNode extends Node
+    /**
+     * Leaf which only knows its bounds, its tokens are taken from the builder while the leaf is written.
+     */
+    private class StreamedLeaf extends Leaf
+    {
+        private final int tokenCount;
+
+        StreamedLeaf(long minToken, long maxToken, int tokenCount)
+        {
+            super(minToken, maxToken);
+            this.tokenCount = tokenCount;
+        }
+
+        public int tokenCount()
+        {
+            return tokenCount;
+        }
+
+        protected void serializeData(ByteBuffer buf)
+        {
+            if (streamedTokens == null)
+                streamedTokens = iterator();
+
+            for (int i = 0; i < tokenCount; i++)
+            {
+                Pair<Long, LongSet> token = streamedTokens.next();
+                createEntry(token.left, token.right).serialize(buf);
+            }
+        }
+    }
+
+    protected class InteriorNode extends Node
     {
         private List<Long> tokens = new ArrayList<>(TOKENS_PER_BLOCK);
         private List<Node> children = new ArrayList<>(TOKENS_PER_BLOCK + 1);
@@ -805,38 +826,4 @@ public class TokenTreeBuilder
 
 
     }
-
-    public static class TokenIterator extends AbstractIterator<Pair<Long, LongSet>>
-    {
-        private Iterator<Node> levelIterator;
-        private Iterator<Map.Entry<Long, LongSet>> currentIterator;
-
-        TokenIterator(Iterator<Node> level)
-        {
-            levelIterator = level;
-            if (levelIterator.hasNext())
-                currentIterator = ((Leaf) levelIterator.next()).tokenIterator();
-        }
-
-        @Override
-        public Pair<Long, LongSet> computeNext()
-        {
-            if (currentIterator != null && currentIterator.hasNext())
-            {
-                Map.Entry<Long, LongSet> next = currentIterator.next();
-                return Pair.create(next.getKey(), next.getValue());
-            }
-            else
-            {
-                if (!levelIterator.hasNext())
-                    return endOfData();
-                else
-                {
-                    currentIterator = ((Leaf) levelIterator.next()).tokenIterator();
-                    return computeNext();
-                }
-            }
-
-        }
-    }
-}
\ No newline at end of file
+}
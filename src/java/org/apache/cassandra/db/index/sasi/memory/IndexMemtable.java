@@ -19,8 +19,8 @@ package org.apache.cassandra.db.index.sasi.memory;
 
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cassandra.db.Column;
 import org.apache.cassandra.db.index.SSTableAttachedSecondaryIndex;
@@ -32,7 +32,6 @@ import org.apache.cassandra.db.index.sasi.utils.TypeUtil;
 import org.apache.cassandra.db.marshal.AbstractType;
 
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
-import org.github.jamm.MemoryMeter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,40 +40,57 @@ public class IndexMemtable
 {
     private static final Logger logger = LoggerFactory.getLogger(IndexMemtable.class);
 
-    private final MemoryMeter meter;
-
     private final ConcurrentMap<ByteBuffer, MemIndex> indexes;
     private final SSTableAttachedSecondaryIndex backend;
 
+    // updated on every add, so the size could be checked as often as needed without walking the indexes
+    private final AtomicLong estimatedSize = new AtomicLong(0);
+
+    // shared by all of the off-heap indexes, freed at once when memtable is discarded
+    private final SlabArena arena = new SlabArena();
+
     public IndexMemtable(final SSTableAttachedSecondaryIndex backend)
     {
         this.indexes = new NonBlockingHashMap<>();
         this.backend = backend;
-        this.meter = new MemoryMeter().omitSharedBufferOverhead().withTrackerProvider(new Callable<Set<Object>>()
-        {
-            public Set<Object> call() throws Exception
-            {
-                // avoid counting this once for each row
-                Set<Object> set = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
-                set.add(backend.getBaseCfs().metadata);
-                return set;
-            }
-        });
     }
 
+    /**
+     * @return The estimated on-heap size of the indexes plus the off-heap memory allocated by the arena,
+     *         so memtable flushes account for the terms, keys and postings of the off-heap indexes as well.
+     */
     public long estimateSize()
     {
-        long deepSize = 0;
-        for (MemIndex index : indexes.values())
-            deepSize += index.estimateSize(meter);
+        return estimatedSize.get() + arena.allocated();
+    }
+
+    public long offHeapSize()
+    {
+        return arena.allocated();
+    }
 
-        return deepSize;
+    /**
+     * Acquires the memtable, so its off-heap memory is not freed until the matching {@link #release()}.
+     *
+     * @return false if memtable has already been discarded.
+     */
+    public boolean reference()
+    {
+        return arena.reference();
+    }
+
+    public void release()
+    {
+        arena.release();
     }
 
     public void index(ByteBuffer key, Iterator<Column> row)
     {
         final long now = System.currentTimeMillis();
 
+        // written to the arena (at most) once, and shared by all of the off-heap indexes of the row
+        RowKey rowKey = new RowKey(key);
+
         while (row.hasNext())
         {
             Column column = row.next();
@@ -91,7 +107,7 @@ public class IndexMemtable
             MemIndex index = indexes.get(column.name());
             if (index == null)
             {
-                MemIndex newIndex = MemIndex.forColumn(keyValidator, columnIndex);
+                MemIndex newIndex = MemIndex.forColumn(keyValidator, columnIndex, arena);
                 index = indexes.putIfAbsent(column.name(), newIndex);
                 if (index == null)
                     index = newIndex;
@@ -116,7 +132,7 @@ public class IndexMemtable
                 }
             }
 
-            index.add(value, key);
+            estimatedSize.addAndGet(index.add(value, rowKey));
         }
     }
 
@@ -125,4 +141,13 @@ public class IndexMemtable
         MemIndex index = indexes.get(expression.index.getDefinition().name);
         return index == null ? null : index.search(expression);
     }
+
+    /**
+     * Free off-heap memory of the indexes once memtable is replaced,
+     * it's going to be released as soon as all of the in-flight writes and searches are done.
+     */
+    public void discard()
+    {
+        arena.release();
+    }
 }
@@ -21,23 +21,30 @@ import java.io.IOException;
 import java.util.Iterator;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.index.sasi.disk.Token;
 import org.apache.cassandra.db.index.sasi.utils.AbstractIterator;
+import org.apache.cassandra.db.index.sasi.utils.BlockRangeIterator;
 import org.apache.cassandra.db.index.sasi.utils.CombinedValue;
-import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
+import org.apache.cassandra.dht.LongToken;
+import org.apache.cassandra.utils.ByteBufferUtil;
 
+import com.carrotsearch.hppc.LongSet;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.PeekingIterator;
 
-public class KeyRangeIterator extends RangeIterator<Long, Token>
+public class KeyRangeIterator extends BlockRangeIterator<Token>
 {
-    private final DKIterator iterator;
+    private static final int MAX_LINEAR_SKIP = 8;
 
-    public KeyRangeIterator(ConcurrentSkipListSet<DecoratedKey> keys)
+    private final SortedSet<DecoratedKey> keys;
+    private DKIterator iterator;
+
+    public KeyRangeIterator(SortedSet<DecoratedKey> keys)
     {
         super((Long) keys.first().getToken().token, (Long) keys.last().getToken().token, keys.size());
+        this.keys = keys;
         this.iterator = new DKIterator(keys.iterator());
     }
 
@@ -50,15 +57,41 @@ public class KeyRangeIterator extends RangeIterator<Long, Token>
     @Override
     protected void performSkipTo(Long nextToken)
     {
-        while (iterator.hasNext())
+        // short skips are cheaper to do by consuming keys, the rest re-position
+        // on the smallest key of the token, empty key sorts before all of the other keys with the same token.
+        for (int i = 0; i < MAX_LINEAR_SKIP; i++)
         {
-            DecoratedKey key = iterator.peek();
-            if (Long.compare((long) key.token.token, nextToken) >= 0)
-                break;
+            if (!iterator.hasNext() || Long.compare((long) iterator.peek().token.token, nextToken) >= 0)
+                return;
 
-            // consume smaller key
             iterator.next();
         }
+
+        DecoratedKey from = new DecoratedKey(new LongToken(nextToken), ByteBufferUtil.EMPTY_BYTE_BUFFER);
+        iterator = new DKIterator(keys.tailSet(from).iterator());
+    }
+
+    @Override
+    protected int readTokens(long[] buffer, int offset)
+    {
+        if (!iterator.hasNext())
+            return 0;
+
+        int position = offset;
+        for (DecoratedKey key : keys.tailSet(iterator.peek()))
+        {
+            if (position >= buffer.length)
+                break;
+
+            // multiple keys could share the same token
+            long token = (long) key.token.token;
+            if (position > offset && buffer[position - 1] == token)
+                continue;
+
+            buffer[position++] = token;
+        }
+
+        return position - offset;
     }
 
     @Override
@@ -81,18 +114,30 @@ public class KeyRangeIterator extends RangeIterator<Long, Token>
         }
     }
 
-    private static class DKToken extends Token
+    static class DKToken extends Token
     {
-        private final SortedSet<DecoratedKey> keys;
+        // most of the tokens have a single key, set is only created when keys collide
+        private final DecoratedKey key;
+        private SortedSet<DecoratedKey> keys;
 
-        public DKToken(final DecoratedKey key)
+        public DKToken(DecoratedKey key)
         {
             super((long) key.token.token);
+            this.key = key;
+        }
+
+        public void add(DecoratedKey other)
+        {
+            if (keys == null)
+            {
+                if (key.equals(other))
+                    return;
+
+                keys = new TreeSet<>(DecoratedKey.comparator);
+                keys.add(key);
+            }
 
-            keys = new TreeSet<DecoratedKey>(DecoratedKey.comparator)
-            {{
-                add(key);
-            }};
+            keys.add(other);
         }
 
         @Override
@@ -104,21 +149,22 @@ public class KeyRangeIterator extends RangeIterator<Long, Token>
             Token o = (Token) other;
             assert o.get().equals(token);
 
-            if (o instanceof DKToken)
-            {
-                keys.addAll(((DKToken) o).keys);
-            }
-            else
-            {
-                for (DecoratedKey key : o)
-                    keys.add(key);
-            }
+            for (DecoratedKey otherKey : o)
+                add(otherKey);
         }
 
         @Override
         public Iterator<DecoratedKey> iterator()
         {
-            return keys.iterator();
+            return keys == null ? Iterators.singletonIterator(key) : keys.iterator();
         }
+
+        /**
+         * Keys of the memtable are not written to the index file yet, so they don't have positions to collect,
+         * only on-disk tokens are cached, merged by compaction or excluded by their offsets.
+         */
+        @Override
+        public void collectOffsets(LongSet offsets)
+        {}
     }
 }
\ No newline at end of file
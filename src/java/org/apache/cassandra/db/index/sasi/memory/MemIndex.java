@@ -25,10 +25,25 @@ import org.apache.cassandra.db.index.sasi.plan.Expression;
 import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
 import org.apache.cassandra.db.marshal.AbstractType;
 
-import org.github.jamm.MemoryMeter;
-
 public abstract class MemIndex
 {
+    public enum Allocation
+    {
+        HEAP, OFFHEAP;
+
+        public static Allocation allocation(String allocation)
+        {
+            return Allocation.valueOf(allocation.toUpperCase());
+        }
+    }
+
+    // on-heap size estimates from jol
+    // DecoratedKey (24) + LongToken (24) + ByteBuffer (48) of the key
+    protected static final long KEY_OVERHEAD = 24 + 24 + 48;
+
+    // ConcurrentSkipListMap.Node (24) + ~half of ConcurrentSkipListMap.Index (12) in the set of keys of the term
+    protected static final long KEY_ENTRY_OVERHEAD = 24 + 12;
+
     protected final AbstractType<?> keyValidator;
     protected final ColumnIndex columnIndex;
 
@@ -38,14 +53,31 @@ public abstract class MemIndex
         this.columnIndex = columnIndex;
     }
 
-    public abstract void add(ByteBuffer value, ByteBuffer key);
+    /**
+     * @return The estimated number of bytes the index has grown by.
+     */
+    public abstract long add(ByteBuffer value, ByteBuffer key);
+
+    /**
+     * Adds one of the columns of the row, key is shared by all of the columns of the same row.
+     *
+     * @return The estimated number of bytes the index has grown by.
+     */
+    public long add(ByteBuffer value, RowKey key)
+    {
+        return add(value, key.key);
+    }
+
     public abstract RangeIterator<Long, Token> search(Expression expression);
-    public abstract long estimateSize(MemoryMeter meter);
 
-    public static MemIndex forColumn(AbstractType<?> keyValidator, ColumnIndex columnIndex)
+    public static MemIndex forColumn(AbstractType<?> keyValidator, ColumnIndex columnIndex, SlabArena arena)
     {
-        return columnIndex.isLiteral()
-                ? new TrieMemIndex(keyValidator, columnIndex)
+        // literal indexes always stay on-heap, prefix/suffix tries don't have an off-heap variant
+        if (columnIndex.isLiteral())
+            return new TrieMemIndex(keyValidator, columnIndex);
+
+        return columnIndex.getMode().memtableAllocation == Allocation.OFFHEAP
+                ? new OffHeapMemIndex(keyValidator, columnIndex, arena)
                 : new SkipListMemIndex(keyValidator, columnIndex);
     }
 }
@@ -0,0 +1,611 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.memory;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.index.sasi.conf.ColumnIndex;
+import org.apache.cassandra.db.index.sasi.disk.Token;
+import org.apache.cassandra.db.index.sasi.plan.Expression;
+import org.apache.cassandra.db.index.sasi.utils.RangeUnionIterator;
+import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.dht.LongToken;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Variant of the {@link SkipListMemIndex} which keeps terms, keys and per-term postings in the slabs of the memtable
+ * arena instead of the heap, only skip list nodes and small per-term headers stay on-heap.
+ *
+ * Each term has a sequence of blocks of (token, key address) pairs, block capacity doubles up to {@link #MAX_BLOCK_ENTRIES},
+ * keys are stored once per row as [length (short)][bytes] (see {@link RowKey}). Postings are append-only and lock-free,
+ * writers claim the slots and publish them in order, so readers only ever see fully written entries. Blocks are sorted
+ * by token and key once they are full, searches merge them lazily and keys are only copied to the heap for the tokens
+ * a query actually reads. The same row re-indexed while its posting is still in the tail block is not appended again,
+ * the rest of the duplicates end up next to each other when blocks are merged and are dropped by the search.
+ */
+public class OffHeapMemIndex extends MemIndex
+{
+    // on-heap size estimates from jol
+    // ConcurrentSkipListMap.Node (24) + ~half of ConcurrentSkipListMap.Index (12) + slab ByteBuffer (48) of the term
+    // + Postings (24) with its counters (3 * 16) and array of the block addresses (16 + 16)
+    private static final long TERM_OVERHEAD = 24 + 12 + 48 + 24 + 3 * 16 + 16 + 16;
+
+    private static final int MIN_BLOCK_ENTRIES = 4;
+    private static final int MAX_BLOCK_ENTRIES = 512;
+
+    // blocks with the doubling capacity and the number of slots they hold, all of the following blocks have max capacity
+    private static final int DOUBLING_BLOCKS = Integer.numberOfTrailingZeros(MAX_BLOCK_ENTRIES / MIN_BLOCK_ENTRIES);
+    private static final int DOUBLING_SLOTS = MAX_BLOCK_ENTRIES - MIN_BLOCK_ENTRIES;
+
+    // (token, key address)
+    private static final int ENTRY_SIZE = 16;
+
+    private final SlabArena arena;
+    private final ConcurrentSkipListMap<ByteBuffer, Postings> index;
+
+    public OffHeapMemIndex(AbstractType<?> keyValidator, ColumnIndex columnIndex, SlabArena arena)
+    {
+        super(keyValidator, columnIndex);
+        this.arena = arena;
+        this.index = new ConcurrentSkipListMap<>(columnIndex.getValidator());
+    }
+
+    @Override
+    public long add(ByteBuffer value, ByteBuffer key)
+    {
+        return add(value, new RowKey(key));
+    }
+
+    @Override
+    public long add(ByteBuffer value, RowKey key)
+    {
+        // memtable has already been discarded
+        if (!arena.reference())
+            return 0;
+
+        try
+        {
+            long size = 0;
+
+            Postings postings = index.get(value);
+            if (postings == null)
+            {
+                ByteBuffer term = arena.slice(arena.allocate(value.remaining()), value.remaining());
+                term.duplicate().put(value.duplicate());
+
+                Postings newPostings = new Postings();
+                postings = index.putIfAbsent(term, newPostings);
+                if (postings == null)
+                {
+                    postings = newPostings;
+                    size += TERM_OVERHEAD;
+                }
+            }
+
+            long token = (long) StorageService.getPartitioner().getToken(key.key).token;
+
+            postings.add(token, key);
+            return size;
+        }
+        finally
+        {
+            arena.release();
+        }
+    }
+
+    @Override
+    public RangeIterator<Long, Token> search(Expression expression)
+    {
+        ByteBuffer min = expression.lower == null ? null : expression.lower.value;
+        ByteBuffer max = expression.upper == null ? null : expression.upper.value;
+
+        if (min == null && max == null)
+            throw new IllegalArgumentException();
+
+        // terms and keys are only readable while arena is referenced,
+        // every postings range holds a reference of its own until it's closed
+        if (!arena.reference())
+            throw new IllegalStateException("memtable index has already been discarded");
+
+        List<RangeIterator<Long, Token>> ranges = new ArrayList<>();
+
+        try
+        {
+            SortedMap<ByteBuffer, Postings> search;
+
+            if (min != null && max != null)
+            {
+                search = index.subMap(min, expression.lower.inclusive, max, expression.upper.inclusive);
+            }
+            else if (min == null)
+            {
+                search = index.headMap(max, expression.upper.inclusive);
+            }
+            else
+            {
+                search = index.tailMap(min, expression.lower.inclusive);
+            }
+
+            for (Postings postings : search.values())
+            {
+                RangeIterator<Long, Token> range = postings.range();
+                if (range != null)
+                    ranges.add(range);
+            }
+
+            RangeUnionIterator.Builder<Long, Token> builder = RangeUnionIterator.builder();
+            for (RangeIterator<Long, Token> range : ranges)
+                builder.add(range);
+
+            return builder.build();
+        }
+        catch (RuntimeException | Error e)
+        {
+            // ranges which have already been built hold arena references, which would never be released otherwise
+            for (RangeIterator<Long, Token> range : ranges)
+                FileUtils.closeQuietly(range);
+
+            throw e;
+        }
+        finally
+        {
+            arena.release();
+        }
+    }
+
+    /**
+     * Append-only postings of the term: writers claim the slots, write their entries and publish them in the order
+     * of the slots, so searches see a consistent prefix of the postings without blocking the writers.
+     */
+    private class Postings
+    {
+        private final AtomicInteger claimed = new AtomicInteger(0);
+        private final AtomicInteger published = new AtomicInteger(0);
+
+        // odd while the block which has just been filled is being sorted, so copies of that block could be validated
+        private final AtomicInteger sorts = new AtomicInteger(0);
+
+        // blocks are only added by the writer of their first slot, in order
+        private final AtomicReference<long[]> blocks = new AtomicReference<>(new long[0]);
+
+        public void add(long token, RowKey key)
+        {
+            // updates of the same row (e.g. a hot key) don't grow the postings while the previous entry is in the tail
+            if (isInTail(token, key.key))
+                return;
+
+            int slot = claimed.getAndIncrement();
+            int block = blockOf(slot), index = slot - blockStart(block);
+
+            long entry = entry(block(block, index), index);
+            arena.putLong(entry, token);
+            arena.putLong(entry + 8, key.address(arena));
+
+            // writers of the preceding slots are only a couple of stores away from publishing theirs
+            while (published.get() != slot)
+                Thread.yield();
+
+            // block is sorted once it's full and before it's published as such, so searches merge full blocks in place
+            if (index == capacity(block) - 1)
+            {
+                sorts.incrementAndGet();
+                sortBlock(blocks.get()[block], capacity(block));
+                sorts.incrementAndGet();
+            }
+
+            published.set(slot + 1);
+        }
+
+        /**
+         * Takes a snapshot of the published postings: full blocks are never modified again so they are read in place,
+         * only the entries of the tail block are copied.
+         *
+         * @return The range over the tokens of the postings, or null if there are none,
+         *         range holds the arena reference until it's closed.
+         */
+        public RangeIterator<Long, Token> range()
+        {
+            if (published.get() == 0 || !arena.reference())
+                return null;
+
+            try
+            {
+                while (true)
+                {
+                    int version = sorts.get();
+                    int size = published.get();
+                    long[] addresses = blocks.get();
+
+                    int tail = blockOf(size), tailSize = size - blockStart(tail);
+
+                    List<BlockCursor> cursors = new ArrayList<>(tail + 1);
+                    for (int i = 0; i < tail; i++)
+                        cursors.add(new BlockCursor(addresses[i], capacity(i)));
+
+                    if (tailSize > 0)
+                    {
+                        long[] tokens = new long[tailSize], keyAddresses = new long[tailSize];
+                        for (int i = 0; i < tailSize; i++)
+                        {
+                            long entry = entry(addresses[tail], i);
+                            tokens[i] = arena.getLong(entry);
+                            keyAddresses[i] = arena.getLong(entry + 8);
+                        }
+
+                        // tail could have been filled up and sorted in place while it was copied
+                        if ((version & 1) != 0 || !sorts.compareAndSet(version, version))
+                            continue;
+
+                        sort(tokens, keyAddresses, tailSize);
+                        cursors.add(new BlockCursor(tokens, keyAddresses, tailSize));
+                    }
+
+                    long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+                    for (BlockCursor cursor : cursors)
+                    {
+                        min = Math.min(min, cursor.token());
+                        max = Math.max(max, cursor.lastToken());
+                    }
+
+                    return new PostingsRange(min, max, size, cursors);
+                }
+            }
+            catch (RuntimeException | Error e)
+            {
+                arena.release();
+                throw e;
+            }
+        }
+
+        /**
+         * @return true if the published entries of the tail block already have the same token and key.
+         */
+        private boolean isInTail(long token, ByteBuffer key)
+        {
+            int version = sorts.get();
+            int size = published.get();
+
+            int tail = blockOf(size), start = blockStart(tail);
+            if ((version & 1) != 0 || size == start)
+                return false;
+
+            long block = blocks.get()[tail];
+            for (int i = size - start - 1; i >= 0; i--)
+            {
+                long entry = entry(block, i);
+                if (arena.getLong(entry) == token && key(arena.getLong(entry + 8)).equals(key))
+                    return sorts.compareAndSet(version, version); // entries are moved around if block is sorted meanwhile
+            }
+
+            return false;
+        }
+
+        /**
+         * @return The address of the block, only the writer of its first slot allocates it, the rest wait for it.
+         */
+        private long block(int block, int index)
+        {
+            long[] current;
+            while ((current = blocks.get()).length < (index == 0 ? block : block + 1))
+                Thread.yield();
+
+            if (current.length > block)
+                return current[block];
+
+            long[] next = Arrays.copyOf(current, block + 1);
+            next[block] = arena.allocate(capacity(block) * ENTRY_SIZE);
+            blocks.set(next);
+
+            return next[block];
+        }
+
+        private void sortBlock(long block, int size)
+        {
+            long[] tokens = new long[size], keyAddresses = new long[size];
+            for (int i = 0; i < size; i++)
+            {
+                long entry = entry(block, i);
+                tokens[i] = arena.getLong(entry);
+                keyAddresses[i] = arena.getLong(entry + 8);
+            }
+
+            sort(tokens, keyAddresses, size);
+
+            for (int i = 0; i < size; i++)
+            {
+                long entry = entry(block, i);
+                arena.putLong(entry, tokens[i]);
+                arena.putLong(entry + 8, keyAddresses[i]);
+            }
+        }
+    }
+
+    /**
+     * Merges sorted blocks of the term postings, keys are read from the arena only for the tokens actually produced.
+     */
+    private class PostingsRange extends RangeIterator<Long, Token>
+    {
+        private final PriorityQueue<BlockCursor> cursors;
+        private boolean isReleased = false;
+
+        public PostingsRange(long min, long max, long count, List<BlockCursor> blocks)
+        {
+            super(min, max, count);
+
+            cursors = new PriorityQueue<>(blocks.size(), new Comparator<BlockCursor>()
+            {
+                @Override
+                public int compare(BlockCursor a, BlockCursor b)
+                {
+                    return OffHeapMemIndex.this.compare(a.token(), a.keyAddress(), b.token(), b.keyAddress());
+                }
+            });
+
+            for (BlockCursor cursor : blocks)
+            {
+                if (!cursor.isExhausted())
+                    cursors.add(cursor);
+            }
+        }
+
+        @Override
+        protected Token computeNext()
+        {
+            if (cursors.isEmpty())
+                return endOfData();
+
+            long token = cursors.peek().token();
+
+            KeyRangeIterator.DKToken result = null;
+            long lastKeyAddress = -1;
+
+            while (!cursors.isEmpty() && cursors.peek().token() == token)
+            {
+                BlockCursor cursor = cursors.poll();
+                long keyAddress = cursor.keyAddress();
+
+                // entries are merged in order of their keys, so duplicates of the key come one after another
+                if (lastKeyAddress == -1 || compareKeys(lastKeyAddress, keyAddress) != 0)
+                {
+                    DecoratedKey key = new DecoratedKey(new LongToken(token), arena.copy(keyAddress + 2, arena.getUnsignedShort(keyAddress)));
+
+                    if (result == null)
+                        result = new KeyRangeIterator.DKToken(key);
+                    else
+                        result.add(key);
+
+                    lastKeyAddress = keyAddress;
+                }
+
+                cursor.advance();
+                if (!cursor.isExhausted())
+                    cursors.add(cursor);
+            }
+
+            return result;
+        }
+
+        @Override
+        protected void performSkipTo(Long nextToken)
+        {
+            List<BlockCursor> remaining = new ArrayList<>(cursors);
+            cursors.clear();
+
+            for (BlockCursor cursor : remaining)
+            {
+                cursor.skipTo(nextToken);
+                if (!cursor.isExhausted())
+                    cursors.add(cursor);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            if (isReleased)
+                return;
+
+            isReleased = true;
+            arena.release();
+        }
+    }
+
+    /**
+     * Position within the sorted block of postings, either a full block in the arena or a copy of the tail block.
+     */
+    private class BlockCursor
+    {
+        private final long block;
+        private final long[] tokens, keyAddresses;
+        private final int size;
+
+        private int position = 0;
+
+        public BlockCursor(long block, int size)
+        {
+            this.block = block;
+            this.tokens = null;
+            this.keyAddresses = null;
+            this.size = size;
+        }
+
+        public BlockCursor(long[] tokens, long[] keyAddresses, int size)
+        {
+            this.block = -1;
+            this.tokens = tokens;
+            this.keyAddresses = keyAddresses;
+            this.size = size;
+        }
+
+        public boolean isExhausted()
+        {
+            return position >= size;
+        }
+
+        public long token()
+        {
+            return token(position);
+        }
+
+        public long lastToken()
+        {
+            return token(size - 1);
+        }
+
+        public long keyAddress()
+        {
+            return tokens == null ? arena.getLong(entry(block, position) + 8) : keyAddresses[position];
+        }
+
+        public void advance()
+        {
+            position++;
+        }
+
+        /**
+         * Moves cursor to the first token which is equal to or greater than the given one.
+         */
+        public void skipTo(long token)
+        {
+            int low = position, high = size - 1;
+            while (low <= high)
+            {
+                int middle = (low + high) >>> 1;
+                if (token(middle) < token)
+                    low = middle + 1;
+                else
+                    high = middle - 1;
+            }
+
+            position = low;
+        }
+
+        private long token(int index)
+        {
+            return tokens == null ? arena.getLong(entry(block, index)) : tokens[index];
+        }
+    }
+
+    private ByteBuffer key(long keyAddress)
+    {
+        return arena.slice(keyAddress + 2, arena.getUnsignedShort(keyAddress));
+    }
+
+    /**
+     * Entries are ordered the same way as the decorated keys: by token and then by the bytes of the key.
+     */
+    private int compare(long tokenA, long keyAddressA, long tokenB, long keyAddressB)
+    {
+        int cmp = Long.compare(tokenA, tokenB);
+        return cmp != 0 ? cmp : compareKeys(keyAddressA, keyAddressB);
+    }
+
+    private int compareKeys(long keyAddressA, long keyAddressB)
+    {
+        return keyAddressA == keyAddressB ? 0 : ByteBufferUtil.compareUnsigned(key(keyAddressA), key(keyAddressB));
+    }
+
+    private void sort(long[] tokens, long[] keyAddresses, int size)
+    {
+        // tokens are hashes of the keys, so entries come in random order
+        quickSort(tokens, keyAddresses, 0, size - 1);
+    }
+
+    private void quickSort(long[] tokens, long[] keyAddresses, int from, int to)
+    {
+        while (to - from > 16)
+        {
+            int middle = (from + to) >>> 1;
+            long pivotToken = tokens[middle], pivotKeyAddress = keyAddresses[middle];
+
+            int i = from, j = to;
+            while (i <= j)
+            {
+                while (compare(tokens[i], keyAddresses[i], pivotToken, pivotKeyAddress) < 0)
+                    i++;
+                while (compare(tokens[j], keyAddresses[j], pivotToken, pivotKeyAddress) > 0)
+                    j--;
+
+                if (i <= j)
+                    swap(tokens, keyAddresses, i++, j--);
+            }
+
+            // recurse into the smaller part to bound the depth of the stack
+            if (j - from < to - i)
+            {
+                quickSort(tokens, keyAddresses, from, j);
+                from = i;
+            }
+            else
+            {
+                quickSort(tokens, keyAddresses, i, to);
+                to = j;
+            }
+        }
+
+        // insertion sort for the small ranges
+        for (int i = from + 1; i <= to; i++)
+        {
+            for (int j = i; j > from && compare(tokens[j], keyAddresses[j], tokens[j - 1], keyAddresses[j - 1]) < 0; j--)
+                swap(tokens, keyAddresses, j, j - 1);
+        }
+    }
+
+    private static void swap(long[] tokens, long[] keyAddresses, int a, int b)
+    {
+        long token = tokens[a], keyAddress = keyAddresses[a];
+
+        tokens[a] = tokens[b];
+        keyAddresses[a] = keyAddresses[b];
+
+        tokens[b] = token;
+        keyAddresses[b] = keyAddress;
+    }
+
+    private static long entry(long block, int index)
+    {
+        return block + index * ENTRY_SIZE;
+    }
+
+    private static int blockOf(int slot)
+    {
+        return slot < DOUBLING_SLOTS
+                ? 31 - Integer.numberOfLeadingZeros(slot / MIN_BLOCK_ENTRIES + 1)
+                : DOUBLING_BLOCKS + (slot - DOUBLING_SLOTS) / MAX_BLOCK_ENTRIES;
+    }
+
+    private static int blockStart(int block)
+    {
+        return block < DOUBLING_BLOCKS
+                ? MIN_BLOCK_ENTRIES * ((1 << block) - 1)
+                : DOUBLING_SLOTS + (block - DOUBLING_BLOCKS) * MAX_BLOCK_ENTRIES;
+    }
+
+    private static int capacity(int block)
+    {
+        return block < DOUBLING_BLOCKS ? MIN_BLOCK_ENTRIES << block : MAX_BLOCK_ENTRIES;
+    }
+}
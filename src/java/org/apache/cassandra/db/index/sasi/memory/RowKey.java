@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.memory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Key of the row being indexed, written to the arena only once no matter how many (off-heap) indexed columns
+ * the row has, so all of its postings share the same key address.
+ *
+ * Row is indexed by a single thread, so instances are not thread-safe.
+ */
+public class RowKey
+{
+    public final ByteBuffer key;
+
+    private long address = -1;
+
+    public RowKey(ByteBuffer key)
+    {
+        this.key = key;
+    }
+
+    /**
+     * @return The address of the key stored as [length (short)][bytes], allocated on the first call.
+     */
+    public long address(SlabArena arena)
+    {
+        if (address != -1)
+            return address;
+
+        address = arena.allocate(2 + key.remaining());
+        arena.putShort(address, (short) key.remaining());
+        arena.put(address + 2, key);
+
+        return address;
+    }
+}
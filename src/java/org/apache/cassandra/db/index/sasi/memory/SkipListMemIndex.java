@@ -31,10 +31,13 @@ import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.service.StorageService;
 
-import org.github.jamm.MemoryMeter;
-
 public class SkipListMemIndex extends MemIndex
 {
+    // on-heap size estimates from jol
+    // ConcurrentSkipListMap.Node (24) + ~half of ConcurrentSkipListMap.Index (12) + ConcurrentSkipListSet with it's map (64)
+    // + ByteBuffer (48) of the term
+    private static final long TERM_OVERHEAD = 24 + 12 + 64 + 48;
+
     private final ConcurrentSkipListMap<ByteBuffer, ConcurrentSkipListSet<DecoratedKey>> index;
 
     public SkipListMemIndex(AbstractType<?> keyValidator, ColumnIndex columnIndex)
@@ -44,8 +47,10 @@ public class SkipListMemIndex extends MemIndex
     }
 
     @Override
-    public void add(ByteBuffer value, ByteBuffer key)
+    public long add(ByteBuffer value, ByteBuffer key)
     {
+        long size = 0;
+
         final DecoratedKey dk = StorageService.getPartitioner().decorateKey(key);
         ConcurrentSkipListSet<DecoratedKey> keys = index.get(value);
 
@@ -54,10 +59,16 @@ public class SkipListMemIndex extends MemIndex
             ConcurrentSkipListSet<DecoratedKey> newKeys = new ConcurrentSkipListSet<>(DecoratedKey.comparator);
             keys = index.putIfAbsent(value, newKeys);
             if (keys == null)
+            {
                 keys = newKeys;
+                size += TERM_OVERHEAD + value.remaining();
+            }
         }
 
-        keys.add(dk);
+        if (keys.add(dk))
+            size += KEY_ENTRY_OVERHEAD + KEY_OVERHEAD + key.remaining();
+
+        return size;
     }
 
     @Override
@@ -94,10 +105,4 @@ public class SkipListMemIndex extends MemIndex
 
         return builder.build();
     }
-
-    @Override
-    public long estimateSize(MemoryMeter meter)
-    {
-        return meter.measureDeep(index);
-    }
 }
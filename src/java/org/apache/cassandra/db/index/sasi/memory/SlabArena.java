@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.memory;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cassandra.io.util.FileUtils;
+
+/**
+ * Bump-the-pointer allocator of the direct memory regions shared by all of the off-heap indexes of the memtable,
+ * nothing is freed individually, all of the regions are freed at once when arena is released by the memtable
+ * and all of the in-flight writes and searches.
+ *
+ * Addresses are region id in the upper and offset within the region in the lower 32 bits.
+ */
+public class SlabArena
+{
+    private static final int REGION_SIZE = 1024 * 1024;
+
+    // allocations bigger than that get a region of their own, so current region is not wasted
+    private static final int MAX_SLAB_ALLOCATION = REGION_SIZE / 8;
+
+    private final AtomicReference<Region> currentRegion = new AtomicReference<>();
+    private final AtomicLong allocated = new AtomicLong(0);
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private volatile Region[] regions = new Region[0];
+
+    public long allocate(int size)
+    {
+        assert size >= 0;
+
+        if (size > MAX_SLAB_ALLOCATION)
+            return address(newRegion(size).id, 0);
+
+        while (true)
+        {
+            Region region = getRegion();
+
+            int offset = region.allocate(size);
+            if (offset >= 0)
+                return address(region.id, offset);
+
+            // not enough space left, let the first one to notice retire the region
+            currentRegion.compareAndSet(region, null);
+        }
+    }
+
+    public long getLong(long address)
+    {
+        return region(address).getLong(offset(address));
+    }
+
+    public void putLong(long address, long value)
+    {
+        region(address).putLong(offset(address), value);
+    }
+
+    public int getUnsignedShort(long address)
+    {
+        return region(address).getShort(offset(address)) & 0xFFFF;
+    }
+
+    public void putShort(long address, short value)
+    {
+        region(address).putShort(offset(address), value);
+    }
+
+    public void put(long address, ByteBuffer bytes)
+    {
+        ByteBuffer region = region(address).duplicate();
+        region.position(offset(address));
+        region.put(bytes.duplicate());
+    }
+
+    /**
+     * @return View of the allocated memory, only valid until arena is freed.
+     */
+    public ByteBuffer slice(long address, int length)
+    {
+        ByteBuffer region = region(address).duplicate();
+
+        int offset = offset(address);
+        region.limit(offset + length).position(offset);
+
+        return region.slice();
+    }
+
+    /**
+     * @return Copy of the allocated memory which could be used after arena is freed.
+     */
+    public ByteBuffer copy(long address, int length)
+    {
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        copy.put(slice(address, length));
+        copy.flip();
+
+        return copy;
+    }
+
+    public long allocated()
+    {
+        return allocated.get();
+    }
+
+    public boolean reference()
+    {
+        while (true)
+        {
+            int n = references.get();
+            if (n <= 0)
+                return false;
+            if (references.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    public void release()
+    {
+        if (references.decrementAndGet() != 0)
+            return;
+
+        Region[] toFree = regions;
+        regions = new Region[0];
+
+        // without the cleaner regions are freed once they are garbage collected
+        if (!FileUtils.isCleanerAvailable())
+            return;
+
+        for (Region region : toFree)
+            FileUtils.clean(region.buffer);
+    }
+
+    private Region getRegion()
+    {
+        Region region = currentRegion.get();
+        if (region != null)
+            return region;
+
+        synchronized (this)
+        {
+            region = currentRegion.get();
+            if (region == null)
+            {
+                region = newRegion(REGION_SIZE);
+                currentRegion.set(region);
+            }
+
+            return region;
+        }
+    }
+
+    private synchronized Region newRegion(int size)
+    {
+        // direct buffers are mapped buffers without a file, so they are freed the same way as the index files are unmapped
+        Region region = new Region(regions.length, (MappedByteBuffer) ByteBuffer.allocateDirect(size));
+
+        Region[] newRegions = Arrays.copyOf(regions, regions.length + 1);
+        newRegions[region.id] = region;
+        regions = newRegions;
+
+        allocated.addAndGet(size);
+        return region;
+    }
+
+    private ByteBuffer region(long address)
+    {
+        return regions[(int) (address >>> 32)].buffer;
+    }
+
+    private static int offset(long address)
+    {
+        return (int) address;
+    }
+
+    private static long address(int regionId, int offset)
+    {
+        return ((long) regionId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static class Region
+    {
+        private final int id;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger nextFreeOffset = new AtomicInteger(0);
+
+        public Region(int id, MappedByteBuffer buffer)
+        {
+            this.id = id;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return offset of the allocated memory or -1 if region doesn't have enough space left.
+         */
+        public int allocate(int size)
+        {
+            while (true)
+            {
+                int offset = nextFreeOffset.get();
+                if (offset + size > buffer.capacity())
+                    return -1;
+
+                if (nextFreeOffset.compareAndSet(offset, offset + size))
+                    return offset;
+            }
+        }
+    }
+}
@@ -36,8 +36,6 @@ import com.googlecode.concurrenttrees.radix.ConcurrentRadixTree;
 import com.googlecode.concurrenttrees.suffix.ConcurrentSuffixTree;
 import com.googlecode.concurrenttrees.radix.node.concrete.SmartArrayBasedNodeFactory;
 
-import org.github.jamm.MemoryMeter;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,7 +51,9 @@ public class TrieMemIndex extends MemIndex
 
         switch (columnIndex.getMode().mode)
         {
+            // memtable is small enough to keep all of the suffixes, which answers substring queries the same way grams do
             case SUFFIX:
+            case NGRAM:
                 index = new ConcurrentSuffixTrie(columnIndex.getDefinition());
                 break;
 
@@ -67,8 +67,10 @@ public class TrieMemIndex extends MemIndex
     }
 
     @Override
-    public void add(ByteBuffer value, ByteBuffer key)
+    public long add(ByteBuffer value, ByteBuffer key)
     {
+        long size = 0;
+
         final DecoratedKey dk = StorageService.getPartitioner().decorateKey(key);
 
         AbstractAnalyzer analyzer = columnIndex.getAnalyzer();
@@ -88,8 +90,11 @@ public class TrieMemIndex extends MemIndex
                 continue;
             }
 
-            index.add(columnIndex.getValidator().getString(term), dk);
+            size += index.add(columnIndex.getValidator().getString(term), dk);
         }
+
+        // decorated key is shared by all of the terms of the value
+        return size == 0 ? 0 : size + KEY_OVERHEAD + key.remaining();
     }
 
     @Override
@@ -98,12 +103,6 @@ public class TrieMemIndex extends MemIndex
         return index.search(expression);
     }
 
-    @Override
-    public long estimateSize(MemoryMeter meter)
-    {
-        return meter.measureDeep(index);
-    }
-
     private static abstract class ConcurrentTrie
     {
         protected final ColumnDefinition definition;
@@ -113,20 +112,34 @@ public class TrieMemIndex extends MemIndex
             definition = column;
         }
 
-        public void add(String value, DecoratedKey key)
+        public long add(String value, DecoratedKey key)
         {
+            long size = 0;
+
             ConcurrentSkipListSet<DecoratedKey> keys = get(value);
             if (keys == null)
             {
                 ConcurrentSkipListSet<DecoratedKey> newKeys = new ConcurrentSkipListSet<>(DecoratedKey.comparator);
                 keys = putIfAbsent(value, newKeys);
                 if (keys == null)
+                {
                     keys = newKeys;
+                    size += termSize(value);
+                }
             }
 
-            keys.add(key);
+            // key itself is accounted by the caller
+            if (keys.add(key))
+                size += KEY_ENTRY_OVERHEAD;
+
+            return size;
         }
 
+        /**
+         * @return The estimated number of bytes taken by the trie nodes and the value set of the new term.
+         */
+        protected abstract long termSize(String value);
+
         public RangeIterator<Long, Token> search(Expression expression)
         {
             assert expression.getOp() == Expression.Op.EQ; // means that min == max
@@ -177,6 +190,14 @@ public class TrieMemIndex extends MemIndex
         {
             return trie.getValuesForKeysStartingWith(value);
         }
+
+        @Override
+        protected long termSize(String value)
+        {
+            // leaf node with it's edge characters (64 + 2 bytes per char) + split of the parent node (64)
+            // + ConcurrentSkipListSet with it's map (64)
+            return 64 + 2 * value.length() + 64 + 64;
+        }
     }
 
     private static class ConcurrentSuffixTrie extends ConcurrentTrie
@@ -206,5 +227,15 @@ public class TrieMemIndex extends MemIndex
         {
             return trie.getValuesForKeysContaining(value);
         }
+
+        @Override
+        protected long termSize(String value)
+        {
+            // every suffix of the value gets it's own leaf node with edge characters (64 + 2 bytes per char)
+            // and a set of original values it belongs to (64), plus the value itself (40 + 2 bytes per char)
+            // and ConcurrentSkipListSet with it's map (64).
+            long length = value.length();
+            return length * (64 + 64) + length * (length + 1) + 40 + 2 * length + 64;
+        }
     }
 }
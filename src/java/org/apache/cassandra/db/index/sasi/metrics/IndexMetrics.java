@@ -20,9 +20,11 @@ package org.apache.cassandra.db.index.sasi.metrics;
 import java.util.concurrent.TimeUnit;
 
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.MetricName;
 import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.index.SSTableAttachedSecondaryIndex;
 import org.apache.cassandra.metrics.LatencyMetrics;
 import org.apache.cassandra.metrics.MetricNameFactory;
 
@@ -31,16 +33,42 @@ public class IndexMetrics
     public final Meter timeouts;
     public final Meter failedRequests;
     public final Meter requests;
+    public final Meter cacheHits;
+    public final Meter cacheMisses;
+    public final Meter cursorHits;
+    public final Meter cursorMisses;
     public final LatencyMetrics latency;
+    public final Gauge<Long> memtableIndexSize;
+    public final Gauge<Long> memtableIndexOffHeapSize;
 
-    public IndexMetrics(ColumnFamilyStore cfs)
+    public IndexMetrics(final SSTableAttachedSecondaryIndex backend)
     {
-        IndexNameFactory nameFactory = new IndexNameFactory(cfs);
+        IndexNameFactory nameFactory = new IndexNameFactory(backend.getBaseCfs());
 
         timeouts = Metrics.newMeter(nameFactory.createMetricName("Timeouts"), "search timeouts", TimeUnit.SECONDS);
         failedRequests = Metrics.newMeter(nameFactory.createMetricName("FailedRequests"), "search failed requests", TimeUnit.SECONDS);
         requests = Metrics.newMeter(nameFactory.createMetricName("TotalRequests"), "search total requests", TimeUnit.SECONDS);
+        cacheHits = Metrics.newMeter(nameFactory.createMetricName("SearchCacheHits"), "search result cache hits", TimeUnit.SECONDS);
+        cacheMisses = Metrics.newMeter(nameFactory.createMetricName("SearchCacheMisses"), "search result cache misses", TimeUnit.SECONDS);
+        cursorHits = Metrics.newMeter(nameFactory.createMetricName("ParkedCursorHits"), "pages continued from parked cursor", TimeUnit.SECONDS);
+        cursorMisses = Metrics.newMeter(nameFactory.createMetricName("ParkedCursorMisses"), "pages planned from scratch", TimeUnit.SECONDS);
         latency = new LatencyMetrics(nameFactory, "Search");
+        memtableIndexSize = Metrics.newGauge(nameFactory.createMetricName("MemtableIndexSize"), new Gauge<Long>()
+        {
+            @Override
+            public Long value()
+            {
+                return backend.getLiveSize();
+            }
+        });
+        memtableIndexOffHeapSize = Metrics.newGauge(nameFactory.createMetricName("MemtableIndexOffHeapSize"), new Gauge<Long>()
+        {
+            @Override
+            public Long value()
+            {
+                return backend.getOffHeapSize();
+            }
+        });
     }
 
     public void markRequest()
@@ -58,6 +86,26 @@ public class IndexMetrics
         timeouts.mark();
     }
 
+    public void markCacheHit()
+    {
+        cacheHits.mark();
+    }
+
+    public void markCacheMiss()
+    {
+        cacheMisses.mark();
+    }
+
+    public void markCursorHit()
+    {
+        cursorHits.mark();
+    }
+
+    public void markCursorMiss()
+    {
+        cursorMisses.mark();
+    }
+
     public void updateLatency(long value, TimeUnit unit)
     {
         latency.addNano(unit.toNanos(value));
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.plan;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.RowPosition;
+import org.apache.cassandra.db.filter.ExtendedFilter;
+import org.apache.cassandra.db.index.SSTableAttachedSecondaryIndex;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.thrift.IndexExpression;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.PeekingIterator;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+/**
+ * Keeps operation trees of the queries which filled up their page, together with all of the
+ * resources they reference, for a short period of time so the request for the next page,
+ * which starts from the last returned key, could continue from where previous one stopped
+ * instead of searching all of the indexes again and skipping to the start of the page.
+ *
+ * Parked cursors are dropped when their time is up or as soon as index
+ * of the column family changes (memtable switch, flush, compaction or truncate).
+ * Cursor is not reused either if there were any writes to the memtable since its query was planned,
+ * so the next page always sees the same data as the query planned from scratch would:
+ * rows written between the pages are returned if they come after the last returned key.
+ */
+public class CursorCache
+{
+    private static final long CURSOR_TTL_MS = Long.getLong("cassandra.sasi.cursor_ttl_ms", 10000);
+    private static final int MAX_CURSORS = Integer.getInteger("cassandra.sasi.max_cursors", 128);
+
+    public static final CursorCache instance = new CursorCache(CURSOR_TTL_MS, MAX_CURSORS);
+
+    private final Cache<Key, Cursor> cursors;
+
+    private CursorCache(long ttlMs, int maxCursors)
+    {
+        if (ttlMs <= 0 || maxCursors <= 0)
+        {
+            cursors = null;
+            return;
+        }
+
+        cursors = CacheBuilder.newBuilder()
+                              .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+                              .maximumSize(maxCursors)
+                              .removalListener(new RemovalListener<Key, Cursor>()
+                              {
+                                  @Override
+                                  public void onRemoval(RemovalNotification<Key, Cursor> notification)
+                                  {
+                                      // cursors which were taken for the next page are closed by their new owner
+                                      Cursor cursor = notification.getValue();
+                                      if (cursor.claim())
+                                          cursor.close();
+                                  }
+                              })
+                              .build();
+
+        // expired cursors have to release their resources even if nobody touches the cache
+        StorageService.optionalTasks.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cursors.cleanUp();
+            }
+        }, ttlMs, ttlMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Park the cursor of the query to be picked up by the request for the page starting from the last returned key.
+     *
+     * @return true if cursor was parked, false if caller is still responsible for its resources.
+     */
+    public boolean park(SSTableAttachedSecondaryIndex backend, ExtendedFilter filter, DecoratedKey lastReturned, Cursor cursor)
+    {
+        if (cursors == null)
+            return false;
+
+        cursors.put(new Key(backend, filter.getClause(), lastReturned, filter.dataRange.keyRange().right), cursor);
+        return true;
+    }
+
+    /**
+     * Take the cursor of the previous page of the same query, if any, so it's no longer visible to the other requests.
+     */
+    public Cursor take(SSTableAttachedSecondaryIndex backend, ExtendedFilter filter)
+    {
+        if (cursors == null)
+            return null;
+
+        Key key = new Key(backend, filter.getClause(), filter.dataRange.keyRange().left, filter.dataRange.keyRange().right);
+
+        Cursor cursor = cursors.getIfPresent(key);
+        if (cursor == null || !cursor.claim())
+        {
+            backend.getMetrics().markCursorMiss();
+            return null;
+        }
+
+        cursors.asMap().remove(key, cursor);
+
+        // memtable of the cursor is missing some of the writes, so the rest of the query has to be planned again
+        if (cursor.controller.hasMissedWrites())
+        {
+            cursor.close();
+            backend.getMetrics().markCursorMiss();
+            return null;
+        }
+
+        backend.getMetrics().markCursorHit();
+        return cursor;
+    }
+
+    /**
+     * Drop all of the parked cursors of the given index, they could be missing the new data.
+     */
+    public void invalidate(SSTableAttachedSecondaryIndex backend)
+    {
+        if (cursors == null)
+            return;
+
+        Iterator<Key> keys = cursors.asMap().keySet().iterator();
+        while (keys.hasNext())
+        {
+            if (keys.next().backend == backend)
+                keys.remove();
+        }
+    }
+
+    public static class Cursor
+    {
+        public final QueryController controller;
+        public final Operation operationTree;
+
+        // keys of the current token which are yet to be checked
+        public final PeekingIterator<DecoratedKey> keys;
+
+        private final AtomicBoolean isClaimed = new AtomicBoolean(false);
+
+        public Cursor(QueryController controller, Operation operationTree, PeekingIterator<DecoratedKey> keys)
+        {
+            this.controller = controller;
+            this.operationTree = operationTree;
+            this.keys = keys;
+        }
+
+        private boolean claim()
+        {
+            return isClaimed.compareAndSet(false, true);
+        }
+
+        public void close()
+        {
+            try
+            {
+                FileUtils.closeQuietly(operationTree);
+            }
+            finally
+            {
+                controller.finish();
+            }
+        }
+    }
+
+    private static class Key
+    {
+        private final SSTableAttachedSecondaryIndex backend;
+        private final List<IndexExpression> clause;
+        private final RowPosition start, stop;
+
+        public Key(SSTableAttachedSecondaryIndex backend, List<IndexExpression> clause, RowPosition start, RowPosition stop)
+        {
+            this.backend = backend;
+            this.clause = new ArrayList<>(clause);
+            this.start = start;
+            this.stop = stop;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return new HashCodeBuilder().append(System.identityHashCode(backend))
+                                        .append(clause)
+                                        .append(start).append(stop).build();
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key))
+                return false;
+
+            Key o = (Key) other;
+            return backend == o.backend
+                    && clause.equals(o.clause)
+                    && start.equals(o.start)
+                    && stop.equals(o.stop);
+        }
+    }
+}
@@ -245,6 +245,14 @@ public class Expression
         controller.checkpoint();
     }
 
+    /**
+     * @return The number of nanoseconds left until execution quota of the query is exceeded.
+     */
+    public long remainingQuota()
+    {
+        return controller == null ? Long.MAX_VALUE : controller.remainingQuota();
+    }
+
     public boolean hasLower()
     {
         return lower != null;
@@ -348,5 +356,11 @@ public class Expression
             Bound o = (Bound) other;
             return value.equals(o.value) && inclusive == o.inclusive;
         }
+
+        @Override
+        public int hashCode()
+        {
+            return new HashCodeBuilder().append(value).append(inclusive).build();
+        }
     }
 }
@@ -31,7 +31,6 @@ import org.apache.cassandra.db.index.sasi.conf.ColumnIndex;
 import org.apache.cassandra.db.index.sasi.conf.view.View;
 import org.apache.cassandra.db.index.sasi.disk.Token;
 import org.apache.cassandra.db.index.sasi.exceptions.TimeQuotaExceededException;
-import org.apache.cassandra.db.index.sasi.memory.IndexMemtable;
 import org.apache.cassandra.db.index.sasi.plan.Operation.OperationType;
 import org.apache.cassandra.db.index.sasi.utils.RangeIntersectionIterator;
 import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
@@ -43,18 +42,28 @@ import org.apache.cassandra.utils.Pair;
 
 public class QueryController
 {
-    private final long executionQuota;
-    private final long executionStart;
+    /**
+     * Non-primary expressions of the AND operation which are estimated to produce
+     * more than this many times tokens of the primary expression are only used as post-filters.
+     */
+    private static final long POST_FILTER_RATIO = 64;
+
+    private long executionQuota;
+    private long executionStart;
 
     private final SSTableAttachedSecondaryIndex backend;
     private final Map<Collection<Expression>, List<RangeIterator<Long, Token>>> resources = new HashMap<>();
     private final Set<SSTableReader> scope;
 
+    // memtable writes indexed before the query was planned, all of them are visible to the query
+    private final long memtableWrites;
+
     public QueryController(SSTableAttachedSecondaryIndex backend, ExtendedFilter filter, long timeQuotaMs)
     {
         this.backend = backend;
         this.executionQuota = TimeUnit.MILLISECONDS.toNanos(timeQuotaMs);
         this.executionStart = System.nanoTime();
+        this.memtableWrites = backend.getMemtableWrites();
         this.scope = getSSTableScope(backend.getBaseCfs(), filter);
     }
 
@@ -96,37 +105,72 @@ public class QueryController
         if (resources.containsKey(expressions))
             throw new IllegalArgumentException("Can't process the same expressions multiple times.");
 
-        IndexMemtable currentMemtable = backend.getMemtable();
-
         RangeIterator.Builder<Long, Token> builder = op == OperationType.OR
                                                 ? RangeUnionIterator.<Long, Token>builder()
                                                 : RangeIntersectionIterator.<Long, Token>builder();
 
         List<RangeIterator<Long, Token>> perIndexUnions = new ArrayList<>();
 
-        for (Map.Entry<Expression, Set<SSTableIndex>> e : getView(op, expressions).entrySet())
+        // memtable is searched while estimating AND expressions, so its results are reused instead of searching again
+        Map<Expression, RangeIterator<Long, Token>> memtables = new HashMap<>();
+
+        try
         {
-            RangeIterator<Long, Token> index = TermIterator.build(e.getKey(),
-                                                                  currentMemtable.search(e.getKey()),
-                                                                  e.getValue());
+            for (Map.Entry<Expression, Set<SSTableIndex>> e : getView(op, expressions, memtables).entrySet())
+            {
+                RangeIterator<Long, Token> memtable = memtables.containsKey(e.getKey())
+                                                        ? memtables.remove(e.getKey())
+                                                        : backend.searchMemtable(e.getKey());
 
-            if (index == null)
-                continue;
+                RangeIterator<Long, Token> index = TermIterator.build(e.getKey(), memtable, e.getValue(), backend.getMetrics());
 
-            builder.add(index);
-            perIndexUnions.add(index);
+                if (index == null)
+                    continue;
+
+                builder.add(index);
+                perIndexUnions.add(index);
+            }
+        }
+        finally
+        {
+            // memtable results of the expressions which are only going to be used as filters
+            for (RangeIterator<Long, Token> memtable : memtables.values())
+                FileUtils.closeQuietly(memtable);
         }
 
         resources.put(expressions, perIndexUnions);
         return builder;
     }
 
+    /**
+     * Restart execution time quota, used when parked query continues with the next page.
+     */
+    public void resume(long timeQuotaMs)
+    {
+        this.executionQuota = TimeUnit.MILLISECONDS.toNanos(timeQuotaMs);
+        this.executionStart = System.nanoTime();
+    }
+
+    /**
+     * @return true if memtable has indexed any writes since the query was planned, such writes may or may not
+     *         be visible to the already built operation tree.
+     */
+    public boolean hasMissedWrites()
+    {
+        return backend.getMemtableWrites() != memtableWrites;
+    }
+
     public void checkpoint()
     {
         if ((System.nanoTime() - executionStart) >= executionQuota)
             throw new TimeQuotaExceededException();
     }
 
+    public long remainingQuota()
+    {
+        return executionQuota - (System.nanoTime() - executionStart);
+    }
+
     public void releaseIndexes(Operation operation)
     {
         if (operation.expressions != null)
@@ -155,16 +199,24 @@ public class QueryController
         }
     }
 
-    private Map<Expression, Set<SSTableIndex>> getView(OperationType op, Collection<Expression> expressions)
+    private Map<Expression, Set<SSTableIndex>> getView(OperationType op, Collection<Expression> expressions,
+                                                       Map<Expression, RangeIterator<Long, Token>> memtables)
     {
-        // first let's determine the primary expression if op is AND
-        Pair<Expression, Set<SSTableIndex>> primary = (op == OperationType.AND) ? calculatePrimary(expressions) : null;
+        // estimate cardinality of each expression, that is only useful for AND where it determines primary expression
+        Map<Expression, Pair<Long, Set<SSTableIndex>>> estimates = (op == OperationType.AND)
+                                                                    ? estimateTokenCounts(expressions, memtables)
+                                                                    : Collections.<Expression, Pair<Long, Set<SSTableIndex>>>emptyMap();
+
+        Pair<Expression, Set<SSTableIndex>> primary = calculatePrimary(estimates);
+        long postFilterThreshold = primary == null ? Long.MAX_VALUE : Math.max(1, estimates.get(primary.left).left) * POST_FILTER_RATIO;
 
         Map<Expression, Set<SSTableIndex>> indexes = new HashMap<>();
         for (Expression e : expressions)
         {
             // NO_EQ and non-index column query should only act as FILTER BY for satisfiedBy(Row) method
-            // because otherwise it likely to go through the whole index.
+            // because otherwise it likely to go through the whole index. Postings of the excluded value can't be
+            // subtracted from the other expressions either, they could be stale (value overwritten in the newer sstable,
+            // expired or deleted cell) and subtracting them would drop the rows which do satisfy the query.
             if (!e.isIndexed() || e.getOp() == Expression.Op.NOT_EQ)
                 continue;
 
@@ -175,6 +227,13 @@ public class QueryController
                 continue;
             }
 
+            // expression is estimated to produce a lot more tokens than the primary one,
+            // so it's cheaper to check it against the rows fetched by means of the primary expression,
+            // which satisfiedBy(Row) is going to do anyway, than to intersect with it's index.
+            Pair<Long, Set<SSTableIndex>> estimate = estimates.get(e);
+            if (estimate != null && estimate.left > postFilterThreshold)
+                continue;
+
             View view = e.index.getView();
             if (view == null)
                 continue;
@@ -190,35 +249,105 @@ public class QueryController
                 readers.addAll(view.match(scope, e));
             }
 
-            indexes.put(e, readers);
+            indexes.put(e, mayMatch(e, readers));
         }
 
         return indexes;
     }
 
-    private Pair<Expression, Set<SSTableIndex>> calculatePrimary(Collection<Expression> expressions)
+    /**
+     * Drop the indexes which definitely don't have the term of the point lookup according to their bloom filters,
+     * before any of them is referenced or searched.
+     */
+    private static Set<SSTableIndex> mayMatch(Expression expression, Collection<SSTableIndex> indexes)
+    {
+        Set<SSTableIndex> result = new HashSet<>(indexes.size());
+        for (SSTableIndex index : indexes)
+        {
+            if (index.mayMatch(expression))
+                result.add(index);
+        }
+
+        return result;
+    }
+
+    /**
+     * Primary expression is the one which is estimated to produce the least number of tokens,
+     * ties are broken by the number of the SSTable indexes expression has to search through.
+     */
+    private Pair<Expression, Set<SSTableIndex>> calculatePrimary(Map<Expression, Pair<Long, Set<SSTableIndex>>> estimates)
     {
         Expression expression = null;
+        long primaryTokens = Long.MAX_VALUE;
         Set<SSTableIndex> primaryIndexes = Collections.emptySet();
 
+        for (Map.Entry<Expression, Pair<Long, Set<SSTableIndex>>> e : estimates.entrySet())
+        {
+            long tokens = e.getValue().left;
+            Set<SSTableIndex> indexes = e.getValue().right;
+
+            if (expression == null || tokens < primaryTokens || (tokens == primaryTokens && indexes.size() < primaryIndexes.size()))
+            {
+                expression = e.getKey();
+                primaryTokens = tokens;
+                primaryIndexes = indexes;
+            }
+        }
+
+        return expression == null ? null : Pair.create(expression, primaryIndexes);
+    }
+
+    /**
+     * Estimates are the sum of the SSTable index estimates and the number of tokens the memtable has for the expression,
+     * otherwise all of the estimates are 0 while most of the data is still in memtable, which makes post-filtering threshold useless.
+     *
+     * @param expressions The expressions to estimate.
+     * @param memtables The map to put memtable search results to, they are used by the query later on.
+     */
+    private Map<Expression, Pair<Long, Set<SSTableIndex>>> estimateTokenCounts(Collection<Expression> expressions,
+                                                                              Map<Expression, RangeIterator<Long, Token>> memtables)
+    {
+        Map<Expression, Pair<Long, Set<SSTableIndex>>> estimates = new HashMap<>();
         for (Expression e : expressions)
         {
-            if (!e.isIndexed())
+            if (!e.isIndexed() || e.getOp() == Expression.Op.NOT_EQ)
                 continue;
 
             View view = e.index.getView();
             if (view == null)
                 continue;
 
-            Set<SSTableIndex> indexes = view.match(scope, e);
-            if (primaryIndexes.size() > indexes.size())
+            RangeIterator<Long, Token> memtable = backend.searchMemtable(e);
+            memtables.put(e, memtable);
+
+            long memtableTokens = memtable == null || memtable.getCount() < 0 ? 0 : memtable.getCount();
+
+            Set<SSTableIndex> indexes = mayMatch(e, view.match(scope, e));
+            estimates.put(e, Pair.create(memtableTokens + estimateTokenCount(e, indexes), indexes));
+        }
+
+        return estimates;
+    }
+
+    private static long estimateTokenCount(Expression expression, Set<SSTableIndex> indexes)
+    {
+        long tokenCount = 0;
+        for (SSTableIndex index : indexes)
+        {
+            if (!index.reference())
+                continue;
+
+            try
             {
-                primaryIndexes = indexes;
-                expression = e;
+                tokenCount += index.estimateTokenCount(expression);
+            }
+            finally
+            {
+                index.release();
             }
         }
 
-        return expression == null ? null : Pair.create(expression, primaryIndexes);
+        return tokenCount;
     }
 
     private static Set<SSTableReader> getSSTableScope(ColumnFamilyStore store, ExtendedFilter filter)
@@ -18,7 +18,10 @@
 package org.apache.cassandra.db.index.sasi.plan;
 
 import java.util.*;
+import java.util.concurrent.*;
 
+import org.apache.cassandra.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.filter.ExtendedFilter;
@@ -32,6 +35,11 @@ import org.apache.cassandra.exceptions.RequestTimeoutException;
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.cassandra.thrift.IndexExpression;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.util.concurrent.Uninterruptibles;
+
 public class QueryPlan
 {
     /**
@@ -39,16 +47,58 @@ public class QueryPlan
      */
     private static final int MAX_ROWS = 10000;
 
+    /**
+     * Maximum number of candidate keys which are read together before being checked by the operation tree.
+     */
+    private static final int FETCH_BATCH_SIZE = Integer.getInteger("cassandra.sasi.fetch_batch_size", 64);
+
+    /**
+     * Shared pool which reads rows of the candidate key batches in parallel,
+     * bounded by number of concurrent reads, so it can't overload the read path.
+     * Its queue is bounded as well, once it's full rows are read by the query thread itself,
+     * so pending reads can't pile up on the busy node.
+     */
+    private static final ThreadPoolExecutor ROW_FETCHER;
+
+    static
+    {
+        int concurrency = Integer.getInteger("cassandra.sasi.fetch_concurrency", DatabaseDescriptor.getConcurrentReaders());
+        int queueSize = Integer.getInteger("cassandra.sasi.fetch_queue_size", concurrency * FETCH_BATCH_SIZE);
+
+        ROW_FETCHER = concurrency <= 1 ? null : new JMXEnabledThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                                                                               new LinkedBlockingQueue<Runnable>(queueSize),
+                                                                               new NamedThreadFactory("SASI-RowFetcher"),
+                                                                               "internal");
+        if (ROW_FETCHER != null)
+        {
+            ROW_FETCHER.allowCoreThreadTimeOut(true);
+            ROW_FETCHER.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+    }
+
     private final SSTableAttachedSecondaryIndex backend;
     private final ExtendedFilter filter;
 
     private final QueryController controller;
 
+    // cursor left by the previous page of the same query, if any
+    private final CursorCache.Cursor cursor;
+
     public QueryPlan(SSTableAttachedSecondaryIndex backend, ExtendedFilter filter, long executionQuotaMs)
     {
         this.backend = backend;
         this.filter = filter;
-        this.controller = new QueryController(backend, filter, executionQuotaMs);
+        this.cursor = CursorCache.instance.take(backend, filter);
+
+        if (cursor == null)
+        {
+            this.controller = new QueryController(backend, filter, executionQuotaMs);
+        }
+        else
+        {
+            this.controller = cursor.controller;
+            this.controller.resume(executionQuotaMs);
+        }
     }
 
     /**
@@ -184,42 +234,150 @@ public class QueryPlan
         final List<Row> rows = new ArrayList<>(maxRows);
 
         Operation operationTree = null;
+        boolean isParked = false;
 
         try
         {
-            operationTree = analyze();
+            PeekingIterator<DecoratedKey> keys;
+
+            if (cursor != null)
+            {
+                operationTree = cursor.operationTree;
+
+                // page starts from the last key returned by the previous one, which is going
+                // to be checked again, just like it would be if query was re-started from it.
+                keys = Iterators.peekingIterator(Iterators.concat(Iterators.singletonIterator((DecoratedKey) range.keyRange().left), cursor.keys));
+            }
+            else
+            {
+                operationTree = analyze();
+
+                if (operationTree == null)
+                    return Collections.emptyList();
 
-            if (operationTree == null)
-                return Collections.emptyList();
+                operationTree.skipTo(((LongToken) range.keyRange().left.getToken()).token);
+                keys = Iterators.peekingIterator(Collections.<DecoratedKey>emptyIterator());
+            }
+
+            // candidate keys are collected into (token sorted) batches which are
+            // read all together and only then checked against the operation tree,
+            // batch never grows over the number of rows which are still missing for the page.
+            List<DecoratedKey> batch = new ArrayList<>(Math.min(FETCH_BATCH_SIZE, maxRows));
 
-            operationTree.skipTo(((LongToken) range.keyRange().left.getToken()).token);
+            boolean hasMore = false;
 
             intersection:
-            while (operationTree.hasNext())
+            while (true)
             {
-                for (DecoratedKey key : operationTree.next())
+                while (keys.hasNext())
                 {
-                    if ((!lastKey.isMinimum(partitioner) && lastKey.compareTo(key) < 0) || rows.size() >= maxRows)
+                    DecoratedKey key = keys.peek();
+
+                    if (!lastKey.isMinimum(partitioner) && lastKey.compareTo(key) < 0)
+                        break intersection;
+
+                    if (rows.size() >= maxRows)
+                    {
+                        hasMore = true;
                         break intersection;
+                    }
+
+                    keys.next();
 
                     if (!range.contains(key))
                         continue;
 
-                    Row row = getRow(key, filter);
-                    if (row != null && operationTree.satisfiedBy(row, null, !isColumnSlice(key)))
-                        rows.add(row);
+                    batch.add(key);
+
+                    if (batch.size() >= Math.min(FETCH_BATCH_SIZE, maxRows - rows.size()))
+                    {
+                        fetchAndFilter(operationTree, batch, rows);
+                        batch.clear();
+                    }
                 }
+
+                if (!operationTree.hasNext())
+                    break;
+
+                keys = Iterators.peekingIterator(operationTree.next().iterator());
             }
+
+            if (!batch.isEmpty())
+                fetchAndFilter(operationTree, batch, rows);
+
+            // page is full but there are more candidates, so the next page is likely to be requested
+            if (hasMore && !rows.isEmpty())
+                isParked = CursorCache.instance.park(backend, filter, rows.get(rows.size() - 1).key, new CursorCache.Cursor(controller, operationTree, keys));
         }
         finally
         {
-            FileUtils.closeQuietly(operationTree);
-            controller.finish();
+            if (!isParked)
+            {
+                FileUtils.closeQuietly(operationTree);
+                controller.finish();
+            }
         }
 
         return rows;
     }
 
+    private void fetchAndFilter(Operation operationTree, List<DecoratedKey> keys, List<Row> results)
+    {
+        List<Row> rows = getRows(keys);
+        for (int i = 0; i < keys.size(); i++)
+        {
+            Row row = rows.get(i);
+            if (row != null && operationTree.satisfiedBy(row, null, !isColumnSlice(keys.get(i))))
+                results.add(row);
+        }
+    }
+
+    private List<Row> getRows(List<DecoratedKey> keys)
+    {
+        List<Row> rows = new ArrayList<>(keys.size());
+
+        if (ROW_FETCHER == null || keys.size() == 1)
+        {
+            for (DecoratedKey key : keys)
+                rows.add(getRow(key, filter));
+
+            return rows;
+        }
+
+        List<Future<Row>> reads = new ArrayList<>(keys.size());
+
+        try
+        {
+            for (final DecoratedKey key : keys)
+            {
+                reads.add(ROW_FETCHER.submit(new Callable<Row>()
+                {
+                    @Override
+                    public Row call() throws Exception
+                    {
+                        return getRow(key, filter);
+                    }
+                }));
+            }
+
+            for (Future<Row> read : reads)
+                rows.add(Uninterruptibles.getUninterruptibly(read));
+
+            return rows;
+        }
+        catch (ExecutionException e)
+        {
+            throw Throwables.propagate(e.getCause());
+        }
+        finally
+        {
+            // no-op for the reads which are already done, otherwise
+            // makes sure that we don't do any work for the failed batch.
+            for (Future<Row> read : reads)
+                read.cancel(false);
+        }
+    }
+
     private Row getRow(DecoratedKey key, ExtendedFilter filter)
     {
         try
@@ -84,7 +84,7 @@ public class IntegralSA extends SA<ByteBuffer>
                 return endOfData();
 
             Term<ByteBuffer> term = termIterator.next();
-            return Pair.create(term.getTerm(), term.getTokens().finish());
+            return Pair.create(term.getTerm(), term.getTokens());
         }
     }
 }
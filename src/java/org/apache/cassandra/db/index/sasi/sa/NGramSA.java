@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.sa;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cassandra.db.index.sasi.disk.MutableTokenTreeBuilder;
+import org.apache.cassandra.db.index.sasi.disk.OnDiskIndexBuilder;
+import org.apache.cassandra.db.index.sasi.disk.PrimitiveTokenTreeBuilder;
+import org.apache.cassandra.db.index.sasi.disk.TokenTreeBuilder;
+import org.apache.cassandra.db.marshal.AbstractType;
+
+/**
+ * Splits text terms into the grams of {@link OnDiskIndexBuilder#NGRAM_SIZE} characters, starting at every character
+ * of the term, the grams which start less than gram size characters before the end of the term are shorter,
+ * so any substring shorter than a gram is a prefix of one of the grams. Tokens of the terms which share a gram
+ * are merged, so index has a single term per distinct gram instead of a term per every suffix of every term.
+ */
+public class NGramSA extends IntegralSA
+{
+    private final Map<ByteBuffer, MutableTokenTreeBuilder> grams = new HashMap<>();
+
+    public NGramSA(AbstractType<?> comparator, OnDiskIndexBuilder.Mode mode)
+    {
+        super(comparator, mode);
+    }
+
+    @Override
+    public void add(ByteBuffer termValue, TokenTreeBuilder tokens)
+    {
+        Set<ByteBuffer> termGrams = grams(comparator, termValue, OnDiskIndexBuilder.NGRAM_SIZE, true);
+
+        // empty term doesn't have any grams, so it's indexed as is
+        if (termGrams.isEmpty())
+            termGrams.add(termValue);
+
+        for (ByteBuffer gram : termGrams)
+        {
+            MutableTokenTreeBuilder gramTokens = grams.get(gram);
+            if (gramTokens == null)
+                grams.put(gram, (gramTokens = new PrimitiveTokenTreeBuilder()));
+
+            gramTokens.add(tokens);
+        }
+    }
+
+    @Override
+    public TermIterator finish()
+    {
+        for (Map.Entry<ByteBuffer, MutableTokenTreeBuilder> gram : grams.entrySet())
+            super.add(gram.getKey(), gram.getValue());
+
+        grams.clear();
+        return super.finish();
+    }
+
+    /**
+     * Split given text term into the distinct grams.
+     *
+     * @param comparator The type of the term, has to be ascii or utf8.
+     * @param term The term to split.
+     * @param size The number of characters in the gram.
+     * @param withTail Include shorter grams which start at the last (size - 1) characters of the term.
+     *
+     * @return The distinct grams of the term, in order of their positions in the term.
+     */
+    public static Set<ByteBuffer> grams(AbstractType<?> comparator, ByteBuffer term, int size, boolean withTail)
+    {
+        String value = comparator.getString(term);
+        int length = value.codePointCount(0, value.length());
+
+        Set<ByteBuffer> grams = new LinkedHashSet<>();
+        for (int i = 0, start = 0; i < length; i++)
+        {
+            int gramLength = Math.min(size, length - i);
+            if (gramLength < size && !withTail)
+                break;
+
+            grams.add(comparator.fromString(value.substring(start, value.offsetByCodePoints(start, gramLength))));
+            start = value.offsetByCodePoints(start, 1);
+        }
+
+        return grams;
+    }
+}
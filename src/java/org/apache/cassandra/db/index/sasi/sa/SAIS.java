@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.sa;
+
+import java.util.Arrays;
+
+/**
+ * Linear time suffix array construction by induced sorting (SA-IS, Nong, Zhang and Chan, 2009).
+ *
+ * Suffixes are classified as S-type (smaller than the next suffix) or L-type (larger than the next suffix),
+ * only the left-most S-type suffixes (LMS) are sorted, recursively if their substrings are not unique,
+ * order of the rest of the suffixes is induced from them in two linear scans over the buckets of the symbols.
+ */
+public class SAIS
+{
+    /**
+     * @param text The symbols of the text, the last one has to be 0 and all of the rest have to be in [1, alphabetSize).
+     * @param alphabetSize The number of the distinct symbol values.
+     *
+     * @return The start positions of the suffixes of the text, in sorted order (so the first one is the last symbol).
+     */
+    public static int[] sort(int[] text, int alphabetSize)
+    {
+        int[] sa = new int[text.length];
+        sort(text, sa, text.length, alphabetSize);
+        return sa;
+    }
+
+    private static void sort(int[] s, int[] sa, int n, int k)
+    {
+        if (n == 1)
+        {
+            sa[0] = 0;
+            return;
+        }
+
+        boolean[] stype = new boolean[n];
+        stype[n - 1] = true;
+        for (int i = n - 2; i >= 0; i--)
+            stype[i] = s[i] < s[i + 1] || (s[i] == s[i + 1] && stype[i + 1]);
+
+        int[] buckets = new int[k];
+
+        // stage 1: put LMS suffixes at the ends of their buckets and induce the order of their substrings
+        Arrays.fill(sa, -1);
+        bucketEnds(s, buckets);
+        for (int i = 1; i < n; i++)
+        {
+            if (isLMS(stype, i))
+                sa[--buckets[s[i]]] = i;
+        }
+
+        induce(s, sa, stype, buckets);
+
+        // name LMS substrings by their rank, equal substrings get the same name
+        int lmsCount = 0;
+        for (int i = 0; i < n; i++)
+        {
+            if (isLMS(stype, sa[i]))
+                sa[lmsCount++] = sa[i];
+        }
+
+        Arrays.fill(sa, lmsCount, n, -1);
+
+        int name = 0, previous = -1;
+        for (int i = 0; i < lmsCount; i++)
+        {
+            int position = sa[i];
+            if (previous == -1 || !equalSubstrings(s, stype, previous, position))
+            {
+                name++;
+                previous = position;
+            }
+
+            // LMS positions are at least two symbols apart, so names fit into the second half of the array
+            sa[lmsCount + position / 2] = name - 1;
+        }
+
+        int[] reduced = new int[lmsCount];
+        for (int i = n - 1, j = lmsCount - 1; i >= lmsCount; i--)
+        {
+            if (sa[i] >= 0)
+                reduced[j--] = sa[i];
+        }
+
+        // stage 2: sort LMS suffixes by sorting the suffixes of the reduced text, directly if all of the names are unique
+        int[] reducedSA = new int[lmsCount];
+        if (name < lmsCount)
+            sort(reduced, reducedSA, lmsCount, name);
+        else
+        {
+            for (int i = 0; i < lmsCount; i++)
+                reducedSA[reduced[i]] = i;
+        }
+
+        // stage 3: put sorted LMS suffixes into their buckets and induce the order of the rest of the suffixes
+        for (int i = 1, j = 0; i < n; i++)
+        {
+            if (isLMS(stype, i))
+                reduced[j++] = i;
+        }
+
+        Arrays.fill(sa, -1);
+        bucketEnds(s, buckets);
+        for (int i = lmsCount - 1; i >= 0; i--)
+        {
+            int position = reduced[reducedSA[i]];
+            sa[--buckets[s[position]]] = position;
+        }
+
+        induce(s, sa, stype, buckets);
+    }
+
+    private static void induce(int[] s, int[] sa, boolean[] stype, int[] buckets)
+    {
+        int n = sa.length;
+
+        // L-type suffixes from the start of the buckets, left to right
+        bucketStarts(s, buckets);
+        for (int i = 0; i < n; i++)
+        {
+            int j = sa[i] - 1;
+            if (j >= 0 && !stype[j])
+                sa[buckets[s[j]]++] = j;
+        }
+
+        // S-type suffixes from the end of the buckets, right to left
+        bucketEnds(s, buckets);
+        for (int i = n - 1; i >= 0; i--)
+        {
+            int j = sa[i] - 1;
+            if (j >= 0 && stype[j])
+                sa[--buckets[s[j]]] = j;
+        }
+    }
+
+    private static boolean equalSubstrings(int[] s, boolean[] stype, int a, int b)
+    {
+        for (int i = 0; ; i++)
+        {
+            if (s[a + i] != s[b + i] || stype[a + i] != stype[b + i])
+                return false;
+
+            if (i > 0 && (isLMS(stype, a + i) || isLMS(stype, b + i)))
+                return isLMS(stype, a + i) && isLMS(stype, b + i);
+        }
+    }
+
+    private static boolean isLMS(boolean[] stype, int i)
+    {
+        return i > 0 && stype[i] && !stype[i - 1];
+    }
+
+    private static void bucketStarts(int[] s, int[] buckets)
+    {
+        Arrays.fill(buckets, 0);
+        for (int symbol : s)
+            buckets[symbol]++;
+
+        for (int c = 0, sum = 0; c < buckets.length; c++)
+        {
+            int size = buckets[c];
+            buckets[c] = sum;
+            sum += size;
+        }
+    }
+
+    private static void bucketEnds(int[] s, int[] buckets)
+    {
+        Arrays.fill(buckets, 0);
+        for (int symbol : s)
+            buckets[symbol]++;
+
+        for (int c = 0, sum = 0; c < buckets.length; c++)
+        {
+            sum += buckets[c];
+            buckets[c] = sum;
+        }
+    }
+}
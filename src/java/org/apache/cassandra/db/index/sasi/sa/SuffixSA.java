@@ -19,21 +19,49 @@ package org.apache.cassandra.db.index.sasi.sa;
 
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 
+import org.apache.cassandra.db.index.sasi.disk.MutableTokenTreeBuilder;
 import org.apache.cassandra.db.index.sasi.disk.OnDiskIndexBuilder;
+import org.apache.cassandra.db.index.sasi.disk.PrimitiveTokenTreeBuilder;
 import org.apache.cassandra.db.index.sasi.disk.TokenTreeBuilder;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.utils.Pair;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
-import net.mintern.primitive.Primitive;
-import net.mintern.primitive.comparators.LongComparator;
 
+/**
+ * Suffix array of the text terms, suffixes of the terms are sorted by building suffix array of the
+ * concatenation of the terms with {@link SAIS} (in runs of at most {@link #MAX_RUN_CHARS} characters
+ * to bound the memory used for construction) and merged into the distinct suffixes with their tokens.
+ */
 public class SuffixSA extends SA<CharBuffer>
 {
+    /**
+     * Maximum number of characters sorted at once, SA-IS needs about 9 bytes per character on top of the terms,
+     * segments bigger than that are sorted in runs, which are merged while iterating.
+     */
+    public static final int MAX_RUN_CHARS = Integer.getInteger("cassandra.sasi.suffix_array_max_run_chars", 1 << 24);
+
+    // symbols of the suffix array text: 0 - end of the text, 1 - end of the term, characters start from 2
+    private static final int END_OF_TEXT = 0, END_OF_TERM = 1;
+
+    private final int maxRunChars;
+
     public SuffixSA(AbstractType<?> comparator, OnDiskIndexBuilder.Mode mode)
+    {
+        this(comparator, mode, MAX_RUN_CHARS);
+    }
+
+    @VisibleForTesting
+    SuffixSA(AbstractType<?> comparator, OnDiskIndexBuilder.Mode mode, int maxRunChars)
     {
         super(comparator, mode);
+        this.maxRunChars = maxRunChars;
     }
 
     @Override
@@ -48,43 +76,139 @@ public class SuffixSA extends SA<CharBuffer>
         return new SASuffixIterator();
     }
 
+    private static final int SURROGATE_COUNT = Character.MAX_SURROGATE - Character.MIN_SURROGATE + 1;
+
+    /**
+     * Rank of the character in the UTF-8 byte order: surrogates are moved above the rest of the BMP characters,
+     * so surrogate pairs (supplementary code points) sort after all of them, same as their UTF-8 encoding does.
+     */
+    private static int rank(char c)
+    {
+        if (c < Character.MIN_SURROGATE)
+            return c;
+
+        return c > Character.MAX_SURROGATE ? c - SURROGATE_COUNT : c + (Character.MAX_VALUE - Character.MAX_SURROGATE);
+    }
+
     private class SASuffixIterator extends TermIterator
     {
+        // each element has term index and char position encoded as two 32-bit integers,
+        // suffixes are sorted within each of the runs
         private final long[] suffixes;
+        private final List<Run> sortedRuns = new ArrayList<>();
+        private final PriorityQueue<Run> runs;
 
-        private int current = 0;
         private ByteBuffer lastProcessedSuffix;
-        private TokenTreeBuilder container;
+        private MutableTokenTreeBuilder container;
 
         public SASuffixIterator()
         {
-            // each element has term index and char position encoded as two 32-bit integers
-            // to avoid binary search per suffix while sorting suffix array.
             suffixes = new long[charCount];
 
-            long termIndex = -1, currentTermLength = -1;
-            for (int i = 0; i < charCount; i++)
+            for (int termIndex = 0, size = 0; termIndex < terms.size(); )
             {
-                if (i >= currentTermLength || currentTermLength == -1)
+                // runs consist of whole terms, so term longer than the limit makes a run on its own
+                int runEnd = termIndex, runChars = 0;
+                do
                 {
-                    Term currentTerm = terms.get((int) ++termIndex);
-                    currentTermLength = currentTerm.getPosition() + currentTerm.length();
+                    runChars += terms.get(runEnd++).length();
                 }
+                while (runEnd < terms.size() && runChars + terms.get(runEnd).length() <= maxRunChars);
 
-                suffixes[i] = (termIndex << 32) | i;
+                int runSize = sortRun(termIndex, runEnd, runChars, size);
+                if (runSize > 0)
+                    sortedRuns.add(new Run(size, size + runSize));
+
+                size += runSize;
+                termIndex = runEnd;
             }
 
-            Primitive.sort(suffixes, new LongComparator()
+            runs = new PriorityQueue<>(Math.max(1, sortedRuns.size()), new Comparator<Run>()
             {
                 @Override
-                public int compare(long a, long b)
+                public int compare(Run a, Run b)
                 {
-                    Term aTerm = terms.get((int) (a >>> 32));
-                    Term bTerm = terms.get((int) (b >>> 32));
-                    return comparator.compare(aTerm.getSuffix(((int) a) - aTerm.getPosition()),
-                                              bTerm.getSuffix(((int) b) - bTerm.getPosition()));
+                    return comparator.compare(a.suffix, b.suffix);
                 }
             });
+
+            runs.addAll(sortedRuns);
+        }
+
+        /**
+         * Sort suffixes of the given terms and put them into the suffixes array.
+         *
+         * @return The number of the suffixes in the run.
+         */
+        private int sortRun(int firstTerm, int lastTerm, int runChars, int offset)
+        {
+            int firstChar = terms.get(firstTerm).getPosition();
+
+            // map used characters to the dense alphabet, preserving their order
+            int[] alphabet = new int[Character.MAX_VALUE + 1];
+            for (int i = firstTerm; i < lastTerm; i++)
+            {
+                CharBuffer value = terms.get(i).value;
+                for (int j = value.position(); j < value.limit(); j++)
+                    alphabet[rank(value.get(j))] = 1;
+            }
+
+            int alphabetSize = END_OF_TERM + 1;
+            for (int i = 0; i < alphabet.length; i++)
+            {
+                if (alphabet[i] != 0)
+                    alphabet[i] = alphabetSize++;
+            }
+
+            int[] text = new int[runChars + (lastTerm - firstTerm) + 1];
+            for (int i = firstTerm, position = 0; i < lastTerm; i++)
+            {
+                CharBuffer value = terms.get(i).value;
+                for (int j = value.position(); j < value.limit(); j++)
+                    text[position++] = alphabet[rank(value.get(j))];
+
+                text[position++] = END_OF_TERM;
+            }
+
+            text[text.length - 1] = END_OF_TEXT;
+
+            int[] sa = SAIS.sort(text, alphabetSize);
+
+            // symbols are not needed anymore, re-use the text to map text positions back to the terms
+            for (int i = firstTerm, position = 0; i < lastTerm; i++)
+            {
+                for (int j = terms.get(i).length(); j >= 0; j--)
+                    text[position++] = i;
+            }
+
+            int size = 0;
+            for (int position : sa)
+            {
+                if (position == text.length - 1)
+                    continue;
+
+                int termIndex = text[position];
+                Term<CharBuffer> term = terms.get(termIndex);
+
+                // position of the char relative to the first char of the run excludes ends of the previous terms
+                int charPosition = firstChar + position - (termIndex - firstTerm);
+                int start = charPosition - term.getPosition();
+
+                // skip ends of the terms and the middle of the surrogate pairs, they don't start any suffix
+                if (start == term.length() || isLowSurrogate(term.value, start))
+                    continue;
+
+                suffixes[offset + size++] = ((long) termIndex << 32) | charPosition;
+            }
+
+            return size;
+        }
+
+        private boolean isLowSurrogate(CharBuffer value, int start)
+        {
+            return start > 0
+                   && Character.isLowSurrogate(value.get(value.position() + start))
+                   && Character.isHighSurrogate(value.get(value.position() + start - 1));
         }
 
         private Pair<ByteBuffer, TokenTreeBuilder> suffixAt(int position)
@@ -97,13 +221,29 @@ public class SuffixSA extends SA<CharBuffer>
         @Override
         public ByteBuffer minTerm()
         {
-            return suffixAt(0).left;
+            ByteBuffer min = null;
+            for (Run run : sortedRuns)
+            {
+                ByteBuffer first = suffixAt(run.start).left;
+                if (min == null || comparator.compare(first, min) < 0)
+                    min = first;
+            }
+
+            return min;
         }
 
         @Override
         public ByteBuffer maxTerm()
         {
-            return suffixAt(suffixes.length - 1).left;
+            ByteBuffer max = null;
+            for (Run run : sortedRuns)
+            {
+                ByteBuffer last = suffixAt(run.end - 1).left;
+                if (max == null || comparator.compare(last, max) > 0)
+                    max = last;
+            }
+
+            return max;
         }
 
         @Override
@@ -111,7 +251,7 @@ public class SuffixSA extends SA<CharBuffer>
         {
             while (true)
             {
-                if (current >= suffixes.length)
+                if (runs.isEmpty())
                 {
                     if (lastProcessedSuffix == null)
                         return endOfData();
@@ -122,24 +262,30 @@ public class SuffixSA extends SA<CharBuffer>
                     return result;
                 }
 
-                Pair<ByteBuffer, TokenTreeBuilder> suffix = suffixAt(current++);
+                Run run = runs.poll();
+                Pair<ByteBuffer, TokenTreeBuilder> suffix = Pair.create(run.suffix, run.tokens);
+
+                if (run.advance())
+                    runs.add(run);
 
                 if (lastProcessedSuffix == null)
                 {
                     lastProcessedSuffix = suffix.left;
-                    container = new TokenTreeBuilder(suffix.right.getTokens());
+                    container = new PrimitiveTokenTreeBuilder();
+                    container.add(suffix.right);
                 }
                 else if (comparator.compare(lastProcessedSuffix, suffix.left) == 0)
                 {
                     lastProcessedSuffix = suffix.left;
-                    container.add(suffix.right.getTokens());
+                    container.add(suffix.right);
                 }
                 else
                 {
                     Pair<ByteBuffer, TokenTreeBuilder> result = finishSuffix();
 
                     lastProcessedSuffix = suffix.left;
-                    container = new TokenTreeBuilder(suffix.right.getTokens());
+                    container = new PrimitiveTokenTreeBuilder();
+                    container.add(suffix.right);
 
                     return result;
                 }
@@ -148,7 +294,40 @@ public class SuffixSA extends SA<CharBuffer>
 
         private Pair<ByteBuffer, TokenTreeBuilder> finishSuffix()
         {
-            return Pair.create(lastProcessedSuffix, container.finish());
+            return Pair.create(lastProcessedSuffix, container);
+        }
+
+        /**
+         * Sorted run of the suffixes, positioned at its current suffix.
+         */
+        private class Run
+        {
+            private final int start, end;
+            private int current;
+
+            private ByteBuffer suffix;
+            private TokenTreeBuilder tokens;
+
+            public Run(int start, int end)
+            {
+                this.start = start;
+                this.end = end;
+                this.current = start;
+
+                advance();
+            }
+
+            public boolean advance()
+            {
+                if (current >= end)
+                    return false;
+
+                Pair<ByteBuffer, TokenTreeBuilder> next = suffixAt(current++);
+
+                suffix = next.left;
+                tokens = next.right;
+                return true;
+            }
         }
     }
 }
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.utils;
+
+/**
+ * Range of long tokens which is always {@link BlockReadable}, subclasses only have to read the tokens
+ * which are yet to be computed.
+ *
+ * @param <D> The container type which is going to be returned by {@link java.util.Iterator#next()}.
+ */
+public abstract class BlockRangeIterator<D extends CombinedValue<Long>> extends RangeIterator<Long, D> implements BlockReadable
+{
+    protected BlockRangeIterator(Long min, Long max, long count)
+    {
+        super(min, max, count);
+    }
+
+    @Override
+    public final int peekTokens(long[] buffer, int offset)
+    {
+        int computed = peekComputed(this, buffer, offset);
+        return computed < 0 ? 0 : computed + readTokens(buffer, offset + computed);
+    }
+
+    /**
+     * Copy the token which has already been computed by {@link #hasNext()} of the given range, if any, into the buffer,
+     * the rest of the tokens are read by the {@link BlockReadable} ranges on their own.
+     *
+     * @param range The range to copy computed token of.
+     * @param buffer The buffer to copy token into.
+     * @param offset The position in the buffer to copy token to.
+     *
+     * @return The number of tokens copied (0 or 1), or -1 if range is exhausted or buffer is full.
+     */
+    public static int peekComputed(RangeIterator<Long, ? extends CombinedValue<Long>> range, long[] buffer, int offset)
+    {
+        if (offset >= buffer.length)
+            return -1;
+
+        switch (range.state)
+        {
+            case DONE:
+                return -1;
+
+            case READY:
+                buffer[offset] = range.next.get();
+                return 1;
+
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Copy the tokens which are yet to be computed by the range into the buffer, see {@link #peekTokens(long[], int)}.
+     */
+    protected abstract int readTokens(long[] buffer, int offset);
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.utils;
+
+/**
+ * Range of long tokens which could be read in bulk, which is what block-at-a-time intersection
+ * (see {@link RangeIntersectionIterator}) requires from all of its ranges.
+ */
+public interface BlockReadable
+{
+    /**
+     * Copy the tokens at and after the current position of the range, starting from the one which has
+     * already been computed by {@link RangeIterator#hasNext()} if any, into the given buffer,
+     * without consuming them or materializing their containers.
+     *
+     * @param buffer The buffer to copy tokens into.
+     * @param offset The position in the buffer to start from.
+     *
+     * @return The number of tokens copied, which could be less than the buffer has space for,
+     * all of the tokens of the range up to the last copied one are guaranteed to be present, 0 if range is exhausted.
+     */
+    int peekTokens(long[] buffer, int offset);
+}
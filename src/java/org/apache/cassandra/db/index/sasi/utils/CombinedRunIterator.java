@@ -0,0 +1,292 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.utils;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.cassandra.db.index.sasi.disk.BitmapPostings;
+import org.apache.cassandra.db.index.sasi.disk.PrimitiveTokenTreeBuilder;
+import org.apache.cassandra.db.index.sasi.disk.StaticTokenTreeBuilder;
+import org.apache.cassandra.db.index.sasi.disk.TermRun;
+import org.apache.cassandra.db.index.sasi.disk.TokenTreeBuilder;
+import org.apache.cassandra.db.index.sasi.sa.TermIterator;
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.utils.Pair;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+/**
+ * Merges sorted runs of the terms into a single sorted sequence of terms, in one pass over the runs.
+ *
+ * Tokens of the term which fit into a single token tree leaf are loaded into memory, tokens of the bigger terms
+ * are merged from the runs on the fly, every time they are iterated, so memory use doesn't depend on size of the terms.
+ */
+public class CombinedRunIterator extends TermIterator implements Closeable
+{
+    private final AbstractType<?> comparator;
+    private final List<TermRun> runs;
+    private final List<TermRun.Reader> readers = new ArrayList<>();
+    private final PriorityQueue<TermRun.Reader> queue;
+    private final ByteBuffer min, max;
+
+    public CombinedRunIterator(final AbstractType<?> comparator, List<TermRun> runs)
+    {
+        this.comparator = comparator;
+        this.runs = runs;
+        this.queue = newQueue(comparator, runs.size());
+
+        ByteBuffer minimum = null, maximum = null;
+        for (TermRun run : runs)
+        {
+            TermRun.Reader reader = run.open();
+            readers.add(reader);
+
+            if (!reader.advance())
+                continue;
+
+            queue.add(reader);
+
+            minimum = (minimum == null || comparator.compare(minimum, run.minTerm()) > 0) ? run.minTerm() : minimum;
+            maximum = (maximum == null || comparator.compare(maximum, run.maxTerm()) < 0) ? run.maxTerm() : maximum;
+        }
+
+        min = minimum;
+        max = maximum;
+    }
+
+    public ByteBuffer minTerm()
+    {
+        return min;
+    }
+
+    public ByteBuffer maxTerm()
+    {
+        return max;
+    }
+
+    @Override
+    protected Pair<ByteBuffer, TokenTreeBuilder> computeNext()
+    {
+        if (queue.isEmpty())
+            return endOfData();
+
+        List<TermRun.Reader> merged = new ArrayList<>();
+        merged.add(queue.poll());
+
+        ByteBuffer term = merged.get(0).term();
+        while (!queue.isEmpty() && comparator.compare(term, queue.peek().term()) == 0)
+            merged.add(queue.poll());
+
+        long tokenCount = 0;
+        List<Iterable<Pair<Long, LongSet>>> sources = new ArrayList<>(merged.size());
+        for (TermRun.Reader reader : merged)
+        {
+            tokenCount += reader.tokenCount();
+            sources.add(reader.tokens());
+        }
+
+        TokenTreeBuilder tokens;
+        if (tokenCount <= TokenTreeBuilder.TOKENS_PER_BLOCK)
+        {
+            PrimitiveTokenTreeBuilder builder = new PrimitiveTokenTreeBuilder();
+            for (Iterable<Pair<Long, LongSet>> source : sources)
+            {
+                for (Pair<Long, LongSet> token : source)
+                {
+                    for (LongCursor offset : token.right)
+                        builder.add(token.left, offset.value);
+                }
+            }
+
+            tokens = builder.finish();
+        }
+        else
+        {
+            // structure of the tree has to be built before readers move on, so the positions of all tokens are known
+            tokens = new StaticTokenTreeBuilder(sources.size() == 1 ? sources.get(0) : new TokenSource(sources)).finish();
+        }
+
+        for (TermRun.Reader reader : merged)
+        {
+            if (reader.advance())
+                queue.add(reader);
+        }
+
+        return Pair.create(term, tokens);
+    }
+
+    /**
+     * Collects all of the tokens of the runs into the token dictionary, if there are enough dense terms for it
+     * to pay off. Runs are read by their own readers, so it doesn't matter how far merge has progressed.
+     *
+     * Runs are read twice: once to get the number of tokens of each of the merged terms, and once again to collect
+     * the tokens, which are de-duplicated after each run, so only one run worth of duplicates is kept in memory
+     * (e.g. the same key under many suffixes of the term).
+     *
+     * @return All of the tokens of the runs, or null if index doesn't need a dictionary.
+     */
+    public TokenTreeBuilder buildTokenDictionary()
+    {
+        LongArrayList tokenCounts = new LongArrayList();
+
+        List<TermRun.Reader> counted = new ArrayList<>(runs.size());
+        try
+        {
+            PriorityQueue<TermRun.Reader> terms = newQueue(comparator, runs.size());
+            for (TermRun run : runs)
+            {
+                TermRun.Reader reader = run.open();
+                counted.add(reader);
+
+                if (reader.advance())
+                    terms.add(reader);
+            }
+
+            while (!terms.isEmpty())
+            {
+                List<TermRun.Reader> merged = new ArrayList<>();
+                merged.add(terms.poll());
+
+                ByteBuffer term = merged.get(0).term();
+                while (!terms.isEmpty() && comparator.compare(term, terms.peek().term()) == 0)
+                    merged.add(terms.poll());
+
+                long tokenCount = 0;
+                for (TermRun.Reader reader : merged)
+                {
+                    tokenCount += reader.tokenCount();
+                    if (reader.advance())
+                        terms.add(reader);
+                }
+
+                tokenCounts.add(tokenCount);
+            }
+        }
+        finally
+        {
+            for (TermRun.Reader reader : counted)
+                FileUtils.closeQuietly(reader);
+        }
+
+        if (!BitmapPostings.needsDictionary(tokenCounts))
+            return null;
+
+        PrimitiveTokenTreeBuilder dictionary = new PrimitiveTokenTreeBuilder();
+        for (TermRun run : runs)
+        {
+            TermRun.Reader reader = run.open();
+
+            try
+            {
+                while (reader.advance())
+                {
+                    for (Pair<Long, LongSet> token : reader.tokens())
+                    {
+                        for (LongCursor offset : token.right)
+                            dictionary.add(token.left, offset.value);
+                    }
+                }
+            }
+            finally
+            {
+                FileUtils.closeQuietly(reader);
+            }
+
+            // sorts and removes the duplicates collected from the run
+            dictionary.getTokenCount();
+        }
+
+        return dictionary;
+    }
+
+    @Override
+    public void close()
+    {
+        for (TermRun.Reader reader : readers)
+            FileUtils.closeQuietly(reader);
+    }
+
+    private static PriorityQueue<TermRun.Reader> newQueue(final AbstractType<?> comparator, int runs)
+    {
+        return new PriorityQueue<>(Math.max(1, runs), new Comparator<TermRun.Reader>()
+        {
+            @Override
+            public int compare(TermRun.Reader a, TermRun.Reader b)
+            {
+                return comparator.compare(a.term(), b.term());
+            }
+        });
+    }
+
+    private static class TokenSource implements Iterable<Pair<Long, LongSet>>
+    {
+        private static final Comparator<Pair<Long, LongSet>> TOKEN_COMPARATOR = new Comparator<Pair<Long, LongSet>>()
+        {
+            @Override
+            public int compare(Pair<Long, LongSet> a, Pair<Long, LongSet> b)
+            {
+                return Long.compare(a.left, b.left);
+            }
+        };
+
+        private final List<Iterable<Pair<Long, LongSet>>> sources;
+
+        private TokenSource(List<Iterable<Pair<Long, LongSet>>> sources)
+        {
+            this.sources = sources;
+        }
+
+        @Override
+        public Iterator<Pair<Long, LongSet>> iterator()
+        {
+            List<Iterator<Pair<Long, LongSet>>> iterators = new ArrayList<>(sources.size());
+            for (Iterable<Pair<Long, LongSet>> source : sources)
+                iterators.add(source.iterator());
+
+            final PeekingIterator<Pair<Long, LongSet>> tokens = Iterators.peekingIterator(Iterators.mergeSorted(iterators, TOKEN_COMPARATOR));
+
+            return new AbstractIterator<Pair<Long, LongSet>>()
+            {
+                @Override
+                protected Pair<Long, LongSet> computeNext()
+                {
+                    if (!tokens.hasNext())
+                        return endOfData();
+
+                    Pair<Long, LongSet> token = tokens.next();
+
+                    // the same token could be in multiple runs (with different offsets) only in case of collision
+                    while (tokens.hasNext() && tokens.peek().left.equals(token.left))
+                    {
+                        for (LongCursor offset : tokens.next().right)
+                            token.right.add(offset.value);
+                    }
+
+                    return token;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.utils;
+
+import java.io.IOException;
+
+import org.apache.cassandra.io.util.FileUtils;
+
+/**
+ * Iterator which produces elements of the "include" range which are not present in the "exclude" range (anti-join).
+ * Include range drives the iteration and exclude range is only ever skipped forward to the current candidate
+ * and never consumed, so its cost depends on the size of the include range and not on its own size,
+ * e.g. only the blocks of the exclude token tree which overlap with the candidates are read.
+ *
+ * Minimum, maximum and count are taken from the include range, count is an upper bound.
+ */
+public class RangeDifferenceIterator<K extends Comparable<K>, D extends CombinedValue<K>> extends RangeIterator<K, D>
+{
+    private final RangeIterator<K, D> include;
+    private RangeIterator<K, D> exclude;
+
+    public RangeDifferenceIterator(RangeIterator<K, D> include, RangeIterator<K, D> exclude)
+    {
+        super(include);
+
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    @Override
+    protected D computeNext()
+    {
+        while (include.hasNext())
+        {
+            D candidate = include.next();
+            if (!isExcluded(candidate))
+                return candidate;
+        }
+
+        return endOfData();
+    }
+
+    @Override
+    protected void performSkipTo(K nextToken)
+    {
+        // exclude range is skipped lazily, only to the candidates which are actually produced
+        include.skipTo(nextToken);
+    }
+
+    /**
+     * Decide if element of the include range should be dropped because of the element
+     * with the same key in the exclude range, e.g. only if all of the values it was combined from are present
+     * in the excluded one, by default equal keys are enough.
+     *
+     * @param candidate The element of the include range.
+     * @param excluded The element of the exclude range with the same key.
+     *
+     * @return true if candidate should be dropped, false otherwise.
+     */
+    protected boolean excludes(D candidate, D excluded)
+    {
+        return true;
+    }
+
+    private boolean isExcluded(D candidate)
+    {
+        if (exclude == null)
+            return false;
+
+        D excluded = exclude.skipTo(candidate.get());
+        if (excluded == null || !exclude.hasNext())
+        {
+            // nothing else to exclude, rest of the include range could be returned as is
+            FileUtils.closeQuietly(exclude);
+            exclude = null;
+            return false;
+        }
+
+        return excluded.get().compareTo(candidate.get()) == 0 && excludes(candidate, excluded);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        FileUtils.closeQuietly(include);
+        FileUtils.closeQuietly(exclude);
+    }
+}
@@ -24,15 +24,19 @@ import java.util.List;
 import java.util.PriorityQueue;
 
 import com.google.common.collect.Iterators;
+import org.apache.cassandra.db.index.sasi.disk.TokenTreeBuilder;
 import org.apache.cassandra.io.util.FileUtils;
 
 import com.google.common.annotations.VisibleForTesting;
 
 public class RangeIntersectionIterator
 {
+    // block-at-a-time intersection has to be enabled explicitly, ADAPTIVE uses bounce intersection otherwise
+    private static final boolean BLOCK_INTERSECTION = Boolean.getBoolean("cassandra.sasi.block_intersection");
+
     protected enum Strategy
     {
-        BOUNCE, LOOKUP, ADAPTIVE
+        BOUNCE, LOOKUP, BLOCK, ADAPTIVE
     }
 
     public static <K extends Comparable<K>, D extends CombinedValue<K>> Builder<K, D> builder()
@@ -72,15 +76,34 @@ public class RangeIntersectionIterator
                 case BOUNCE:
                     return new BounceIntersectionIterator<>(statistics, ranges);
 
+                case BLOCK:
+                    return isBlockReadable()
+                            ? new BlockIntersectionIterator<>(statistics, ranges)
+                            : new BounceIntersectionIterator<>(statistics, ranges);
+
                 case ADAPTIVE:
-                    return statistics.sizeRatio() <= 0.01d
-                            ? new LookupIntersectionIterator<>(statistics, ranges)
+                    if (statistics.sizeRatio() <= 0.01d)
+                        return new LookupIntersectionIterator<>(statistics, ranges);
+
+                    return BLOCK_INTERSECTION && isBlockReadable()
+                            ? new BlockIntersectionIterator<>(statistics, ranges)
                             : new BounceIntersectionIterator<>(statistics, ranges);
 
                 default:
                     throw new IllegalStateException("Unknown strategy: " + strategy);
             }
         }
+
+        private boolean isBlockReadable()
+        {
+            for (RangeIterator<K, D> range : ranges)
+            {
+                if (!(range instanceof BlockReadable))
+                    return false;
+            }
+
+            return true;
+        }
     }
 
     private static abstract class AbstractIntersectionIterator<K extends Comparable<K>, D extends CombinedValue<K>> extends RangeIterator<K, D>
@@ -284,4 +307,178 @@ public class RangeIntersectionIterator
             smallestIterator.skipTo(nextToken);
         }
     }
+
+    /**
+     * Iterator which performs intersection block-at-a-time: tokens of all of the ranges, starting from the same position,
+     * are read in bulk by {@link BlockReadable#peekTokens(long[], int)} (e.g. whole TokenTree leaf) and intersected
+     * as primitive arrays, only the tokens which are present in all of the ranges are materialized and merged,
+     * everything else is skipped without creating containers or going through the virtual calls per token.
+     * Block of the intersection ends at the smallest of the last read tokens, which is where the next block starts.
+     *
+     * Only applicable to the ranges of long tokens which are {@link BlockReadable}.
+     *
+     * @param <K> The type used to sort ranges.
+     * @param <D> The container type which is going to be returned by {@link Iterator#next()}.
+     */
+    @VisibleForTesting
+    protected static class BlockIntersectionIterator<K extends Comparable<K>, D extends CombinedValue<K>> extends AbstractIntersectionIterator<K, D>
+    {
+        private static final int BLOCK_SIZE = TokenTreeBuilder.TOKENS_PER_BLOCK;
+
+        private final RangeIterator<K, D>[] blockRanges;
+        private final BlockReadable[] readers;
+        private final long[][] blocks;
+        private final int[] counts;
+
+        // tokens of the current block which are present in all of the ranges
+        private final long[] survivors;
+        private int survivorCount, survivorIndex;
+
+        // all of the tokens before this one have already been intersected
+        private long position;
+        private boolean isExhausted;
+
+        @SuppressWarnings("unchecked")
+        private BlockIntersectionIterator(Builder.Statistics<K, D> statistics, PriorityQueue<RangeIterator<K, D>> ranges)
+        {
+            super(statistics, ranges);
+
+            blockRanges = ranges.toArray(new RangeIterator[ranges.size()]);
+
+            // builder only picks block intersection when all of the ranges are block readable
+            readers = new BlockReadable[blockRanges.length];
+            for (int i = 0; i < blockRanges.length; i++)
+                readers[i] = (BlockReadable) blockRanges[i];
+            blocks = new long[blockRanges.length][BLOCK_SIZE];
+            counts = new int[blockRanges.length];
+            survivors = new long[BLOCK_SIZE];
+            position = (Long) getMinimum();
+        }
+
+        @Override
+        protected D computeNext()
+        {
+            while (true)
+            {
+                while (survivorIndex >= survivorCount)
+                {
+                    if (isExhausted || !intersectNextBlock())
+                        return endOfData();
+                }
+
+                D candidate = materialize(survivors[survivorIndex++]);
+                if (candidate != null)
+                    return candidate;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void performSkipTo(K nextToken)
+        {
+            long target = (Long) nextToken;
+
+            while (survivorIndex < survivorCount && survivors[survivorIndex] < target)
+                survivorIndex++;
+
+            position = Math.max(position, target);
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean intersectNextBlock()
+        {
+            long limit = (Long) getMaximum();
+            if (position > limit)
+                return false;
+
+            for (int i = 0; i < blockRanges.length; i++)
+            {
+                RangeIterator<K, D> range = blockRanges[i];
+
+                if ((Long) range.getCurrent() < position && range.skipTo((K) Long.valueOf(position)) == null)
+                    return false;
+
+                int count = readers[i].peekTokens(blocks[i], 0);
+                if (count == 0)
+                    return false;
+
+                counts[i] = count;
+                limit = Math.min(limit, blocks[i][count - 1]);
+            }
+
+            int count = intersect(blocks[0], counts[0], blocks[1], counts[1], limit, survivors);
+            for (int i = 2; i < blockRanges.length && count > 0; i++)
+                count = intersect(survivors, count, blocks[i], counts[i], limit, survivors);
+
+            survivorCount = count;
+            survivorIndex = 0;
+
+            if (limit == Long.MAX_VALUE)
+                isExhausted = true;
+            else
+                position = limit + 1;
+
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private D materialize(long token)
+        {
+            K key = (K) Long.valueOf(token);
+
+            D candidate = null;
+            for (RangeIterator<K, D> range : blockRanges)
+            {
+                D point = range.skipTo(key);
+                if (point == null || !point.get().equals(key))
+                    return null;
+
+                range.next();
+
+                if (candidate == null)
+                    candidate = point;
+                else
+                    candidate.merge(point);
+
+                // keys of the same token could be split between multiple elements e.g. in memtable
+                while (range.hasNext() && range.peek().get().equals(key))
+                    candidate.merge(range.next());
+            }
+
+            return candidate;
+        }
+
+        /**
+         * Merge-join of two sorted blocks up to the given limit (inclusive), output could be one of the inputs.
+         */
+        private static int intersect(long[] a, int aCount, long[] b, int bCount, long limit, long[] out)
+        {
+            int i = 0, j = 0, count = 0;
+            while (i < aCount && j < bCount)
+            {
+                long x = a[i], y = b[j];
+                if (x > limit)
+                    break;
+
+                if (x < y)
+                {
+                    i++;
+                }
+                else if (x > y)
+                {
+                    j++;
+                }
+                else
+                {
+                    if (count == 0 || out[count - 1] != x)
+                        out[count++] = x;
+
+                    i++;
+                    j++;
+                }
+            }
+
+            return count;
+        }
+    }
 }
@@ -18,123 +18,178 @@
 package org.apache.cassandra.db.index.sasi.utils;
 
 import java.io.IOException;
-import java.util.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
 
 import org.apache.cassandra.io.util.FileUtils;
 
 /**
  * Range Union Iterator is used to return sorted stream of elements from multiple RangeIterator instances.
  *
- * PriorityQueue is used as a sorting mechanism for the ranges, where each computeNext() operation would poll
- * from the queue (and push when done), which returns range that contains the smallest element, because
- * sorting is done on the moving window of range iteration {@link RangeIterator#getCurrent()}. Once retrieved
- * the smallest element (return candidate) is attempted to be merged with other ranges, because there could
- * be equal elements in adjacent ranges, such ranges are poll'ed only if their {@link RangeIterator#getCurrent()}
- * equals to the return candidate.
+ * Ranges are merged using a loser (tournament) tree: leaves are the ranges, every internal node remembers the range
+ * which lost the comparison of {@link RangeIterator#getCurrent()} at that node and the overall winner, which holds
+ * the smallest element, is kept at the root. Once winner is consumed or skipped only the path from its leaf to the root
+ * has to be replayed, which takes log(k) comparisons and doesn't allocate, compared to poll/add of the priority queue.
+ * Ranges positioned at the same element as the return candidate end up as the consecutive winners,
+ * so their elements are merged into the candidate before it's returned.
  *
  * @param <K> The type used to sort ranges.
  * @param <D> The container type which is going to be returned by {@link Iterator#next()}.
  */
 public class RangeUnionIterator<K extends Comparable<K>, D extends CombinedValue<K>> extends RangeIterator<K, D>
 {
-    private final PriorityQueue<RangeIterator<K, D>> ranges;
+    // bulk reads sort tokens of all of the ranges, which only pays off for a small number of them e.g. SSTables
+    private static final int MAX_BLOCK_READABLE_RANGES = 32;
 
+    // exhausted ranges are closed and replaced with null, which loses to everything
+    private final RangeIterator<K, D>[] ranges;
+
+    // tree[0] is the index of the winning range, tree[1..k-1] are the losers of the internal nodes,
+    // leaf of the range i is the node k + i, so parent of the node n is n / 2.
+    private final int[] tree;
+
+    @SuppressWarnings("unchecked")
     private RangeUnionIterator(Builder.Statistics<K, D> statistics, PriorityQueue<RangeIterator<K, D>> ranges)
     {
         super(statistics);
-        this.ranges = ranges;
+
+        this.ranges = ranges.toArray(new RangeIterator[ranges.size()]);
+        this.tree = new int[this.ranges.length];
+
+        for (int i = 0; i < this.ranges.length; i++)
+            advance(i);
+
+        tree[0] = build(1);
     }
 
     @Override
     public D computeNext()
     {
-        RangeIterator<K, D> head = null;
+        int winner = tree[0];
+        if (ranges[winner] == null)
+            return endOfData();
 
-        while (!ranges.isEmpty())
+        D candidate = ranges[winner].next();
+        replay(advance(winner));
+
+        // ranges which are positioned at the same element are going to be next winners
+        while (ranges[tree[0]] != null && ranges[tree[0]].getCurrent().compareTo(candidate.get()) == 0)
         {
-            head = ranges.poll();
-            if (head.hasNext())
-                break;
+            winner = tree[0];
 
-            FileUtils.closeQuietly(head);
+            candidate.merge(ranges[winner].next()); // consume and merge
+            replay(advance(winner));
         }
 
-        if (head == null || !head.hasNext())
-            return endOfData();
-
-        D candidate = head.next();
-
-        List<RangeIterator<K, D>> processedRanges = new ArrayList<>();
-
-        if (head.hasNext())
-            processedRanges.add(head);
-        else
-            FileUtils.closeQuietly(head);
+        return candidate;
+    }
 
-        while (!ranges.isEmpty())
+    @Override
+    protected void performSkipTo(K nextToken)
+    {
+        // only the ranges which are behind of the requested position are touched
+        while (ranges[tree[0]] != null && ranges[tree[0]].getCurrent().compareTo(nextToken) < 0)
         {
-            // peek here instead of poll is an optimization
-            // so we can re-insert less ranges back if candidate
-            // is less than head of the current range.
-            RangeIterator<K, D> range = ranges.peek();
+            int winner = tree[0];
+            RangeIterator<K, D> range = ranges[winner];
 
-            int cmp = candidate.get().compareTo(range.getCurrent());
-
-            assert cmp <= 0;
-
-            if (cmp < 0)
+            if (range.getMaximum().compareTo(nextToken) >= 0)
             {
-                break; // candidate is smaller than next token, return immediately
+                range.skipTo(nextToken);
+                advance(winner);
             }
-            else if (cmp == 0)
+            else
             {
-                candidate.merge(range.next()); // consume and merge
+                FileUtils.closeQuietly(range);
+                ranges[winner] = null;
+            }
+
+            replay(winner);
+        }
+    }
 
-                range = ranges.poll();
-                // re-prioritize changed range
+    @Override
+    public void close() throws IOException
+    {
+        for (int i = 0; i < ranges.length; i++)
+        {
+            FileUtils.closeQuietly(ranges[i]);
+            ranges[i] = null;
+        }
+    }
 
-                if (range.hasNext())
-                    processedRanges.add(range);
-                else
-                    FileUtils.closeQuietly(range);
-            }
+    /**
+     * Position given range at its next element, so {@link RangeIterator#getCurrent()} is exact,
+     * or close the range if it's exhausted.
+     *
+     * @return The index of the range.
+     */
+    private int advance(int index)
+    {
+        RangeIterator<K, D> range = ranges[index];
+        if (range != null && !range.hasNext())
+        {
+            FileUtils.closeQuietly(range);
+            ranges[index] = null;
         }
 
-        ranges.addAll(processedRanges);
-        return candidate;
+        return index;
     }
 
-    @Override
-    protected void performSkipTo(K nextToken)
+    /**
+     * Play the matches of the sub-tree rooted at the given node, recording the losers.
+     *
+     * @return The index of the winning range.
+     */
+    private int build(int node)
     {
-        List<RangeIterator<K, D>> changedRanges = new ArrayList<>();
+        if (node >= ranges.length)
+            return node - ranges.length;
 
-        while (!ranges.isEmpty())
+        int left = build(node * 2), right = build(node * 2 + 1);
+        if (wins(left, right))
         {
-            if (ranges.peek().getCurrent().compareTo(nextToken) >= 0)
-                break;
+            tree[node] = right;
+            return left;
+        }
 
-            RangeIterator<K, D> head = ranges.poll();
+        tree[node] = left;
+        return right;
+    }
 
-            if (head.getMaximum().compareTo(nextToken) >= 0)
+    /**
+     * Replay the matches from the leaf of the given range to the root, after the range has moved.
+     */
+    private void replay(int index)
+    {
+        int winner = index;
+        for (int node = (ranges.length + index) >>> 1; node > 0; node >>>= 1)
+        {
+            if (wins(tree[node], winner))
             {
-                head.skipTo(nextToken);
-                changedRanges.add(head);
-                continue;
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
             }
-
-            FileUtils.closeQuietly(head);
         }
 
-        for (RangeIterator<K, D> range : changedRanges)
-            ranges.add(range);
+        tree[0] = winner;
     }
 
-    @Override
-    public void close() throws IOException
+    private boolean wins(int a, int b)
     {
-        for (RangeIterator<K, D> range : ranges)
-            FileUtils.closeQuietly(range);
+        RangeIterator<K, D> rangeA = ranges[a], rangeB = ranges[b];
+
+        if (rangeA == null)
+            return false;
+
+        if (rangeB == null)
+            return true;
+
+        int cmp = rangeA.getCurrent().compareTo(rangeB.getCurrent());
+        return cmp < 0 || (cmp == 0 && a < b);
     }
 
     public static <K extends Comparable<K>, D extends CombinedValue<K>> Builder<K, D> builder()
@@ -155,9 +210,103 @@ public class RangeUnionIterator<K extends Comparable<K>, D extends CombinedValue
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         protected RangeIterator<K, D> buildIterator()
         {
-            return new RangeUnionIterator<>(statistics, ranges);
+            return isBlockReadable()
+                    ? new BlockUnionIterator(statistics, ranges)
+                    : new RangeUnionIterator<>(statistics, ranges);
+        }
+
+        private boolean isBlockReadable()
+        {
+            if (ranges.size() > MAX_BLOCK_READABLE_RANGES)
+                return false;
+
+            for (RangeIterator<K, D> range : ranges)
+            {
+                if (!(range instanceof BlockReadable))
+                    return false;
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Union of the {@link BlockReadable} ranges, which is block readable itself:
+     * tokens read in bulk from all of the ranges are sorted and de-duplicated.
+     */
+    private static class BlockUnionIterator<D extends CombinedValue<Long>> extends RangeUnionIterator<Long, D> implements BlockReadable
+    {
+        private final BlockReadable[] readers;
+
+        // per-range buffers of the bulk token reads, allocated on the first use
+        private long[][] blocks;
+        private long[] merged;
+
+        private BlockUnionIterator(Builder.Statistics<Long, D> statistics, PriorityQueue<RangeIterator<Long, D>> ranges)
+        {
+            super(statistics, ranges);
+
+            RangeIterator<Long, D>[] unionRanges = ((RangeUnionIterator<Long, D>) this).ranges;
+
+            // builder only creates block union when all of the ranges are block readable
+            readers = new BlockReadable[unionRanges.length];
+            for (int i = 0; i < unionRanges.length; i++)
+                readers[i] = (BlockReadable) unionRanges[i];
+        }
+
+        @Override
+        public int peekTokens(long[] buffer, int offset)
+        {
+            int computed = BlockRangeIterator.peekComputed(this, buffer, offset);
+            return computed < 0 ? 0 : computed + readTokens(buffer, offset + computed);
+        }
+
+        private int readTokens(long[] buffer, int offset)
+        {
+            RangeIterator<Long, D>[] ranges = ((RangeUnionIterator<Long, D>) this).ranges;
+
+            if (blocks == null || blocks[0].length != buffer.length)
+            {
+                blocks = new long[ranges.length][buffer.length];
+                merged = new long[ranges.length * buffer.length];
+            }
+
+            // tokens are only complete up to the smallest of the last tokens of the ranges
+            long limit = Long.MAX_VALUE;
+            int total = 0;
+            for (int i = 0; i < ranges.length; i++)
+            {
+                if (ranges[i] == null)
+                    continue;
+
+                int count = readers[i].peekTokens(blocks[i], 0);
+                if (count == 0)
+                    continue;
+
+                limit = Math.min(limit, blocks[i][count - 1]);
+                System.arraycopy(blocks[i], 0, merged, total, count);
+                total += count;
+            }
+
+            Arrays.sort(merged, 0, total);
+
+            int position = offset;
+            for (int i = 0; i < total && position < buffer.length; i++)
+            {
+                long token = merged[i];
+                if (token > limit)
+                    break;
+
+                if (position > offset && buffer[position - 1] == token)
+                    continue;
+
+                buffer[position++] = token;
+            }
+
+            return position - offset;
         }
     }
 }
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.io.File;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.index.sasi.memory.KeyRangeIterator;
+import org.apache.cassandra.db.index.sasi.utils.MappedBuffer;
+import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
+import org.apache.cassandra.dht.LongToken;
+import org.apache.cassandra.io.util.RandomAccessReader;
+import org.apache.cassandra.io.util.SequentialWriter;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.LongSet;
+import com.google.common.base.Function;
+
+/**
+ * Measures the cost of skipTo depending on the distance of the skip, for the on-disk token trees and memtable keys,
+ * which is what intersection with a small driving range mostly consists of.
+ */
+public class LongSkipToTest
+{
+    private static final int TOKENS = 1 << 20;
+    private static final int ROUNDS = 5;
+
+    private static final Function<Long, DecoratedKey> KEY_CONVERTER = new Function<Long, DecoratedKey>()
+    {
+        @Override
+        public DecoratedKey apply(Long offset)
+        {
+            return new DecoratedKey(new LongToken(offset), ByteBufferUtil.bytes(offset));
+        }
+    };
+
+    @Test
+    public void testTokenTreeSkipCost() throws Exception
+    {
+        SortedMap<Long, LongSet> tokens = new TreeMap<>();
+        for (long i = 0; i < TOKENS; i++)
+        {
+            LongSet offsets = new LongOpenHashSet();
+            offsets.add(i);
+            tokens.put(i, offsets);
+        }
+
+        File treeFile = File.createTempFile("token-tree-skip-test", "tt");
+        treeFile.deleteOnExit();
+
+        SequentialWriter writer = new SequentialWriter(treeFile, 4096, false);
+        new DynamicTokenTreeBuilder(tokens).finish().write(writer);
+        writer.close();
+
+        RandomAccessReader reader = RandomAccessReader.open(treeFile);
+        final TokenTree tree = new TokenTree(new MappedBuffer(reader));
+
+        measure("TokenTree", new Function<Void, RangeIterator<Long, Token>>()
+        {
+            @Override
+            public RangeIterator<Long, Token> apply(Void input)
+            {
+                return tree.iterator(KEY_CONVERTER);
+            }
+        });
+
+        reader.close();
+    }
+
+    @Test
+    public void testMemtableKeysSkipCost() throws Exception
+    {
+        final ConcurrentSkipListSet<DecoratedKey> keys = new ConcurrentSkipListSet<>(DecoratedKey.comparator);
+        for (long i = 0; i < TOKENS; i++)
+            keys.add(KEY_CONVERTER.apply(i));
+
+        measure("KeyRangeIterator", new Function<Void, RangeIterator<Long, Token>>()
+        {
+            @Override
+            public RangeIterator<Long, Token> apply(Void input)
+            {
+                return new KeyRangeIterator(keys);
+            }
+        });
+    }
+
+    private static void measure(String name, Function<Void, RangeIterator<Long, Token>> iterators) throws Exception
+    {
+        for (int distance = 1; distance <= TOKENS / 16; distance <<= 2)
+        {
+            long best = Long.MAX_VALUE;
+
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                RangeIterator<Long, Token> iterator = iterators.apply(null);
+
+                int skips = 0;
+                long start = System.nanoTime();
+                for (long target = distance; target < TOKENS; target += distance, skips++)
+                {
+                    Token token = iterator.skipTo(target);
+                    Assert.assertNotNull(token);
+                    Assert.assertEquals(target, (long) token.get());
+                }
+
+                best = Math.min(best, (System.nanoTime() - start) / skips);
+                iterator.close();
+            }
+
+            System.out.println(String.format("%s: skip distance %d - %d ns/skip", name, distance, best));
+        }
+    }
+}
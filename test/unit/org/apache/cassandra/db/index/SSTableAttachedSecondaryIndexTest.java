@@ -18,10 +18,13 @@
 package org.apache.cassandra.db.index;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -41,8 +44,15 @@ import org.apache.cassandra.db.filter.IDiskAtomFilter;
 import org.apache.cassandra.db.filter.NamesQueryFilter;
 import org.apache.cassandra.db.index.sasi.conf.ColumnIndex;
 import org.apache.cassandra.db.index.sasi.disk.OnDiskIndexBuilder;
+import org.apache.cassandra.db.index.sasi.disk.Token;
 import org.apache.cassandra.db.index.sasi.exceptions.TimeQuotaExceededException;
+import org.apache.cassandra.db.index.sasi.metrics.IndexMetrics;
+import org.apache.cassandra.db.index.sasi.memory.MemIndex;
+import org.apache.cassandra.db.index.sasi.memory.OffHeapMemIndex;
+import org.apache.cassandra.db.index.sasi.memory.SlabArena;
+import org.apache.cassandra.db.index.sasi.plan.Expression;
 import org.apache.cassandra.db.index.sasi.plan.QueryPlan;
+import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
 import org.apache.cassandra.db.marshal.*;
 import org.apache.cassandra.dht.*;
 import org.apache.cassandra.exceptions.ConfigurationException;
@@ -59,6 +69,9 @@ import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Uninterruptibles;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import junit.framework.Assert;
 
 import org.junit.After;
@@ -2022,6 +2035,301 @@ public class SSTableAttachedSecondaryIndexTest extends SchemaLoader
 
     }
 
+    @Test
+    public void testSearchResultCache() throws Exception
+    {
+        Map<String, Pair<String, Integer>> data = new HashMap<String, Pair<String, Integer>>()
+        {{
+                put("key1", Pair.create("Pavel", 14));
+                put("key2", Pair.create("Pavel", 26));
+                put("key3", Pair.create("Pavel", 27));
+                put("key4", Pair.create("Jason", 27));
+        }};
+
+        ColumnFamilyStore store = loadData(data, true);
+
+        final ByteBuffer firstName = UTF8Type.instance.decompose("first_name");
+        final ByteBuffer age = UTF8Type.instance.decompose("age");
+
+        SSTableAttachedSecondaryIndex backend = (SSTableAttachedSecondaryIndex) store.indexManager.getIndexForColumn(firstName);
+
+        IndexExpression[] expressions = new IndexExpression[] { new IndexExpression(firstName, IndexOperator.EQ, UTF8Type.instance.decompose("a")),
+                                                                new IndexExpression(age, IndexOperator.GT, Int32Type.instance.decompose(20)) };
+
+        Set<String> rows = getIndexed(store, 10, expressions);
+        Assert.assertTrue(rows.toString(), Arrays.equals(new String[] { "key2", "key3", "key4" }, rows.toArray(new String[rows.size()])));
+
+        long hits = backend.getMetrics().cacheHits.count();
+
+        // same query again, this time results of both expressions come from the cache
+        rows = getIndexed(store, 10, expressions);
+        Assert.assertTrue(rows.toString(), Arrays.equals(new String[] { "key2", "key3", "key4" }, rows.toArray(new String[rows.size()])));
+        Assert.assertEquals(hits + 2, backend.getMetrics().cacheHits.count());
+
+        // memtable is not cached so new data is visible right away
+        loadData(new HashMap<String, Pair<String, Integer>>()
+        {{
+                put("key5", Pair.create("Jasmine", 40));
+        }}, false);
+
+        rows = getIndexed(store, 10, expressions);
+        Assert.assertTrue(rows.toString(), Arrays.equals(new String[] { "key2", "key3", "key4", "key5" }, rows.toArray(new String[rows.size()])));
+    }
+
+    @Test
+    public void testPagingFromParkedCursor() throws Exception
+    {
+        Map<String, Pair<String, Integer>> data = new HashMap<>();
+        for (int i = 0; i < 50; i++)
+            data.put(String.format("key%02d", i), Pair.create(i % 2 == 0 ? "Pavel" : "Jason", 20 + i));
+
+        ColumnFamilyStore store = loadData(data, true);
+
+        final ByteBuffer firstName = UTF8Type.instance.decompose("first_name");
+        final ByteBuffer age = UTF8Type.instance.decompose("age");
+
+        IndexExpression[] expressions = new IndexExpression[] { new IndexExpression(firstName, IndexOperator.EQ, UTF8Type.instance.decompose("a")),
+                                                                new IndexExpression(age, IndexOperator.GTE, Int32Type.instance.decompose(30)) };
+
+        Set<String> expected = getIndexed(store, 100, expressions);
+        Assert.assertEquals(40, expected.size());
+
+        SSTableAttachedSecondaryIndex backend = (SSTableAttachedSecondaryIndex) store.indexManager.getIndexForColumn(firstName);
+        IndexMetrics metrics = backend.getMetrics();
+
+        for (int pageSize : new int[] { 1, 3, 7, 40, 41 })
+        {
+            long hits = metrics.cursorHits.count();
+
+            List<Row> page;
+            DecoratedKey lastKey = null;
+            Set<String> keys = new TreeSet<>();
+            int pages = 0;
+
+            do
+            {
+                page = getIndexed(store, new IdentityQueryFilter(), lastKey, pageSize, expressions);
+                keys.addAll(getKeys(page));
+                pages++;
+
+                if (!page.isEmpty())
+                    lastKey = Iterables.getLast(page).key;
+            }
+            while (page.size() == pageSize);
+
+            Assert.assertEquals(expected, keys);
+
+            // every page after the first one continues from the cursor parked by the previous page, except for the page
+            // after the last of the results, because previous page had no candidates left to park the cursor at
+            Assert.assertEquals(page.isEmpty() ? pages - 2 : pages - 1, metrics.cursorHits.count() - hits);
+        }
+
+        // write in the middle of paging makes the rest of the pages re-planned instead of continuing from parked cursor
+        List<Row> page = getIndexed(store, new IdentityQueryFilter(), null, 10, expressions);
+        Assert.assertEquals(10, page.size());
+
+        DecoratedKey lastKey = Iterables.getLast(page).key;
+
+        loadData(new HashMap<String, Pair<String, Integer>>()
+        {{
+                put("key50", Pair.create("Pavel", 70));
+        }}, false);
+
+        long hits = metrics.cursorHits.count(), misses = metrics.cursorMisses.count();
+
+        Set<String> rest = getKeys(getIndexed(store, new IdentityQueryFilter(), lastKey, 100, expressions));
+
+        Assert.assertEquals(hits, metrics.cursorHits.count());
+        Assert.assertEquals(misses + 1, metrics.cursorMisses.count());
+
+        // so every key from the last returned one onwards is visible, including the one written after the first page
+        // if its token is after that page, the same as if query was started from the last returned key in the first place
+        expected = getIndexed(store, 100, expressions);
+        Assert.assertEquals(41, expected.size());
+
+        Set<String> expectedRest = new TreeSet<>();
+        for (String key : expected)
+        {
+            if (StorageService.getPartitioner().decorateKey(AsciiType.instance.decompose(key)).compareTo(lastKey) >= 0)
+                expectedRest.add(key);
+        }
+
+        Assert.assertEquals(expectedRest, rest);
+    }
+
+    @Test
+    public void testConcurrentBatchedQueries() throws Exception
+    {
+        // enough of the matching keys for many fetch batches, spread over a few sstables and the memtable
+        ColumnFamilyStore store = null;
+        for (int generation = 0; generation < 4; generation++)
+        {
+            Map<String, Pair<String, Integer>> data = new HashMap<>();
+            for (int i = 0; i < 200; i++)
+                data.put(String.format("key%d-%03d", generation, i), Pair.create(i % 2 == 0 ? "Pavel" : "Jason", 20 + i % 30));
+
+            store = loadData(data, generation < 3);
+        }
+
+        final ByteBuffer firstName = UTF8Type.instance.decompose("first_name");
+        final ByteBuffer age = UTF8Type.instance.decompose("age");
+
+        final IndexExpression[] expressions = new IndexExpression[] { new IndexExpression(firstName, IndexOperator.EQ, UTF8Type.instance.decompose("a")),
+                                                                      new IndexExpression(age, IndexOperator.GTE, Int32Type.instance.decompose(30)) };
+
+        final Set<String> expected = getIndexed(store, 1000, expressions);
+        Assert.assertEquals(520, expected.size());
+
+        long fetches = getCompletedTasks("SASI-RowFetcher"), searches = getCompletedTasks("SASI-Search");
+
+        // more concurrent queries than the pools have threads, whatever doesn't fit into the pool queues
+        // is done by the query threads themselves, results have to be the same either way
+        final ColumnFamilyStore cfs = store;
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+
+        try
+        {
+            List<Future<Set<String>>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++)
+            {
+                results.add(executor.submit(new Callable<Set<String>>()
+                {
+                    @Override
+                    public Set<String> call() throws Exception
+                    {
+                        return getIndexed(cfs, 1000, expressions);
+                    }
+                }));
+            }
+
+            for (Future<Set<String>> result : results)
+                Assert.assertEquals(expected, result.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        // pools are only missing if they are disabled by the configuration
+        if (fetches >= 0)
+            assertCompletedTasks("SASI-RowFetcher", fetches);
+
+        if (searches >= 0 && DatabaseDescriptor.searchConcurrencyFactor() > 1)
+            assertCompletedTasks("SASI-Search", searches);
+    }
+
+    @Test
+    public void testMemtableIndexSize() throws Exception
+    {
+        ColumnFamilyStore store = Keyspace.open(KS_NAME).getColumnFamilyStore(CF_NAME);
+        SSTableAttachedSecondaryIndex backend = (SSTableAttachedSecondaryIndex) store.indexManager.getIndexForColumn(UTF8Type.instance.decompose("first_name"));
+
+        store.forceBlockingFlush();
+
+        loadData(new HashMap<String, Pair<String, Integer>>()
+        {{
+                put("key1", Pair.create("Pavel", 14));
+                put("key2", Pair.create("Pavel", 26));
+        }}, false);
+
+        long size = backend.getLiveSize();
+        Assert.assertTrue(size > 0);
+        Assert.assertEquals(size, (long) backend.getMetrics().memtableIndexSize.value());
+
+        // same values for the same keys don't grow the index
+        loadData(new HashMap<String, Pair<String, Integer>>()
+        {{
+                put("key1", Pair.create("Pavel", 14));
+        }}, false);
+
+        Assert.assertEquals(size, backend.getLiveSize());
+
+        loadData(new HashMap<String, Pair<String, Integer>>()
+        {{
+                put("key3", Pair.create("Jason", 27));
+        }}, false);
+
+        Assert.assertTrue(backend.getLiveSize() > size);
+
+        store.forceBlockingFlush();
+        Assert.assertEquals(0, backend.getLiveSize());
+    }
+
+    @Test
+    public void testOffHeapMemtableIndex() throws Exception
+    {
+        final ByteBuffer age = UTF8Type.instance.decompose("age");
+        ColumnDefinition column = new ColumnDefinition(age,
+                                                       Int32Type.instance,
+                                                       IndexType.CUSTOM,
+                                                       new HashMap<String, String>()
+                                                       {{
+                                                           put(SecondaryIndex.CUSTOM_INDEX_OPTION_NAME, SSTableAttachedSecondaryIndex.class.getName());
+                                                           put("memtable_allocation", "offheap");
+                                                       }},
+                                                       "age-offheap",
+                                                       null,
+                                                       ColumnDefinition.Type.REGULAR);
+
+        ColumnIndex columnIndex = new ColumnIndex(UTF8Type.instance, column, UTF8Type.instance);
+        Assert.assertEquals(MemIndex.Allocation.OFFHEAP, columnIndex.getMode().memtableAllocation);
+
+        SlabArena arena = new SlabArena();
+        MemIndex index = MemIndex.forColumn(UTF8Type.instance, columnIndex, arena);
+        Assert.assertTrue(index instanceof OffHeapMemIndex);
+
+        for (int i = 0; i < 1000; i++)
+            index.add(Int32Type.instance.decompose(i % 100), UTF8Type.instance.decompose("key" + i));
+
+        // the same key added again doesn't show up twice
+        index.add(Int32Type.instance.decompose(10), UTF8Type.instance.decompose("key10"));
+
+        Assert.assertTrue(arena.allocated() > 0);
+
+        Expression expression = new Expression(age, Int32Type.instance).add(IndexOperator.GTE, Int32Type.instance.decompose(10))
+                                                                       .add(IndexOperator.LT, Int32Type.instance.decompose(12));
+
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 1000; i++)
+        {
+            if (i % 100 == 10 || i % 100 == 11)
+                expected.add("key" + i);
+        }
+
+        Set<String> actual = new HashSet<>();
+        List<String> all = new ArrayList<>();
+        RangeIterator<Long, Token> results = index.search(expression);
+        while (results.hasNext())
+        {
+            for (DecoratedKey key : results.next())
+            {
+                actual.add(UTF8Type.instance.getString(key.key));
+                all.add(UTF8Type.instance.getString(key.key));
+            }
+        }
+
+        // results hold the arena until they are closed
+        results.close();
+
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(expected.size(), all.size());
+
+        // nothing is readable once arena is freed
+        arena.release();
+
+        try
+        {
+            index.search(expression);
+            Assert.fail();
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+
+        Assert.assertEquals(0, index.add(Int32Type.instance.decompose(1), UTF8Type.instance.decompose("key1")));
+    }
+
     private static IndexExpression[] getExpressions(String cqlQuery) throws Exception
     {
         ParsedStatement parsedStatement = QueryProcessor.parseStatement(String.format(cqlQuery, KS_NAME, CF_NAME));
@@ -2054,6 +2362,24 @@ public class SSTableAttachedSecondaryIndexTest extends SchemaLoader
         Keyspace.open(KS_NAME).getColumnFamilyStore(CF_NAME).truncateBlocking();
     }
 
+    private static long getCompletedTasks(String pool) throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.apache.cassandra.internal:type=" + pool);
+
+        return server.isRegistered(name) ? ((Number) server.getAttribute(name, "CompletedTasks")).longValue() : -1;
+    }
+
+    private static void assertCompletedTasks(String pool, long previous) throws Exception
+    {
+        // completed tasks are counted by the pool threads right after the results are handed over, so give them a moment
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (getCompletedTasks(pool) <= previous && System.currentTimeMillis() < deadline)
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(pool, getCompletedTasks(pool) > previous);
+    }
+
     private static Set<String> getIndexed(ColumnFamilyStore store, int maxResults, IndexExpression... expressions)
     {
         return getIndexed(store, new IdentityQueryFilter(), maxResults, expressions);
@@ -18,15 +18,15 @@
 package org.apache.cassandra.db.index.sasi.disk;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.index.sasi.plan.Expression;
-import org.apache.cassandra.db.index.sasi.utils.CombinedTerm;
-import org.apache.cassandra.db.index.sasi.utils.CombinedTermIterator;
-import org.apache.cassandra.db.index.sasi.utils.OnDiskIndexIterator;
+import org.apache.cassandra.db.index.sasi.utils.CombinedRunIterator;
+import org.apache.cassandra.db.index.sasi.utils.RangeIntersectionIterator;
 import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.db.marshal.Int32Type;
@@ -38,6 +38,7 @@ import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.MurmurHash;
 import org.apache.cassandra.utils.Pair;
 
+import com.carrotsearch.hppc.LongOpenHashSet;
 import com.carrotsearch.hppc.LongSet;
 import com.carrotsearch.hppc.cursors.LongCursor;
 
@@ -614,7 +615,7 @@ public class OnDiskIndexTest
     }
 
     @Test
-    public void testCombiningOfThePartitionedSA() throws Exception
+    public void testCombiningOfSpilledRuns() throws Exception
     {
         OnDiskIndexBuilder builderA = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, OnDiskIndexBuilder.Mode.ORIGINAL);
         OnDiskIndexBuilder builderB = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, OnDiskIndexBuilder.Mode.ORIGINAL);
@@ -642,63 +643,133 @@ public class OnDiskIndexTest
             offsets.putAll(keyBuilder(100L + i).getTokens());
         }
 
-        File indexA = File.createTempFile("on-disk-sa-partition-a", ".db");
-        indexA.deleteOnExit();
+        List<TermRun> runs = Arrays.asList(spill(builderA, "on-disk-sa-partition-a"), spill(builderB, "on-disk-sa-partition-b"));
 
-        File indexB = File.createTempFile("on-disk-sa-partition-b", ".db");
-        indexB.deleteOnExit();
+        CombinedRunIterator terms = new CombinedRunIterator(LongType.instance, runs);
 
-        builderA.finish(indexA);
-        builderB.finish(indexB);
+        TreeMap<Long, TreeMap<Long, LongSet>> actual = new TreeMap<>();
+        while (terms.hasNext())
+        {
+            Pair<ByteBuffer, TokenTreeBuilder> term = terms.next();
+            actual.put(LongType.instance.compose(term.left), new TreeMap<>(term.right.getTokens()));
+        }
 
-        OnDiskIndex a = new OnDiskIndex(indexA, LongType.instance, new KeyConverter());
-        OnDiskIndex b = new OnDiskIndex(indexB, LongType.instance, new KeyConverter());
+        terms.close();
 
-        RangeIterator<OnDiskIndex.DataTerm, CombinedTerm> union = OnDiskIndexIterator.union(a, b);
+        Assert.assertEquals(actual, expected);
 
-        TreeMap<Long, TreeMap<Long, LongSet>> actual = new TreeMap<>();
-        while (union.hasNext())
+        OnDiskIndex c = merge(new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, OnDiskIndexBuilder.Mode.ORIGINAL),
+                              LongType.instance, runs, Pair.create(keyAt(0).key, keyAt(100).key), "on-disk-sa-partition-final");
+        actual.clear();
+
+        for (OnDiskIndex.DataTerm term : c)
+            actual.put(LongType.instance.compose(term.getTerm()), collectOffsets(term.getTokens()));
+
+        Assert.assertEquals(actual, expected);
+
+        c.close();
+    }
+
+    @Test
+    public void testMergeOfSpilledRuns() throws Exception
+    {
+        for (OnDiskIndexBuilder.Mode mode : new OnDiskIndexBuilder.Mode[] { OnDiskIndexBuilder.Mode.ORIGINAL, OnDiskIndexBuilder.Mode.SPARSE, OnDiskIndexBuilder.Mode.SUFFIX })
         {
-            CombinedTerm term = union.next();
+            OnDiskIndexBuilder builderA = new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, mode);
+            OnDiskIndexBuilder builderB = new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, mode);
+            OnDiskIndexBuilder builderC = new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, mode);
 
-            Long composedTerm = LongType.instance.compose(term.getTerm());
+            // common term spans many token tree leaves in both of the runs and they share half of the keys
+            for (long i = 0; i < 30000; i++)
+            {
+                builderA.add(UTF8Type.instance.decompose("common"), keyAt(i), i);
+                builderB.add(UTF8Type.instance.decompose("common"), keyAt(i + 15000), i + 15000);
+                builderA.add(UTF8Type.instance.decompose(String.format("a%02d", i % 100)), keyAt(i), i);
+                builderB.add(UTF8Type.instance.decompose(String.format("b%02d", i % 100)), keyAt(i + 15000), i + 15000);
+            }
 
-            TreeMap<Long, LongSet> offsets = actual.get(composedTerm);
-            if (offsets == null)
-                actual.put(composedTerm, (offsets = new TreeMap<>()));
+            // the last run only has a few small terms, one of which is shared with the first run
+            builderC.add(UTF8Type.instance.decompose("a00"), keyAt(50000), 50000);
+            builderC.add(UTF8Type.instance.decompose("c00"), keyAt(50001), 50001);
 
-            offsets.putAll(term.getTokens());
-        }
+            List<TermRun> runs = new ArrayList<>();
+            for (OnDiskIndexBuilder builder : new OnDiskIndexBuilder[] { builderA, builderB, builderC })
+                runs.add(spill(builder, "on-disk-sa-run"));
 
-        Assert.assertEquals(actual, expected);
+            // iterators of the term tokens share the reader of the run, so they have to stay independent of each other
+            // and of the reader, which could move to the next terms while tokens are still being read
+            TermRun.Reader reader = runs.get(2).open();
+            Assert.assertTrue(reader.advance());
 
-        File indexC = File.createTempFile("on-disk-sa-partition-final", ".db");
-        indexC.deleteOnExit();
+            Iterable<Pair<Long, LongSet>> tokens = reader.tokens();
+            List<Long> expectedTokens = new ArrayList<>();
+            for (Pair<Long, LongSet> token : tokens)
+                expectedTokens.add(token.left);
 
-        OnDiskIndexBuilder combined = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, OnDiskIndexBuilder.Mode.ORIGINAL);
-        combined.finish(Pair.create(keyAt(0).key, keyAt(100).key), indexC, new CombinedTermIterator(a, b));
+            Iterator<Pair<Long, LongSet>> first = tokens.iterator(), second = tokens.iterator();
+            Assert.assertTrue(reader.advance());
 
-        OnDiskIndex c = new OnDiskIndex(indexC, LongType.instance, new KeyConverter());
-        union = OnDiskIndexIterator.union(c);
-        actual.clear();
+            for (Long token : expectedTokens)
+            {
+                Assert.assertEquals(token, first.next().left);
+                Assert.assertEquals(token, second.next().left);
+            }
 
-        while (union.hasNext())
-        {
-            CombinedTerm term = union.next();
+            Assert.assertFalse(first.hasNext() || second.hasNext());
+            Assert.assertEquals(reader.tokenCount(), Iterables.size(reader.tokens()));
+            reader.close();
 
-            Long composedTerm = LongType.instance.compose(term.getTerm());
+            // empty builder has nothing to spill
+            Assert.assertNull(spill(new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, mode), "on-disk-sa-run-empty"));
 
-            TreeMap<Long, LongSet> offsets = actual.get(composedTerm);
-            if (offsets == null)
-                actual.put(composedTerm, (offsets = new TreeMap<>()));
+            OnDiskIndex index = merge(new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, mode),
+                                      UTF8Type.instance, runs, Pair.create(keyAt(0).key, keyAt(50001).key), "on-disk-sa-runs-final");
 
-            offsets.putAll(term.getTokens());
+            Set<DecoratedKey> expected = new HashSet<>();
+            for (long i = 0; i < 45000; i++)
+                expected.add(keyAt(i));
+
+            Assert.assertEquals(expected, convert(index.search(expressionFor("common"))));
+
+            if (mode == OnDiskIndexBuilder.Mode.SUFFIX)
+                Assert.assertEquals(expected, convert(index.search(expressionFor("ommon"))));
+
+            for (int i = 0; i < 100; i += 7)
+            {
+                Set<DecoratedKey> expectedA = new HashSet<>(), expectedB = new HashSet<>();
+                for (long j = i; j < 30000; j += 100)
+                {
+                    expectedA.add(keyAt(j));
+                    expectedB.add(keyAt(j + 15000));
+                }
+
+                if (i == 0)
+                    expectedA.add(keyAt(50000));
+
+                Assert.assertEquals(expectedA, convert(index.search(expressionFor(String.format("a%02d", i)))));
+                Assert.assertEquals(expectedB, convert(index.search(expressionFor(String.format("b%02d", i)))));
+            }
+
+            Assert.assertEquals(convert(50001), convert(index.search(expressionFor("c00"))));
+
+            index.close();
         }
+    }
 
-        Assert.assertEquals(actual, expected);
+    private static TreeMap<Long, LongSet> collectOffsets(RangeIterator<Long, Token> tokens)
+    {
+        TreeMap<Long, LongSet> offsets = new TreeMap<>();
+        while (tokens.hasNext())
+        {
+            Token token = tokens.next();
+
+            LongSet tokenOffsets = new LongOpenHashSet(4);
+            token.collectOffsets(tokenOffsets);
+
+            offsets.put(token.get(), tokenOffsets);
+        }
 
-        a.close();
-        b.close();
+        return offsets;
     }
 
     private void testSearchRangeWithSuperBlocks(OnDiskIndex onDiskIndex, long start, long end)
@@ -728,6 +799,584 @@ public class OnDiskIndexTest
         Assert.assertEquals(end - start, keyCount);
     }
 
+    @Test
+    public void testTokenCountEstimation() throws Exception
+    {
+        for (OnDiskIndexBuilder.Mode mode : new OnDiskIndexBuilder.Mode[] { OnDiskIndexBuilder.Mode.ORIGINAL, OnDiskIndexBuilder.Mode.SPARSE, OnDiskIndexBuilder.Mode.RANGE })
+        {
+            OnDiskIndexBuilder builder = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, mode);
+            for (long i = 0; i < 100000; i++)
+                builder.add(LongType.instance.decompose(i), keyAt(i), i);
+
+            OnDiskIndex onDisk = build(builder, LongType.instance, "on-disk-sa-estimation");
+
+            // point and narrow range queries are estimated precisely
+            Assert.assertEquals(1, onDisk.estimateTokenCount(expressionFor(LongType.instance, LongType.instance.decompose(42L))));
+            Assert.assertEquals(0, onDisk.estimateTokenCount(expressionFor(LongType.instance, LongType.instance.decompose(100042L))));
+            Assert.assertEquals(11, onDisk.estimateTokenCount(expressionFor(500, true, 510, true)));
+            Assert.assertEquals(9, onDisk.estimateTokenCount(expressionFor(500, false, 510, false)));
+
+            // wide ranges are extrapolated from the sampled blocks
+            long estimate = onDisk.estimateTokenCount(expressionFor(0, true, 100000, true));
+            Assert.assertTrue("estimate was " + estimate, estimate >= 90000 && estimate <= 110000);
+
+            estimate = onDisk.estimateTokenCount(expressionFor(25000, true, 75000, true));
+            Assert.assertTrue("estimate was " + estimate, estimate >= 45000 && estimate <= 55000);
+
+            onDisk.close();
+        }
+    }
+
+    @Test
+    public void testPackedPostings() throws Exception
+    {
+        for (OnDiskIndexBuilder.Mode mode : new OnDiskIndexBuilder.Mode[] { OnDiskIndexBuilder.Mode.ORIGINAL, OnDiskIndexBuilder.Mode.SPARSE, OnDiskIndexBuilder.Mode.RANGE })
+        {
+            OnDiskIndexBuilder treeBuilder = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, mode);
+            OnDiskIndexBuilder packedBuilder = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, mode, OnDiskIndexBuilder.PostingsCodec.PACKED);
+
+            // mix of terms with single key, a few keys (inline in SPARSE mode) and lots of keys
+            for (long i = 0; i < 100000; i++)
+            {
+                ByteBuffer term = LongType.instance.decompose(i % 1000 < 10 ? i % 1000 : i % 20000 + 1000);
+                treeBuilder.add(term, keyAt(i), i);
+                packedBuilder.add(term, keyAt(i), i);
+            }
+
+            OnDiskIndex treeOnDisk = build(treeBuilder, LongType.instance, "on-disk-sa-tree-postings");
+            OnDiskIndex packedOnDisk = build(packedBuilder, LongType.instance, "on-disk-sa-packed-postings");
+
+            Assert.assertTrue(String.format("%s: packed %d, token tree %d", mode, packedOnDisk.indexSize, treeOnDisk.indexSize),
+                              packedOnDisk.indexSize < treeOnDisk.indexSize);
+
+            // every term which isn't inlined into the block is written with the packed marker, and only by the packed codec
+            for (OnDiskIndex.DataTerm term : treeOnDisk)
+                Assert.assertFalse(term.isPacked());
+
+            int packedTerms = 0;
+            for (OnDiskIndex.DataTerm term : packedOnDisk)
+            {
+                Assert.assertEquals(!term.isSparse(), term.isPacked());
+                if (term.isPacked())
+                    packedTerms++;
+            }
+
+            Assert.assertTrue(packedTerms > 0);
+
+            for (long term : new long[] { 0, 5, 1000, 10042, 20999 })
+            {
+                Expression e = expressionFor(LongType.instance, LongType.instance.decompose(term));
+
+                Assert.assertEquals(treeOnDisk.estimateTokenCount(e), packedOnDisk.estimateTokenCount(e));
+                assertSameResults(treeOnDisk, packedOnDisk, e);
+            }
+
+            for (long lower = 0; lower < 21000; lower += 2500)
+                assertSameResults(treeOnDisk, packedOnDisk, expressionFor(lower, true, lower + 1500, false));
+
+            // intersection skips through the packed postings of both terms
+            RangeIterator<Long, Token> intersection = RangeIntersectionIterator.<Long, Token>builder()
+                                                        .add(packedOnDisk.search(expressionFor(LongType.instance, LongType.instance.decompose(1042L))))
+                                                        .add(packedOnDisk.search(expressionFor(1000, true, 1050, true)))
+                                                        .build();
+
+            Assert.assertEquals(convert(treeOnDisk.search(expressionFor(LongType.instance, LongType.instance.decompose(1042L)))), convert(intersection));
+
+            treeOnDisk.close();
+            packedOnDisk.close();
+        }
+    }
+
+    @Test
+    public void testBitmapPostings() throws Exception
+    {
+        OnDiskIndexBuilder bitmapBuilder = new OnDiskIndexBuilder(UTF8Type.instance, Int32Type.instance, OnDiskIndexBuilder.Mode.ORIGINAL);
+        OnDiskIndexBuilder treeBuilder = new OnDiskIndexBuilder(UTF8Type.instance, Int32Type.instance, OnDiskIndexBuilder.Mode.ORIGINAL);
+
+        // low cardinality column with a couple of rare values which are not dense enough for bitmaps
+        for (long i = 0; i < 100000; i++)
+        {
+            ByteBuffer term = Int32Type.instance.decompose(i % 1000 == 0 ? 100 + (int) (i % 3000) : (int) (i % 5));
+            bitmapBuilder.add(term, keyAt(i), i);
+            treeBuilder.add(term, keyAt(i), i);
+        }
+
+        OnDiskIndex bitmapOnDisk = build(bitmapBuilder, Int32Type.instance, "on-disk-sa-bitmap-postings");
+        OnDiskIndex treeOnDisk = build(treeBuilder, new Descriptor(Descriptor.VERSION_AC), Int32Type.instance, "on-disk-sa-tree-postings");
+
+        Assert.assertTrue(String.format("bitmap %d, token tree %d", bitmapOnDisk.indexSize, treeOnDisk.indexSize),
+                          bitmapOnDisk.indexSize < treeOnDisk.indexSize);
+
+        Assert.assertNotNull(bitmapOnDisk.tokenDictionary);
+        Assert.assertNull(treeOnDisk.tokenDictionary);
+
+        // only the dense terms are written with the bitmap marker, and only by the version which has the dictionary
+        Assert.assertEquals(5, countBitmapTerms(bitmapOnDisk));
+        Assert.assertEquals(0, countBitmapTerms(treeOnDisk));
+
+        for (int term : new int[] { 0, 1, 4, 100, 2100, 7 })
+        {
+            Expression e = expressionFor(Int32Type.instance, Int32Type.instance.decompose(term));
+
+            Assert.assertEquals(treeOnDisk.estimateTokenCount(e), bitmapOnDisk.estimateTokenCount(e));
+            assertSameResults(treeOnDisk, bitmapOnDisk, e);
+        }
+
+        // union of the dense terms is a single bitmap, rare terms are still merged with it
+        for (int[] range : new int[][] { { 0, 4 }, { 1, 3 }, { 2, 200 }, { 0, 3000 } })
+        {
+            assertSameResults(treeOnDisk, bitmapOnDisk, new Expression(ByteBufferUtil.EMPTY_BYTE_BUFFER, Int32Type.instance)
+                                                                .add(IndexOperator.GTE, Int32Type.instance.decompose(range[0]))
+                                                                .add(IndexOperator.LTE, Int32Type.instance.decompose(range[1])));
+        }
+
+        assertSameResults(treeOnDisk, bitmapOnDisk, new Expression(ByteBufferUtil.EMPTY_BYTE_BUFFER, Int32Type.instance)
+                                                            .add(IndexOperator.NOT_EQ, Int32Type.instance.decompose(3)));
+
+        // intersection with other postings skips through the dictionary
+        RangeIterator<Long, Token> intersection = RangeIntersectionIterator.<Long, Token>builder()
+                                                    .add(bitmapOnDisk.search(expressionFor(Int32Type.instance, Int32Type.instance.decompose(2))))
+                                                    .add(treeOnDisk.search(new Expression(ByteBufferUtil.EMPTY_BYTE_BUFFER, Int32Type.instance)
+                                                                            .add(IndexOperator.GTE, Int32Type.instance.decompose(1))
+                                                                            .add(IndexOperator.LTE, Int32Type.instance.decompose(2))))
+                                                    .build();
+
+        Assert.assertEquals(convert(treeOnDisk.search(expressionFor(Int32Type.instance, Int32Type.instance.decompose(2)))), convert(intersection));
+
+        RangeIterator<Long, Token> bitmap = bitmapOnDisk.search(expressionFor(Int32Type.instance, Int32Type.instance.decompose(1)));
+        RangeIterator<Long, Token> tree = treeOnDisk.search(expressionFor(Int32Type.instance, Int32Type.instance.decompose(1)));
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long target = Long.MIN_VALUE; target < Long.MAX_VALUE - Long.MAX_VALUE / 1000; )
+        {
+            target += random.nextLong(0, Long.MAX_VALUE / 1000);
+
+            Token expected = tree.skipTo(target);
+            Token actual = bitmap.skipTo(target);
+
+            Assert.assertEquals(expected == null ? null : expected.get(), actual == null ? null : actual.get());
+            if (expected == null)
+                break;
+
+            Assert.assertEquals(Sets.newHashSet(expected), Sets.newHashSet(actual));
+
+            tree.next();
+            bitmap.next();
+        }
+
+        // index merged from the spilled runs gets the same dictionary, collected from the runs
+        List<TermRun> runs = new ArrayList<>();
+        for (long from = 0; from < 100000; from += 40000)
+        {
+            OnDiskIndexBuilder runBuilder = new OnDiskIndexBuilder(UTF8Type.instance, Int32Type.instance, OnDiskIndexBuilder.Mode.ORIGINAL);
+            for (long i = from; i < Math.min(from + 40000, 100000); i++)
+                runBuilder.add(Int32Type.instance.decompose(i % 1000 == 0 ? 100 + (int) (i % 3000) : (int) (i % 5)), keyAt(i), i);
+
+            runs.add(spill(runBuilder, "on-disk-sa-bitmap-run"));
+        }
+
+        OnDiskIndex mergedOnDisk = merge(new OnDiskIndexBuilder(UTF8Type.instance, Int32Type.instance, OnDiskIndexBuilder.Mode.ORIGINAL),
+                                         Int32Type.instance, runs, Pair.create(keyAt(0).key, keyAt(99999).key), "on-disk-sa-bitmap-merged");
+
+        Assert.assertNotNull(mergedOnDisk.tokenDictionary);
+        Assert.assertEquals(5, countBitmapTerms(mergedOnDisk));
+
+        for (int term : new int[] { 0, 1, 4, 100, 2100, 7 })
+            assertSameResults(treeOnDisk, mergedOnDisk, expressionFor(Int32Type.instance, Int32Type.instance.decompose(term)));
+
+        mergedOnDisk.close();
+        bitmapOnDisk.close();
+        treeOnDisk.close();
+    }
+
+    @Test
+    public void testRangeMode() throws Exception
+    {
+        OnDiskIndexBuilder originalBuilder = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, OnDiskIndexBuilder.Mode.ORIGINAL);
+        OnDiskIndexBuilder rangeBuilder = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, OnDiskIndexBuilder.Mode.RANGE);
+
+        // enough unique terms to have multiple levels of super blocks, plus terms with lots of keys
+        for (long i = 0; i < 150000; i++)
+        {
+            ByteBuffer term = LongType.instance.decompose(i < 120000 ? i : i % 5000);
+            originalBuilder.add(term, keyAt(i), i);
+            rangeBuilder.add(term, keyAt(i), i);
+        }
+
+        OnDiskIndex original = build(originalBuilder, LongType.instance, "on-disk-sa-original");
+        OnDiskIndex range = build(rangeBuilder, LongType.instance, "on-disk-sa-range");
+
+        Assert.assertEquals(OnDiskIndexBuilder.Mode.RANGE, range.mode);
+        Assert.assertTrue(range.dataLevel.superLevelCount() > 1);
+
+        // each level of super blocks merges RANGE_FANOUT blocks of the level below
+        for (int level = 1; level < range.dataLevel.superLevelCount(); level++)
+        {
+            int expected = (range.dataLevel.superBlockCnt[level - 1] + OnDiskIndexBuilder.RANGE_FANOUT - 1) / OnDiskIndexBuilder.RANGE_FANOUT;
+            Assert.assertEquals(expected, range.dataLevel.superBlockCnt[level]);
+        }
+
+        long[][] bounds = { { 0, 119999 }, { 0, 150000 }, { -10, 10 }, { 4000, 6000 }, { 17, 4113 },
+                            { 1000, 66000 }, { 31337, 97531 }, { 65535, 65537 }, { 100000, 200000 } };
+
+        for (long[] bound : bounds)
+        {
+            for (boolean inclusive : new boolean[] { true, false })
+                assertSameResults(original, range, expressionFor(bound[0], inclusive, bound[1], inclusive));
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 20; i++)
+        {
+            long lower = random.nextLong(0, 120000);
+            assertSameResults(original, range, expressionFor(lower, random.nextBoolean(), lower + random.nextLong(0, 60000), random.nextBoolean()));
+        }
+
+        // open-ended ranges and exclusions
+        Expression e = new Expression(ByteBufferUtil.EMPTY_BYTE_BUFFER, LongType.instance);
+        e.add(IndexOperator.GT, LongType.instance.decompose(7777L));
+        assertSameResults(original, range, e);
+
+        e = new Expression(ByteBufferUtil.EMPTY_BYTE_BUFFER, LongType.instance);
+        e.add(IndexOperator.LTE, LongType.instance.decompose(77777L));
+        assertSameResults(original, range, e);
+
+        assertSameResults(original, range, rangeWithExclusions(0, true, 100000, true, Sets.newHashSet(42L, 4242L, 42424L)));
+
+        original.close();
+        range.close();
+    }
+
+    @Test
+    public void testTermBloomFilter() throws Exception
+    {
+        for (OnDiskIndexBuilder.Mode mode : new OnDiskIndexBuilder.Mode[] { OnDiskIndexBuilder.Mode.ORIGINAL, OnDiskIndexBuilder.Mode.SPARSE, OnDiskIndexBuilder.Mode.RANGE })
+        {
+            OnDiskIndexBuilder builder = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, mode);
+            OnDiskIndexBuilder oldBuilder = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, mode);
+
+            // only even terms are present
+            for (long i = 0; i < 100000; i++)
+            {
+                builder.add(LongType.instance.decompose(i * 2), keyAt(i), i);
+                oldBuilder.add(LongType.instance.decompose(i * 2), keyAt(i), i);
+            }
+
+            OnDiskIndex onDisk = build(builder, LongType.instance, "on-disk-sa-bloom-filter");
+            OnDiskIndex oldOnDisk = build(oldBuilder, new Descriptor(Descriptor.VERSION_AD), LongType.instance, "on-disk-sa-no-bloom-filter");
+
+            Assert.assertNotNull(onDisk.termBloomFilter);
+            Assert.assertNull(oldOnDisk.termBloomFilter);
+
+            // present terms are never rejected, absent ones are, apart from the few false positives,
+            // while the index without the filter has to accept all of them
+            int rejected = 0;
+            for (long i = 0; i < 200000; i++)
+            {
+                ByteBuffer term = LongType.instance.decompose(i);
+
+                Assert.assertTrue(oldOnDisk.mayContainTerm(term));
+
+                if (i % 2 == 0)
+                    Assert.assertTrue(onDisk.mayContainTerm(term));
+                else if (!onDisk.mayContainTerm(term))
+                    rejected++;
+            }
+
+            Assert.assertTrue(String.format("%d of 100000 absent terms rejected", rejected), rejected > 98000);
+
+            // terms outside of the indexed range are rejected the same way
+            rejected = 0;
+            for (long i = 1; i <= 1000; i++)
+            {
+                if (!onDisk.mayContainTerm(LongType.instance.decompose(-i)))
+                    rejected++;
+            }
+
+            Assert.assertTrue(String.format("%d of 1000 absent terms rejected", rejected), rejected > 980);
+
+            // the rest of the index is intact
+            assertSameResults(oldOnDisk, onDisk, expressionFor(1000, true, 3000, true));
+
+            onDisk.close();
+            oldOnDisk.close();
+        }
+
+        // literal terms are never pruned by the bloom filter, so it's not written at all
+        OnDiskIndexBuilder literalBuilder = new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, OnDiskIndexBuilder.Mode.ORIGINAL);
+        for (long i = 0; i < 1000; i++)
+            literalBuilder.add(UTF8Type.instance.decompose("term" + i), keyAt(i), i);
+
+        OnDiskIndex literalOnDisk = build(literalBuilder, UTF8Type.instance, "on-disk-sa-literal-no-bloom-filter");
+
+        Assert.assertNull(literalOnDisk.termBloomFilter);
+        Assert.assertTrue(literalOnDisk.mayContainTerm(UTF8Type.instance.decompose("absent")));
+        Assert.assertEquals(convert(999), convert(literalOnDisk.search(new Expression(ByteBufferUtil.EMPTY_BYTE_BUFFER, UTF8Type.instance)
+                                                                            .add(IndexOperator.EQ, UTF8Type.instance.decompose("term999")))));
+
+        literalOnDisk.close();
+    }
+
+    @Test
+    public void testHashMode() throws Exception
+    {
+        OnDiskIndexBuilder originalBuilder = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, OnDiskIndexBuilder.Mode.ORIGINAL);
+        OnDiskIndexBuilder hashBuilder = new OnDiskIndexBuilder(UTF8Type.instance, LongType.instance, OnDiskIndexBuilder.Mode.HASH);
+
+        for (long i = 0; i < 100000; i++)
+        {
+            ByteBuffer term = LongType.instance.decompose(i < 50000 ? i * 3 : i % 1000);
+            originalBuilder.add(term, keyAt(i), i);
+            hashBuilder.add(term, keyAt(i), i);
+        }
+
+        OnDiskIndex original = build(originalBuilder, LongType.instance, "on-disk-sa-original");
+        OnDiskIndex hash = build(hashBuilder, LongType.instance, "on-disk-sa-hash");
+
+        Assert.assertEquals(OnDiskIndexBuilder.Mode.HASH, hash.mode);
+        Assert.assertNotNull(hash.termHashTable);
+        Assert.assertNull(original.termHashTable);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 10000; i++)
+        {
+            ByteBuffer term = LongType.instance.decompose(i < 1000 ? i : random.nextLong(-1000, 200000));
+            Expression e = expressionFor(LongType.instance, term);
+
+            // point lookups skip the block search, hash table alone locates the data term
+            Assert.assertTrue(hash.isHashLookup(e));
+            Assert.assertFalse(original.isHashLookup(e));
+
+            OnDiskIndex.DataTerm dataTerm = hash.getTerm(term);
+            Assert.assertEquals(convert(original.search(e)), convert(dataTerm == null ? null : dataTerm.getTokens()));
+
+            Assert.assertEquals(original.estimateTokenCount(e), hash.estimateTokenCount(e));
+            assertSameResults(original, hash, e);
+        }
+
+        // terms are still ordered so ranges and exclusions work as usual, through the block search
+        Expression e = expressionFor(1000, true, 30000, false);
+        Assert.assertFalse(hash.isHashLookup(e));
+        assertSameResults(original, hash, e);
+
+        e = rangeWithExclusions(0, true, 1000, true, Sets.newHashSet(3L, 42L, 999L));
+        Assert.assertFalse(hash.isHashLookup(e));
+        assertSameResults(original, hash, e);
+
+        original.close();
+        hash.close();
+
+        // variable size terms are matched exactly, not by prefix
+        OnDiskIndexBuilder textBuilder = new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, OnDiskIndexBuilder.Mode.HASH);
+        textBuilder.add(UTF8Type.instance.decompose("abc"), keyAt(1), 1);
+        textBuilder.add(UTF8Type.instance.decompose("abcd"), keyAt(2), 2);
+        textBuilder.add(UTF8Type.instance.decompose("b"), keyAt(3), 3);
+
+        OnDiskIndex text = build(textBuilder, UTF8Type.instance, "on-disk-sa-hash-text");
+
+        Assert.assertEquals(convert(1L), convert(text.search(expressionFor(UTF8Type.instance, UTF8Type.instance.decompose("abc")))));
+        Assert.assertEquals(convert(2L), convert(text.search(expressionFor(UTF8Type.instance, UTF8Type.instance.decompose("abcd")))));
+        Assert.assertNull(text.search(expressionFor(UTF8Type.instance, UTF8Type.instance.decompose("ab"))));
+        Assert.assertNull(text.search(expressionFor(UTF8Type.instance, UTF8Type.instance.decompose("c"))));
+
+        text.close();
+    }
+
+    @Test
+    public void testNGramMode() throws Exception
+    {
+        OnDiskIndexBuilder suffixBuilder = new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, OnDiskIndexBuilder.Mode.SUFFIX);
+        OnDiskIndexBuilder ngramBuilder = new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, OnDiskIndexBuilder.Mode.NGRAM);
+
+        String[] words = new String[] { "Jason", "Jordan", "Pavel", "Aleksey", "Sylvain", "Jonathan", "ason", "son", "n", "saso", "\u041e\u043b\u044c\u0433\u0430" };
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+        {
+            String term = i < words.length ? words[i] : words[random.nextInt(words.length)] + words[random.nextInt(words.length)] + i;
+            terms.add(term);
+
+            suffixBuilder.add(UTF8Type.instance.decompose(term), keyAt(i), i);
+            ngramBuilder.add(UTF8Type.instance.decompose(term), keyAt(i), i);
+        }
+
+        OnDiskIndex suffix = build(suffixBuilder, UTF8Type.instance, "on-disk-sa-suffix");
+        OnDiskIndex ngram = build(ngramBuilder, UTF8Type.instance, "on-disk-sa-ngram");
+
+        Assert.assertTrue(ngram.indexSize < suffix.indexSize);
+        Assert.assertEquals(OnDiskIndexBuilder.Mode.NGRAM, ngram.mode);
+
+        // only the grams are written instead of all of the suffixes
+        for (OnDiskIndex.DataTerm term : ngram)
+        {
+            String gram = UTF8Type.instance.compose(term.getTerm());
+            Assert.assertTrue(gram, gram.length() <= OnDiskIndexBuilder.NGRAM_SIZE);
+        }
+
+        String[] queries = new String[] { "n", "so", "aso", "ason", "Jason", "sonJo", "lvainPa", "\u043b\u044c", "\u041e\u043b\u044c\u0433\u0430", "nn", "sasoson" };
+        for (String query : queries)
+        {
+            Expression e = expressionFor(UTF8Type.instance, UTF8Type.instance.decompose(query));
+
+            Set<DecoratedKey> expected = new HashSet<>();
+            for (int i = 0; i < terms.size(); i++)
+            {
+                if (terms.get(i).contains(query))
+                    expected.add(keyAt(i));
+            }
+
+            Set<DecoratedKey> candidates = convert(ngram.search(e));
+
+            // grams find every term which contains the query, false positives are filtered by the query value
+            Assert.assertTrue(query, candidates.containsAll(expected));
+            Assert.assertEquals(query, convert(suffix.search(e)), expected);
+
+            Set<DecoratedKey> matches = new HashSet<>();
+            for (int i = 0; i < terms.size(); i++)
+            {
+                if (candidates.contains(keyAt(i)) && terms.get(i).contains(query))
+                    matches.add(keyAt(i));
+            }
+
+            Assert.assertEquals(query, expected, matches);
+            Assert.assertTrue(query, ngram.estimateTokenCount(e) >= expected.size());
+        }
+
+        // gram which is not in the index means there could be no matches
+        Assert.assertNull(ngram.search(expressionFor(UTF8Type.instance, UTF8Type.instance.decompose("Jasxon"))));
+
+        suffix.close();
+        ngram.close();
+    }
+
+    @Test
+    public void testTermFST() throws Exception
+    {
+        for (OnDiskIndexBuilder.Mode mode : new OnDiskIndexBuilder.Mode[] { OnDiskIndexBuilder.Mode.ORIGINAL, OnDiskIndexBuilder.Mode.SPARSE })
+        {
+            OnDiskIndexBuilder builder = new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, mode);
+            OnDiskIndexBuilder oldBuilder = new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, mode);
+
+            for (long i = 0; i < 100000; i++)
+            {
+                ByteBuffer term = UTF8Type.instance.decompose(String.format("term-%06d", i * 2));
+                builder.add(term, keyAt(i), i);
+                oldBuilder.add(term, keyAt(i), i);
+            }
+
+            OnDiskIndex onDisk = build(builder, new Descriptor(Descriptor.VERSION_AF), UTF8Type.instance, "on-disk-sa-fst");
+            OnDiskIndex oldOnDisk = build(oldBuilder, new Descriptor(Descriptor.VERSION_AE), UTF8Type.instance, "on-disk-sa-pointer-levels");
+
+            Assert.assertNotNull(onDisk.termFST);
+            Assert.assertEquals(0, onDisk.levels.length);
+            Assert.assertEquals(onDisk.dataLevel.blockCount - 1, onDisk.termFST.termCount());
+
+            Assert.assertNull(oldOnDisk.termFST);
+            Assert.assertTrue(oldOnDisk.levels.length > 0);
+
+            Assert.assertTrue(onDisk.indexSize < oldOnDisk.indexSize);
+            Assert.assertEquals(oldOnDisk.dataLevel.blockCount, onDisk.dataLevel.blockCount);
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 1000; i++)
+            {
+                // exact terms, missing terms and prefixes which match up to a few hundred terms
+                String term = String.format("term-%06d", random.nextInt(210000));
+                term = term.substring(0, random.nextInt(8, term.length() + 1));
+
+                ByteBuffer query = UTF8Type.instance.decompose(term);
+                Expression e = expressionFor(UTF8Type.instance, query);
+
+                // FST locates the same data block as the pointer levels did
+                Assert.assertEquals(term, oldOnDisk.getDataBlock(query), onDisk.getDataBlock(query));
+
+                Set<DecoratedKey> expected = convert(oldOnDisk.search(e));
+                Assert.assertEquals(term, expected, convert(onDisk.search(e)));
+                Assert.assertEquals(term, expected.isEmpty(), onDisk.estimateTokenCount(e) == 0);
+            }
+
+            // prefix which spans most of the blocks is estimated from the sample of them
+            Expression e = expressionFor(UTF8Type.instance, UTF8Type.instance.decompose("term-"));
+            long estimate = onDisk.estimateTokenCount(e);
+            Assert.assertTrue(String.valueOf(estimate), estimate > 50000 && estimate < 200000);
+
+            e = new Expression(ByteBufferUtil.EMPTY_BYTE_BUFFER, UTF8Type.instance);
+            e.add(IndexOperator.GTE, UTF8Type.instance.decompose("term-010000"));
+            e.add(IndexOperator.LT, UTF8Type.instance.decompose("term-150001"));
+            assertSameResults(oldOnDisk, onDisk, e);
+
+            Iterator<OnDiskIndex.DataTerm> terms = onDisk.iteratorAt(UTF8Type.instance.decompose("term-000099"), OnDiskIndex.IteratorOrder.DESC, true);
+            Assert.assertEquals(UTF8Type.instance.decompose("term-000100"), terms.next().getTerm());
+
+            onDisk.close();
+            oldOnDisk.close();
+        }
+    }
+
+    @Test
+    public void testFrontCoding() throws Exception
+    {
+        for (OnDiskIndexBuilder.Mode mode : new OnDiskIndexBuilder.Mode[] { OnDiskIndexBuilder.Mode.ORIGINAL, OnDiskIndexBuilder.Mode.SPARSE, OnDiskIndexBuilder.Mode.HASH })
+        {
+            OnDiskIndexBuilder builder = new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, mode);
+            OnDiskIndexBuilder oldBuilder = new OnDiskIndexBuilder(UTF8Type.instance, UTF8Type.instance, mode);
+
+            // long terms with the long common prefixes, like urls or paths
+            for (long i = 0; i < 50000; i++)
+            {
+                ByteBuffer term = UTF8Type.instance.decompose(String.format("https://www.example.com/catalog/%d/items/%06d", i % 7, i * 2));
+                builder.add(term, keyAt(i), i);
+                oldBuilder.add(term, keyAt(i), i);
+            }
+
+            OnDiskIndex onDisk = build(builder, UTF8Type.instance, "on-disk-sa-front-coded");
+            OnDiskIndex oldOnDisk = build(oldBuilder, new Descriptor(Descriptor.VERSION_AF), UTF8Type.instance, "on-disk-sa-full-terms");
+
+            Assert.assertTrue(String.format("%d vs %d blocks", onDisk.dataLevel.blockCount, oldOnDisk.dataLevel.blockCount),
+                              onDisk.dataLevel.blockCount * 2 < oldOnDisk.dataLevel.blockCount);
+
+            for (int i = 0; i < onDisk.dataLevel.blockCount; i++)
+                Assert.assertTrue(onDisk.dataLevel.getBlock(i).isFrontCoded());
+
+            for (int i = 0; i < oldOnDisk.dataLevel.blockCount; i++)
+                Assert.assertFalse(oldOnDisk.dataLevel.getBlock(i).isFrontCoded());
+
+            // all of the terms are restored in the same order
+            Iterator<OnDiskIndex.DataTerm> terms = onDisk.iterator(), oldTerms = oldOnDisk.iterator();
+            while (oldTerms.hasNext())
+            {
+                Assert.assertTrue(terms.hasNext());
+
+                OnDiskIndex.DataTerm term = terms.next(), oldTerm = oldTerms.next();
+                Assert.assertEquals(oldTerm.getTerm(), term.getTerm());
+                Assert.assertEquals(oldTerm.getTokenCount(), term.getTokenCount());
+            }
+
+            Assert.assertFalse(terms.hasNext());
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 1000; i++)
+            {
+                // exact terms, missing terms and prefixes which match up to a few hundred terms
+                String term = String.format("https://www.example.com/catalog/%d/items/%06d", random.nextInt(8), random.nextInt(110000));
+                term = term.substring(0, random.nextInt(term.length() - 3, term.length() + 1));
+
+                Expression e = expressionFor(UTF8Type.instance, UTF8Type.instance.decompose(term));
+                Assert.assertEquals(term, convert(oldOnDisk.search(e)), convert(onDisk.search(e)));
+                Assert.assertEquals(term, oldOnDisk.estimateTokenCount(e) == 0, onDisk.estimateTokenCount(e) == 0);
+            }
+
+            Expression e = new Expression(ByteBufferUtil.EMPTY_BYTE_BUFFER, UTF8Type.instance);
+            e.add(IndexOperator.GT, UTF8Type.instance.decompose("https://www.example.com/catalog/2/items/010000"));
+            e.add(IndexOperator.LTE, UTF8Type.instance.decompose("https://www.example.com/catalog/4/items/050000"));
+            assertSameResults(oldOnDisk, onDisk, e);
+
+            onDisk.close();
+            oldOnDisk.close();
+        }
+    }
+
     private static DecoratedKey keyAt(long rawKey)
     {
         ByteBuffer key = ByteBuffer.wrap(("key" + rawKey).getBytes());
@@ -736,7 +1385,7 @@ public class OnDiskIndexTest
 
     private static TokenTreeBuilder keyBuilder(Long... keys)
     {
-        TokenTreeBuilder builder = new TokenTreeBuilder();
+        MutableTokenTreeBuilder builder = new DynamicTokenTreeBuilder();
 
         for (final Long key : keys)
         {
@@ -858,6 +1507,72 @@ public class OnDiskIndexTest
         return expressionFor(UTF8Type.instance, UTF8Type.instance.decompose(term));
     }
 
+    private static OnDiskIndex build(OnDiskIndexBuilder builder, AbstractType<?> comparator, String name) throws IOException
+    {
+        return build(builder, Descriptor.CURRENT, comparator, name);
+    }
+
+    /**
+     * Write index of the given version to the temporary file and open it, feature tests usually build
+     * the same terms twice and compare the index which has the feature to the one which doesn't.
+     */
+    private static OnDiskIndex build(OnDiskIndexBuilder builder, Descriptor descriptor, AbstractType<?> comparator, String name) throws IOException
+    {
+        File file = File.createTempFile(name, ".db");
+        file.deleteOnExit();
+
+        builder.finish(descriptor, file);
+        return new OnDiskIndex(file, comparator, new KeyConverter());
+    }
+
+    private static TermRun spill(OnDiskIndexBuilder builder, String name) throws IOException
+    {
+        File run = File.createTempFile(name, ".db");
+        run.deleteOnExit();
+
+        return builder.spill(run);
+    }
+
+    /**
+     * Merge the spilled runs into the final index with the given builder and open it.
+     */
+    private static OnDiskIndex merge(OnDiskIndexBuilder builder, AbstractType<?> comparator, List<TermRun> runs,
+                                     Pair<ByteBuffer, ByteBuffer> range, String name) throws IOException
+    {
+        File file = File.createTempFile(name, ".db");
+        file.deleteOnExit();
+
+        CombinedRunIterator terms = new CombinedRunIterator(comparator, runs);
+
+        try
+        {
+            builder.finish(range, file, terms);
+        }
+        finally
+        {
+            terms.close();
+        }
+
+        return new OnDiskIndex(file, comparator, new KeyConverter());
+    }
+
+    private static int countBitmapTerms(OnDiskIndex index)
+    {
+        int bitmapTerms = 0;
+        for (OnDiskIndex.DataTerm term : index)
+        {
+            if (term.isBitmap())
+                bitmapTerms++;
+        }
+
+        return bitmapTerms;
+    }
+
+    private static void assertSameResults(OnDiskIndex expected, OnDiskIndex actual, Expression e)
+    {
+        Assert.assertEquals(convert(expected.search(e)), convert(actual.search(e)));
+    }
+
     private static void addAll(OnDiskIndexBuilder builder, ByteBuffer term, TokenTreeBuilder tokens)
     {
         for (Map.Entry<Long, LongSet> token : tokens.getTokens().entrySet())
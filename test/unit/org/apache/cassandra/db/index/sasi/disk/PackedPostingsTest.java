@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.index.sasi.utils.MappedBuffer;
+import org.apache.cassandra.db.index.sasi.utils.RangeIterator;
+import org.apache.cassandra.dht.LongToken;
+import org.apache.cassandra.io.util.RandomAccessReader;
+import org.apache.cassandra.io.util.SequentialWriter;
+import org.apache.cassandra.utils.MurmurHash;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.LongSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.google.common.base.Function;
+
+public class PackedPostingsTest
+{
+    private static final Function<Long, DecoratedKey> KEY_CONVERTER = new KeyConverter();
+
+    @Test
+    public void testSerializedSize() throws Exception
+    {
+        SortedMap<Long, LongSet> tokens = randomTokens(10000);
+
+        File postingsFile = write(tokens);
+
+        RandomAccessReader reader = RandomAccessReader.open(postingsFile);
+        Assert.assertEquals(PackedPostings.serializedSize(new DynamicTokenTreeBuilder(tokens)), (int) reader.bytesRemaining());
+        reader.close();
+    }
+
+    @Test
+    public void buildSerializeAndIterate() throws Exception
+    {
+        for (int size : new int[] { 1, 6, PackedPostings.BLOCK_TOKENS, PackedPostings.BLOCK_TOKENS + 1, 10000 })
+        {
+            SortedMap<Long, LongSet> tokens = randomTokens(size);
+
+            RandomAccessReader reader = RandomAccessReader.open(write(tokens));
+            PackedPostings postings = new PackedPostings(new MappedBuffer(reader));
+
+            Assert.assertEquals(tokens.size(), postings.getCount());
+
+            RangeIterator<Long, Token> iterator = postings.iterator(KEY_CONVERTER);
+            Assert.assertEquals(tokens.firstKey(), iterator.getMinimum());
+            Assert.assertEquals(tokens.lastKey(), iterator.getMaximum());
+
+            for (Map.Entry<Long, LongSet> expected : tokens.entrySet())
+            {
+                Assert.assertTrue(iterator.hasNext());
+
+                Token token = iterator.next();
+                Assert.assertEquals(expected.getKey(), token.get());
+                Assert.assertEquals(convert(expected.getValue()), convert(token));
+
+                LongSet offsets = new LongOpenHashSet();
+                token.collectOffsets(offsets);
+                Assert.assertEquals(expected.getValue(), offsets);
+            }
+
+            Assert.assertFalse(iterator.hasNext());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void buildSerializeIterateAndSkip() throws Exception
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        TreeMap<Long, LongSet> tokens = new TreeMap<>();
+        for (long i = 0; i < 100000; i++)
+            tokens.put(i * 3, singleOffset(i));
+
+        RandomAccessReader reader = RandomAccessReader.open(write(tokens));
+        PackedPostings postings = new PackedPostings(new MappedBuffer(reader));
+
+        RangeIterator<Long, Token> iterator = postings.iterator(KEY_CONVERTER);
+
+        long target = 0;
+        while (target <= tokens.lastKey())
+        {
+            Long expected = tokens.ceilingKey(target);
+
+            Token token = iterator.skipTo(target);
+            Assert.assertNotNull(token);
+            Assert.assertEquals(expected, token.get());
+
+            // consume the token and jump either within the block or a couple of blocks ahead
+            Assert.assertEquals(expected, iterator.next().get());
+            target = expected + 1 + random.nextLong(random.nextBoolean() ? 50 : 5000);
+        }
+
+        Assert.assertNull(iterator.skipTo(tokens.lastKey() + 1));
+        Assert.assertFalse(iterator.hasNext());
+
+        reader.close();
+    }
+
+    @Test
+    public void testOrdinalsIteration() throws Exception
+    {
+        SortedMap<Long, LongSet> tokens = randomTokens(PackedPostings.BLOCK_TOKENS * 3);
+
+        RandomAccessReader reader = RandomAccessReader.open(write(tokens));
+        PackedPostings postings = new PackedPostings(new MappedBuffer(reader));
+
+        List<Long> allTokens = new ArrayList<>(tokens.keySet()), expected = new ArrayList<>();
+
+        BitSet ordinals = new BitSet();
+        for (int i = 3; i < allTokens.size(); i += 7)
+        {
+            ordinals.set(i);
+            expected.add(allTokens.get(i));
+        }
+
+        RangeIterator<Long, Token> iterator = postings.iterator(ordinals, KEY_CONVERTER);
+        Assert.assertEquals(expected.get(0), iterator.getMinimum());
+        Assert.assertEquals(expected.get(expected.size() - 1), iterator.getMaximum());
+
+        List<Long> actual = new ArrayList<>();
+        while (iterator.hasNext())
+            actual.add(iterator.next().get());
+
+        Assert.assertEquals(expected, actual);
+
+        // nothing selected (e.g. all of the bitmap terms were excluded) makes an empty range without bounds
+        RangeIterator<Long, Token> empty = postings.iterator(new BitSet(), KEY_CONVERTER);
+        Assert.assertNull(empty.getMinimum());
+        Assert.assertNull(empty.getMaximum());
+        Assert.assertFalse(empty.hasNext());
+
+        reader.close();
+    }
+
+    @Test
+    public void testMergeOfPackedTokens() throws Exception
+    {
+        SortedMap<Long, LongSet> tokens = randomTokens(PackedPostings.BLOCK_TOKENS * 3);
+
+        RandomAccessReader reader = RandomAccessReader.open(write(tokens));
+        PackedPostings postings = new PackedPostings(new MappedBuffer(reader));
+
+        Iterator<Token> a = postings.iterator(KEY_CONVERTER);
+        Iterator<Token> b = postings.iterator(KEY_CONVERTER);
+
+        Map.Entry<Long, LongSet> expected = tokens.entrySet().iterator().next();
+
+        Token first = a.next();
+
+        // the same location is not going to be read twice
+        first.merge(b.next());
+        Assert.assertEquals(convert(expected.getValue()), convert(first));
+
+        // other location with the same token adds its keys
+        LongSet otherOffsets = new LongOpenHashSet();
+        otherOffsets.add(Long.MAX_VALUE >> 1);
+
+        first.merge(new PackedPostings.PackedToken(expected.getKey(), KEY_CONVERTER, new long[] { Long.MAX_VALUE >> 1 }, 0, 1));
+
+        LongSet mergedOffsets = new LongOpenHashSet();
+        mergedOffsets.addAll(expected.getValue());
+        mergedOffsets.addAll(otherOffsets);
+
+        Assert.assertEquals(convert(mergedOffsets), convert(first));
+
+        LongSet collected = new LongOpenHashSet();
+        first.collectOffsets(collected);
+        Assert.assertEquals(mergedOffsets, collected);
+
+        reader.close();
+    }
+
+    private static SortedMap<Long, LongSet> randomTokens(int size)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        SortedMap<Long, LongSet> tokens = new TreeMap<>();
+
+        // extremes of the token range make the largest possible deltas
+        tokens.put(Long.MIN_VALUE, singleOffset(0));
+        if (size > 1)
+            tokens.put(Long.MAX_VALUE, singleOffset(1));
+
+        while (tokens.size() < size)
+        {
+            LongSet offsets = new LongOpenHashSet();
+
+            // a couple of token collisions per block and occasionally very big positions
+            int keys = random.nextInt(100) == 0 ? 1 + random.nextInt(4) : 1;
+            for (int i = 0; i < keys; i++)
+                offsets.add(random.nextInt(10) == 0 ? random.nextLong(Long.MAX_VALUE) : random.nextLong(1 << 20));
+
+            tokens.put(random.nextLong(), offsets);
+        }
+
+        return tokens;
+    }
+
+    private static LongSet singleOffset(long offset)
+    {
+        LongSet offsets = new LongOpenHashSet();
+        offsets.add(offset);
+        return offsets;
+    }
+
+    private static File write(SortedMap<Long, LongSet> tokens) throws Exception
+    {
+        File postingsFile = File.createTempFile("packed-postings", "pp");
+        postingsFile.deleteOnExit();
+
+        SequentialWriter writer = new SequentialWriter(postingsFile, 4096, false);
+        PackedPostings.write(new DynamicTokenTreeBuilder(tokens), writer);
+        writer.close();
+
+        return postingsFile;
+    }
+
+    private static Set<DecoratedKey> convert(LongSet offsets)
+    {
+        Set<DecoratedKey> keys = new HashSet<>();
+        for (LongCursor offset : offsets)
+            keys.add(KEY_CONVERTER.apply(offset.value));
+
+        return keys;
+    }
+
+    private static Set<DecoratedKey> convert(Token token)
+    {
+        Set<DecoratedKey> keys = new HashSet<>();
+        for (DecoratedKey key : token)
+            keys.add(key);
+
+        return keys;
+    }
+
+    private static class KeyConverter implements Function<Long, DecoratedKey>
+    {
+        @Override
+        public DecoratedKey apply(Long offset)
+        {
+            ByteBuffer buf = ByteBuffer.allocate(8);
+            buf.putLong(offset);
+            buf.flip();
+            Long hashed = MurmurHash.hash2_64(buf, buf.position(), buf.remaining(), 0);
+            return new DecoratedKey(new LongToken(hashed), buf);
+        }
+    }
+}
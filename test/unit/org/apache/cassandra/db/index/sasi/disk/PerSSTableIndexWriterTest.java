@@ -89,7 +89,7 @@ public class PerSSTableIndexWriterTest extends SchemaLoader
         Iterator<Map.Entry<DecoratedKey, Column>> keyIterator = expectedKeys.entrySet().iterator();
         long position = 0;
 
-        Set<String> segments = new HashSet<>();
+        Set<String> runs = new HashSet<>();
         outer:
         for (;;)
         {
@@ -106,21 +106,21 @@ public class PerSSTableIndexWriterTest extends SchemaLoader
 
             PerSSTableIndexWriter.Index index = indexWriter.getIndex(column);
 
-            OnDiskIndex segment = index.scheduleSegmentFlush(false).call();
-            index.segments.add(Futures.immediateFuture(segment));
-            segments.add(segment.getIndexPath());
+            TermRun run = index.scheduleRunFlush().call();
+            index.runs.add(Futures.immediateFuture(run));
+            runs.add(run.getPath());
         }
 
-        for (String segment : segments)
-            Assert.assertTrue(new File(segment).exists());
+        for (String run : runs)
+            Assert.assertTrue(new File(run).exists());
 
         String indexFile = indexWriter.indexes.get(column).filename(true);
 
         // final flush
         indexWriter.complete();
 
-        for (String segment : segments)
-            Assert.assertFalse(new File(segment).exists());
+        for (String run : runs)
+            Assert.assertFalse(new File(run).exists());
 
         OnDiskIndex index = new OnDiskIndex(new File(indexFile), Int32Type.instance, new Function<Long, DecoratedKey>()
         {
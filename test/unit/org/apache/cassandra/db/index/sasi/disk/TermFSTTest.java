@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.disk;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.cassandra.db.index.sasi.utils.MappedBuffer;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.io.util.RandomAccessReader;
+import org.apache.cassandra.io.util.SequentialWriter;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class TermFSTTest
+{
+    private static final String[] SUFFIXES = new String[] { "", "ing", "ed", "s", "ness", "able" };
+
+    @Test
+    public void testCeiling() throws Exception
+    {
+        for (int size : new int[] { 0, 1, 2, 100, 20000 })
+        {
+            TreeSet<String> terms = randomTerms(size);
+
+            RandomAccessReader reader = RandomAccessReader.open(write(terms));
+            TermFST fst = new TermFST(new MappedBuffer(reader));
+
+            Assert.assertEquals(terms.size(), fst.termCount());
+
+            // every term is found at its ordinal
+            int ordinal = 0;
+            for (String term : terms)
+                Assert.assertEquals(term, ordinal++, fst.ceiling(UTF8Type.instance.decompose(term)));
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 10000; i++)
+            {
+                String query = randomTerm(random);
+                Assert.assertEquals(query, terms.headSet(query).size(), fst.ceiling(UTF8Type.instance.decompose(query)));
+            }
+
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testPrefixRange() throws Exception
+    {
+        TreeSet<String> terms = randomTerms(20000);
+
+        RandomAccessReader reader = RandomAccessReader.open(write(terms));
+        TermFST fst = new TermFST(new MappedBuffer(reader));
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 10000; i++)
+        {
+            String prefix = randomTerm(random);
+            prefix = prefix.substring(0, random.nextInt(prefix.length() + 1));
+
+            int[] range = fst.prefixRange(UTF8Type.instance.decompose(prefix));
+
+            int matching = 0;
+            for (String term : terms.tailSet(prefix))
+            {
+                if (!term.startsWith(prefix))
+                    break;
+
+                matching++;
+            }
+
+            Assert.assertEquals(prefix, terms.headSet(prefix).size(), range[0]);
+            Assert.assertEquals(prefix, range[0] + matching, range[1]);
+        }
+
+        reader.close();
+    }
+
+    @Test
+    public void testSharedSuffixes() throws Exception
+    {
+        String[] domains = new String[] { "@example.com", "@example.org", "@mail.example.com" };
+
+        TreeSet<String> terms = new TreeSet<>();
+        for (int i = 0; i < 20000; i++)
+            terms.add(String.format("user%05d%s", i, domains[i % domains.length]));
+
+        long termBytes = 0;
+        for (String term : terms)
+            termBytes += term.length();
+
+        // common prefixes and suffixes make FST a lot smaller than the terms themselves
+        File fstFile = write(terms);
+        Assert.assertTrue(String.format("%d bytes for %d bytes of terms", fstFile.length(), termBytes), fstFile.length() * 10 < termBytes);
+    }
+
+    private static TreeSet<String> randomTerms(int size)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        TreeSet<String> terms = new TreeSet<>();
+        while (terms.size() < size)
+            terms.add(randomTerm(random));
+
+        return terms;
+    }
+
+    private static String randomTerm(ThreadLocalRandom random)
+    {
+        // ascii only so the order of the strings is the same as the order of their bytes
+        StringBuilder term = new StringBuilder();
+        for (int i = random.nextInt(8); i >= 0; i--)
+            term.append((char) ('a' + random.nextInt(10)));
+
+        return term.append(SUFFIXES[random.nextInt(SUFFIXES.length)]).toString();
+    }
+
+    private static File write(SortedSet<String> terms) throws Exception
+    {
+        File fstFile = File.createTempFile("term-fst", "fst");
+        fstFile.deleteOnExit();
+
+        List<ByteBuffer> buffers = new ArrayList<>(terms.size());
+        for (String term : terms)
+            buffers.add(UTF8Type.instance.decompose(term));
+
+        SequentialWriter writer = new SequentialWriter(fstFile, 4096, false);
+        TermFST.write(buffers, writer);
+        writer.close();
+
+        return fstFile;
+    }
+}
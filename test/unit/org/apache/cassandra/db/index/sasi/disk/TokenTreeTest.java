@@ -17,11 +17,14 @@
  */
 package org.apache.cassandra.db.index.sasi.disk;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.PeekingIterator;
 import org.apache.cassandra.db.DecoratedKey;
@@ -84,7 +87,7 @@ public class TokenTreeTest
     @Test
     public void buildAndIterate() throws Exception
     {
-        final TokenTreeBuilder builder = new TokenTreeBuilder(tokens).finish();
+        final TokenTreeBuilder builder = new DynamicTokenTreeBuilder(tokens).finish();
         final Iterator<Pair<Long, LongSet>> tokenIterator = builder.iterator();
         final Iterator<Map.Entry<Long, LongSet>> listIterator = tokens.entrySet().iterator();
         while (tokenIterator.hasNext() && listIterator.hasNext())
@@ -104,7 +107,8 @@ public class TokenTreeTest
     public void buildWithMultipleMapsAndIterate() throws Exception
     {
         final SortedMap<Long, LongSet> merged = new TreeMap<>();
-        final TokenTreeBuilder builder = new TokenTreeBuilder(simpleTokenMap).finish();
+        final DynamicTokenTreeBuilder builder = new DynamicTokenTreeBuilder(simpleTokenMap);
+        builder.finish();
         builder.add(collidingTokensMap);
 
         merged.putAll(collidingTokensMap);
@@ -156,7 +160,7 @@ public class TokenTreeTest
     @Test
     public void testSerializedSize() throws Exception
     {
-        final TokenTreeBuilder builder = new TokenTreeBuilder(tokens).finish();
+        final TokenTreeBuilder builder = new DynamicTokenTreeBuilder(tokens).finish();
 
         final File treeFile = File.createTempFile("token-tree-size-test", "tt");
         treeFile.deleteOnExit();
@@ -173,7 +177,7 @@ public class TokenTreeTest
     @Test
     public void buildSerializeAndIterate() throws Exception
     {
-        final TokenTreeBuilder builder = new TokenTreeBuilder(simpleTokenMap).finish();
+        final TokenTreeBuilder builder = new DynamicTokenTreeBuilder(simpleTokenMap).finish();
 
         final File treeFile = File.createTempFile("token-tree-iterate-test1", "tt");
         treeFile.deleteOnExit();
@@ -226,7 +230,7 @@ public class TokenTreeTest
     @Test
     public void buildSerializeIterateAndSkip() throws Exception
     {
-        final TokenTreeBuilder builder = new TokenTreeBuilder(tokens).finish();
+        final TokenTreeBuilder builder = new DynamicTokenTreeBuilder(tokens).finish();
 
         final File treeFile = File.createTempFile("token-tree-iterate-test2", "tt");
         treeFile.deleteOnExit();
@@ -271,10 +275,62 @@ public class TokenTreeTest
         reader.close();
     }
 
+    @Test
+    public void skipThroughMultiLevelTree() throws Exception
+    {
+        final SortedMap<Long, LongSet> sparseTokens = new TreeMap<>();
+        for (long i = 0; i < 1000000; i++)
+            sparseTokens.put(i * 3, singleOffset);
+
+        final TokenTreeBuilder builder = new DynamicTokenTreeBuilder(sparseTokens).finish();
+
+        final File treeFile = File.createTempFile("token-tree-skip-multi-level-test", "tt");
+        treeFile.deleteOnExit();
+
+        final SequentialWriter writer = new SequentialWriter(treeFile, 4096, false);
+        builder.write(writer);
+        writer.close();
+
+        final RandomAccessReader reader = RandomAccessReader.open(treeFile);
+        final TokenTree tokenTree = new TokenTree(new MappedBuffer(reader));
+
+        Random random = new Random(0xdeadbeef);
+        for (int i = 0; i < 10; i++)
+        {
+            RangeIterator<Long, Token> treeIterator = tokenTree.iterator(KEY_CONVERTER);
+
+            // mix of short (same leaf), medium (sibling leaves) and long (different sub-trees) skips
+            long target = 0;
+            while (true)
+            {
+                int distance = random.nextInt(3);
+                target += distance == 0 ? random.nextInt(100) : (distance == 1 ? random.nextInt(5000) : random.nextInt(500000));
+
+                Long expected = target > sparseTokens.lastKey() ? null : sparseTokens.tailMap(target).firstKey();
+                Token actual = treeIterator.skipTo(target);
+
+                if (expected == null)
+                {
+                    Assert.assertNull(actual);
+                    break;
+                }
+
+                Assert.assertNotNull(actual);
+                Assert.assertEquals(expected, actual.get());
+                Assert.assertEquals(expected, treeIterator.next().get());
+
+                // iterator has moved past the returned token
+                target = expected + 1;
+            }
+        }
+
+        reader.close();
+    }
+
     @Test
     public void skipPastEnd() throws Exception
     {
-        final TokenTreeBuilder builder = new TokenTreeBuilder(simpleTokenMap).finish();
+        final TokenTreeBuilder builder = new DynamicTokenTreeBuilder(simpleTokenMap).finish();
 
         final File treeFile = File.createTempFile("token-tree-skip-past-test", "tt");
         treeFile.deleteOnExit();
@@ -342,6 +398,121 @@ public class TokenTreeTest
         Assert.assertEquals(max, count - 1);
     }
 
+    @Test
+    public void testMergeOfTheSameLocation() throws Exception
+    {
+        TokenTree tree = generateTree(0, 1000);
+
+        // two iterators over the same tree produce tokens pointing to the same location
+        RangeIterator<Long, Token> a = tree.iterator(KEY_CONVERTER);
+        RangeIterator<Long, Token> b = tree.iterator(KEY_CONVERTER);
+
+        while (a.hasNext() && b.hasNext())
+        {
+            TokenTree.OnDiskToken tokenA = (TokenTree.OnDiskToken) a.next();
+            tokenA.merge(b.next());
+
+            LongSet offsets = new LongOpenHashSet();
+            tokenA.collectOffsets(offsets);
+
+            Assert.assertEquals(1, offsets.size());
+            Assert.assertTrue(offsets.contains(tokenA.get()));
+            Assert.assertEquals(1, Iterators.size(tokenA.iterator()));
+        }
+
+        Assert.assertFalse(a.hasNext());
+        Assert.assertFalse(b.hasNext());
+    }
+
+    @Test
+    public void testStreamedTree() throws Exception
+    {
+        // single leaf, full leaf, full leaf plus the last token, a few leaves and multi-level tree
+        for (int size : new int[] { 1, TokenTreeBuilder.TOKENS_PER_BLOCK, TokenTreeBuilder.TOKENS_PER_BLOCK + 1,
+                                    TokenTreeBuilder.TOKENS_PER_BLOCK * 3 + 1, TokenTreeBuilder.TOKENS_PER_BLOCK * 3 + 17, 100000 })
+        {
+            final SortedMap<Long, LongSet> toks = new TreeMap<>();
+            LongSet[] offsets = new LongSet[] { singleOffset, bigSingleOffset, shortPackableCollision, intPackableCollision };
+            for (long i = 0; i < size; i++)
+                toks.put(i * 3, offsets[(int) (i % offsets.length)]);
+
+            final int[] iterations = new int[1];
+            TokenTreeBuilder streamed = new StaticTokenTreeBuilder(new Iterable<Pair<Long, LongSet>>()
+            {
+                @Override
+                public Iterator<Pair<Long, LongSet>> iterator()
+                {
+                    iterations[0]++;
+
+                    final Iterator<Map.Entry<Long, LongSet>> entries = toks.entrySet().iterator();
+                    return new AbstractIterator<Pair<Long, LongSet>>()
+                    {
+                        @Override
+                        protected Pair<Long, LongSet> computeNext()
+                        {
+                            if (!entries.hasNext())
+                                return endOfData();
+
+                            Map.Entry<Long, LongSet> entry = entries.next();
+                            return Pair.create(entry.getKey(), entry.getValue());
+                        }
+                    };
+                }
+            }).finish();
+
+            TokenTreeBuilder inMemory = new DynamicTokenTreeBuilder(toks).finish();
+
+            Assert.assertEquals(inMemory.getTokenCount(), streamed.getTokenCount());
+            Assert.assertEquals(inMemory.serializedSize(), streamed.serializedSize());
+
+            // streamed tree has to be exactly the same as the one built from memory
+            Assert.assertTrue(Arrays.equals(serialize(inMemory), serialize(streamed)));
+
+            // once to find bounds of the leaves and once to write them
+            Assert.assertEquals(2, iterations[0]);
+        }
+    }
+
+    @Test
+    public void testPrimitiveTree() throws Exception
+    {
+        Random random = new Random();
+
+        for (int size : new int[] { 1, TokenTreeBuilder.TOKENS_PER_BLOCK + 1, 100000 })
+        {
+            SortedMap<Long, LongSet> toks = new TreeMap<>();
+            PrimitiveTokenTreeBuilder primitive = new PrimitiveTokenTreeBuilder();
+
+            // tokens are added out of order, with (packable) collisions and duplicate pairs
+            for (int i = 0; i < size; i++)
+            {
+                long token = random.nextInt(size), offset = random.nextInt(2);
+
+                LongSet offsets = toks.get(token);
+                if (offsets == null)
+                    toks.put(token, (offsets = new LongOpenHashSet()));
+
+                offsets.add(offset);
+                primitive.add(token, offset);
+            }
+
+            TokenTreeBuilder inMemory = new DynamicTokenTreeBuilder(toks).finish();
+            primitive.finish();
+
+            Assert.assertEquals(inMemory.getTokenCount(), primitive.getTokenCount());
+            Assert.assertEquals(toks, primitive.getTokens());
+            Assert.assertEquals(inMemory.serializedSize(), primitive.serializedSize());
+            Assert.assertTrue(Arrays.equals(serialize(inMemory), serialize(primitive)));
+        }
+    }
+
+    private static byte[] serialize(TokenTreeBuilder builder) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        builder.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
     @Test
     public void testEntryTypeOrdinalLookup()
     {
@@ -443,6 +614,13 @@ public class TokenTreeTest
 
             return keys.iterator();
         }
+
+        @Override
+        public void collectOffsets(LongSet collected)
+        {
+            for (LongCursor offset : offsets)
+                collected.add(offset.value);
+        }
     }
 
     private static Set<DecoratedKey> convert(LongSet offsets)
@@ -502,7 +680,7 @@ public class TokenTreeTest
                 }
         }};
 
-        final TokenTreeBuilder builder = new TokenTreeBuilder(toks).finish();
+        final TokenTreeBuilder builder = new DynamicTokenTreeBuilder(toks).finish();
         final File treeFile = File.createTempFile("token-tree-get-test", "tt");
         treeFile.deleteOnExit();
 
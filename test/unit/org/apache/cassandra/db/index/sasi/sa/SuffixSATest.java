@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.sa;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.cassandra.db.index.sasi.disk.OnDiskIndexBuilder;
+import org.apache.cassandra.db.index.sasi.disk.DynamicTokenTreeBuilder;
+import org.apache.cassandra.db.index.sasi.disk.MutableTokenTreeBuilder;
+import org.apache.cassandra.db.index.sasi.disk.TokenTreeBuilder;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.utils.Pair;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class SuffixSATest
+{
+    // ascii, two and three byte UTF-8 characters, a character above surrogates and a supplementary code point
+    private static final String[] CHARS = new String[] { "a", "b", "c", "\u00e9", "\u0436", "\uf900", "\ud83d\ude00" };
+
+    @Test
+    public void testSAIS() throws Exception
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < 1000; i++)
+        {
+            // small alphabets produce a lot of repeated substrings, which makes construction recursive
+            int alphabetSize = 2 + random.nextInt(i % 2 == 0 ? 3 : 100);
+            final int[] text = new int[1 + random.nextInt(500)];
+            for (int j = 0; j < text.length - 1; j++)
+                text[j] = 1 + random.nextInt(alphabetSize - 1);
+
+            Integer[] expected = new Integer[text.length];
+            for (int j = 0; j < text.length; j++)
+                expected[j] = j;
+
+            Arrays.sort(expected, new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer a, Integer b)
+                {
+                    for (int x = a, y = b; ; x++, y++)
+                    {
+                        // the last symbol is unique, so suffixes always differ before the end of the text
+                        if (text[x] != text[y])
+                            return text[x] - text[y];
+                    }
+                }
+            });
+
+            int[] sa = SAIS.sort(text, alphabetSize);
+            for (int j = 0; j < text.length; j++)
+                Assert.assertEquals(expected[j].intValue(), sa[j]);
+        }
+    }
+
+    @Test
+    public void testSuffixes() throws Exception
+    {
+        List<String> terms = randomTerms(2000);
+
+        // everything sorted at once and sorted in runs of just a few terms has to produce the same suffixes
+        for (int maxRunChars : new int[] { SuffixSA.MAX_RUN_CHARS, 100, 1 })
+        {
+            SuffixSA sa = new SuffixSA(UTF8Type.instance, OnDiskIndexBuilder.Mode.SUFFIX, maxRunChars);
+            for (int i = 0; i < terms.size(); i++)
+            {
+                MutableTokenTreeBuilder tokens = new DynamicTokenTreeBuilder();
+                tokens.add((long) i, i);
+                sa.add(UTF8Type.instance.decompose(terms.get(i)), tokens);
+            }
+
+            SortedMap<ByteBuffer, Set<Long>> expected = suffixes(terms);
+
+            TermIterator iterator = sa.finish();
+            Assert.assertEquals(expected.firstKey(), iterator.minTerm());
+            Assert.assertEquals(expected.lastKey(), iterator.maxTerm());
+
+            Iterator<Map.Entry<ByteBuffer, Set<Long>>> expectedIterator = expected.entrySet().iterator();
+            while (iterator.hasNext())
+            {
+                Pair<ByteBuffer, TokenTreeBuilder> suffix = iterator.next();
+                Map.Entry<ByteBuffer, Set<Long>> expectedSuffix = expectedIterator.next();
+
+                Assert.assertEquals(UTF8Type.instance.compose(expectedSuffix.getKey()), expectedSuffix.getKey(), suffix.left);
+                Assert.assertEquals(expectedSuffix.getValue(), suffix.right.getTokens().keySet());
+            }
+
+            Assert.assertFalse(expectedIterator.hasNext());
+        }
+    }
+
+    private static SortedMap<ByteBuffer, Set<Long>> suffixes(List<String> terms)
+    {
+        SortedMap<ByteBuffer, Set<Long>> suffixes = new TreeMap<>(UTF8Type.instance);
+        for (int i = 0; i < terms.size(); i++)
+        {
+            String term = terms.get(i);
+            for (int start = 0; start < term.length(); start = term.offsetByCodePoints(start, 1))
+            {
+                ByteBuffer suffix = UTF8Type.instance.decompose(term.substring(start));
+
+                Set<Long> tokens = suffixes.get(suffix);
+                if (tokens == null)
+                    suffixes.put(suffix, (tokens = new HashSet<>()));
+
+                tokens.add((long) i);
+            }
+        }
+
+        return suffixes;
+    }
+
+    private static List<String> randomTerms(int size)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        List<String> terms = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+        {
+            StringBuilder term = new StringBuilder();
+            for (int j = random.nextInt(12); j >= 0; j--)
+                term.append(CHARS[random.nextInt(CHARS.length)]);
+
+            terms.add(term.toString());
+        }
+
+        return terms;
+    }
+}
@@ -26,8 +26,12 @@ import java.util.List;
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.index.sasi.disk.Token;
 
-public class LongIterator extends RangeIterator<Long, Token>
+import com.carrotsearch.hppc.LongSet;
+
+public class LongIterator extends BlockRangeIterator<Token>
 {
+    private static final int MAX_BLOCK_SIZE = 7;
+
     private final List<LongToken> tokens;
     private int currentIdx = 0;
 
@@ -62,6 +66,17 @@ public class LongIterator extends RangeIterator<Long, Token>
         }
     }
 
+    @Override
+    protected int readTokens(long[] buffer, int offset)
+    {
+        // small blocks, so intersections and unions have to deal with the blocks ending at the different tokens
+        int count = Math.min(Math.min(tokens.size() - currentIdx, buffer.length - offset), MAX_BLOCK_SIZE);
+        for (int i = 0; i < count; i++)
+            buffer[offset + i] = tokens.get(currentIdx + i).get();
+
+        return Math.max(count, 0);
+    }
+
     @Override
     public void close() throws IOException
     {}
@@ -84,6 +99,10 @@ public class LongIterator extends RangeIterator<Long, Token>
         {
             return Collections.emptyIterator();
         }
+
+        @Override
+        public void collectOffsets(LongSet offsets)
+        {}
     }
 
     public static List<Long> convert(RangeIterator<Long, Token> tokens)
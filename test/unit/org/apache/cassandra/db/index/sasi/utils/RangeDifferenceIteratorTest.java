@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.index.sasi.utils;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.cassandra.db.index.sasi.disk.Token;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.apache.cassandra.db.index.sasi.utils.LongIterator.convert;
+
+public class RangeDifferenceIteratorTest
+{
+    @Test
+    public void testDifference()
+    {
+        RangeIterator<Long, Token> range = new RangeDifferenceIterator<>(new LongIterator(new long[] { 1L, 2L, 3L, 5L, 8L, 9L }),
+                                                                         new LongIterator(new long[] { 0L, 2L, 4L, 5L, 9L, 12L }));
+
+        Assert.assertEquals(1L, (long) range.getMinimum());
+        Assert.assertEquals(9L, (long) range.getMaximum());
+        Assert.assertEquals(6L, range.getCount());
+
+        Assert.assertEquals(convert(1L, 3L, 8L), convert(range));
+
+        // nothing is excluded
+        range = new RangeDifferenceIterator<>(new LongIterator(new long[] { 1L, 2L, 3L }),
+                                              new LongIterator(new long[] { 4L, 5L }));
+
+        Assert.assertEquals(convert(1L, 2L, 3L), convert(range));
+
+        range = new RangeDifferenceIterator<>(new LongIterator(new long[] { 1L, 2L, 3L }), null);
+        Assert.assertEquals(convert(1L, 2L, 3L), convert(range));
+
+        // everything is excluded
+        range = new RangeDifferenceIterator<>(new LongIterator(new long[] { 1L, 2L, 3L }),
+                                              new LongIterator(new long[] { 1L, 2L, 3L, 4L }));
+
+        Assert.assertEquals(convert(), convert(range));
+    }
+
+    @Test
+    public void testSkipTo()
+    {
+        RangeIterator<Long, Token> range = new RangeDifferenceIterator<>(new LongIterator(new long[] { 1L, 2L, 3L, 5L, 8L, 9L, 10L, 12L }),
+                                                                         new LongIterator(new long[] { 2L, 5L, 9L, 10L }));
+
+        Assert.assertEquals(1L, (long) range.next().get());
+        Assert.assertEquals(8L, (long) range.skipTo(4L).get());
+        Assert.assertEquals(8L, (long) range.next().get());
+        Assert.assertEquals(12L, (long) range.skipTo(9L).get());
+        Assert.assertEquals(12L, (long) range.next().get());
+        Assert.assertNull(range.skipTo(13L));
+        Assert.assertFalse(range.hasNext());
+    }
+
+    @Test
+    public void testExcludesOverride()
+    {
+        RangeIterator<Long, Token> range = new RangeDifferenceIterator<Long, Token>(new LongIterator(new long[] { 1L, 2L, 3L, 4L }),
+                                                                                    new LongIterator(new long[] { 2L, 3L, 4L }))
+        {
+            @Override
+            protected boolean excludes(Token candidate, Token excluded)
+            {
+                return candidate.get() % 2 == 0;
+            }
+        };
+
+        Assert.assertEquals(convert(1L, 3L), convert(range));
+    }
+
+    @Test
+    public void testRandomSequences()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int tests = 0; tests < 20; tests++)
+        {
+            SortedSet<Long> include = new TreeSet<>(), exclude = new TreeSet<>();
+
+            int count = random.nextInt(1, 1000);
+            for (int i = 0; i < count; i++)
+            {
+                include.add(random.nextLong(0, 2000));
+                exclude.add(random.nextLong(0, 2000));
+            }
+
+            SortedSet<Long> expected = new TreeSet<>(include);
+            expected.removeAll(exclude);
+
+            RangeIterator<Long, Token> range = new RangeDifferenceIterator<>(new LongIterator(toArray(include)),
+                                                                             new LongIterator(toArray(exclude)));
+
+            Assert.assertEquals(new ArrayList<>(expected), convert(range));
+        }
+    }
+
+    private static long[] toArray(SortedSet<Long> values)
+    {
+        long[] result = new long[values.size()];
+
+        int i = 0;
+        for (Long value : values)
+            result[i++] = value;
+
+        return result;
+    }
+}
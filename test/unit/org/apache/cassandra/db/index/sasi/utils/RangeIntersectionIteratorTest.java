@@ -25,6 +25,7 @@ import org.apache.cassandra.db.index.sasi.disk.Token;
 import org.apache.cassandra.db.index.sasi.utils.RangeIntersectionIterator.Strategy;
 import org.apache.cassandra.db.index.sasi.utils.RangeIntersectionIterator.LookupIntersectionIterator;
 import org.apache.cassandra.db.index.sasi.utils.RangeIntersectionIterator.BounceIntersectionIterator;
+import org.apache.cassandra.db.index.sasi.utils.RangeIntersectionIterator.BlockIntersectionIterator;
 import org.apache.cassandra.io.util.FileUtils;
 
 import com.carrotsearch.hppc.LongOpenHashSet;
@@ -346,6 +347,73 @@ public class RangeIntersectionIteratorTest
         }
     }
 
+    @Test
+    public void testBlockIntersectionOfUnions()
+    {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int attempt = 0; attempt < 16; attempt++)
+        {
+            // every range of the intersection is a union of the couple of ranges, like a term across SSTables
+            List<TreeSet<Long>> expectedRanges = new ArrayList<>();
+            RangeIterator.Builder<Long, Token> builder = RangeIntersectionIterator.builder(Strategy.BLOCK);
+
+            int rangeCount = random.nextInt(2, 5);
+            for (int i = 0; i < rangeCount; i++)
+            {
+                TreeSet<Long> union = new TreeSet<>();
+                RangeUnionIterator.Builder<Long, Token> unionBuilder = RangeUnionIterator.builder();
+
+                int unionSize = random.nextInt(1, 4);
+                for (int j = 0; j < unionSize; j++)
+                {
+                    int rangeSize = random.nextInt(16, 512);
+                    LongSet range = new LongOpenHashSet(rangeSize);
+                    for (int k = 0; k < rangeSize; k++)
+                        range.add(random.nextLong(0, 1000));
+
+                    long[] tokens = range.toArray();
+                    Arrays.sort(tokens);
+
+                    unionBuilder.add(new LongIterator(tokens));
+                    for (long token : tokens)
+                        union.add(token);
+                }
+
+                RangeIterator<Long, Token> unionRange = unionBuilder.build();
+                Assert.assertTrue(unionRange instanceof BlockReadable);
+
+                builder.add(unionRange);
+                expectedRanges.add(union);
+            }
+
+            List<Long> expected = new ArrayList<>();
+            for (Long token : expectedRanges.get(0))
+            {
+                boolean intersectsAll = true;
+                for (TreeSet<Long> range : expectedRanges)
+                    intersectsAll &= range.contains(token);
+
+                if (intersectsAll)
+                    expected.add(token);
+            }
+
+            RangeIterator<Long, Token> intersection = builder.build();
+            if (expected.isEmpty())
+            {
+                Assert.assertTrue(intersection == null || convert(intersection).isEmpty());
+                continue;
+            }
+
+            Assert.assertTrue(intersection instanceof BlockIntersectionIterator);
+
+            // skip over the first half of the results and read the rest
+            Long target = expected.get(expected.size() / 2);
+            Assert.assertEquals(target, intersection.skipTo(target).get());
+            Assert.assertEquals(expected.subList(expected.size() / 2, expected.size()), convert(intersection));
+        }
+    }
+
     @Test
     public void testIteratorPeeking()
     {
@@ -384,4 +452,55 @@ public class RangeIntersectionIteratorTest
         Assert.assertTrue(intersection.hasNext());
         Assert.assertEquals(convert(1L, 5L), convert(intersection));
     }
+
+    @Test
+    public void testBlockStrategy()
+    {
+        RangeIterator.Builder<Long, Token> builder = RangeIntersectionIterator.builder(Strategy.BLOCK);
+
+        builder.add(new LongIterator(new long[] { 1L, 3L, 5L, 7L, 9L }));
+        builder.add(new LongIterator(new long[] { 1L, 2L, 5L, 6L }));
+
+        RangeIterator<Long, Token> intersection = builder.build();
+
+        // block intersection is used when all of the ranges support bulk reads of the tokens
+        Assert.assertNotNull(intersection);
+        Assert.assertEquals(BlockIntersectionIterator.class, intersection.getClass());
+
+        Assert.assertTrue(intersection.hasNext());
+        Assert.assertEquals(convert(1L, 5L), convert(intersection));
+
+        builder = RangeIntersectionIterator.builder(Strategy.BLOCK);
+
+        final LongIterator source = new LongIterator(new long[] { 1L, 2L, 5L, 6L });
+
+        builder.add(new LongIterator(new long[] { 1L, 3L, 5L, 7L, 9L }));
+        builder.add(new RangeIterator<Long, Token>(source)
+        {
+            @Override
+            protected Token computeNext()
+            {
+                return source.hasNext() ? source.next() : endOfData();
+            }
+
+            @Override
+            protected void performSkipTo(Long nextToken)
+            {
+                source.skipTo(nextToken);
+            }
+
+            @Override
+            public void close()
+            {}
+        });
+
+        intersection = builder.build();
+
+        // otherwise it falls back to bounce intersection
+        Assert.assertNotNull(intersection);
+        Assert.assertEquals(BounceIntersectionIterator.class, intersection.getClass());
+
+        Assert.assertTrue(intersection.hasNext());
+        Assert.assertEquals(convert(1L, 5L), convert(intersection));
+    }
 }
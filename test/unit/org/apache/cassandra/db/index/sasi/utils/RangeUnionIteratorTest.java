@@ -254,6 +254,60 @@ public class RangeUnionIteratorTest
         Assert.assertEquals(9L, (long) tokens.getMaximum());
     }
 
+    @Test
+    public void testLargeNumberOfRangesWithSkip()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int ranges : new int[] { 2, 3, 7, 100, 1000 })
+        {
+            RangeUnionIterator.Builder<Long, Token> builder = RangeUnionIterator.builder();
+            TreeSet<Long> expected = new TreeSet<>();
+
+            for (int i = 0; i < ranges; i++)
+            {
+                // small value space, so there are plenty of elements shared between ranges
+                long[] part = new long[random.nextInt(1, 50)];
+                for (int j = 0; j < part.length; j++)
+                    part[j] = random.nextLong(10000);
+
+                Arrays.sort(part);
+
+                // each range has unique elements, just like tokens of a single term
+                long[] unique = new long[part.length];
+                int size = 0;
+                for (long value : part)
+                {
+                    if (size == 0 || unique[size - 1] != value)
+                        unique[size++] = value;
+                }
+
+                builder.add(new LongIterator(Arrays.copyOf(unique, size)));
+                for (int j = 0; j < size; j++)
+                    expected.add(unique[j]);
+            }
+
+            RangeIterator<Long, Token> tokens = builder.build();
+            Assert.assertNotNull(tokens);
+
+            Long target = expected.first();
+            while (target != null)
+            {
+                Token token = tokens.skipTo(target);
+                Assert.assertNotNull(token);
+                Assert.assertEquals(target, token.get());
+                Assert.assertEquals(target, tokens.next().get());
+
+                target = expected.higher(target + random.nextInt(100));
+            }
+
+            Assert.assertNull(tokens.skipTo(expected.last() + 1));
+            Assert.assertFalse(tokens.hasNext());
+
+            FileUtils.closeQuietly(tokens);
+        }
+    }
+
     @Test
     public void testMergingMultipleIterators()
     {